@@ -0,0 +1,212 @@
+package org.morriskurz.background;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import org.knime.base.node.mine.treeensemble2.data.PredictorRecord;
+import org.knime.base.node.mine.treeensemble2.model.AbstractTreeNode;
+import org.knime.base.node.mine.treeensemble2.model.TreeNodeRegression;
+import org.knime.core.node.CanceledExecutionException;
+import org.knime.core.node.ExecutionMonitor;
+import org.morriskurz.compiled.CompiledEnsemble;
+import org.morriskurz.compiled.RandomEnsembles;
+import org.morriskurz.compiled.RegressionTrees;
+import org.morriskurz.parser.TreeSHAPPrediction;
+
+/**
+ * Tests the interventional SHAP values on a {@link BackgroundSummary} against the Shapley values
+ * of the game over the raw background rows, which is enumerated for every coalition. The trees are
+ * the random compiled ensembles of {@link RandomEnsembles} as KNIME regression trees.
+ *
+ * @author Morris Kurz, morriskurz@gmail.com
+ */
+public class BackgroundSummarizerTest {
+
+  private static final double TOLERANCE = 1e-10;
+
+  private static final int NR_FEATURES = 5;
+
+  /** The interventional SHAP values of a row, the last value being the expected value. */
+  private static final class InterventionalPrediction
+      extends TreeSHAPPrediction<TreeNodeRegression> {
+
+    InterventionalPrediction(
+        final PredictorRecord record,
+        final TreeNodeRegression[] roots,
+        final CompiledEnsemble ensemble,
+        final BackgroundSummary background) {
+      super(record);
+      computeInterventionalShap(
+          roots,
+          NR_FEATURES,
+          ensemble.getScaling(),
+          ensemble.getMaximumDepth(),
+          background,
+          null);
+    }
+
+    @Override
+    protected double getNodeValue(final TreeNodeRegression node, final int treeIndex) {
+      return node.getMean();
+    }
+
+    @Override
+    protected double getNumberOfSamples(final TreeNodeRegression node) {
+      return node.getTotalSum();
+    }
+
+    @Override
+    public boolean hasPrediction() {
+      return true;
+    }
+  }
+
+  @Test
+  public void testLosslessSummaryIsExact() throws CanceledExecutionException {
+    for (long seed = 0; seed < 3; seed++) {
+      final CompiledEnsemble ensemble =
+          RandomEnsembles.create(seed, 6, 5, NR_FEATURES, NR_FEATURES);
+      final TreeNodeRegression[] roots = RegressionTrees.toTrees(ensemble);
+      final PredictorRecord[] background =
+          RegressionTrees.toRecords(RandomEnsembles.createRows(seed + 100, ensemble, 40));
+      final PredictorRecord[] rows =
+          RegressionTrees.toRecords(RandomEnsembles.createRows(seed, ensemble, 10));
+      final BackgroundSummary summary = summarize(roots, background, 0);
+      assertFalse(summary.isLossy());
+      for (final PredictorRecord row : rows) {
+        final double[] phi = new InterventionalPrediction(row, roots, ensemble, summary).getPhi();
+        assertArrayEquals(bruteForceShap(roots, ensemble, row, background), phi, TOLERANCE);
+        assertEquals(predict(roots, ensemble, row), sum(phi), TOLERANCE);
+      }
+    }
+  }
+
+  @Test
+  public void testLossySummaryErrorIsBounded() throws CanceledExecutionException {
+    final CompiledEnsemble ensemble = RandomEnsembles.create(7, 8, 6, NR_FEATURES, NR_FEATURES);
+    final TreeNodeRegression[] roots = RegressionTrees.toTrees(ensemble);
+    final PredictorRecord[] background =
+        RegressionTrees.toRecords(RandomEnsembles.createRows(8, ensemble, 200));
+    final BackgroundSummary summary = summarize(roots, background, 3);
+    assertTrue(summary.isLossy());
+    // The expected value of every tree changes by at most the shifted fraction of its leaf range.
+    double bound = 0;
+    for (int tree = 0; tree < ensemble.getNrTrees(); tree++) {
+      bound += ensemble.getScaling() * getLeafRange(ensemble, tree);
+    }
+    bound *= summary.getMaximumShiftedLeafFraction();
+    double expectedValue = 0;
+    for (final PredictorRecord row : background) {
+      expectedValue += predict(roots, ensemble, row) / background.length;
+    }
+    final PredictorRecord[] rows =
+        RegressionTrees.toRecords(RandomEnsembles.createRows(9, ensemble, 10));
+    for (final PredictorRecord row : rows) {
+      final double[] phi = new InterventionalPrediction(row, roots, ensemble, summary).getPhi();
+      assertEquals(expectedValue, phi[NR_FEATURES], bound + TOLERANCE);
+      assertEquals(predict(roots, ensemble, row), sum(phi), TOLERANCE);
+    }
+  }
+
+  private static BackgroundSummary summarize(
+      final TreeNodeRegression[] roots, final PredictorRecord[] background, final int prototypes)
+      throws CanceledExecutionException {
+    final List<PredictorRecord> rows = new ArrayList<>();
+    for (final PredictorRecord row : background) {
+      rows.add(row);
+    }
+    return new BackgroundSummarizer(roots, prototypes)
+        .summarize(rows.iterator(), rows.size(), new ExecutionMonitor());
+  }
+
+  /**
+   * The Shapley values of v(S) = E_z[f(x_S, z_rest)] over the raw background rows, enumerating
+   * every coalition, followed by the expected value E_z[f(z)].
+   */
+  private static double[] bruteForceShap(
+      final TreeNodeRegression[] roots,
+      final CompiledEnsemble ensemble,
+      final PredictorRecord row,
+      final PredictorRecord[] background) {
+    final double[] values = new double[1 << NR_FEATURES];
+    for (final PredictorRecord backgroundRow : background) {
+      for (int coalition = 0; coalition < values.length; coalition++) {
+        final Map<String, Object> mixed = new HashMap<>();
+        for (int feature = 0; feature < NR_FEATURES; feature++) {
+          final PredictorRecord source = (coalition >> feature & 1) != 0 ? row : backgroundRow;
+          final String column = RegressionTrees.getColumnName(feature);
+          mixed.put(column, source.getValue(column));
+        }
+        values[coalition] +=
+            predict(roots, ensemble, new PredictorRecord(mixed)) / background.length;
+      }
+    }
+    final double[] phi = new double[NR_FEATURES + 1];
+    for (int feature = 0; feature < NR_FEATURES; feature++) {
+      for (int coalition = 0; coalition < values.length; coalition++) {
+        if ((coalition >> feature & 1) == 0) {
+          final int size = Integer.bitCount(coalition);
+          phi[feature] +=
+              shapleyWeight(size) * (values[coalition | 1 << feature] - values[coalition]);
+        }
+      }
+    }
+    phi[NR_FEATURES] = values[0];
+    return phi;
+  }
+
+  /** @return |S|! (n - |S| - 1)! / n! for n features */
+  private static double shapleyWeight(final int size) {
+    double weight = 1.0 / NR_FEATURES;
+    for (int k = 1; k <= size; k++) {
+      weight *= k / (double) (NR_FEATURES - k);
+    }
+    return weight;
+  }
+
+  private static double predict(
+      final TreeNodeRegression[] roots,
+      final CompiledEnsemble ensemble,
+      final PredictorRecord row) {
+    double prediction = 0;
+    for (final TreeNodeRegression root : roots) {
+      AbstractTreeNode node = root;
+      while (node.getNrChildren() > 0) {
+        // Missing values follow the left child, as in the SHAP computation.
+        node = node.getChild(Math.max(node.findNextPathTurn(row), 0));
+      }
+      prediction += ((TreeNodeRegression) node).getMean();
+    }
+    return ensemble.getScaling() * prediction;
+  }
+
+  private static double getLeafRange(final CompiledEnsemble ensemble, final int tree) {
+    final int end =
+        tree + 1 < ensemble.getNrTrees() ? ensemble.getRoot(tree + 1) : ensemble.getNrNodes();
+    double min = Double.POSITIVE_INFINITY;
+    double max = Double.NEGATIVE_INFINITY;
+    for (int node = ensemble.getRoot(tree); node < end; node++) {
+      if (ensemble.isLeaf(node)) {
+        min = Math.min(min, ensemble.getValue(node));
+        max = Math.max(max, ensemble.getValue(node));
+      }
+    }
+    return max - min;
+  }
+
+  private static double sum(final double[] values) {
+    double sum = 0;
+    for (final double value : values) {
+      sum += value;
+    }
+    return sum;
+  }
+}
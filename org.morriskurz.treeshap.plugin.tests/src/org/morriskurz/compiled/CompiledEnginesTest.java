@@ -0,0 +1,97 @@
+package org.morriskurz.compiled;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+/**
+ * Tests that the batched, path list and work stealing engines compute the SHAP values of {@link
+ * CompiledTreeSHAP}. The random ensembles split repeatedly on the same players and send missing
+ * values both ways.
+ *
+ * @author Morris Kurz, morriskurz@gmail.com
+ */
+public class CompiledEnginesTest {
+
+  private static final double TOLERANCE = 1e-12;
+
+  /** Batches of a single row, less than, exactly and more than one batch of rows. */
+  private static final int[] NR_ROWS = {
+    1,
+    7,
+    BatchedTreeSHAP.BATCH_SIZE - 1,
+    BatchedTreeSHAP.BATCH_SIZE,
+    BatchedTreeSHAP.BATCH_SIZE + 1,
+    3 * BatchedTreeSHAP.BATCH_SIZE + 5
+  };
+
+  @Test
+  public void testBatchedTreeSHAP() {
+    for (long seed = 0; seed < 5; seed++) {
+      final CompiledEnsemble ensemble = RandomEnsembles.create(seed, 30, 9, 8, 5);
+      final CompiledTreeSHAP expected = new CompiledTreeSHAP(ensemble);
+      final BatchedTreeSHAP actual = new BatchedTreeSHAP(ensemble);
+      for (final int nrRows : NR_ROWS) {
+        final double[][] rows = RandomEnsembles.createRows(seed, ensemble, nrRows);
+        assertEquals(rows, expected, actual.explain(rows));
+      }
+    }
+  }
+
+  @Test
+  public void testPathListTreeSHAP() {
+    for (long seed = 0; seed < 5; seed++) {
+      final CompiledEnsemble ensemble = RandomEnsembles.create(seed, 30, 9, 8, 5);
+      final CompiledTreeSHAP expected = new CompiledTreeSHAP(ensemble);
+      final PathListTreeSHAP actual = new PathListTreeSHAP(PathList.create(ensemble));
+      for (final double[] row : RandomEnsembles.createRows(seed, ensemble, 100)) {
+        assertArrayEquals(expected.explain(row), actual.explain(row), TOLERANCE);
+      }
+    }
+  }
+
+  @Test
+  public void testPathListBlocksAddUpToTheRow() {
+    final CompiledEnsemble ensemble = RandomEnsembles.create(5, 200, 10, 8, 5);
+    final PathList paths = PathList.create(ensemble);
+    final PathListTreeSHAP explainer = new PathListTreeSHAP(paths);
+    for (final double[] row : RandomEnsembles.createRows(5, ensemble, 20)) {
+      final double[] phi = new double[ensemble.getNrPlayers() + 1];
+      phi[ensemble.getNrPlayers()] = paths.getBias();
+      for (int block = 0; block < paths.getNrBlocks(); block++) {
+        explainer.addBlock(row, block, phi);
+      }
+      assertArrayEquals(explainer.explain(row), phi, 0);
+    }
+  }
+
+  @Test
+  public void testWorkStealingTreeSHAP() {
+    final ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      for (long seed = 0; seed < 3; seed++) {
+        // Enough trees for several blocks, so single rows are split by tree blocks.
+        final CompiledEnsemble ensemble = RandomEnsembles.create(seed, 400, 10, 8, 5);
+        final CompiledTreeSHAP expected = new CompiledTreeSHAP(ensemble);
+        final WorkStealingTreeSHAP actual = new WorkStealingTreeSHAP(ensemble, pool);
+        for (final int nrRows : NR_ROWS) {
+          final double[][] rows = RandomEnsembles.createRows(seed, ensemble, nrRows);
+          assertEquals(rows, expected, actual.explain(rows));
+        }
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  private static void assertEquals(
+      final double[][] rows, final CompiledTreeSHAP expected, final double[][] actual) {
+    org.junit.Assert.assertEquals(rows.length, actual.length);
+    for (int row = 0; row < rows.length; row++) {
+      assertArrayEquals(expected.explain(rows[row]), actual[row], TOLERANCE);
+    }
+  }
+}
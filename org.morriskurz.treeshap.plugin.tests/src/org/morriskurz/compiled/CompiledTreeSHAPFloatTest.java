@@ -0,0 +1,55 @@
+package org.morriskurz.compiled;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Tests the deviation of {@link CompiledTreeSHAPFloat} from the double precision engine.
+ *
+ * @author Morris Kurz, morriskurz@gmail.com
+ */
+public class CompiledTreeSHAPFloatTest {
+
+  /**
+   * The bound on the deviation relative to the largest contribution of a tree, a few hundred units
+   * in the last place of a float.
+   */
+  private static final double RELATIVE_TOLERANCE = 1e-5;
+
+  @Test
+  public void testDeviationIsBounded() {
+    for (long seed = 0; seed < 10; seed++) {
+      final CompiledEnsemble ensemble = RandomEnsembles.create(seed, 50, 10, 8, 6);
+      final double tolerance = RELATIVE_TOLERANCE * getLargestTreeContribution(ensemble);
+      final CompiledTreeSHAP expected = new CompiledTreeSHAP(ensemble);
+      final CompiledTreeSHAPFloat actual = new CompiledTreeSHAPFloat(ensemble);
+      for (final double[] row : RandomEnsembles.createRows(seed, ensemble, 100)) {
+        assertArrayEquals(expected.explain(row), actual.explain(row), tolerance);
+      }
+    }
+  }
+
+  @Test
+  public void testValuesAddUpToThePrediction() {
+    final CompiledEnsemble ensemble = RandomEnsembles.create(10, 50, 10, 8, 6);
+    final double tolerance = RELATIVE_TOLERANCE * getLargestTreeContribution(ensemble);
+    final CompiledTreeSHAPFloat explainer = new CompiledTreeSHAPFloat(ensemble);
+    for (final double[] row : RandomEnsembles.createRows(10, ensemble, 100)) {
+      double sum = 0;
+      for (final double value : explainer.explain(row)) {
+        sum += value;
+      }
+      assertEquals(ensemble.predict(row), sum, ensemble.getNrTrees() * tolerance);
+    }
+  }
+
+  private static double getLargestTreeContribution(final CompiledEnsemble ensemble) {
+    double largest = 0;
+    for (int node = 0; node < ensemble.getNrNodes(); node++) {
+      largest = Math.max(largest, Math.abs(ensemble.getValue(node)));
+    }
+    return largest * Math.abs(ensemble.getScaling());
+  }
+}
@@ -0,0 +1,93 @@
+package org.morriskurz.compiled;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import org.junit.Test;
+import org.knime.core.node.InvalidSettingsException;
+
+/**
+ * Tests the compact node encoding of {@link QuantizedNodeStorage}.
+ *
+ * @author Morris Kurz, morriskurz@gmail.com
+ */
+public class QuantizedNodeStorageTest {
+
+  /** The rounded covers change the SHAP values in the order of the float precision. */
+  private static final double TOLERANCE = 1e-5;
+
+  @Test
+  public void testThresholdsAreExact() throws InvalidSettingsException {
+    final CompiledEnsemble ensemble = RandomEnsembles.create(1, 20, 8, 6, 4);
+    final QuantizedNodeStorage nodes =
+        (QuantizedNodeStorage) QuantizedNodeStorage.encode(ensemble).getNodes();
+    assertTrue(nodes.getNrExactThresholds() > 0);
+    assertArrayEquals(getThresholds(ensemble), getThresholds(nodes), 0);
+  }
+
+  @Test
+  public void testRowsTakeTheBranchesOfTheModel() throws InvalidSettingsException {
+    final CompiledEnsemble ensemble = RandomEnsembles.create(2, 20, 8, 6, 4);
+    final CompiledEnsemble encoded = QuantizedNodeStorage.encode(ensemble);
+    // The values of the leaves are kept as doubles, so the predictions are exact.
+    for (final double[] row : RandomEnsembles.createRows(3, ensemble, 200)) {
+      assertEquals(ensemble.predict(row), encoded.predict(row), 0);
+    }
+  }
+
+  @Test
+  public void testExplanationsMatchTheFullEncoding() throws InvalidSettingsException {
+    final CompiledEnsemble ensemble = RandomEnsembles.create(4, 20, 8, 6, 4);
+    final CompiledTreeSHAP expected = new CompiledTreeSHAP(ensemble);
+    final CompiledTreeSHAP actual = new CompiledTreeSHAP(QuantizedNodeStorage.encode(ensemble));
+    for (final double[] row : RandomEnsembles.createRows(5, ensemble, 200)) {
+      assertArrayEquals(expected.explain(row), actual.explain(row), TOLERANCE);
+    }
+  }
+
+  @Test
+  public void testSerializedThresholdsAreExact() throws InvalidSettingsException, IOException {
+    final CompiledEnsemble ensemble = RandomEnsembles.create(6, 20, 8, 6, 4);
+    final CompiledEnsemble encoded = QuantizedNodeStorage.encode(ensemble);
+    final Path file = Files.createTempFile("ensemble", ".bin");
+    try {
+      try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+        CompiledEnsembleSerializer.write(encoded, channel);
+      }
+      final CompiledEnsemble mapped = CompiledEnsembleSerializer.map(file);
+      assertTrue(mapped.getNodes() instanceof QuantizedNodeStorage);
+      assertArrayEquals(getThresholds(ensemble), getThresholds(mapped.getNodes()), 0);
+      for (final double[] row : RandomEnsembles.createRows(7, ensemble, 200)) {
+        assertEquals(encoded.predict(row), mapped.predict(row), 0);
+      }
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  /** @return the sorted thresholds of the splits, the layouts order the nodes differently */
+  private static double[] getThresholds(final CompiledEnsemble ensemble) {
+    return getThresholds(ensemble.getNodes());
+  }
+
+  private static double[] getThresholds(final INodeStorage nodes) {
+    final double[] thresholds = new double[nodes.getNrNodes()];
+    int nrSplits = 0;
+    for (int node = 0; node < nodes.getNrNodes(); node++) {
+      if (nodes.getSplitFeature(node) >= 0) {
+        thresholds[nrSplits++] = nodes.getThreshold(node);
+      }
+    }
+    final double[] splitThresholds = Arrays.copyOf(thresholds, nrSplits);
+    Arrays.sort(splitThresholds);
+    return splitThresholds;
+  }
+}
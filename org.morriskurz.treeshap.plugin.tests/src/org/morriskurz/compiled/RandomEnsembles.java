@@ -0,0 +1,167 @@
+package org.morriskurz.compiled;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Random compiled ensembles and rows to compare the engines of the compiled explainer.
+ *
+ * <p>The trees split on few features, so players are split on repeatedly along a path, and the
+ * players group some of the features. The split flags vary, so rows equal to a threshold and
+ * missing values take either branch. The rows draw their values from the thresholds of the
+ * ensemble, nearby values and missing values.
+ *
+ * @author Morris Kurz, morriskurz@gmail.com
+ */
+public final class RandomEnsembles {
+
+  /** The outcome flags of the splits, for values less, equal, greater and missing. */
+  private static final byte[] SPLIT_FLAGS = {
+    CompiledEnsemble.GREATER_RIGHT,
+    CompiledEnsemble.GREATER_RIGHT | CompiledEnsemble.MISSING_RIGHT,
+    CompiledEnsemble.EQUAL_RIGHT | CompiledEnsemble.GREATER_RIGHT,
+    CompiledEnsemble.LESS_RIGHT | CompiledEnsemble.MISSING_RIGHT,
+    CompiledEnsemble.LESS_RIGHT | CompiledEnsemble.EQUAL_RIGHT
+  };
+
+  private final Random random;
+
+  private int[] rightChildren = new int[64];
+
+  private int[] splitFeatures = new int[64];
+
+  private double[] thresholds = new double[64];
+
+  private byte[] splitFlags = new byte[64];
+
+  private double[] values = new double[64];
+
+  private double[] covers = new double[64];
+
+  private int nrNodes;
+
+  private RandomEnsembles(final long seed) {
+    random = new Random(seed);
+  }
+
+  /**
+   * @param seed The seed of the ensemble.
+   * @param nrTrees The number of trees.
+   * @param maxDepth The maximum number of levels of a tree.
+   * @param nrFeatures The number of features.
+   * @param nrPlayers The number of players, every feature belonging to one of them.
+   * @return a random ensemble in the preorder layout of {@link ArrayNodeStorage}
+   */
+  public static CompiledEnsemble create(
+      final long seed,
+      final int nrTrees,
+      final int maxDepth,
+      final int nrFeatures,
+      final int nrPlayers) {
+    return new RandomEnsembles(seed).create(nrTrees, maxDepth, nrFeatures, nrPlayers);
+  }
+
+  /**
+   * @param seed The seed of the rows.
+   * @param ensemble The ensemble whose thresholds the values are drawn from.
+   * @param nrRows The number of rows.
+   * @return rows with values equal to, near and far from the thresholds, and missing values
+   */
+  public static double[][] createRows(
+      final long seed, final CompiledEnsemble ensemble, final int nrRows) {
+    final Random random = new Random(seed);
+    final double[][] rows = new double[nrRows][ensemble.getNrFeatures()];
+    for (final double[] row : rows) {
+      for (int feature = 0; feature < row.length; feature++) {
+        final int node = random.nextInt(ensemble.getNrNodes());
+        final double threshold = ensemble.isLeaf(node) ? 0 : ensemble.getThreshold(node);
+        switch (random.nextInt(5)) {
+          case 0:
+            row[feature] = Double.NaN;
+            break;
+          case 1:
+            row[feature] = threshold;
+            break;
+          case 2:
+            row[feature] = Math.nextUp(threshold);
+            break;
+          default:
+            row[feature] = 4 * random.nextGaussian();
+        }
+      }
+    }
+    return rows;
+  }
+
+  private CompiledEnsemble create(
+      final int nrTrees, final int maxDepth, final int nrFeatures, final int nrPlayers) {
+    final int[] treeOffsets = new int[nrTrees + 1];
+    int depth = 0;
+    for (int tree = 0; tree < nrTrees; tree++) {
+      treeOffsets[tree] = nrNodes;
+      depth = Math.max(depth, addNode(1 + random.nextInt(maxDepth), nrFeatures, 1000));
+    }
+    treeOffsets[nrTrees] = nrNodes;
+    final int[] playerOfFeature = new int[nrFeatures];
+    for (int feature = 0; feature < nrFeatures; feature++) {
+      // The first players are single features, the last player groups the remaining features.
+      playerOfFeature[feature] = Math.min(feature, nrPlayers - 1);
+    }
+    return new CompiledEnsemble(
+        treeOffsets,
+        new ArrayNodeStorage(
+            Arrays.copyOf(rightChildren, nrNodes),
+            Arrays.copyOf(splitFeatures, nrNodes),
+            Arrays.copyOf(thresholds, nrNodes),
+            Arrays.copyOf(splitFlags, nrNodes),
+            Arrays.copyOf(values, nrNodes),
+            Arrays.copyOf(covers, nrNodes)),
+        playerOfFeature,
+        nrPlayers,
+        1.0 / nrTrees,
+        random.nextGaussian(),
+        depth);
+  }
+
+  /**
+   * Appends a random subtree in preorder.
+   *
+   * @param levels The maximum number of levels of the subtree.
+   * @param cover The cover of the root of the subtree.
+   * @return the number of levels of the subtree
+   */
+  private int addNode(final int levels, final int nrFeatures, final double cover) {
+    final int node = nrNodes++;
+    if (node == rightChildren.length) {
+      grow();
+    }
+    covers[node] = cover;
+    if (levels == 1 || random.nextInt(8) == 0) {
+      rightChildren[node] = -1;
+      splitFeatures[node] = -1;
+      values[node] = random.nextGaussian();
+      return 1;
+    }
+    // Few distinct features and thresholds, so paths repeat splits and rows hit thresholds.
+    splitFeatures[node] = random.nextInt(nrFeatures);
+    thresholds[node] = random.nextInt(5) == 0 ? random.nextInt(9) - 4 : 4 * random.nextGaussian();
+    splitFlags[node] = SPLIT_FLAGS[random.nextInt(SPLIT_FLAGS.length)];
+    final double leftCover = cover * (0.05 + 0.9 * random.nextDouble());
+    final int leftDepth = addNode(levels - 1, nrFeatures, leftCover);
+    rightChildren[node] = nrNodes;
+    final int rightDepth = addNode(levels - 1, nrFeatures, cover - leftCover);
+    values[node] =
+        (leftCover * values[node + 1] + (cover - leftCover) * values[rightChildren[node]]) / cover;
+    return Math.max(leftDepth, rightDepth) + 1;
+  }
+
+  private void grow() {
+    final int capacity = 2 * rightChildren.length;
+    rightChildren = Arrays.copyOf(rightChildren, capacity);
+    splitFeatures = Arrays.copyOf(splitFeatures, capacity);
+    thresholds = Arrays.copyOf(thresholds, capacity);
+    splitFlags = Arrays.copyOf(splitFlags, capacity);
+    values = Arrays.copyOf(values, capacity);
+    covers = Arrays.copyOf(covers, capacity);
+  }
+}
@@ -0,0 +1,113 @@
+package org.morriskurz.compiled;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.knime.base.node.mine.treeensemble2.data.PredictorRecord;
+import org.knime.base.node.mine.treeensemble2.data.TreeNumericColumnMetaData;
+import org.knime.base.node.mine.treeensemble2.data.TreeTargetNumericColumnMetaData;
+import org.knime.base.node.mine.treeensemble2.model.TreeNodeNumericCondition;
+import org.knime.base.node.mine.treeensemble2.model.TreeNodeNumericCondition.NumericOperator;
+import org.knime.base.node.mine.treeensemble2.model.TreeNodeRegression;
+import org.knime.base.node.mine.treeensemble2.model.TreeNodeSignature;
+import org.knime.base.node.mine.treeensemble2.model.TreeNodeSignatureFactory;
+
+/**
+ * The random ensembles of {@link RandomEnsembles} as KNIME regression trees, to compare the
+ * explanations of the tree ensemble nodes with values computed independently.
+ *
+ * @author Morris Kurz, morriskurz@gmail.com
+ */
+public final class RegressionTrees {
+
+  private RegressionTrees() {}
+
+  /**
+   * @param ensemble A random ensemble of {@link RandomEnsembles}.
+   * @return the trees of the ensemble, the left child taking the values up to the threshold and
+   *     missing values following the split flags
+   */
+  public static TreeNodeRegression[] toTrees(final CompiledEnsemble ensemble) {
+    final TreeTargetNumericColumnMetaData target = new TreeTargetNumericColumnMetaData("target");
+    final TreeNumericColumnMetaData[] columns =
+        new TreeNumericColumnMetaData[ensemble.getNrFeatures()];
+    for (int feature = 0; feature < columns.length; feature++) {
+      columns[feature] = new TreeNumericColumnMetaData(getColumnName(feature));
+      columns[feature].setAttributeIndex(feature);
+    }
+    final TreeNodeSignatureFactory signatures = new TreeNodeSignatureFactory();
+    final TreeNodeRegression[] roots = new TreeNodeRegression[ensemble.getNrTrees()];
+    for (int tree = 0; tree < roots.length; tree++) {
+      roots[tree] =
+          toNode(
+              ensemble,
+              ensemble.getRoot(tree),
+              signatures.getRootSignature(),
+              signatures,
+              target,
+              columns);
+    }
+    return roots;
+  }
+
+  private static TreeNodeRegression toNode(
+      final CompiledEnsemble ensemble,
+      final int node,
+      final TreeNodeSignature signature,
+      final TreeNodeSignatureFactory signatures,
+      final TreeTargetNumericColumnMetaData target,
+      final TreeNumericColumnMetaData[] columns) {
+    final double cover = ensemble.getCover(node);
+    final double mean = ensemble.getValue(node);
+    if (ensemble.isLeaf(node)) {
+      return new TreeNodeRegression(signature, target, mean, cover, 0);
+    }
+    final TreeNodeRegression left =
+        toNode(
+            ensemble,
+            ensemble.getLeftChild(node),
+            signatures.getChildSignatureFor(signature, (byte) 0),
+            signatures,
+            target,
+            columns);
+    final TreeNodeRegression right =
+        toNode(
+            ensemble,
+            ensemble.getRightChild(node),
+            signatures.getChildSignatureFor(signature, (byte) 1),
+            signatures,
+            target,
+            columns);
+    final TreeNumericColumnMetaData column = columns[ensemble.getSplitFeature(node)];
+    final double threshold = ensemble.getThreshold(node);
+    final boolean isMissingRight =
+        (ensemble.getSplitFlags(node) & CompiledEnsemble.MISSING_RIGHT) != 0;
+    left.setTreeNodeCondition(
+        new TreeNodeNumericCondition(
+            column, threshold, NumericOperator.LessThanOrEqual, !isMissingRight));
+    right.setTreeNodeCondition(
+        new TreeNodeNumericCondition(
+            column, threshold, NumericOperator.LargerThan, isMissingRight));
+    return new TreeNodeRegression(
+        signature, target, mean, cover, 0, new TreeNodeRegression[] {left, right});
+  }
+
+  /** @return the rows as records, missing values for NaN */
+  public static PredictorRecord[] toRecords(final double[][] rows) {
+    final PredictorRecord[] records = new PredictorRecord[rows.length];
+    for (int i = 0; i < rows.length; i++) {
+      final Map<String, Object> values = new HashMap<>();
+      for (int feature = 0; feature < rows[i].length; feature++) {
+        final double value = rows[i][feature];
+        values.put(getColumnName(feature), Double.isNaN(value) ? PredictorRecord.NULL : value);
+      }
+      records[i] = new PredictorRecord(values);
+    }
+    return records;
+  }
+
+  /** @return the name of the column of the feature in the records */
+  public static String getColumnName(final int feature) {
+    return "feature" + feature;
+  }
+}
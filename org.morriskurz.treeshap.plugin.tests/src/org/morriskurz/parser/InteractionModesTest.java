@@ -0,0 +1,250 @@
+package org.morriskurz.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.knime.base.node.mine.treeensemble2.data.PredictorRecord;
+import org.knime.base.node.mine.treeensemble2.model.TreeNodeRegression;
+import org.knime.core.data.DataColumnSpec;
+import org.knime.core.data.DataColumnSpecCreator;
+import org.knime.core.data.DataTableSpec;
+import org.knime.core.data.def.DoubleCell;
+import org.knime.core.node.InvalidSettingsException;
+import org.morriskurz.compiled.CompiledEnsemble;
+import org.morriskurz.compiled.RandomEnsembles;
+import org.morriskurz.compiled.RegressionTrees;
+import org.morriskurz.statistics.InteractionScreening;
+import org.morriskurz.statistics.TreeEnsembleStatistics;
+
+/**
+ * Tests that the interaction modes computing only a part of the interaction matrix output the
+ * matching entries of {@link TreeSHAPPrediction#dense_tree_interactions_path_dependent}.
+ *
+ * @author Morris Kurz, morriskurz@gmail.com
+ */
+public class InteractionModesTest {
+
+  private static final double TOLERANCE = 1e-10;
+
+  private static final int NR_FEATURES = 6;
+
+  /** Computes the requested values on the trees of a random ensemble. */
+  private static final class InteractionPrediction
+      extends TreeSHAPPrediction<TreeNodeRegression> {
+
+    InteractionPrediction(final PredictorRecord record) {
+      super(record);
+    }
+
+    @Override
+    protected double getNodeValue(final TreeNodeRegression node, final int treeIndex) {
+      return node.getMean();
+    }
+
+    @Override
+    protected double getNumberOfSamples(final TreeNodeRegression node) {
+      return node.getTotalSum();
+    }
+
+    @Override
+    public boolean hasPrediction() {
+      return true;
+    }
+  }
+
+  private final CompiledEnsemble ensemble =
+      RandomEnsembles.create(3, 12, 6, NR_FEATURES, NR_FEATURES);
+
+  private final TreeNodeRegression[] roots = RegressionTrees.toTrees(ensemble);
+
+  private final TreeEnsembleStatistics statistics = new TreeEnsembleStatistics();
+
+  private final PredictorRecord[] rows =
+      RegressionTrees.toRecords(RandomEnsembles.createRows(4, ensemble, 20));
+
+  public InteractionModesTest() {
+    statistics.initialize(roots, null);
+  }
+
+  @Test
+  public void testRestrictedInteractions() throws InvalidSettingsException {
+    final FeatureMask mask =
+        FeatureMask.create(
+            createSpec(),
+            new String[] {
+              RegressionTrees.getColumnName(1),
+              RegressionTrees.getColumnName(3),
+              RegressionTrees.getColumnName(4)
+            },
+            null);
+    final int[] selected = mask.getSelectedFeatures();
+    for (final PredictorRecord row : rows) {
+      final double[][] expected = computeDense(row);
+      final InteractionPrediction prediction = new InteractionPrediction(row);
+      prediction.dense_tree_interactions_path_dependent(
+          roots,
+          NR_FEATURES,
+          ensemble.getScaling(),
+          statistics.getMaximumDepth(),
+          statistics.getMaximumNumberOfNodes(),
+          getUniqueFeaturesPerTree(),
+          mask);
+      final DoubleCell[] actual = prediction.getInteractionValues();
+      assertEquals(selected.length * selected.length, actual.length);
+      for (int i = 0; i < selected.length; i++) {
+        for (int j = 0; j < selected.length; j++) {
+          assertEquals(
+              expected[selected[i]][selected[j]],
+              actual[i * selected.length + j].getDoubleValue(),
+              TOLERANCE);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testSparseInteractions() {
+    for (final PredictorRecord row : rows) {
+      final double[][] expected = computeDense(row);
+      final InteractionPrediction prediction = new InteractionPrediction(row);
+      prediction.dense_tree_interactions_path_dependent(
+          roots,
+          NR_FEATURES,
+          ensemble.getScaling(),
+          statistics.getMaximumDepth(),
+          statistics.getMaximumNumberOfNodes(),
+          getUniqueFeaturesPerTree(),
+          null,
+          true);
+      final SparseInteractionMatrix actual = prediction.getSparseInteractionValues();
+      for (int i = 0; i < NR_FEATURES; i++) {
+        for (int j = i; j < NR_FEATURES; j++) {
+          assertEquals(expected[i][j], actual.get(i, j), TOLERANCE);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testTopKInteractions() {
+    final int k = 3;
+    for (final PredictorRecord row : rows) {
+      final double[][] expected = computeDense(row);
+      final InteractionPrediction shap = new InteractionPrediction(row);
+      shap.computeShap(
+          roots, NR_FEATURES, ensemble.getScaling(), statistics.getMaximumDepth(), null);
+      final boolean[] isTop = new boolean[NR_FEATURES];
+      for (int feature = 0; feature < NR_FEATURES; feature++) {
+        final double abs = Math.abs(shap.getPhi()[feature]);
+        int nrLarger = 0;
+        for (int other = 0; other < NR_FEATURES; other++) {
+          if (Math.abs(shap.getPhi()[other]) > abs) {
+            nrLarger++;
+          }
+        }
+        isTop[feature] = abs > 0 && nrLarger < k;
+      }
+      final InteractionPrediction prediction = new InteractionPrediction(row);
+      prediction.top_k_interactions_path_dependent(
+          roots,
+          NR_FEATURES,
+          ensemble.getScaling(),
+          statistics.getMaximumDepth(),
+          statistics.getMaximumNumberOfNodes(),
+          getUniqueFeaturesPerTree(),
+          null,
+          k);
+      final SparseInteractionMatrix actual = prediction.getSparseInteractionValues();
+      for (int i = 0; i < NR_FEATURES; i++) {
+        for (int j = i; j < NR_FEATURES; j++) {
+          if (isTop[i] && isTop[j]) {
+            assertEquals(expected[i][j], actual.get(i, j), TOLERANCE);
+          } else {
+            assertFalse(actual.contains(i, j));
+          }
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testScreenedInteractions() {
+    final InteractionScreening screening =
+        InteractionScreening.create(statistics, null, NR_FEATURES, 4);
+    // The dropped pairs are at most as strong as the weakest selected pair.
+    final SparseInteractionMatrix gains = statistics.getPairGains();
+    assertTrue(gains.size() > 4);
+    double threshold = Double.POSITIVE_INFINITY;
+    for (int i = 0; i < gains.size(); i++) {
+      if (screening.isSelected(gains.getRows()[i], gains.getColumns()[i])) {
+        threshold = Math.min(threshold, gains.getValues()[i]);
+      }
+    }
+    for (int i = 0; i < gains.size(); i++) {
+      if (!screening.isSelected(gains.getRows()[i], gains.getColumns()[i])) {
+        assertTrue(gains.getValues()[i] <= threshold);
+      }
+    }
+    final boolean[] features = screening.getFeatures();
+    for (final PredictorRecord row : rows) {
+      final double[][] expected = computeDense(row);
+      final InteractionPrediction prediction = new InteractionPrediction(row);
+      prediction.screened_interactions_path_dependent(
+          roots,
+          NR_FEATURES,
+          ensemble.getScaling(),
+          statistics.getMaximumDepth(),
+          statistics.getMaximumNumberOfNodes(),
+          getUniqueFeaturesPerTree(),
+          screening);
+      final SparseInteractionMatrix actual = prediction.getSparseInteractionValues();
+      for (int i = 0; i < NR_FEATURES; i++) {
+        for (int j = i; j < NR_FEATURES; j++) {
+          if (i == j ? features[i] : screening.isSelected(i, j)) {
+            assertEquals(expected[i][j], actual.get(i, j), TOLERANCE);
+          } else {
+            assertFalse(actual.contains(i, j));
+          }
+        }
+      }
+    }
+  }
+
+  private double[][] computeDense(final PredictorRecord row) {
+    final InteractionPrediction prediction = new InteractionPrediction(row);
+    prediction.dense_tree_interactions_path_dependent(
+        roots,
+        NR_FEATURES,
+        ensemble.getScaling(),
+        statistics.getMaximumDepth(),
+        statistics.getMaximumNumberOfNodes(),
+        getUniqueFeaturesPerTree());
+    final DoubleCell[] cells = prediction.getInteractionValues();
+    final double[][] matrix = new double[NR_FEATURES][NR_FEATURES];
+    for (int i = 0; i < NR_FEATURES; i++) {
+      for (int j = 0; j < NR_FEATURES; j++) {
+        matrix[i][j] = cells[i * NR_FEATURES + j].getDoubleValue();
+      }
+    }
+    return matrix;
+  }
+
+  private int[] getUniqueFeaturesPerTree() {
+    return statistics.getUniqueFeaturesPerTree(
+        statistics.getNrTrees(), Math.min(statistics.getMaximumNumberOfNodes(), NR_FEATURES));
+  }
+
+  /** @return the spec of the training data, the target column being last */
+  private static DataTableSpec createSpec() {
+    final DataColumnSpec[] columns = new DataColumnSpec[NR_FEATURES + 1];
+    for (int feature = 0; feature < NR_FEATURES; feature++) {
+      columns[feature] =
+          new DataColumnSpecCreator(RegressionTrees.getColumnName(feature), DoubleCell.TYPE)
+              .createSpec();
+    }
+    columns[NR_FEATURES] = new DataColumnSpecCreator("target", DoubleCell.TYPE).createSpec();
+    return new DataTableSpec(columns);
+  }
+}
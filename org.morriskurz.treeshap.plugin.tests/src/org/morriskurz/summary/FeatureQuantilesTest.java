@@ -0,0 +1,118 @@
+package org.morriskurz.summary;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests the quantile sketch of the feature values of {@link ShapDistribution}.
+ *
+ * @author Morris Kurz, morriskurz@gmail.com
+ */
+public class FeatureQuantilesTest {
+
+  private static final int MAX_CLUSTERS = 40;
+
+  @Test
+  public void testOffsetValuesKeepTheirRanks() {
+    // Years span a small range far from zero, where logarithmic bins would be a single bin.
+    final double[] values = createValues(1, 10000, 2000, 20);
+    final FeatureQuantiles quantiles = add(new FeatureQuantiles(MAX_CLUSTERS), values);
+    quantiles.compress();
+    assertTrue(quantiles.size() <= 2 * MAX_CLUSTERS + 1);
+    assertRanks(quantiles, values);
+  }
+
+  @Test
+  public void testMergedSketchesKeepCountsAndBounds() {
+    final double[] first = createValues(2, 5000, -1e-3, 2e-3);
+    final double[] second = createValues(3, 3000, 0, 1e-3);
+    final FeatureQuantiles merged = add(new FeatureQuantiles(MAX_CLUSTERS), first);
+    merged.append(add(new FeatureQuantiles(MAX_CLUSTERS), second));
+    merged.compress();
+    final double[] all = Arrays.copyOf(first, first.length + second.length);
+    System.arraycopy(second, 0, all, first.length, second.length);
+    assertEquals(all.length, merged.getTotal());
+    double min = Double.POSITIVE_INFINITY;
+    double max = Double.NEGATIVE_INFINITY;
+    for (int cluster = 0; cluster < merged.size(); cluster++) {
+      min = Math.min(min, merged.getMin(cluster));
+      max = Math.max(max, merged.getMax(cluster));
+    }
+    Arrays.sort(all);
+    assertEquals(all[0], min, 0);
+    assertEquals(all[all.length - 1], max, 0);
+    assertRanks(merged, all);
+  }
+
+  @Test
+  public void testCompressionMapsEveryCluster() {
+    final FeatureQuantiles quantiles = new FeatureQuantiles(MAX_CLUSTERS);
+    add(quantiles, createValues(4, 500, 0, 1));
+    final long[] counts = new long[quantiles.size()];
+    for (int cluster = 0; cluster < counts.length; cluster++) {
+      counts[cluster] = quantiles.getCount(cluster);
+    }
+    final int[] newCluster = quantiles.compress();
+    final long[] mapped = new long[quantiles.size()];
+    for (int cluster = 0; cluster < counts.length; cluster++) {
+      mapped[newCluster[cluster]] += counts[cluster];
+    }
+    for (int cluster = 0; cluster < mapped.length; cluster++) {
+      assertEquals(quantiles.getCount(cluster), mapped[cluster]);
+    }
+  }
+
+  /** Asserts that the rank of every cluster is known up to twice the count of a cluster. */
+  private static void assertRanks(final FeatureQuantiles quantiles, final double[] values) {
+    final double[] sorted = values.clone();
+    Arrays.sort(sorted);
+    final long limit = (quantiles.getTotal() + MAX_CLUSTERS - 1) / MAX_CLUSTERS;
+    long cumulative = 0;
+    for (final int cluster : quantiles.getOrder()) {
+      assertTrue(quantiles.getCount(cluster) <= limit);
+      // Repeated values have a range of ranks.
+      final double mean = quantiles.getMean(cluster);
+      final int lowerRank = countBelow(sorted, mean, false);
+      final int upperRank = countBelow(sorted, mean, true);
+      final double center = cumulative + quantiles.getCount(cluster) / 2.0;
+      assertTrue(center >= lowerRank - 2 * limit && center <= upperRank + 2 * limit);
+      cumulative += quantiles.getCount(cluster);
+    }
+  }
+
+  private static int countBelow(final double[] sorted, final double value, final boolean equal) {
+    int count = 0;
+    while (count < sorted.length && (sorted[count] < value || equal && sorted[count] == value)) {
+      count++;
+    }
+    return count;
+  }
+
+  /** Adds the values as the distribution does, compressing whenever the sketch is full. */
+  private static FeatureQuantiles add(final FeatureQuantiles quantiles, final double[] values) {
+    for (final double value : values) {
+      quantiles.add(value);
+      if (quantiles.isFull()) {
+        quantiles.compress();
+      }
+    }
+    return quantiles;
+  }
+
+  private static double[] createValues(
+      final long seed, final int nrValues, final double from, final double width) {
+    final Random random = new Random(seed);
+    final double[] values = new double[nrValues];
+    for (int k = 0; k < nrValues; k++) {
+      // Integral values repeat, as the years of a feature would.
+      final double offset = width * random.nextDouble();
+      values[k] = from + (k % 3 == 0 ? Math.floor(offset) : offset);
+    }
+    return values;
+  }
+}
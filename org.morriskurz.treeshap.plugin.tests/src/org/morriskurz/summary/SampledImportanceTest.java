@@ -0,0 +1,178 @@
+package org.morriskurz.summary;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests the estimates of {@link SampledImportance} against the mean and the variance of the
+ * explained rows computed in two passes.
+ *
+ * @author Morris Kurz, morriskurz@gmail.com
+ */
+public class SampledImportanceTest {
+
+  private static final double TOLERANCE = 1e-12;
+
+  /** The quantile of the normal distribution of a two-sided 95% confidence interval. */
+  private static final double Z_95 = 1.959964;
+
+  private static final String[] PLAYERS = {"a", "b", "c"};
+
+  @Test
+  public void testHalfWidthsMatchTwoPassVariance() {
+    final double[][] values = createValues(1, 50, 2);
+    final long read = 200;
+    final SampledImportance importance = new SampledImportance(PLAYERS, 1);
+    add(importance, 0, values, read);
+    final double[] expectedMeans = new double[PLAYERS.length];
+    final double[] expectedHalfWidths = new double[PLAYERS.length];
+    for (int i = 0; i < PLAYERS.length; i++) {
+      final double mean = getAbsoluteMean(values, i);
+      expectedMeans[i] = mean;
+      final double variance = getVariance(values, i, mean);
+      final double correction = 1 - values.length / (double) read;
+      expectedHalfWidths[i] = Z_95 * Math.sqrt(variance / values.length * correction);
+    }
+    assertArrayEquals(expectedMeans, importance.getAbsoluteMeans(), TOLERANCE);
+    assertArrayEquals(expectedHalfWidths, importance.getHalfWidths(), TOLERANCE);
+  }
+
+  @Test
+  public void testMergedVarianceMatchesSinglePass() {
+    final double[][] first = createValues(2, 30, 1);
+    final double[][] second = createValues(3, 70, 5);
+    final SampledImportance single = new SampledImportance(PLAYERS, 2);
+    add(single, 0, first, 100);
+    add(single, 0, second, 150);
+    add(single, 1, second, 80);
+    final SampledImportance merged = new SampledImportance(PLAYERS, 2);
+    add(merged, 0, first, 100);
+    final SampledImportance other = new SampledImportance(PLAYERS, 2);
+    add(other, 0, second, 150);
+    add(other, 1, second, 80);
+    merged.merge(other);
+    assertEquals(single.getReadCount(), merged.getReadCount());
+    assertEquals(single.getExplainedCount(), merged.getExplainedCount());
+    assertArrayEquals(single.getAbsoluteMeans(), merged.getAbsoluteMeans(), TOLERANCE);
+    assertArrayEquals(single.getHalfWidths(), merged.getHalfWidths(), TOLERANCE);
+  }
+
+  @Test
+  public void testFullyExplainedStratumAddsNoUncertainty() {
+    final double[][] complete = createValues(4, 20, 10);
+    final double[][] sampled = createValues(5, 40, 1);
+    final long sampledRead = 1000;
+    final SampledImportance importance = new SampledImportance(PLAYERS, 2);
+    add(importance, 0, complete, complete.length);
+    add(importance, 1, sampled, sampledRead);
+    final double total = complete.length + sampledRead;
+    final double completeWeight = complete.length / total;
+    final double sampledWeight = sampledRead / total;
+    final double[] means = importance.getAbsoluteMeans();
+    final double[] halfWidths = importance.getHalfWidths();
+    for (int i = 0; i < PLAYERS.length; i++) {
+      final double sampledMean = getAbsoluteMean(sampled, i);
+      assertEquals(
+          completeWeight * getAbsoluteMean(complete, i) + sampledWeight * sampledMean,
+          means[i],
+          TOLERANCE);
+      // Only the sampled stratum contributes, with its finite population correction.
+      final double variance =
+          sampledWeight
+              * sampledWeight
+              * getVariance(sampled, i, sampledMean)
+              / sampled.length
+              * (1 - sampled.length / (double) sampledRead);
+      assertEquals(Z_95 * Math.sqrt(variance), halfWidths[i], TOLERANCE);
+    }
+    final SampledImportance exact = new SampledImportance(PLAYERS, 1);
+    add(exact, 0, complete, complete.length);
+    assertArrayEquals(new double[PLAYERS.length], exact.getHalfWidths(), 0);
+  }
+
+  @Test
+  public void testRankingStopsOnceIntervalsSeparate() {
+    final SampledImportance importance = new SampledImportance(PLAYERS, 1);
+    importance.addRead(0);
+    importance.add(0, new double[] {3, 2, 1});
+    importance.addRead(0);
+    // A single explained row leaves the variance unknown.
+    assertFalse(importance.isRankingStable(0));
+    importance.add(0, new double[] {3.2, 2.2, 1.2});
+    for (int r = 0; r < 98; r++) {
+      importance.addRead(0);
+    }
+    // The half widths are 1.96 * sqrt(0.02 / 2 * 0.98) = 0.194, the means are 1 apart.
+    assertTrue(importance.isRankingStable(0));
+    importance.add(0, new double[] {1, 0, 3});
+    assertFalse(importance.isRankingStable(0));
+  }
+
+  @Test
+  public void testTiesWithinToleranceAreStable() {
+    final SampledImportance importance = new SampledImportance(PLAYERS, 1);
+    for (int r = 0; r < 10; r++) {
+      importance.addRead(0);
+    }
+    importance.add(0, new double[] {10, 5, 5.1});
+    importance.add(0, new double[] {10, 5.1, 5});
+    importance.add(0, new double[] {10, 5, 5.1});
+    // b and c differ by 0.033 with half widths of 0.055 each, the slack is relative to 10.
+    assertFalse(importance.isRankingStable(0));
+    assertFalse(importance.isRankingStable(0.001));
+    assertTrue(importance.isRankingStable(0.01));
+  }
+
+  /** Adds the explained rows to the stratum, and the rows read but not explained. */
+  private static void add(
+      final SampledImportance importance,
+      final int stratum,
+      final double[][] values,
+      final long read) {
+    for (final double[] row : values) {
+      importance.addRead(stratum);
+      importance.add(stratum, row);
+    }
+    for (long r = values.length; r < read; r++) {
+      importance.addRead(stratum);
+    }
+  }
+
+  /** @return SHAP values of both signs, far from zero such that the variances do not cancel */
+  private static double[][] createValues(final long seed, final int nrRows, final double offset) {
+    final Random random = new Random(seed);
+    final double[][] values = new double[nrRows][PLAYERS.length + 1];
+    for (final double[] row : values) {
+      for (int i = 0; i < PLAYERS.length; i++) {
+        row[i] = (random.nextBoolean() ? 1 : -1) * (offset + i + random.nextDouble());
+      }
+      // The bias, which is ignored.
+      row[PLAYERS.length] = 100;
+    }
+    return values;
+  }
+
+  private static double getAbsoluteMean(final double[][] values, final int player) {
+    double sum = 0;
+    for (final double[] row : values) {
+      sum += Math.abs(row[player]);
+    }
+    return sum / values.length;
+  }
+
+  /** @return the sample variance of the absolute values of the player */
+  private static double getVariance(final double[][] values, final int player, final double mean) {
+    double sum = 0;
+    for (final double[] row : values) {
+      final double deviation = Math.abs(row[player]) - mean;
+      sum += deviation * deviation;
+    }
+    return sum / (values.length - 1);
+  }
+}
@@ -0,0 +1,95 @@
+package org.morriskurz.summary;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Tests the PSI and the Wasserstein distance of {@link ShapDrift} against their closed forms. The
+ * sketches bin the values with the relative accuracy of {@link LogBins}, which bounds the error of
+ * the Wasserstein distance.
+ *
+ * @author Morris Kurz, morriskurz@gmail.com
+ */
+public class ShapDriftTest {
+
+  private static final String[] PLAYERS = {"a", "b"};
+
+  private static final int NR_BINS = 10;
+
+  @Test
+  public void testIdenticalSketchesHaveNoDrift() {
+    final ShapSketch reference = createUniform(1000, -1, 3, 0);
+    final ShapSketch current = createUniform(1000, -1, 3, 0);
+    for (int player = 0; player < PLAYERS.length; player++) {
+      assertArrayEquals(
+          new double[] {0, 0},
+          ShapDrift.computeDistances(reference, current, player, NR_BINS),
+          0);
+    }
+  }
+
+  @Test
+  public void testShiftedUniformHasShiftAsWasserstein() {
+    final double shift = 0.5;
+    final ShapSketch reference = createUniform(10000, 1, 2, 0);
+    final ShapSketch current = createUniform(10000, 1, 2, shift);
+    for (int player = 0; player < PLAYERS.length; player++) {
+      // Moving every value to its representative moves the distribution by at most the relative
+      // accuracy times the mean magnitude, on either side.
+      final double error =
+          LogBins.RELATIVE_ACCURACY
+              * (reference.getAbsoluteMean(player) + current.getAbsoluteMean(player));
+      assertEquals(
+          shift, ShapDrift.computeDistances(reference, current, player, NR_BINS)[1], error);
+    }
+  }
+
+  @Test
+  public void testPsiOfTwoValues() {
+    // Half of the reference rows and a quarter of the current rows are 1, the others are 2.
+    final ShapSketch reference = new ShapSketch(PLAYERS);
+    final ShapSketch current = new ShapSketch(PLAYERS);
+    for (int r = 0; r < 400; r++) {
+      reference.add(new double[] {r < 200 ? 1 : 2, r < 200 ? 2 : 1});
+      current.add(new double[] {r < 100 ? 1 : 2, r < 100 ? 2 : 1});
+    }
+    // (0.25 - 0.5) ln(0.25 / 0.5) + (0.75 - 0.5) ln(0.75 / 0.5) = 0.25 ln(3)
+    final double psi = 0.25 * Math.log(3);
+    final double[] a = ShapDrift.computeDistances(reference, current, 0, 2);
+    assertEquals(psi, a[0], 1e-12);
+    assertEquals(0.25, a[1], 0.25 * 3 * LogBins.RELATIVE_ACCURACY);
+    final double[] b = ShapDrift.computeDistances(reference, current, 1, 2);
+    assertEquals(psi, b[0], 1e-12);
+    assertEquals(0.25, b[1], 0.25 * 3 * LogBins.RELATIVE_ACCURACY);
+  }
+
+  @Test
+  public void testMergedSketchesHaveTheSameDrift() {
+    final ShapSketch reference = createUniform(4000, -2, 5, 0);
+    final ShapSketch current = createUniform(3000, -1, 6, 0);
+    final ShapSketch merged = createUniform(2000, -2, 1.5, 0);
+    merged.merge(createUniform(2000, 1.5, 5, 0));
+    for (int player = 0; player < PLAYERS.length; player++) {
+      assertArrayEquals(
+          ShapDrift.computeDistances(reference, current, player, NR_BINS),
+          ShapDrift.computeDistances(merged, current, player, NR_BINS),
+          1e-12);
+    }
+  }
+
+  /**
+   * @return a sketch of equally spaced values on [lower, upper) plus the shift, the values of the
+   *     second player mirrored around the center
+   */
+  private static ShapSketch createUniform(
+      final int nrRows, final double lower, final double upper, final double shift) {
+    final ShapSketch sketch = new ShapSketch(PLAYERS);
+    for (int r = 0; r < nrRows; r++) {
+      final double offset = (upper - lower) * (r + 0.5) / nrRows;
+      sketch.add(new double[] {lower + offset + shift, upper - offset + shift, 0});
+    }
+    return sketch;
+  }
+}
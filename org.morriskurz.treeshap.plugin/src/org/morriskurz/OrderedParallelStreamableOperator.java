@@ -0,0 +1,160 @@
+package org.morriskurz;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.knime.core.data.DataRow;
+import org.knime.core.node.ExecutionContext;
+import org.knime.core.node.KNIMEConstants;
+import org.knime.core.node.streamable.PortInput;
+import org.knime.core.node.streamable.PortOutput;
+import org.knime.core.node.streamable.RowInput;
+import org.knime.core.node.streamable.RowOutput;
+import org.knime.core.node.streamable.StreamableFunction;
+import org.knime.core.node.streamable.StreamableOperator;
+import org.knime.core.util.ThreadPool;
+
+/**
+ * Streams rows through {@link StreamableFunction}s on several threads, instead of the single
+ * thread of {@link StreamableFunction#runFinal(PortInput[], PortOutput[], ExecutionContext)}.
+ *
+ * <p>The rows are read from the input and computed by workers of a sub pool of the KNIME thread
+ * pool, which run in the node context of the node. A function is not required to be thread-safe,
+ * so every worker computes with a function of its own, all created before the first row. The
+ * results are pushed to the output in the order of the input: the rows in flight are kept in a
+ * reorder buffer of at most the window size, and the next row is only read once the oldest row has
+ * been pushed. The memory stays bounded by the window for unbounded streams, and a slow consumer
+ * slows down the reading.
+ *
+ * @author Morris Kurz, morriskurz@gmail.com
+ */
+public abstract class OrderedParallelStreamableOperator extends StreamableOperator {
+
+  private final int inputIndex;
+
+  private final int outputIndex;
+
+  private final int window;
+
+  private final int parallelism;
+
+  /**
+   * @param inputIndex The index of the streamed input port.
+   * @param outputIndex The index of the output port.
+   * @param window The maximum number of rows in flight, at least 1.
+   * @param parallelism The number of workers, 0 for the number of processors.
+   */
+  public OrderedParallelStreamableOperator(
+      final int inputIndex, final int outputIndex, final int window, final int parallelism) {
+    this.inputIndex = inputIndex;
+    this.outputIndex = outputIndex;
+    this.window = window;
+    this.parallelism =
+        parallelism == 0 ? Runtime.getRuntime().availableProcessors() : parallelism;
+  }
+
+  /**
+   * Prepares a run, e.g. reads the model, once per run.
+   *
+   * @param inputs The inputs of the operator.
+   * @param exec The execution context of the run.
+   * @return the factory of the functions computing the output rows, called once per worker
+   * @throws Exception if the run cannot be prepared
+   */
+  protected abstract Callable<StreamableFunction> prepare(
+      PortInput[] inputs, ExecutionContext exec) throws Exception;
+
+  /** {@inheritDoc} */
+  @Override
+  public void runFinal(
+      final PortInput[] inputs, final PortOutput[] outputs, final ExecutionContext exec)
+      throws Exception {
+    final Callable<StreamableFunction> functionFactory = prepare(inputs, exec);
+    if (parallelism == 1 || window == 1) {
+      functionFactory.call().runFinal(inputs, outputs, exec);
+      return;
+    }
+    final RowInput in = (RowInput) inputs[inputIndex];
+    final RowOutput out = (RowOutput) outputs[outputIndex];
+    final List<StreamableFunction> functions = new ArrayList<>(parallelism);
+    final BlockingQueue<StreamableFunction> idleFunctions =
+        new ArrayBlockingQueue<>(parallelism);
+    for (int i = 0; i < parallelism; i++) {
+      final StreamableFunction function = functionFactory.call();
+      function.init(exec);
+      functions.add(function);
+      idleFunctions.add(function);
+    }
+    final ThreadPool workers = KNIMEConstants.GLOBAL_THREAD_POOL.createSubPool(parallelism);
+    final ArrayDeque<Future<DataRow>> pending = new ArrayDeque<>(window);
+    try {
+      DataRow row;
+      while ((row = in.poll()) != null) {
+        exec.checkCanceled();
+        final DataRow input = row;
+        pending.add(
+            workers.enqueue(
+                new Callable<DataRow>() {
+                  @Override
+                  public DataRow call() throws Exception {
+                    // At most one task per worker runs, so a function is always idle.
+                    final StreamableFunction function = idleFunctions.take();
+                    try {
+                      return function.compute(input);
+                    } finally {
+                      idleFunctions.add(function);
+                    }
+                  }
+                }));
+        if (pending.size() == window) {
+          out.push(getResult(workers, pending.poll()));
+        }
+      }
+      while (!pending.isEmpty()) {
+        out.push(getResult(workers, pending.poll()));
+        exec.checkCanceled();
+      }
+    } finally {
+      for (final Future<DataRow> future : pending) {
+        future.cancel(true);
+      }
+    }
+    for (final StreamableFunction function : functions) {
+      function.finish();
+    }
+    in.close();
+    out.close();
+  }
+
+  private static DataRow getResult(final ThreadPool workers, final Future<DataRow> future)
+      throws Exception {
+    try {
+      // Waits without counting as a thread of the pool, so the workers can take its place.
+      return workers.runInvisible(
+          new Callable<DataRow>() {
+            @Override
+            public DataRow call() throws Exception {
+              return future.get();
+            }
+          });
+    } catch (final ExecutionException e) {
+      Throwable cause = e.getCause();
+      while (cause instanceof ExecutionException && cause.getCause() != null) {
+        cause = cause.getCause();
+      }
+      if (cause instanceof Exception) {
+        throw (Exception) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw e;
+    }
+  }
+}
@@ -2,6 +2,7 @@
 
 import org.knime.base.node.mine.treeensemble2.node.predictor.TreeEnsemblePredictorConfiguration;
 import org.knime.core.data.DataCell;
+import org.knime.core.data.DataTableSpec;
 import org.knime.core.node.InvalidSettingsException;
 import org.knime.core.node.NodeSettingsRO;
 import org.knime.core.node.NodeSettingsWO;
@@ -21,6 +22,20 @@ public class TreeSHAPConfiguration extends TreeEnsemblePredictorConfiguration {
   private static final String CFG_POSITIVE_CLASS = "positiveClass";
   private static final String CFG_SHOW_EXPLANATION = "showExplanation";
   private static final String CFG_COMPUTE_INTERACTIONS = "computeInteractions";
+  private static final String CFG_BACKGROUND_PROTOTYPES = "backgroundPrototypes";
+  private static final String CFG_EXPLAINED_FEATURES = "explainedFeatures";
+  private static final String CFG_FEATURE_GROUP_PATTERN = "featureGroupPattern";
+  private static final String CFG_SPARSE_INTERACTIONS = "sparseInteractions";
+  private static final String CFG_AGGREGATE_INTERACTIONS = "aggregateInteractions";
+  private static final String CFG_USED_FEATURES_ONLY = "usedFeaturesOnly";
+  private static final String CFG_INTERACTION_TOP_K = "interactionTopK";
+  private static final String CFG_INTERACTION_SCREENING_PAIRS = "interactionScreeningPairs";
+  private static final String CFG_STREAMING_THREADS = "streamingThreads";
+  private static final String CFG_STREAMING_WINDOW = "streamingWindow";
+  private static final String CFG_DISTRIBUTION_BINS = "distributionBins";
+
+  /** The default number of rows in flight when streaming. */
+  public static final int DEFAULT_STREAMING_WINDOW = 256;
 
   public static TreeSHAPConfiguration createDefault(
       final boolean isRegression, final String targetColName) {
@@ -31,11 +46,79 @@ public static TreeSHAPConfiguration createDefault(
   private boolean showExplanation = true;
   private String licenseUrl = null;
   private boolean computeInteractions = false;
+  private int backgroundPrototypes = 0;
+  private String[] explainedFeatures = new String[0];
+  private String featureGroupPattern = "";
+  private boolean sparseInteractions = false;
+  private boolean aggregateInteractions = false;
+  private boolean usedFeaturesOnly = false;
+  private int interactionTopK = 0;
+  private int interactionScreeningPairs = 0;
+  private int streamingThreads = 0;
+  private int streamingWindow = DEFAULT_STREAMING_WINDOW;
+  private int distributionBins = 0;
 
   public TreeSHAPConfiguration(final boolean isRegression, final String targetColName) {
     super(isRegression, targetColName);
   }
 
+  /**
+   * Checks whether the settings can be used with the given background data.
+   *
+   * @param backgroundSpec spec of the background data, null if no background data is connected
+   * @throws InvalidSettingsException if interactions are requested for the interventional algorithm
+   */
+  public void checkBackgroundSetting(final DataTableSpec backgroundSpec)
+      throws InvalidSettingsException {
+    if (backgroundSpec != null && showExplanation && computeInteractions) {
+      throw new InvalidSettingsException(
+          "Interaction values are only available without background data. Disconnect the "
+              + "background data or disable the interactions.");
+    }
+  }
+
+  /** @return the maximum number of background prototypes per tree, 0 for a lossless summary. */
+  public int getBackgroundPrototypes() {
+    return backgroundPrototypes;
+  }
+
+  /**
+   * @return the number of quantile bins of the feature values and of the SHAP values in the SHAP
+   *     distribution, 0 to not summarize the distribution
+   */
+  public int getDistributionBins() {
+    return distributionBins;
+  }
+
+  /** @return the names of the features whose SHAP values are output, empty for all features. */
+  public String[] getExplainedFeatures() {
+    return explainedFeatures;
+  }
+
+  /**
+   * @return regular expression grouping the features by its first capturing group, empty for no
+   *     grouping
+   */
+  public String getFeatureGroupPattern() {
+    return featureGroupPattern;
+  }
+
+  /**
+   * @return the number of pairs with the strongest co-occurrence in the ensemble whose interactions
+   *     are computed, 0 for all pairs
+   */
+  public int getInteractionScreeningPairs() {
+    return interactionScreeningPairs;
+  }
+
+  /**
+   * @return the number of features per row with the largest absolute SHAP values whose
+   *     interactions are computed, 0 for all features
+   */
+  public int getInteractionTopK() {
+    return interactionTopK;
+  }
+
   public String getLicenseUrl() {
     return licenseUrl;
   }
@@ -44,12 +127,33 @@ public DataCell getPositiveClass() {
     return positiveClass;
   }
 
+  /** @return the number of threads computing the rows when streaming, 0 for all processors. */
+  public int getStreamingThreads() {
+    return streamingThreads;
+  }
+
+  /** @return the maximum number of rows computed but not yet output when streaming. */
+  public int getStreamingWindow() {
+    return streamingWindow;
+  }
+
   @Override
   public void internalLoadInDialog(final NodeSettingsRO settings) throws NotConfigurableException {
     super.internalLoadInDialog(settings);
     positiveClass = settings.getDataCell(CFG_POSITIVE_CLASS, null);
     showExplanation = settings.getBoolean(CFG_SHOW_EXPLANATION, true);
     computeInteractions = settings.getBoolean(CFG_COMPUTE_INTERACTIONS, false);
+    backgroundPrototypes = settings.getInt(CFG_BACKGROUND_PROTOTYPES, 0);
+    explainedFeatures = settings.getStringArray(CFG_EXPLAINED_FEATURES, new String[0]);
+    featureGroupPattern = settings.getString(CFG_FEATURE_GROUP_PATTERN, "");
+    sparseInteractions = settings.getBoolean(CFG_SPARSE_INTERACTIONS, false);
+    aggregateInteractions = settings.getBoolean(CFG_AGGREGATE_INTERACTIONS, false);
+    usedFeaturesOnly = settings.getBoolean(CFG_USED_FEATURES_ONLY, false);
+    interactionTopK = settings.getInt(CFG_INTERACTION_TOP_K, 0);
+    interactionScreeningPairs = settings.getInt(CFG_INTERACTION_SCREENING_PAIRS, 0);
+    streamingThreads = settings.getInt(CFG_STREAMING_THREADS, 0);
+    streamingWindow = settings.getInt(CFG_STREAMING_WINDOW, DEFAULT_STREAMING_WINDOW);
+    distributionBins = settings.getInt(CFG_DISTRIBUTION_BINS, 0);
   }
 
   @Override
@@ -58,6 +162,45 @@ public void internalLoadInModel(final NodeSettingsRO settings) throws InvalidSet
     positiveClass = settings.getDataCell(CFG_POSITIVE_CLASS, null);
     showExplanation = settings.getBoolean(CFG_SHOW_EXPLANATION, true);
     computeInteractions = settings.getBoolean(CFG_COMPUTE_INTERACTIONS, false);
+    backgroundPrototypes = settings.getInt(CFG_BACKGROUND_PROTOTYPES, 0);
+    if (backgroundPrototypes < 0) {
+      throw new InvalidSettingsException(
+          "The number of background prototypes must not be negative: " + backgroundPrototypes);
+    }
+    explainedFeatures = settings.getStringArray(CFG_EXPLAINED_FEATURES, new String[0]);
+    featureGroupPattern = settings.getString(CFG_FEATURE_GROUP_PATTERN, "");
+    sparseInteractions = settings.getBoolean(CFG_SPARSE_INTERACTIONS, false);
+    // Added later, older settings output the interactions per row.
+    aggregateInteractions = settings.getBoolean(CFG_AGGREGATE_INTERACTIONS, false);
+    usedFeaturesOnly = settings.getBoolean(CFG_USED_FEATURES_ONLY, false);
+    interactionTopK = settings.getInt(CFG_INTERACTION_TOP_K, 0);
+    if (interactionTopK < 0) {
+      throw new InvalidSettingsException(
+          "The number of top features for interactions must not be negative: " + interactionTopK);
+    }
+    interactionScreeningPairs = settings.getInt(CFG_INTERACTION_SCREENING_PAIRS, 0);
+    if (interactionScreeningPairs < 0) {
+      throw new InvalidSettingsException(
+          "The number of screened interaction pairs must not be negative: "
+              + interactionScreeningPairs);
+    }
+    // Added later, older settings stream on all processors.
+    streamingThreads = settings.getInt(CFG_STREAMING_THREADS, 0);
+    if (streamingThreads < 0) {
+      throw new InvalidSettingsException(
+          "The number of streaming threads must not be negative: " + streamingThreads);
+    }
+    streamingWindow = settings.getInt(CFG_STREAMING_WINDOW, DEFAULT_STREAMING_WINDOW);
+    if (streamingWindow < 1) {
+      throw new InvalidSettingsException(
+          "The streaming window must hold at least one row: " + streamingWindow);
+    }
+    // Added later, older settings do not summarize the distribution.
+    distributionBins = settings.getInt(CFG_DISTRIBUTION_BINS, 0);
+    if (distributionBins < 0) {
+      throw new InvalidSettingsException(
+          "The number of distribution bins must not be negative: " + distributionBins);
+    }
   }
 
   @Override
@@ -66,20 +209,93 @@ public void internalSave(final NodeSettingsWO settings) {
     settings.addDataCell(CFG_POSITIVE_CLASS, positiveClass);
     settings.addBoolean(CFG_SHOW_EXPLANATION, showExplanation);
     settings.addBoolean(CFG_COMPUTE_INTERACTIONS, computeInteractions);
+    settings.addInt(CFG_BACKGROUND_PROTOTYPES, backgroundPrototypes);
+    settings.addStringArray(CFG_EXPLAINED_FEATURES, explainedFeatures);
+    settings.addString(CFG_FEATURE_GROUP_PATTERN, featureGroupPattern);
+    settings.addBoolean(CFG_SPARSE_INTERACTIONS, sparseInteractions);
+    settings.addBoolean(CFG_AGGREGATE_INTERACTIONS, aggregateInteractions);
+    settings.addBoolean(CFG_USED_FEATURES_ONLY, usedFeaturesOnly);
+    settings.addInt(CFG_INTERACTION_TOP_K, interactionTopK);
+    settings.addInt(CFG_INTERACTION_SCREENING_PAIRS, interactionScreeningPairs);
+    settings.addInt(CFG_STREAMING_THREADS, streamingThreads);
+    settings.addInt(CFG_STREAMING_WINDOW, streamingWindow);
+    settings.addInt(CFG_DISTRIBUTION_BINS, distributionBins);
+  }
+
+  /**
+   * @return whether the interactions are only output aggregated over all rows, instead of per row.
+   */
+  public boolean isAggregateInteractions() {
+    return aggregateInteractions;
   }
 
   public boolean isComputeInteractions() {
     return computeInteractions;
   }
 
+  /**
+   * @return whether the interactions are computed into the sparse upper triangle, which is the
+   *     case for the sparse lists and the aggregated interactions
+   */
+  public boolean isComputeSparseInteractions() {
+    return sparseInteractions || aggregateInteractions;
+  }
+
   public boolean isShowExplanation() {
     return showExplanation;
   }
 
+  /** @return whether the touched interaction pairs are output as lists instead of a matrix. */
+  public boolean isSparseInteractions() {
+    return sparseInteractions;
+  }
+
+  /**
+   * @return whether the interactions are output as lists of pairs, which is always the case for
+   *     the top k and the screened interactions
+   */
+  public boolean isSparseInteractionOutput() {
+    return sparseInteractions || interactionTopK > 0 || interactionScreeningPairs > 0;
+  }
+
+  /** @return whether only the features used by the model are explained and output. */
+  public boolean isUsedFeaturesOnly() {
+    return usedFeaturesOnly;
+  }
+
+  public void setAggregateInteractions(final boolean aggregateInteractions) {
+    this.aggregateInteractions = aggregateInteractions;
+  }
+
+  public void setBackgroundPrototypes(final int backgroundPrototypes) {
+    this.backgroundPrototypes = backgroundPrototypes;
+  }
+
   public void setComputeInteractions(final boolean computeInteractions) {
     this.computeInteractions = computeInteractions;
   }
 
+  public void setDistributionBins(final int distributionBins) {
+    this.distributionBins = distributionBins;
+  }
+
+  /** @param explainedFeatures the features whose SHAP values are output, empty for all features */
+  public void setExplainedFeatures(final String[] explainedFeatures) {
+    this.explainedFeatures = explainedFeatures;
+  }
+
+  public void setFeatureGroupPattern(final String featureGroupPattern) {
+    this.featureGroupPattern = featureGroupPattern;
+  }
+
+  public void setInteractionScreeningPairs(final int interactionScreeningPairs) {
+    this.interactionScreeningPairs = interactionScreeningPairs;
+  }
+
+  public void setInteractionTopK(final int interactionTopK) {
+    this.interactionTopK = interactionTopK;
+  }
+
   public void setPositiveClass(final DataCell positiveClass) {
     this.positiveClass = positiveClass;
   }
@@ -87,4 +303,20 @@ public void setPositiveClass(final DataCell positiveClass) {
   public void setShowExplanation(final boolean showExplanation) {
     this.showExplanation = showExplanation;
   }
+
+  public void setStreamingThreads(final int streamingThreads) {
+    this.streamingThreads = streamingThreads;
+  }
+
+  public void setStreamingWindow(final int streamingWindow) {
+    this.streamingWindow = streamingWindow;
+  }
+
+  public void setSparseInteractions(final boolean sparseInteractions) {
+    this.sparseInteractions = sparseInteractions;
+  }
+
+  public void setUsedFeaturesOnly(final boolean usedFeaturesOnly) {
+    this.usedFeaturesOnly = usedFeaturesOnly;
+  }
 }
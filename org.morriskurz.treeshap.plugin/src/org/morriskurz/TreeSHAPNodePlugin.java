@@ -5,6 +5,8 @@
 package org.morriskurz;
 
 import org.eclipse.core.runtime.Plugin;
+import org.morriskurz.compiled.OffHeapEnsembleCache;
+import org.morriskurz.statistics.CompiledModelCache;
 import org.osgi.framework.BundleContext;
 
 /**
@@ -20,6 +22,14 @@ public class TreeSHAPNodePlugin extends Plugin {
     // The shared instance.
     private static TreeSHAPNodePlugin plugin;
 
+    // The compiled models shared by all nodes, using at most a tenth of the heap.
+    private static final CompiledModelCache COMPILED_MODELS =
+        new CompiledModelCache(8, Runtime.getRuntime().maxMemory() / 10);
+
+    // The compiled explainers mapped off the heap, using at most as much memory as the heap.
+    private static final OffHeapEnsembleCache OFF_HEAP_ENSEMBLES =
+        new OffHeapEnsembleCache(Runtime.getRuntime().maxMemory());
+
     /**
      * The constructor.
      */
@@ -49,6 +59,8 @@ public void start(final BundleContext context) throws Exception {
     @Override
     public void stop(final BundleContext context) throws Exception {
         super.stop(context);
+        COMPILED_MODELS.clear();
+        OFF_HEAP_ENSEMBLES.clear();
         plugin = null;
     }
 
@@ -61,5 +73,24 @@ public static TreeSHAPNodePlugin getDefault() {
         return plugin;
     }
 
+    /**
+     * Returns the cache of the compiled models. It is available even if the plugin is not
+     * activated, e.g. outside of the eclipse platform.
+     * 
+     * @return the cache shared by all nodes
+     */
+    public static CompiledModelCache getCompiledModelCache() {
+        return COMPILED_MODELS;
+    }
+
+    /**
+     * Returns the cache of the compiled explainers mapped off the heap.
+     * 
+     * @return the cache shared by all nodes
+     */
+    public static OffHeapEnsembleCache getOffHeapEnsembleCache() {
+        return OFF_HEAP_ENSEMBLES;
+    }
+
 }
 
@@ -8,6 +8,7 @@
 import java.util.function.Function;
 import java.util.function.IntFunction;
 import java.util.function.IntUnaryOperator;
+import java.util.function.Supplier;
 import java.util.stream.IntStream;
 
 import org.knime.base.data.filter.column.FilterColumnRow;
@@ -18,25 +19,47 @@
 import org.knime.base.node.mine.treeensemble2.model.MultiClassGradientBoostedTreesModel;
 import org.knime.base.node.mine.treeensemble2.model.TreeEnsembleModel;
 import org.knime.base.node.mine.treeensemble2.model.TreeEnsembleModelPortObjectSpec;
-import org.knime.base.node.mine.treeensemble2.model.TreeNodeRegression;
 import org.knime.base.node.mine.treeensemble2.model.TreeNodeSignature;
 import org.knime.base.node.mine.treeensemble2.node.predictor.PredictionRearrangerCreator;
 import org.knime.base.node.mine.treeensemble2.node.predictor.TreeEnsemblePredictorConfiguration;
 import org.knime.base.node.mine.treeensemble2.node.predictor.classification.HardVotingFactory;
 import org.knime.base.node.mine.treeensemble2.node.predictor.classification.SoftVotingFactory;
 import org.knime.base.node.mine.treeensemble2.node.predictor.classification.VotingFactory;
+import org.knime.base.node.mine.treeensemble2.node.predictor.parser.PredictionItemParser;
 import org.knime.core.data.DataCell;
 import org.knime.core.data.DataRow;
 import org.knime.core.data.DataTableSpec;
+import org.knime.core.data.StringValue;
 import org.knime.core.data.container.ColumnRearranger;
+import org.knime.core.node.BufferedDataTable;
+import org.knime.core.node.CanceledExecutionException;
+import org.knime.core.node.ExecutionContext;
+import org.knime.core.node.ExecutionMonitor;
 import org.knime.core.node.InvalidSettingsException;
+import org.knime.core.node.port.PortObjectSpec;
+import org.knime.core.node.streamable.BufferedDataTableRowOutput;
+import org.knime.core.node.streamable.PortOutput;
+import org.knime.core.node.streamable.RowOutput;
+import org.knime.core.node.streamable.StreamableOperatorInternals;
+import org.morriskurz.background.BackgroundSummarizer;
+import org.morriskurz.background.BackgroundSummary;
 import org.morriskurz.classification.ExplanationClassificationPredictor;
+import org.morriskurz.compiled.CompiledEnsemble;
+import org.morriskurz.compiled.EnsembleCompiler;
 import org.morriskurz.gradientboosted.classification.ExplanationGBTPredictor;
 import org.morriskurz.gradientboosted.regression.ExplanationGBTRegressionPredictor;
+import org.morriskurz.parser.AggregatedInteractionItemParser;
 import org.morriskurz.parser.ExplanationItemParser;
+import org.morriskurz.parser.FeatureGroups;
+import org.morriskurz.parser.FeatureMask;
+import org.morriskurz.parser.ITreeSHAPPrediction;
 import org.morriskurz.parser.InteractionItemParser;
+import org.morriskurz.parser.SparseInteractionItemParser;
+import org.morriskurz.ports.Ports;
 import org.morriskurz.regression.ExplanationRegressionPredictor;
+import org.morriskurz.statistics.InteractionScreening;
 import org.morriskurz.statistics.TreeEnsembleStatistics;
+import org.morriskurz.summary.ExplanationSummary;
 
 /**
  * Utility methods for creating PredictionRearrangerCreators for GBT and RF models.
@@ -71,59 +94,6 @@ private static void addClassProbabilites(
         modelSpec.getTargetColumn().getName());
   }
 
-  private static Pair<Integer, List<Map<AbstractTreeNode, Double>>> computeExpectations(
-      final TreeNodeRegression[] trees,
-      final List<Map<TreeNodeSignature, Double>> coefficientMaps) {
-    final int nrModels = trees.length;
-    int maxDepth = 0;
-    final ArrayList<Map<AbstractTreeNode, Double>> treeMaps = new ArrayList<>(nrModels);
-    for (int treeNumber = 0; treeNumber < nrModels; treeNumber++) {
-      final Map<AbstractTreeNode, Double> expectations = new HashMap<>();
-      final int depth =
-          descendRegressionTree(
-              coefficientMaps.get(treeNumber), trees[treeNumber], 0, expectations);
-
-      treeMaps.add(expectations);
-      maxDepth = Math.max(maxDepth, depth);
-    }
-    final Pair<Integer, List<Map<AbstractTreeNode, Double>>> p = new Pair<>(maxDepth, treeMaps);
-    return p;
-  }
-
-  /**
-   * Recomputes the expectations values as prescribed by
-   * https://github.com/slundberg/shap/blob/master/shap/tree_shap.h#L492 The mean value in GBT is
-   * not the correct prediction. The correct prediction is only stored for the leaves in the
-   * CoefficientMap. The maximum depth is calculated additionally.
-   *
-   * @param model
-   * @param positiveClassIndex
-   * @return
-   */
-  private static Pair<Integer, List<Map<AbstractTreeNode, Double>>>
-      computeExpectationsClassificationGBT(
-          final MultiClassGradientBoostedTreesModel model, final int positiveClassIndex) {
-    final int nrModels = model.getNrLevels();
-    final TreeNodeRegression[] roots = new TreeNodeRegression[nrModels];
-    final List<Map<TreeNodeSignature, Double>> coefficientMaps = new ArrayList<>(nrModels);
-    for (int treeNumber = 0; treeNumber < nrModels; treeNumber++) {
-      // Each tree predicting the positive class is extracted.
-      // TODO: Multi-class
-      roots[treeNumber] = model.getModel(treeNumber, positiveClassIndex).getRootNode();
-      coefficientMaps.add(model.getCoefficientMap(treeNumber, positiveClassIndex));
-    }
-    return computeExpectations(roots, coefficientMaps);
-  }
-
-  private static Pair<Integer, List<Map<AbstractTreeNode, Double>>>
-      computeExpectationsRegressionGBT(final GradientBoostedTreesModel model) {
-    final TreeNodeRegression[] roots = new TreeNodeRegression[model.getNrModels()];
-    for (int treeNumber = 0; treeNumber < model.getNrModels(); treeNumber++) {
-      roots[treeNumber] = model.getTreeModelRegression(treeNumber).getRootNode();
-    }
-    return computeExpectations(roots, new ArrayList<>(model.getCoeffientMaps()));
-  }
-
   /**
    * Creates a {@link PredictionRearrangerCreator} for creation of a {@link ColumnRearranger} that
    * can be used to predict with a classification random forest.
@@ -134,6 +104,9 @@ private static Pair<Integer, List<Map<AbstractTreeNode, Double>>> computeExpecta
    * @param modelRowSamples row samples used to train the individual trees (may be null)
    * @param targetColumnData the target column (may be null)
    * @param config for the prediction
+   * @param background the summarized background data, null for the path dependent algorithm
+   * @param featureGroups the groups forming the players, null if every feature is a player
+   * @param summary the summary the SHAP values of every row are added to, null if not summarized
    * @return a creator that allows to create a rearranger for prediction with a random forest
    * @throws InvalidSettingsException if <b>dataSpec</b> is missing some columns the model needs
    */
@@ -141,8 +114,16 @@ public static PredictionRearrangerCreator createPRCForClassificationRF(
       final DataTableSpec dataSpec,
       final TreeEnsembleModelPortObjectSpec modelSpec,
       final TreeEnsembleModel model,
-      final TreeSHAPConfiguration config)
+      final TreeSHAPConfiguration config,
+      final BackgroundSummary background,
+      final FeatureGroups featureGroups,
+      final ExplanationSummary summary)
       throws InvalidSettingsException {
+    final TreeEnsembleStatistics statistics = createStatistics(model, config);
+    final FeatureGroups players = createPlayers(modelSpec, config, statistics, featureGroups);
+    final FeatureMask featureMask = createFeatureMask(modelSpec, config, players);
+    final InteractionScreening interactionScreening =
+        createInteractionScreening(modelSpec, config, statistics, players);
     final Map<String, DataCell> targetValueMap = modelSpec.getTargetColumnPossibleValueMap();
     ExplanationClassificationPredictor predictor = null;
     String[] classLabels = null;
@@ -159,16 +140,19 @@ public static PredictionRearrangerCreator createPRCForClassificationRF(
       final String positiveClassName = positiveClassCell.toString();
       final int positiveClassIndex =
           positiveClassName == null ? 0 : targetVal2Idx.get(positiveClassName);
-      if (model != null && config.isShowExplanation()) {
-        final TreeEnsembleStatistics s = new TreeEnsembleStatistics();
-        s.initialize(model);
-        maxDepth = s.getMaximumDepth();
+      if (statistics != null) {
+        maxDepth = statistics.getMaximumDepth();
         if (config.isComputeInteractions()) {
-          maxNodes = s.getMaximumNumberOfNodes();
+          maxNodes = statistics.getMaximumNumberOfNodes();
           uniqueFeaturesPerTree =
-              s.getUniqueFeaturesPerTree(
-                  model.getNrModels(),
+              statistics.getUniqueFeaturesPerTree(
+                  statistics.getNrTrees(),
                   Math.min(maxNodes, modelSpec.getTableSpec().getNumColumns() - 1));
+          if (players != null) {
+            uniqueFeaturesPerTree =
+                players.toUniqueGroupsPerTree(
+                    uniqueFeaturesPerTree, statistics.getNrTrees(), maxNodes);
+          }
           // maxDepth = getMaxDepth(model);
         }
       }
@@ -181,7 +165,13 @@ public static PredictionRearrangerCreator createPRCForClassificationRF(
               maxDepth,
               positiveClassIndex,
               maxNodes,
-              uniqueFeaturesPerTree);
+              uniqueFeaturesPerTree,
+              config.isComputeSparseInteractions(),
+              config.getInteractionTopK(),
+              interactionScreening,
+              background,
+              featureMask,
+              players);
       classLabels =
           targetValueMap
               .keySet()
@@ -217,11 +207,8 @@ public String[] apply(final int i) {
       prc.addPredictionConfidence(config.getPredictionColumnName() + CONFIDENCE_SUFFIX);
     }
     if (config.isShowExplanation()) {
-      if (config.isComputeInteractions()) {
-        prc.addPredictionItemParser(new InteractionItemParser(modelSpec.getTableSpec()));
-      } else {
-        prc.addPredictionItemParser(new ExplanationItemParser(modelSpec.getTableSpec()));
-      }
+      prc.addPredictionItemParser(
+          createExplanationItemParser(modelSpec, config, players, featureMask, summary));
     }
     if (config.isAppendModelCount()) {
       prc.addModelCount();
@@ -240,6 +227,9 @@ public String[] apply(final int i) {
    * @param modelRowSamples row samples used to train the individual trees (may be null)
    * @param targetColumnData the target column (may be null)
    * @param config for the prediction
+   * @param background the summarized background data, null for the path dependent algorithm
+   * @param featureGroups the groups forming the players, null if every feature is a player
+   * @param summary the summary the SHAP values of every row are added to, null if not summarized
    * @return a creator that allows to create a rearranger for prediction with a random forest
    * @throws InvalidSettingsException if <b>dataSpec</b> is missing some columns the model needs
    */
@@ -247,27 +237,48 @@ public static PredictionRearrangerCreator createPRCForRegressionRF(
       final DataTableSpec dataSpec,
       final TreeEnsembleModelPortObjectSpec modelSpec,
       final TreeEnsembleModel model,
-      final TreeSHAPConfiguration config)
+      final TreeSHAPConfiguration config,
+      final BackgroundSummary background,
+      final FeatureGroups featureGroups,
+      final ExplanationSummary summary)
       throws InvalidSettingsException {
+    final TreeEnsembleStatistics statistics = createStatistics(model, config);
+    final FeatureGroups players = createPlayers(modelSpec, config, statistics, featureGroups);
+    final FeatureMask featureMask = createFeatureMask(modelSpec, config, players);
+    final InteractionScreening interactionScreening =
+        createInteractionScreening(modelSpec, config, statistics, players);
     int maxDepth = -1;
     int maxNodes = 0;
     int[] uniqueFeaturesPerTree = null;
-    if (model != null && config.isShowExplanation()) {
-
-      final TreeEnsembleStatistics s = new TreeEnsembleStatistics();
-      s.initialize(model);
-      maxDepth = s.getMaximumDepth();
+    if (statistics != null) {
+      maxDepth = statistics.getMaximumDepth();
       if (config.isComputeInteractions()) {
-        maxNodes = s.getMaximumNumberOfNodes();
+        maxNodes = statistics.getMaximumNumberOfNodes();
         uniqueFeaturesPerTree =
-            s.getUniqueFeaturesPerTree(
-                model.getNrModels(),
+            statistics.getUniqueFeaturesPerTree(
+                statistics.getNrTrees(),
                 Math.min(maxNodes, modelSpec.getTableSpec().getNumColumns() - 1));
+        if (players != null) {
+          uniqueFeaturesPerTree =
+              players.toUniqueGroupsPerTree(
+                  uniqueFeaturesPerTree, statistics.getNrTrees(), maxNodes);
+        }
       }
     }
     final ExplanationRegressionPredictor predictor =
         new ExplanationRegressionPredictor(
-            model, modelSpec, dataSpec, maxDepth, maxNodes, uniqueFeaturesPerTree);
+            model,
+            modelSpec,
+            dataSpec,
+            maxDepth,
+            maxNodes,
+            uniqueFeaturesPerTree,
+            config.isComputeSparseInteractions(),
+            config.getInteractionTopK(),
+            interactionScreening,
+            background,
+            featureMask,
+            players);
     final PredictionRearrangerCreator prc = new PredictionRearrangerCreator(dataSpec, predictor);
     prc.addRegressionPrediction(config.getPredictionColumnName());
     prc.addPredictionVariance(config.getPredictionColumnName());
@@ -275,15 +286,229 @@ public static PredictionRearrangerCreator createPRCForRegressionRF(
       prc.addModelCount();
     }
     if (config.isShowExplanation()) {
-      if (config.isComputeInteractions()) {
-        prc.addPredictionItemParser(new InteractionItemParser(modelSpec.getTableSpec()));
-      } else {
-        prc.addPredictionItemParser(new ExplanationItemParser(modelSpec.getTableSpec()));
-      }
+      prc.addPredictionItemParser(
+          createExplanationItemParser(modelSpec, config, players, featureMask, summary));
     }
     return prc;
   }
 
+  /**
+   * Creates the parser appending the explanation of a row: the SHAP values, the interactions per
+   * row, or nothing if the interactions are only aggregated in the summary.
+   */
+  private static PredictionItemParser<ITreeSHAPPrediction> createExplanationItemParser(
+      final TreeEnsembleModelPortObjectSpec modelSpec,
+      final TreeSHAPConfiguration config,
+      final FeatureGroups players,
+      final FeatureMask featureMask,
+      final ExplanationSummary summary) {
+    if (config.isComputeInteractions() && config.isAggregateInteractions()) {
+      return new AggregatedInteractionItemParser(modelSpec.getTableSpec(), players, summary);
+    } else if (config.isComputeInteractions() && config.isSparseInteractionOutput()) {
+      return new SparseInteractionItemParser(modelSpec.getTableSpec(), players);
+    } else if (config.isComputeInteractions()) {
+      return new InteractionItemParser(modelSpec.getTableSpec(), players, featureMask);
+    }
+    return new ExplanationItemParser(modelSpec.getTableSpec(), players, featureMask, summary);
+  }
+
+  /**
+   * Creates the mask of the explained features. If interactions are computed, only the interactions
+   * between the explained features are output.
+   *
+   * @return the mask, or null if all features are explained
+   * @throws InvalidSettingsException if a selected feature is not used by the model
+   */
+  private static FeatureMask createFeatureMask(
+      final TreeEnsembleModelPortObjectSpec modelSpec,
+      final TreeSHAPConfiguration config,
+      final FeatureGroups featureGroups)
+      throws InvalidSettingsException {
+    return FeatureMask.create(
+        modelSpec.getTableSpec(), config.getExplainedFeatures(), featureGroups);
+  }
+
+  /**
+   * Collects the statistics of the ensemble needed for the explanation.
+   *
+   * @return the statistics, or null if the model is not known yet or no explanation is computed
+   */
+  private static TreeEnsembleStatistics createStatistics(
+      final TreeEnsembleModel model, final TreeSHAPConfiguration config) {
+    if (model == null || !config.isShowExplanation()) {
+      return null;
+    }
+    return getStatistics(model);
+  }
+
+  /** Collects the statistics of the trees, the node means being the predictions. */
+  private static TreeEnsembleStatistics getStatistics(final TreeEnsembleModel model) {
+    return getCompiledStatistics(
+        model,
+        model.getNrModels(),
+        0,
+        new Supplier<TreeEnsembleStatistics>() {
+          @Override
+          public TreeEnsembleStatistics get() {
+            final TreeEnsembleStatistics statistics = new TreeEnsembleStatistics();
+            statistics.initialize(model);
+            return statistics;
+          }
+        });
+  }
+
+  /**
+   * Collects the statistics of the trees predicting the positive class, including the expected
+   * values of their nodes.
+   */
+  private static TreeEnsembleStatistics createStatistics(
+      final MultiClassGradientBoostedTreesModel model,
+      final TreeSHAPConfiguration config,
+      final int positiveClassIndex) {
+    if (model == null || !config.isShowExplanation()) {
+      return null;
+    }
+    return getStatistics(model, positiveClassIndex);
+  }
+
+  private static TreeEnsembleStatistics getStatistics(
+      final MultiClassGradientBoostedTreesModel model, final int positiveClassIndex) {
+    return getCompiledStatistics(
+        model,
+        model.getNrModels(),
+        positiveClassIndex,
+        new Supplier<TreeEnsembleStatistics>() {
+          @Override
+          public TreeEnsembleStatistics get() {
+            final int nrModels = model.getNrLevels();
+            final AbstractTreeNode[] roots = new AbstractTreeNode[nrModels];
+            final List<Map<TreeNodeSignature, Double>> coefficientMaps =
+                new ArrayList<>(nrModels);
+            for (int treeNumber = 0; treeNumber < nrModels; treeNumber++) {
+              // Each tree predicting the positive class is extracted.
+              // TODO: Multi-class
+              roots[treeNumber] = model.getModel(treeNumber, positiveClassIndex).getRootNode();
+              coefficientMaps.add(model.getCoefficientMap(treeNumber, positiveClassIndex));
+            }
+            final TreeEnsembleStatistics statistics = new TreeEnsembleStatistics();
+            statistics.initialize(roots, coefficientMaps);
+            return statistics;
+          }
+        });
+  }
+
+  /** Collects the statistics of the trees, including the expected values of their nodes. */
+  private static TreeEnsembleStatistics createStatistics(
+      final GradientBoostedTreesModel model, final TreeSHAPConfiguration config) {
+    if (model == null || !config.isShowExplanation()) {
+      return null;
+    }
+    return getStatistics(model);
+  }
+
+  private static TreeEnsembleStatistics getStatistics(final GradientBoostedTreesModel model) {
+    return getCompiledStatistics(
+        model,
+        model.getNrModels(),
+        0,
+        new Supplier<TreeEnsembleStatistics>() {
+          @Override
+          public TreeEnsembleStatistics get() {
+            final AbstractTreeNode[] roots = new AbstractTreeNode[model.getNrModels()];
+            for (int treeNumber = 0; treeNumber < roots.length; treeNumber++) {
+              roots[treeNumber] = model.getTreeModelRegression(treeNumber).getRootNode();
+            }
+            final TreeEnsembleStatistics statistics = new TreeEnsembleStatistics();
+            statistics.initialize(roots, new ArrayList<>(model.getCoeffientMaps()));
+            return statistics;
+          }
+        });
+  }
+
+  /**
+   * Looks the statistics of the model up in the plugin-wide cache, compiling them on a miss.
+   *
+   * @param variant distinguishes different statistics of the same model, e.g. the explained class
+   */
+  private static TreeEnsembleStatistics getCompiledStatistics(
+      final Object model,
+      final int nrTrees,
+      final int variant,
+      final Supplier<TreeEnsembleStatistics> compiler) {
+    return TreeSHAPNodePlugin.getCompiledModelCache().get(model, nrTrees, variant, compiler);
+  }
+
+  /**
+   * Screens the candidate pairs of the interactions by their co-occurrence in the ensemble.
+   *
+   * @return the screening, or null if all pairs are computed
+   */
+  private static InteractionScreening createInteractionScreening(
+      final TreeEnsembleModelPortObjectSpec modelSpec,
+      final TreeSHAPConfiguration config,
+      final TreeEnsembleStatistics statistics,
+      final FeatureGroups players) {
+    if (statistics == null
+        || !config.isComputeInteractions()
+        || config.getInteractionScreeningPairs() == 0) {
+      return null;
+    }
+    final int nrPlayers =
+        players == null ? modelSpec.getTableSpec().getNumColumns() - 1 : players.getNrGroups();
+    return InteractionScreening.create(
+        statistics, players, nrPlayers, config.getInteractionScreeningPairs());
+  }
+
+  /**
+   * Creates the players of the game. If only the features used by the model are output, the
+   * features never split on are dropped, so they cost nothing during the computation.
+   *
+   * @return the groups forming the players, or null if every feature is a player
+   */
+  private static FeatureGroups createPlayers(
+      final TreeEnsembleModelPortObjectSpec modelSpec,
+      final TreeSHAPConfiguration config,
+      final TreeEnsembleStatistics statistics,
+      final FeatureGroups featureGroups) {
+    if (statistics == null || !config.isUsedFeaturesOnly()) {
+      return featureGroups;
+    }
+    return FeatureGroups.createForUsedFeatures(
+        modelSpec.getTableSpec(), featureGroups, statistics.getUsedFeatures());
+  }
+
+  /**
+   * Creates the feature groups from the group table and the group pattern of the configuration.
+   *
+   * @param modelSpec the spec of the model
+   * @param groupTable table assigning features (first string column) to groups (second string
+   *     column), may be null
+   * @param config for the prediction
+   * @return the groups, or null if no feature is grouped
+   * @throws InvalidSettingsException if the group table has less than two string columns or the
+   *     pattern is invalid
+   */
+  public static FeatureGroups createFeatureGroups(
+      final TreeEnsembleModelPortObjectSpec modelSpec,
+      final BufferedDataTable groupTable,
+      final TreeSHAPConfiguration config)
+      throws InvalidSettingsException {
+    final Map<String, String> groupOfFeature = new HashMap<>();
+    if (groupTable != null) {
+      final int[] columns = findFeatureGroupColumns(groupTable.getDataTableSpec());
+      for (final DataRow row : groupTable) {
+        final DataCell feature = row.getCell(columns[0]);
+        final DataCell group = row.getCell(columns[1]);
+        if (!feature.isMissing() && !group.isMissing()) {
+          groupOfFeature.put(
+              ((StringValue) feature).getStringValue(), ((StringValue) group).getStringValue());
+        }
+      }
+    }
+    return FeatureGroups.create(
+        modelSpec.getTableSpec(), groupOfFeature, config.getFeatureGroupPattern());
+  }
+
   /**
    * Creates a row converter for random forest and gradient boosted trees models.
    *
@@ -309,6 +534,54 @@ public PredictorRecord apply(final DataRow r) {
     };
   }
 
+  /**
+   * Compiles the explained trees of the model into flat arrays, see {@link CompiledEnsemble}. For
+   * classification gbts, these are the trees predicting the positive class.
+   *
+   * @param positiveClass the explained class, null for regression models
+   * @param players the groups forming the players, null if every feature is a player
+   * @throws InvalidSettingsException if the model has splits the compiled explainer does not support
+   */
+  public static CompiledEnsemble compileEnsemble(
+      final TreeEnsembleModelPortObjectSpec modelSpec,
+      final TreeEnsembleModel model,
+      final String positiveClass,
+      final FeatureGroups players)
+      throws InvalidSettingsException {
+    final int nrFeatures = modelSpec.getTableSpec().getNumColumns() - 1;
+    final int positiveClassIndex =
+        positiveClass == null
+            ? 0
+            : createTargetValueToIndexMap(modelSpec.getTargetColumnPossibleValueMap())
+                .get(positiveClass);
+    if (model instanceof MultiClassGradientBoostedTreesModel) {
+      final MultiClassGradientBoostedTreesModel gbt = (MultiClassGradientBoostedTreesModel) model;
+      final AbstractTreeNode[] roots = new AbstractTreeNode[gbt.getNrLevels()];
+      for (int i = 0; i < roots.length; i++) {
+        roots[i] = gbt.getModel(i, positiveClassIndex).getRootNode();
+      }
+      return new EnsembleCompiler(
+              roots,
+              getStatistics(gbt, positiveClassIndex).getExpectations(),
+              positiveClassIndex,
+              nrFeatures,
+              players)
+          .compile(1, gbt.getInitialValue());
+    }
+    final AbstractTreeNode[] roots = new AbstractTreeNode[model.getNrModels()];
+    for (int i = 0; i < roots.length; i++) {
+      roots[i] = model.getTreeModel(i).getRootNode();
+    }
+    if (model instanceof GradientBoostedTreesModel) {
+      final GradientBoostedTreesModel gbt = (GradientBoostedTreesModel) model;
+      return new EnsembleCompiler(
+              roots, getStatistics(gbt).getExpectations(), 0, nrFeatures, players)
+          .compile(1, gbt.getInitialValue());
+    }
+    return new EnsembleCompiler(roots, null, positiveClassIndex, nrFeatures, players)
+        .compile(1.0 / roots.length, 0);
+  }
+
   public static Map<String, Integer> createTargetValueToIndexMap(
       final Map<String, DataCell> targetValueMap) {
     final Map<String, Integer> targetValueToIndexMap = new HashMap<>(targetValueMap.size());
@@ -320,41 +593,28 @@ public static Map<String, Integer> createTargetValueToIndexMap(
   }
 
   /**
-   * Computes expectations and max depth. Returns max depth and expectations in the map.
+   * Finds the feature and the group column of a feature group table, i.e. its first two string
+   * columns.
    *
-   * @param node
-   * @param expectations
-   * @return
+   * @param groupSpec spec of the feature group table
+   * @return the indices of the feature and the group column
+   * @throws InvalidSettingsException if the table has less than two string columns
    */
-  private static int descendRegressionTree(
-      final Map<TreeNodeSignature, Double> coefficientMap,
-      final TreeNodeRegression node,
-      final int depth,
-      final Map<AbstractTreeNode, Double> expectations) {
-    int maxDepth = 0;
-    if (node.getNrChildren() > 0) {
-      assert node.getNrChildren() == 2
-          : "ERROR: Tree not binary. Please ensure that you only activate binary splits.";
-      final TreeNodeRegression left = node.getChild(0);
-      final TreeNodeRegression right = node.getChild(1);
-      final int depthLeft = descendRegressionTree(coefficientMap, left, depth + 1, expectations);
-      final int depthRight = descendRegressionTree(coefficientMap, right, depth + 1, expectations);
-      final double leftWeight = node.getChild(0).getTotalSum();
-      final double rightWeight = node.getChild(1).getTotalSum();
-      if (leftWeight + rightWeight == 0) {
-        expectations.put(node, 0D);
-      } else {
-        final double leftValue = expectations.get(left);
-        final double rightValue = expectations.get(right);
-        final double newValue =
-            (leftWeight * leftValue + rightWeight * rightValue) / (leftWeight + rightWeight);
-        expectations.put(node, newValue);
+  public static int[] findFeatureGroupColumns(final DataTableSpec groupSpec)
+      throws InvalidSettingsException {
+    final int[] columns = new int[2];
+    int found = 0;
+    for (int i = 0; i < groupSpec.getNumColumns() && found < 2; i++) {
+      if (groupSpec.getColumnSpec(i).getType().isCompatible(StringValue.class)) {
+        columns[found++] = i;
       }
-      maxDepth = Math.max(depthLeft, depthRight) + 1;
-    } else {
-      expectations.put(node, coefficientMap.get(node.getSignature()));
     }
-    return maxDepth;
+    if (found < 2) {
+      throw new InvalidSettingsException(
+          "The feature group table needs a string column with the feature names followed by a "
+              + "string column with the group names.");
+    }
+    return columns;
   }
 
   /**
@@ -372,6 +632,30 @@ private static int descendTree(final AbstractTreeNode node) {
   }
 
 
+  /**
+   * Returns the roots of the trees explained for the given model. For classification gbts, these
+   * are the trees predicting the positive class.
+   */
+  private static AbstractTreeNode[] getExplainedRoots(
+      final TreeEnsembleModelPortObjectSpec modelSpec,
+      final TreeEnsembleModel model,
+      final TreeSHAPConfiguration config) {
+    if (model instanceof MultiClassGradientBoostedTreesModel) {
+      final MultiClassGradientBoostedTreesModel gbt = (MultiClassGradientBoostedTreesModel) model;
+      final int positiveClassIndex = getPositiveClassIndex(modelSpec, config);
+      final AbstractTreeNode[] roots = new AbstractTreeNode[gbt.getNrLevels()];
+      for (int i = 0; i < roots.length; i++) {
+        roots[i] = gbt.getModel(i, positiveClassIndex).getRootNode();
+      }
+      return roots;
+    }
+    final AbstractTreeNode[] roots = new AbstractTreeNode[model.getNrModels()];
+    for (int i = 0; i < roots.length; i++) {
+      roots[i] = model.getTreeModel(i).getRootNode();
+    }
+    return roots;
+  }
+
   public static int getMaxDepth(final TreeEnsembleModel forest) {
     return IntStream.range(0, forest.getNrModels()) // .parallel()
         .map(
@@ -385,43 +669,59 @@ public int applyAsInt(final int n) {
         .getAsInt();
   }
 
+  private static int getPositiveClassIndex(
+      final TreeEnsembleModelPortObjectSpec modelSpec, final TreeSHAPConfiguration config) {
+    final Map<String, DataCell> targetValueMap = modelSpec.getTargetColumnPossibleValueMap();
+    // This is also called during spec generation where the target value may not be
+    // known.
+    if (targetValueMap == null) {
+      return 0;
+    }
+    final Map<String, Integer> targetVal2Idx = createTargetValueToIndexMap(targetValueMap);
+    return targetVal2Idx.get(config.getPositiveClass().toString());
+  }
+
   /**
    * Setups the PredictionRearrangerCreator for classification gbts.
    *
+   * @param background the summarized background data, null for the path dependent algorithm
+   * @param featureGroups the groups forming the players, null if every feature is a player
+   * @param summary the summary the SHAP values of every row are added to, null if not summarized
    * @throws InvalidSettingsException if something goes wrong
    */
   public static PredictionRearrangerCreator setupRearrangerCreatorGBT(
       final DataTableSpec dataSpec,
       final TreeEnsembleModelPortObjectSpec modelSpec,
       final MultiClassGradientBoostedTreesModel model,
-      final TreeSHAPConfiguration config)
+      final TreeSHAPConfiguration config,
+      final BackgroundSummary background,
+      final FeatureGroups featureGroups,
+      final ExplanationSummary summary)
       throws InvalidSettingsException {
-    final Map<String, DataCell> targetValueMap = modelSpec.getTargetColumnPossibleValueMap();
-    int positiveClassIndex = 0;
-    // This is also called during spec generation where the target value may not be
-    // known.
-    if (targetValueMap != null) {
-      final Map<String, Integer> targetVal2Idx = createTargetValueToIndexMap(targetValueMap);
-      positiveClassIndex = targetVal2Idx.get(config.getPositiveClass().toString());
-    }
+    final int positiveClassIndex = getPositiveClassIndex(modelSpec, config);
+    final TreeEnsembleStatistics statistics = createStatistics(model, config, positiveClassIndex);
+    final FeatureGroups players = createPlayers(modelSpec, config, statistics, featureGroups);
+    final FeatureMask featureMask = createFeatureMask(modelSpec, config, players);
+    final InteractionScreening interactionScreening =
+        createInteractionScreening(modelSpec, config, statistics, players);
     int maxDepth = -1;
     int maxNodes = 0;
     int[] uniqueFeaturesPerTree = null;
     List<Map<AbstractTreeNode, Double>> treeMaps = null;
-    if (model != null && config.isShowExplanation()) {
-      final TreeEnsembleStatistics s = new TreeEnsembleStatistics();
-      s.initialize(model);
-      // TODO: Optimize the tree traversals.
-      final Pair<Integer, List<Map<AbstractTreeNode, Double>>> pair =
-          computeExpectationsClassificationGBT(model, positiveClassIndex);
-      maxDepth = pair.first;
-      treeMaps = pair.second;
+    if (statistics != null) {
+      maxDepth = statistics.getMaximumDepth();
+      treeMaps = statistics.getExpectations();
       if (config.isComputeInteractions()) {
-        maxNodes = s.getMaximumNumberOfNodes();
+        maxNodes = statistics.getMaximumNumberOfNodes();
         uniqueFeaturesPerTree =
-            s.getUniqueFeaturesPerTree(
-                model.getNrModels(),
+            statistics.getUniqueFeaturesPerTree(
+                statistics.getNrTrees(),
                 Math.min(maxNodes, modelSpec.getTableSpec().getNumColumns() - 1));
+        if (players != null) {
+          uniqueFeaturesPerTree =
+              players.toUniqueGroupsPerTree(
+                  uniqueFeaturesPerTree, statistics.getNrTrees(), maxNodes);
+        }
       }
     }
     // Probabilities are only calculated if they need to be shown.
@@ -435,7 +735,13 @@ public static PredictionRearrangerCreator setupRearrangerCreatorGBT(
             maxDepth,
             treeMaps,
             maxNodes,
-            uniqueFeaturesPerTree);
+            uniqueFeaturesPerTree,
+            config.isComputeSparseInteractions(),
+            config.getInteractionTopK(),
+            interactionScreening,
+            background,
+            featureMask,
+            players);
     final PredictionRearrangerCreator crc = new PredictionRearrangerCreator(dataSpec, predictor);
     if (config.isAppendClassConfidences()) {
       addClassProbabilites(crc, "P (", modelSpec, model, config);
@@ -445,11 +751,8 @@ public static PredictionRearrangerCreator setupRearrangerCreatorGBT(
       crc.addPredictionConfidence(config.getPredictionColumnName() + CONFIDENCE_SUFFIX);
     }
     if (config.isShowExplanation()) {
-      if (config.isComputeInteractions()) {
-        crc.addPredictionItemParser(new InteractionItemParser(modelSpec.getTableSpec()));
-      } else {
-        crc.addPredictionItemParser(new ExplanationItemParser(modelSpec.getTableSpec()));
-      }
+      crc.addPredictionItemParser(
+          createExplanationItemParser(modelSpec, config, players, featureMask, summary));
     }
     return crc;
   }
@@ -457,32 +760,43 @@ public static PredictionRearrangerCreator setupRearrangerCreatorGBT(
   /**
    * Setups the PredictionRearrangerCreator for regression gbts.
    *
+   * @param background the summarized background data, null for the path dependent algorithm
+   * @param featureGroups the groups forming the players, null if every feature is a player
+   * @param summary the summary the SHAP values of every row are added to, null if not summarized
    * @throws InvalidSettingsException if something goes wrong
    */
   public static PredictionRearrangerCreator setupRearrangerCreatorRegressionGBT(
       final DataTableSpec dataSpec,
       final TreeEnsembleModelPortObjectSpec modelSpec,
       final GradientBoostedTreesModel model,
-      final TreeSHAPConfiguration config)
+      final TreeSHAPConfiguration config,
+      final BackgroundSummary background,
+      final FeatureGroups featureGroups,
+      final ExplanationSummary summary)
       throws InvalidSettingsException {
+    final TreeEnsembleStatistics statistics = createStatistics(model, config);
+    final FeatureGroups players = createPlayers(modelSpec, config, statistics, featureGroups);
+    final FeatureMask featureMask = createFeatureMask(modelSpec, config, players);
+    final InteractionScreening interactionScreening =
+        createInteractionScreening(modelSpec, config, statistics, players);
     int maxDepth = -1;
     int maxNodes = 0;
     int[] uniqueFeaturesPerTree = null;
     List<Map<AbstractTreeNode, Double>> treeMaps = null;
-    if (model != null && config.isShowExplanation()) {
-      final TreeEnsembleStatistics s = new TreeEnsembleStatistics();
-      s.initialize(model);
-      // TODO: Optimize the tree traversals.
-      final Pair<Integer, List<Map<AbstractTreeNode, Double>>> pair =
-          computeExpectationsRegressionGBT(model);
-      maxDepth = pair.first;
-      treeMaps = pair.second;
+    if (statistics != null) {
+      maxDepth = statistics.getMaximumDepth();
+      treeMaps = statistics.getExpectations();
       if (config.isComputeInteractions()) {
-        maxNodes = s.getMaximumNumberOfNodes();
+        maxNodes = statistics.getMaximumNumberOfNodes();
         uniqueFeaturesPerTree =
-            s.getUniqueFeaturesPerTree(
-                model.getNrModels(),
+            statistics.getUniqueFeaturesPerTree(
+                statistics.getNrTrees(),
                 Math.min(maxNodes, modelSpec.getTableSpec().getNumColumns() - 1));
+        if (players != null) {
+          uniqueFeaturesPerTree =
+              players.toUniqueGroupsPerTree(
+                  uniqueFeaturesPerTree, statistics.getNrTrees(), maxNodes);
+        }
       }
     }
     // Probabilities are only calculated if they need to be shown.
@@ -494,19 +808,138 @@ public static PredictionRearrangerCreator setupRearrangerCreatorRegressionGBT(
             treeMaps,
             maxDepth,
             maxNodes,
-            uniqueFeaturesPerTree);
+            uniqueFeaturesPerTree,
+            config.isComputeSparseInteractions(),
+            config.getInteractionTopK(),
+            interactionScreening,
+            background,
+            featureMask,
+            players);
     final PredictionRearrangerCreator crc = new PredictionRearrangerCreator(dataSpec, predictor);
     crc.addRegressionPrediction(config.getPredictionColumnName());
     if (config.isShowExplanation()) {
-      if (config.isComputeInteractions()) {
-        crc.addPredictionItemParser(new InteractionItemParser(modelSpec.getTableSpec()));
-      } else {
-        crc.addPredictionItemParser(new ExplanationItemParser(modelSpec.getTableSpec()));
-      }
+      crc.addPredictionItemParser(
+          createExplanationItemParser(modelSpec, config, players, featureMask, summary));
     }
     return crc;
   }
 
+  /**
+   * Summarizes the background data for the interventional algorithm, see {@link
+   * BackgroundSummarizer}.
+   *
+   * @param modelSpec the spec of the model
+   * @param model the tree ensemble or gradient boosted trees model
+   * @param background the background data (may be null)
+   * @param config for the prediction
+   * @param exec used for progress reporting and cancellation
+   * @return the summary, or null if no background data is given or no explanation is requested
+   * @throws InvalidSettingsException if the background data is empty or misses columns of the
+   *     model
+   * @throws CanceledExecutionException if the execution was canceled
+   */
+  public static BackgroundSummary summarizeBackground(
+      final TreeEnsembleModelPortObjectSpec modelSpec,
+      final TreeEnsembleModel model,
+      final BufferedDataTable background,
+      final TreeSHAPConfiguration config,
+      final ExecutionMonitor exec)
+      throws InvalidSettingsException, CanceledExecutionException {
+    if (background == null || !config.isShowExplanation()) {
+      return null;
+    }
+    if (background.size() == 0) {
+      throw new InvalidSettingsException("The background data is empty.");
+    }
+    final Function<DataRow, PredictorRecord> rowConverter =
+        createRowConverter(modelSpec, model, background.getDataTableSpec());
+    final Iterator<DataRow> dataRows = background.iterator();
+    final Iterator<PredictorRecord> rows =
+        new Iterator<PredictorRecord>() {
+          @Override
+          public boolean hasNext() {
+            return dataRows.hasNext();
+          }
+
+          @Override
+          public PredictorRecord next() {
+            return rowConverter.apply(dataRows.next());
+          }
+        };
+    return new BackgroundSummarizer(
+            getExplainedRoots(modelSpec, model, config), config.getBackgroundPrototypes())
+        .summarize(rows, background.size(), exec);
+  }
+
+  /**
+   * Creates the specs of the output ports of the TreeSHAP nodes, see {@link Ports}.
+   *
+   * @param tableSpec the spec of the explained table, null if not known yet
+   * @return the spec of the explained table followed by the specs of the summary tables
+   */
+  public static PortObjectSpec[] createOutputSpecs(final DataTableSpec tableSpec) {
+    final PortObjectSpec[] specs = new PortObjectSpec[Ports.OUTPUT_PORTS.length];
+    specs[0] = tableSpec;
+    specs[Ports.OUT_IMPORTANCE_PORT_INDEX] = ExplanationSummary.createImportanceSpec();
+    specs[Ports.OUT_INTERACTION_STRENGTH_PORT_INDEX] =
+        ExplanationSummary.createInteractionStrengthSpec();
+    specs[Ports.OUT_DISTRIBUTION_PORT_INDEX] = ExplanationSummary.createDistributionSpec();
+    return specs;
+  }
+
+  /**
+   * Creates the output tables of the TreeSHAP nodes, see {@link Ports}.
+   *
+   * @param table the explained table
+   * @param summary the summary of the explained rows
+   * @param exec used to create the summary tables
+   * @return the explained table followed by the summary tables
+   * @throws InterruptedException if writing a summary table is interrupted
+   */
+  public static BufferedDataTable[] createOutputTables(
+      final BufferedDataTable table,
+      final ExplanationSummary summary,
+      final ExecutionContext exec)
+      throws InterruptedException {
+    final BufferedDataTableRowOutput importance =
+        new BufferedDataTableRowOutput(
+            exec.createDataContainer(ExplanationSummary.createImportanceSpec()));
+    summary.writeImportance(importance);
+    final BufferedDataTableRowOutput interactionStrength =
+        new BufferedDataTableRowOutput(
+            exec.createDataContainer(ExplanationSummary.createInteractionStrengthSpec()));
+    summary.writeInteractionStrength(interactionStrength);
+    final BufferedDataTableRowOutput distribution =
+        new BufferedDataTableRowOutput(
+            exec.createDataContainer(ExplanationSummary.createDistributionSpec()));
+    summary.writeDistribution(distribution);
+    final BufferedDataTable[] tables = new BufferedDataTable[Ports.OUTPUT_PORTS.length];
+    tables[0] = table;
+    tables[Ports.OUT_IMPORTANCE_PORT_INDEX] = importance.getDataTable();
+    tables[Ports.OUT_INTERACTION_STRENGTH_PORT_INDEX] = interactionStrength.getDataTable();
+    tables[Ports.OUT_DISTRIBUTION_PORT_INDEX] = distribution.getDataTable();
+    return tables;
+  }
+
+  /**
+   * Writes the summary tables of the merged internals of the streaming operators of the TreeSHAP
+   * nodes, see {@link Ports}.
+   *
+   * @param internals the merged internals, see {@link ExplanationSummary#saveInternals()}
+   * @param outputs the outputs of the node
+   * @throws InvalidSettingsException if the internals cannot be read
+   * @throws InterruptedException if writing a summary table is interrupted
+   */
+  public static void writeSummaryTables(
+      final StreamableOperatorInternals internals, final PortOutput[] outputs)
+      throws InvalidSettingsException, InterruptedException {
+    ExplanationSummary.writeImportance(
+        internals, (RowOutput) outputs[Ports.OUT_IMPORTANCE_PORT_INDEX]);
+    ExplanationSummary.writeInteractionStrength(
+        internals, (RowOutput) outputs[Ports.OUT_INTERACTION_STRENGTH_PORT_INDEX]);
+    ExplanationSummary.writeDistribution(
+        internals, (RowOutput) outputs[Ports.OUT_DISTRIBUTION_PORT_INDEX]);
+  }
 
   private TreeSHAPUtil() {
     // utility class
@@ -0,0 +1,275 @@
+package org.morriskurz.background;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.knime.base.node.mine.treeensemble2.data.PredictorRecord;
+import org.knime.base.node.mine.treeensemble2.model.AbstractTreeNode;
+import org.knime.base.node.mine.treeensemble2.model.TreeNodeCondition;
+import org.knime.base.node.mine.treeensemble2.model.TreeNodeNumericCondition;
+import org.knime.core.node.CanceledExecutionException;
+import org.knime.core.node.ExecutionMonitor;
+
+/**
+ * Creates a {@link BackgroundSummary} from background rows.
+ *
+ * <p>The rows are grouped per tree by their split bin signature. For a numeric column, the bin of a
+ * value is its position between the sorted split values the tree uses for that column. Nodes which
+ * do not split on a numeric column contribute the branch taken by the row directly. Rows with equal
+ * signatures take the same branch in every node of the tree, so one weighted representative
+ * suffices.
+ *
+ * @author Morris Kurz, morriskurz@gmail.com
+ */
+public final class BackgroundSummarizer {
+
+  /** Rows which agree on every split bin of a tree. */
+  private static final class Group {
+    private final PredictorRecord representative;
+    private final int[] signature;
+    private double weight;
+
+    Group(final PredictorRecord representative, final int[] signature) {
+      this.representative = representative;
+      this.signature = signature;
+    }
+  }
+
+  /** Hash key for split bin signatures. */
+  private static final class Signature {
+    private final int[] bins;
+    private final int hash;
+
+    Signature(final int[] bins) {
+      this.bins = bins;
+      hash = Arrays.hashCode(bins);
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+      return obj instanceof Signature && Arrays.equals(bins, ((Signature) obj).bins);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+  }
+
+  /** The split bins of a single tree. */
+  private static final class TreeSplitBins {
+    private final String[] columnNames;
+    private final double[][] splitValues;
+    private final AbstractTreeNode[] opaqueNodes;
+
+    TreeSplitBins(final AbstractTreeNode root) {
+      final Map<String, TreeSet<Double>> numericSplits = new TreeMap<>();
+      final List<AbstractTreeNode> opaque = new ArrayList<>();
+      final Deque<AbstractTreeNode> stack = new ArrayDeque<>();
+      stack.push(root);
+      while (!stack.isEmpty()) {
+        final AbstractTreeNode node = stack.pop();
+        if (node.getNrChildren() == 0) {
+          continue;
+        }
+        boolean isNumeric = true;
+        for (final AbstractTreeNode child : node.getChildren()) {
+          final TreeNodeCondition condition = child.getCondition();
+          if (condition instanceof TreeNodeNumericCondition) {
+            final TreeNodeNumericCondition numeric = (TreeNodeNumericCondition) condition;
+            numericSplits
+                .computeIfAbsent(
+                    numeric.getColumnMetaData().getAttributeName(), k -> new TreeSet<>())
+                .add(numeric.getSplitValue());
+          } else {
+            isNumeric = false;
+          }
+          stack.push(child);
+        }
+        if (!isNumeric) {
+          opaque.add(node);
+        }
+      }
+      columnNames = numericSplits.keySet().toArray(new String[numericSplits.size()]);
+      splitValues = new double[columnNames.length][];
+      for (int i = 0; i < columnNames.length; i++) {
+        splitValues[i] =
+            numericSplits.get(columnNames[i]).stream().mapToDouble(Double::doubleValue).toArray();
+      }
+      opaqueNodes = opaque.toArray(new AbstractTreeNode[opaque.size()]);
+    }
+
+    /**
+     * Distance between two signatures. Numeric bins contribute their ordinal distance, missing
+     * values and opaque nodes one per mismatch.
+     */
+    int distance(final int[] a, final int[] b) {
+      int distance = 0;
+      for (int i = 0; i < columnNames.length; i++) {
+        if (a[i] == b[i]) {
+          continue;
+        }
+        if (a[i] == MISSING_BIN || b[i] == MISSING_BIN) {
+          distance++;
+        } else {
+          distance += Math.abs(a[i] - b[i]);
+        }
+      }
+      for (int i = columnNames.length; i < a.length; i++) {
+        if (a[i] != b[i]) {
+          distance++;
+        }
+      }
+      return distance;
+    }
+
+    /**
+     * Computes the split bin signature of a row. A value equal to a split value gets its own bin,
+     * such that the signature does not depend on the comparison operator of the split.
+     */
+    int[] signature(final PredictorRecord record) {
+      final int[] signature = new int[columnNames.length + opaqueNodes.length];
+      for (int i = 0; i < columnNames.length; i++) {
+        final Object value = record.getValue(columnNames[i]);
+        if (value instanceof Double && !((Double) value).isNaN()) {
+          final int position = Arrays.binarySearch(splitValues[i], (Double) value);
+          signature[i] = position >= 0 ? 2 * position + 1 : -2 * (position + 1);
+        } else {
+          signature[i] = MISSING_BIN;
+        }
+      }
+      for (int i = 0; i < opaqueNodes.length; i++) {
+        // Missing values follow the left child, as in the SHAP computation.
+        signature[columnNames.length + i] = Math.max(opaqueNodes[i].findNextPathTurn(record), 0);
+      }
+      return signature;
+    }
+  }
+
+  private static final int MISSING_BIN = -1;
+
+  private final AbstractTreeNode[] roots;
+
+  private final int prototypes;
+
+  /**
+   * @param roots Roots of the trees that will be explained, in the order used by the explainer.
+   * @param prototypes The maximum number of representatives per tree. 0 keeps all representatives,
+   *     which makes the summary lossless.
+   */
+  public BackgroundSummarizer(final AbstractTreeNode[] roots, final int prototypes) {
+    this.roots = roots;
+    this.prototypes = prototypes;
+  }
+
+  /**
+   * Summarizes the background rows, each row having a weight of one. The rows are read once and
+   * only the first row of every group is kept, so the memory depends on the number of groups
+   * rather than on the number of rows.
+   *
+   * @param rows the background rows
+   * @param nrRows the number of background rows, used for progress reporting
+   * @param exec used for progress reporting and cancellation
+   * @return the summary
+   * @throws CanceledExecutionException if the execution was canceled
+   */
+  public BackgroundSummary summarize(
+      final Iterator<PredictorRecord> rows, final long nrRows, final ExecutionMonitor exec)
+      throws CanceledExecutionException {
+    final int nrTrees = roots.length;
+    final TreeSplitBins[] bins = new TreeSplitBins[nrTrees];
+    final List<Map<Signature, Group>> groups = new ArrayList<>(nrTrees);
+    for (int treeIndex = 0; treeIndex < nrTrees; treeIndex++) {
+      bins[treeIndex] = new TreeSplitBins(roots[treeIndex]);
+      groups.add(new LinkedHashMap<>());
+    }
+    long rowIndex = 0;
+    while (rows.hasNext()) {
+      exec.checkCanceled();
+      exec.setProgress(rowIndex / (double) nrRows, "Summarizing background data");
+      final PredictorRecord row = rows.next();
+      for (int treeIndex = 0; treeIndex < nrTrees; treeIndex++) {
+        final int[] signature = bins[treeIndex].signature(row);
+        final Group group =
+            groups
+                .get(treeIndex)
+                .computeIfAbsent(new Signature(signature), k -> new Group(row, signature));
+        group.weight++;
+      }
+      rowIndex++;
+    }
+    final PredictorRecord[][] representatives = new PredictorRecord[nrTrees][];
+    final double[][] weights = new double[nrTrees][];
+    final double[] movedWeights = new double[nrTrees];
+    final double[] shiftedLeafWeights = new double[nrTrees];
+    for (int treeIndex = 0; treeIndex < nrTrees; treeIndex++) {
+      List<Group> kept = new ArrayList<>(groups.get(treeIndex).values());
+      if (prototypes > 0 && kept.size() > prototypes) {
+        kept.sort(Comparator.comparingDouble((final Group g) -> g.weight).reversed());
+        final List<Group> merged = kept.subList(prototypes, kept.size());
+        kept = new ArrayList<>(kept.subList(0, prototypes));
+        // The weight reaching every leaf, before and after merging.
+        final Map<AbstractTreeNode, double[]> leafWeights = new IdentityHashMap<>();
+        for (final Group group : kept) {
+          addLeafWeight(leafWeights, roots[treeIndex], group.representative, 0, group.weight);
+          addLeafWeight(leafWeights, roots[treeIndex], group.representative, 1, group.weight);
+        }
+        for (final Group group : merged) {
+          Group closest = kept.get(0);
+          int closestDistance = Integer.MAX_VALUE;
+          for (final Group prototype : kept) {
+            final int distance = bins[treeIndex].distance(group.signature, prototype.signature);
+            if (distance < closestDistance) {
+              closest = prototype;
+              closestDistance = distance;
+            }
+          }
+          addLeafWeight(leafWeights, roots[treeIndex], group.representative, 0, group.weight);
+          addLeafWeight(leafWeights, roots[treeIndex], closest.representative, 1, group.weight);
+          closest.weight += group.weight;
+          movedWeights[treeIndex] += group.weight;
+        }
+        for (final double[] leafWeight : leafWeights.values()) {
+          shiftedLeafWeights[treeIndex] += Math.max(0, leafWeight[1] - leafWeight[0]);
+        }
+      }
+      representatives[treeIndex] = new PredictorRecord[kept.size()];
+      weights[treeIndex] = new double[kept.size()];
+      for (int i = 0; i < kept.size(); i++) {
+        representatives[treeIndex][i] = kept.get(i).representative;
+        weights[treeIndex][i] = kept.get(i).weight;
+      }
+    }
+    return new BackgroundSummary(
+        representatives, weights, movedWeights, shiftedLeafWeights, rowIndex, rowIndex);
+  }
+
+  /**
+   * Adds the weight of a row to the leaf it reaches.
+   *
+   * @param side 0 for the weight before merging, 1 for the weight after merging
+   */
+  private static void addLeafWeight(
+      final Map<AbstractTreeNode, double[]> leafWeights,
+      final AbstractTreeNode root,
+      final PredictorRecord record,
+      final int side,
+      final double weight) {
+    AbstractTreeNode node = root;
+    while (node.getNrChildren() > 0) {
+      // Missing values follow the left child, as in the SHAP computation.
+      node = node.getChild(Math.max(node.findNextPathTurn(record), 0));
+    }
+    leafWeights.computeIfAbsent(node, k -> new double[2])[side] += weight;
+  }
+}
@@ -0,0 +1,163 @@
+package org.morriskurz.background;
+
+import org.knime.base.node.mine.treeensemble2.data.PredictorRecord;
+
+/**
+ * Compressed background data set for interventional SHAP values.
+ *
+ * <p>For every tree, the background rows are collapsed into weighted representatives. Two rows
+ * share a representative if they fall into the same split bin for every split of the tree, i.e.
+ * they take the same branch in every node of the tree. The interventional algorithm only depends
+ * on these branch decisions, which makes the lossless summary exact. If the number of
+ * representatives per tree is limited, the remaining representatives are merged into their closest
+ * prototype. Merging only changes the explanations where the moved weight reaches a different leaf:
+ * the expected value of a tree then changes by at most the shifted fraction of the background
+ * weight times the range of its leaf values, and the SHAP values of every row sum to the output
+ * minus this expected value.
+ *
+ * @author Morris Kurz, morriskurz@gmail.com
+ */
+public final class BackgroundSummary {
+
+  private final PredictorRecord[][] representatives;
+
+  private final double[][] weights;
+
+  private final double[] movedWeights;
+
+  private final double[] shiftedLeafWeights;
+
+  private final double totalWeight;
+
+  private final long nrRows;
+
+  BackgroundSummary(
+      final PredictorRecord[][] representatives,
+      final double[][] weights,
+      final double[] movedWeights,
+      final double[] shiftedLeafWeights,
+      final double totalWeight,
+      final long nrRows) {
+    this.representatives = representatives;
+    this.weights = weights;
+    this.movedWeights = movedWeights;
+    this.shiftedLeafWeights = shiftedLeafWeights;
+    this.totalWeight = totalWeight;
+    this.nrRows = nrRows;
+  }
+
+  /**
+   * A human readable description of the prototype reduction and of the shift of the background
+   * weight between the leaves it causes, which bounds the error of the expected values.
+   *
+   * @return the report, empty if the summary is lossless
+   */
+  public String getReductionReport() {
+    if (!isLossy()) {
+      return "";
+    }
+    return String.format(
+        "The background data was reduced to %d prototypes for %d rows. On average %.2f%% "
+            + "(at most %.2f%% in a single tree) of the background weight reaches a different "
+            + "leaf, so the expected value of a tree, and with it the sum of the SHAP values of "
+            + "a row, changes by at most this fraction of the range of its leaf values.",
+        getNrRepresentatives(),
+        nrRows,
+        100 * mean(shiftedLeafWeights),
+        100 * max(shiftedLeafWeights));
+  }
+
+  /**
+   * @return the largest fraction of background weight reaching a different leaf in a single tree,
+   *     which times the range of the leaf values bounds the change of the expected value of the
+   *     tree.
+   */
+  public double getMaximumShiftedLeafFraction() {
+    return max(shiftedLeafWeights);
+  }
+
+  /**
+   * @return the fraction of background weight moved to a prototype, whether or not it reaches a
+   *     different leaf, in the tree with the most moved weight
+   */
+  public double getMaximumMovedFraction() {
+    return max(movedWeights);
+  }
+
+  /**
+   * @return the fraction of background weight moved to a prototype, whether or not it reaches a
+   *     different leaf, averaged over all trees
+   */
+  public double getMeanMovedFraction() {
+    return mean(movedWeights);
+  }
+
+  /** @return the number of representatives summed over all trees. */
+  public int getNrRepresentatives() {
+    int sum = 0;
+    for (final PredictorRecord[] treeRepresentatives : representatives) {
+      sum += treeRepresentatives.length;
+    }
+    return sum;
+  }
+
+  /** @return the number of rows in the original background data. */
+  public long getNrRows() {
+    return nrRows;
+  }
+
+  public int getNrTrees() {
+    return representatives.length;
+  }
+
+  /**
+   * @param treeIndex index of the tree in the explained ensemble
+   * @return the representative background rows for that tree
+   */
+  public PredictorRecord[] getRepresentatives(final int treeIndex) {
+    return representatives[treeIndex];
+  }
+
+  /** @return the total weight of the background data, i.e. the number of background rows. */
+  public double getTotalWeight() {
+    return totalWeight;
+  }
+
+  /**
+   * @param treeIndex index of the tree in the explained ensemble
+   * @return the weights of the representatives of that tree, in the same order as {@link
+   *     #getRepresentatives(int)}
+   */
+  public double[] getWeights(final int treeIndex) {
+    return weights[treeIndex];
+  }
+
+  /** @return true if representatives were merged into prototypes, i.e. the summary is lossy. */
+  public boolean isLossy() {
+    for (final double moved : movedWeights) {
+      if (moved > 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private double max(final double[] treeWeights) {
+    double max = 0;
+    for (final double weight : treeWeights) {
+      max = Math.max(max, weight / totalWeight);
+    }
+    return max;
+  }
+
+  private double mean(final double[] treeWeights) {
+    if (treeWeights.length == 0) {
+      return 0;
+    }
+    double sum = 0;
+    for (final double weight : treeWeights) {
+      sum += weight;
+    }
+    return sum / (treeWeights.length * totalWeight);
+  }
+}
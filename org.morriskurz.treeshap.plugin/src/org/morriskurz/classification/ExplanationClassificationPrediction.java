@@ -4,7 +4,11 @@
 import org.knime.base.node.mine.treeensemble2.data.PredictorRecord;
 import org.knime.base.node.mine.treeensemble2.model.TreeNodeClassification;
 import org.knime.base.node.mine.treeensemble2.node.predictor.RandomForestClassificationPrediction;
+import org.morriskurz.background.BackgroundSummary;
+import org.morriskurz.parser.FeatureGroups;
+import org.morriskurz.parser.FeatureMask;
 import org.morriskurz.parser.TreeSHAPPrediction;
+import org.morriskurz.statistics.InteractionScreening;
 
 /**
  * Prediction class for a classification RF prediction implementing the explanation interface.
@@ -22,15 +26,26 @@
    * @param roots
    * @param nrColumns
    * @param maxDepth
+   * @param background the summarized background data, null for the path dependent algorithm
+   * @param featureMask the features whose SHAP values are output, null for all features
+   * @param featureGroups the groups forming the players, null if every feature is a player
    */
   protected ExplanationClassificationPrediction(
       final PredictorRecord record,
       final TreeNodeClassification[] roots,
       final int nrColumns,
-      final int maxDepth) {
-    super(record);
+      final int maxDepth,
+      final BackgroundSummary background,
+      final FeatureMask featureMask,
+      final FeatureGroups featureGroups) {
+    super(record, featureGroups);
     if (maxDepth != -1) {
-      computeShap(roots, nrColumns, 1.0f / roots.length, maxDepth, 0, 0);
+      if (background == null) {
+        computeShap(roots, nrColumns, 1.0 / roots.length, maxDepth, featureMask);
+      } else {
+        computeInterventionalShap(
+            roots, nrColumns, 1.0 / roots.length, maxDepth, background, featureMask);
+      }
     }
   }
 
@@ -43,6 +58,12 @@ protected ExplanationClassificationPrediction(
    * @param maxDepth
    * @param maxNodes
    * @param uniqueFeaturesPerTree
+   * @param sparseInteractions whether only the touched pairs of the upper triangle are stored
+   * @param interactionTopK the number of features per row whose interactions are computed, 0 for
+   *     all features
+   * @param interactionScreening the candidate pairs of the interactions, null for all pairs
+   * @param interactionMask the features whose interactions are output, null for all features
+   * @param featureGroups the groups forming the players, null if every feature is a player
    */
   protected ExplanationClassificationPrediction(
       final PredictorRecord record,
@@ -50,11 +71,42 @@ protected ExplanationClassificationPrediction(
       final int nrColumns,
       final int maxDepth,
       final int maxNodes,
-      final int[] uniqueFeaturesPerTree) {
-    super(record);
-    if (maxDepth != -1) {
+      final int[] uniqueFeaturesPerTree,
+      final boolean sparseInteractions,
+      final int interactionTopK,
+      final InteractionScreening interactionScreening,
+      final FeatureMask interactionMask,
+      final FeatureGroups featureGroups) {
+    super(record, featureGroups);
+    if (maxDepth != -1 && interactionTopK > 0) {
+      top_k_interactions_path_dependent(
+          roots,
+          nrColumns,
+          1.0 / roots.length,
+          maxDepth,
+          maxNodes,
+          uniqueFeaturesPerTree,
+          interactionMask,
+          interactionTopK);
+    } else if (maxDepth != -1 && interactionScreening != null) {
+      screened_interactions_path_dependent(
+          roots,
+          nrColumns,
+          1.0 / roots.length,
+          maxDepth,
+          maxNodes,
+          uniqueFeaturesPerTree,
+          interactionScreening);
+    } else if (maxDepth != -1) {
       dense_tree_interactions_path_dependent(
-          roots, nrColumns, 1.0f / roots.length, maxDepth, maxNodes, uniqueFeaturesPerTree);
+          roots,
+          nrColumns,
+          1.0 / roots.length,
+          maxDepth,
+          maxNodes,
+          uniqueFeaturesPerTree,
+          interactionMask,
+          sparseInteractions);
     }
   }
 }
@@ -12,6 +12,10 @@
 import org.knime.core.data.DataTableSpec;
 import org.knime.core.data.RowKey;
 import org.knime.core.node.InvalidSettingsException;
+import org.morriskurz.background.BackgroundSummary;
+import org.morriskurz.parser.FeatureGroups;
+import org.morriskurz.parser.FeatureMask;
+import org.morriskurz.statistics.InteractionScreening;
 
 /**
  * Predictor implementation for a classification Random Forest.
@@ -51,7 +55,7 @@ private class RFClassificationPrediction extends ExplanationClassificationPredic
         final int nrColumns,
         final int maxDepth,
         final int positiveClassIndex) {
-      super(record, roots, nrColumns, maxDepth);
+      super(record, roots, nrColumns, maxDepth, background, featureMask, featureGroups);
       voting = votingFactory.createVoting();
       nrModels = m_model.getNrModels();
       for (int i = 0; i < nrModels; i++) {
@@ -85,7 +89,18 @@ private class RFClassificationPrediction extends ExplanationClassificationPredic
         final int positiveClassIndex,
         final int maxNodes,
         final int[] uniqueFeaturesPerTree) {
-      super(record, roots, nrColumns, maxDepth, maxNodes, uniqueFeaturesPerTree);
+      super(
+          record,
+          roots,
+          nrColumns,
+          maxDepth,
+          maxNodes,
+          uniqueFeaturesPerTree,
+          sparseInteractions,
+          interactionTopK,
+          interactionScreening,
+          featureMask,
+          featureGroups);
       voting = votingFactory.createVoting();
       nrModels = m_model.getNrModels();
       for (int i = 0; i < nrModels; i++) {
@@ -186,12 +201,31 @@ private float sum(final float[] a) {
 
   private final int[] uniqueFeaturesPerTree;
 
+  private final boolean sparseInteractions;
+
+  private final int interactionTopK;
+
+  private final InteractionScreening interactionScreening;
+
+  private final BackgroundSummary background;
+
+  private final FeatureMask featureMask;
+
+  private final FeatureGroups featureGroups;
+
   /**
    * @param model
    * @param modelSpec
    * @param predictSpec
    * @param votingFactory
    * @param quantileBinning
+   * @param sparseInteractions whether only the touched interaction pairs are stored
+   * @param interactionTopK the number of features per row whose interactions are computed, 0 for
+   *     all features
+   * @param interactionScreening the candidate pairs of the interactions, null for all pairs
+   * @param background the summarized background data, null for the path dependent algorithm
+   * @param featureMask the features whose SHAP values are output, null for all features
+   * @param featureGroups the groups forming the players, null if every feature is a player
    * @throws InvalidSettingsException
    */
   public ExplanationClassificationPredictor(
@@ -202,7 +236,13 @@ public ExplanationClassificationPredictor(
       final int maxDepth,
       final int positiveClassIndex,
       final int maxNodes,
-      final int[] uniqueFeaturesPerTree)
+      final int[] uniqueFeaturesPerTree,
+      final boolean sparseInteractions,
+      final int interactionTopK,
+      final InteractionScreening interactionScreening,
+      final BackgroundSummary background,
+      final FeatureMask featureMask,
+      final FeatureGroups featureGroups)
       throws InvalidSettingsException {
     super(model, modelSpec, predictSpec);
     this.votingFactory = votingFactory;
@@ -212,7 +252,9 @@ public ExplanationClassificationPredictor(
     } else {
       roots = null;
     }
-    if (modelSpec != null) {
+    if (featureGroups != null) {
+      nrColumns = featureGroups.getNrGroups();
+    } else if (modelSpec != null) {
       nrColumns = modelSpec.getTableSpec().getNumColumns() - 1;
     } else {
       nrColumns = 0;
@@ -221,6 +263,12 @@ public ExplanationClassificationPredictor(
     calculateInteractions = uniqueFeaturesPerTree != null;
     this.maxNodes = maxNodes;
     this.uniqueFeaturesPerTree = uniqueFeaturesPerTree;
+    this.sparseInteractions = sparseInteractions;
+    this.interactionTopK = interactionTopK;
+    this.interactionScreening = interactionScreening;
+    this.background = background;
+    this.featureMask = featureMask;
+    this.featureGroups = featureGroups;
   }
 
   private TreeNodeClassification[] initRoots(final TreeEnsembleModel model) {
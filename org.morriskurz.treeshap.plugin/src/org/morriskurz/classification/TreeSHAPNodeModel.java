@@ -3,6 +3,7 @@
 import java.io.File;
 import java.io.IOException;
 import java.util.Optional;
+import java.util.concurrent.Callable;
 
 import org.knime.base.node.mine.treeensemble2.model.TreeEnsembleModelPortObject;
 import org.knime.base.node.mine.treeensemble2.model.TreeEnsembleModelPortObjectSpec;
@@ -20,6 +21,7 @@
 import org.knime.core.node.port.PortObject;
 import org.knime.core.node.port.PortObjectSpec;
 import org.knime.core.node.streamable.InputPortRole;
+import org.knime.core.node.streamable.MergeOperator;
 import org.knime.core.node.streamable.OutputPortRole;
 import org.knime.core.node.streamable.PartitionInfo;
 import org.knime.core.node.streamable.PortInput;
@@ -27,11 +29,16 @@
 import org.knime.core.node.streamable.PortOutput;
 import org.knime.core.node.streamable.StreamableFunction;
 import org.knime.core.node.streamable.StreamableOperator;
+import org.knime.core.node.streamable.StreamableOperatorInternals;
+import org.morriskurz.OrderedParallelStreamableOperator;
 import org.morriskurz.TreeSHAPConfiguration;
 import org.morriskurz.TreeSHAPUtil;
+import org.morriskurz.background.BackgroundSummary;
+import org.morriskurz.parser.FeatureGroups;
 import org.morriskurz.ports.PortObjectWrapper;
 import org.morriskurz.ports.PortSpecWrapper;
 import org.morriskurz.ports.Ports;
+import org.morriskurz.summary.ExplanationSummary;
 
 /**
  * This is the implementation of the node model of the "TreeSHAP" node.
@@ -89,11 +96,19 @@ protected PortObjectSpec[] configure(final PortObjectSpec[] inSpecs)
               + configuration.getPositiveClass().toString()
               + " as positive class.");
     }
-    final Optional<DataTableSpec> outSpecOptional = createOutputSpec(specs);
-    if (outSpecOptional.isPresent()) {
-      return new PortObjectSpec[] {outSpecOptional.get()};
+    configuration.checkBackgroundSetting(specs.getBackgroundSpec());
+    if (specs.getFeatureGroupsSpec() != null) {
+      TreeSHAPUtil.findFeatureGroupColumns(specs.getFeatureGroupsSpec());
+      if (configuration.isShowExplanation()) {
+        // The groups, i.e. the explanation columns, are only known once the table is read.
+        return TreeSHAPUtil.createOutputSpecs(null);
+      }
+    }
+    if (configuration.isShowExplanation() && configuration.isUsedFeaturesOnly()) {
+      // The features used by the model are only known once the model is read.
+      return TreeSHAPUtil.createOutputSpecs(null);
     }
-    return new PortObjectSpec[] {};
+    return TreeSHAPUtil.createOutputSpecs(createOutputSpec(specs).orElse(null));
   }
 
   /**
@@ -110,7 +125,14 @@ private Optional<DataTableSpec> createOutputSpec(
     final DataTableSpec dataSpec = specs.getDataSpec();
     Optional<DataTableSpec> outSpec;
     outSpec =
-        TreeSHAPUtil.createPRCForClassificationRF(dataSpec, modelSpec, null, configuration)
+        TreeSHAPUtil.createPRCForClassificationRF(
+                dataSpec,
+                modelSpec,
+                null,
+                configuration,
+                null,
+                TreeSHAPUtil.createFeatureGroups(modelSpec, null, configuration),
+                null)
             .createSpec();
     return outSpec;
   }
@@ -120,22 +142,55 @@ private Optional<DataTableSpec> createOutputSpec(
   public StreamableOperator createStreamableOperator(
       final PartitionInfo partitionInfo, final PortObjectSpec[] inSpecs)
       throws InvalidSettingsException {
-    return new StreamableOperator() {
+    return new OrderedParallelStreamableOperator(
+        1, 0, configuration.getStreamingWindow(), configuration.getStreamingThreads()) {
+
+      private final ExplanationSummary summary =
+          new ExplanationSummary(configuration.getDistributionBins());
 
       @Override
-      public void runFinal(
-          final PortInput[] inputs, final PortOutput[] outputs, final ExecutionContext exec)
-          throws Exception {
+      protected Callable<StreamableFunction> prepare(
+          final PortInput[] inputs, final ExecutionContext exec) throws Exception {
         final TreeEnsembleModelPortObject model =
             (TreeEnsembleModelPortObject) ((PortObjectInput) inputs[0]).getPortObject();
         final TreeEnsembleModelPortObjectSpec modelSpec = model.getSpec();
         final DataTableSpec dataSpec = (DataTableSpec) inSpecs[1];
-        final ColumnRearranger rearranger =
-            TreeSHAPUtil.createPRCForClassificationRF(
-                    dataSpec, modelSpec, model.getEnsembleModel(), configuration)
-                .createExecutionRearranger();
-        final StreamableFunction func = rearranger.createStreamableFunction(1, 0);
-        func.runFinal(inputs, outputs, exec);
+        final BackgroundSummary background =
+            TreeSHAPUtil.summarizeBackground(
+                modelSpec,
+                model.getEnsembleModel(),
+                Ports.getOptionalTable(inputs, Ports.IN_BACKGROUND_PORT_INDEX),
+                configuration,
+                exec);
+        if (background != null && background.isLossy()) {
+          setWarningMessage(background.getReductionReport());
+        }
+        final FeatureGroups featureGroups =
+            TreeSHAPUtil.createFeatureGroups(
+                modelSpec,
+                Ports.getOptionalTable(inputs, Ports.IN_FEATURE_GROUPS_PORT_INDEX),
+                configuration);
+        return new Callable<StreamableFunction>() {
+          @Override
+          public StreamableFunction call() throws InvalidSettingsException {
+            final ColumnRearranger rearranger =
+                TreeSHAPUtil.createPRCForClassificationRF(
+                        dataSpec,
+                        modelSpec,
+                        model.getEnsembleModel(),
+                        configuration,
+                        background,
+                        featureGroups,
+                        summary)
+                    .createExecutionRearranger();
+            return rearranger.createStreamableFunction(1, 0);
+          }
+        };
+      }
+
+      @Override
+      public StreamableOperatorInternals saveInternals() {
+        return summary.saveInternals();
       }
     };
   }
@@ -155,29 +210,73 @@ protected PortObject[] execute(final PortObject[] inObjects, final ExecutionCont
           "Activate the \"Save target distribution in tree nodes\" checkbox in the learner node to access the true SHAP values! They are not accurate without this option enabled.");
     }
 
+    final ExplanationSummary summary =
+        new ExplanationSummary(configuration.getDistributionBins());
     ColumnRearranger rearranger;
     configuration.checkSoftVotingSettingForModel(model).ifPresent(this::setWarningMessage);
+    final BackgroundSummary background =
+        TreeSHAPUtil.summarizeBackground(
+            modelSpec,
+            model.getEnsembleModel(),
+            portObjects.getBackground(),
+            configuration,
+            exec.createSubProgress(0.1));
+    if (background != null && background.isLossy()) {
+      setWarningMessage(background.getReductionReport());
+    }
+    final FeatureGroups featureGroups =
+        TreeSHAPUtil.createFeatureGroups(modelSpec, portObjects.getFeatureGroups(), configuration);
     rearranger =
         TreeSHAPUtil.createPRCForClassificationRF(
-                dataSpec, modelSpec, model.getEnsembleModel(), configuration)
+                dataSpec,
+                modelSpec,
+                model.getEnsembleModel(),
+                configuration,
+                background,
+                featureGroups,
+                summary)
             .createExecutionRearranger();
     LOGGER.debug("Rearranger was succesfully built.");
     final BufferedDataTable outTable = exec.createColumnRearrangeTable(inData, rearranger, exec);
-    return new BufferedDataTable[] {outTable};
+    return TreeSHAPUtil.createOutputTables(outTable, summary, exec);
   }
 
   /** {@inheritDoc} */
   @Override
   public InputPortRole[] getInputPortRoles() {
     return new InputPortRole[] {
-      InputPortRole.NONDISTRIBUTED_NONSTREAMABLE, InputPortRole.DISTRIBUTED_STREAMABLE
+      InputPortRole.NONDISTRIBUTED_NONSTREAMABLE,
+      InputPortRole.DISTRIBUTED_STREAMABLE,
+      InputPortRole.NONDISTRIBUTED_NONSTREAMABLE,
+      InputPortRole.NONDISTRIBUTED_NONSTREAMABLE
     };
   }
 
   /** {@inheritDoc} */
   @Override
   public OutputPortRole[] getOutputPortRoles() {
-    return new OutputPortRole[] {OutputPortRole.DISTRIBUTED};
+    return new OutputPortRole[] {
+      OutputPortRole.DISTRIBUTED,
+      OutputPortRole.NONDISTRIBUTED,
+      OutputPortRole.NONDISTRIBUTED,
+      OutputPortRole.NONDISTRIBUTED
+    };
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public MergeOperator createMergeOperator() {
+    return ExplanationSummary.createMergeOperator();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void finishStreamableExecution(
+      final StreamableOperatorInternals internals,
+      final ExecutionContext exec,
+      final PortOutput[] output)
+      throws Exception {
+    TreeSHAPUtil.writeSummaryTables(internals, output);
   }
 
   @Override
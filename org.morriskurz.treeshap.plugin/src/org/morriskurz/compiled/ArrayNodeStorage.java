@@ -0,0 +1,88 @@
+package org.morriskurz.compiled;
+
+/**
+ * Nodes stored in heap arrays, each tree in depth-first preorder, so the left child of an inner
+ * node is the next node and only the right child is stored.
+ *
+ * @author Morris Kurz, morriskurz@gmail.com
+ */
+public final class ArrayNodeStorage implements INodeStorage {
+
+  private final int[] rightChildren;
+
+  private final int[] splitFeatures;
+
+  private final double[] thresholds;
+
+  private final byte[] splitFlags;
+
+  private final double[] values;
+
+  private final double[] covers;
+
+  /**
+   * @param rightChildren The right child of every node, -1 for leaves.
+   * @param splitFeatures The split feature of every node, -1 for leaves.
+   * @param thresholds The split threshold of every node.
+   * @param splitFlags The outcomes taking the right child, see {@link CompiledEnsemble#LESS_RIGHT}.
+   * @param values The expected prediction of every node.
+   * @param covers The amount of training data reaching every node.
+   */
+  public ArrayNodeStorage(
+      final int[] rightChildren,
+      final int[] splitFeatures,
+      final double[] thresholds,
+      final byte[] splitFlags,
+      final double[] values,
+      final double[] covers) {
+    this.rightChildren = rightChildren;
+    this.splitFeatures = splitFeatures;
+    this.thresholds = thresholds;
+    this.splitFlags = splitFlags;
+    this.values = values;
+    this.covers = covers;
+  }
+
+  @Override
+  public int getNrNodes() {
+    return rightChildren.length;
+  }
+
+  @Override
+  public int getLeftChild(final int node) {
+    return rightChildren[node] < 0 ? -1 : node + 1;
+  }
+
+  @Override
+  public int getRightChild(final int node) {
+    return rightChildren[node];
+  }
+
+  @Override
+  public int getSplitFeature(final int node) {
+    return splitFeatures[node];
+  }
+
+  @Override
+  public double getThreshold(final int node) {
+    return thresholds[node];
+  }
+
+  @Override
+  public byte getSplitFlags(final int node) {
+    return splitFlags[node];
+  }
+
+  @Override
+  public double getValue(final int node) {
+    return values[node];
+  }
+
+  @Override
+  public double getCover(final int node) {
+    return covers[node];
+  }
+
+  @Override
+  public void free() {}
+}
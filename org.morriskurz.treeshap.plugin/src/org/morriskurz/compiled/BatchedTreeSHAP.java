@@ -0,0 +1,267 @@
+package org.morriskurz.compiled;
+
+import java.util.Arrays;
+
+/**
+ * Path dependent TreeSHAP on a {@link CompiledEnsemble} for blocks of up to {@value #BATCH_SIZE}
+ * rows, walking every tree once per block instead of once per row.
+ *
+ * <p>The path dependent algorithm visits every node of a tree for every row, the rows only differ
+ * in which child of a split is hot. The features and zero fractions of the paths are therefore
+ * shared by all rows of a block, only the one fractions and the proportions are kept per row. These
+ * are interleaved, the rows of a block being adjacent for every path element, so the path
+ * arithmetic runs as loops over the rows which the JIT can vectorize, and each node is loaded once
+ * per block.
+ *
+ * <p>The working arrays are allocated once per explainer, so an explainer must not be shared
+ * between threads.
+ *
+ * @author Morris Kurz, morriskurz@gmail.com
+ */
+public final class BatchedTreeSHAP implements ICompiledExplainer {
+
+  /** The number of rows explained together. */
+  public static final int BATCH_SIZE = 64;
+
+  private static final int B = BATCH_SIZE;
+
+  private final CompiledEnsemble ensemble;
+
+  private final int[] pathFeatures;
+
+  private final double[] zeroFractions;
+
+  /** The one fraction of every path element and row, at element * B + row. */
+  private final double[] oneFractions;
+
+  /** The proportion of every path element and row, at element * B + row. */
+  private final double[] proportions;
+
+  /** The one fraction of the unwound element per depth and row, at depth * B + row. */
+  private final double[] incomingOneFractions;
+
+  /** Whether the row takes the right child of the split per depth and row. */
+  private final boolean[] goesRight;
+
+  /** The one fraction passed to a child per depth and row. */
+  private final double[] childOneFractions;
+
+  private final double[] weights = new double[B];
+
+  private final double[] nextOneProportions = new double[B];
+
+  private double[][] rows;
+
+  private int nrRows;
+
+  /** The SHAP values of every row, at row * (#players + 1) + player. */
+  private double[] phi;
+
+  public BatchedTreeSHAP(final CompiledEnsemble ensemble) {
+    this.ensemble = ensemble;
+    final int maxDepth = ensemble.getMaximumDepth();
+    final int arraySize = (maxDepth + 2) * (maxDepth + 3) / 2;
+    pathFeatures = new int[arraySize];
+    zeroFractions = new double[arraySize];
+    oneFractions = new double[arraySize * B];
+    proportions = new double[arraySize * B];
+    incomingOneFractions = new double[(maxDepth + 1) * B];
+    goesRight = new boolean[(maxDepth + 1) * B];
+    childOneFractions = new double[(maxDepth + 1) * B];
+  }
+
+  @Override
+  public double[] explain(final double[] row) {
+    return explain(new double[][] {row})[0];
+  }
+
+  /**
+   * Computes the SHAP values of rows.
+   *
+   * @param rows The feature values of the rows, NaN for missing values.
+   * @return the SHAP value of every player, followed by the bias, per row
+   */
+  public double[][] explain(final double[][] rows) {
+    final int nrPlayers = ensemble.getNrPlayers();
+    final double[][] result = new double[rows.length][];
+    for (int from = 0; from < rows.length; from += B) {
+      this.rows = Arrays.copyOfRange(rows, from, Math.min(from + B, rows.length));
+      nrRows = this.rows.length;
+      phi = new double[nrRows * (nrPlayers + 1)];
+      double bias = 0;
+      for (int tree = 0; tree < ensemble.getNrTrees(); tree++) {
+        final int root = ensemble.getRoot(tree);
+        Arrays.fill(childOneFractions, 0, B, 1);
+        recurse(root, 0, 0, 0, 1, -1);
+        bias += ensemble.getValue(root);
+      }
+      for (int row = 0; row < nrRows; row++) {
+        final double[] rowPhi =
+            Arrays.copyOfRange(phi, row * (nrPlayers + 1), (row + 1) * (nrPlayers + 1));
+        rowPhi[nrPlayers] = bias;
+        for (int i = 0; i <= nrPlayers; i++) {
+          rowPhi[i] *= ensemble.getScaling();
+        }
+        rowPhi[nrPlayers] += ensemble.getBaseOffset();
+        result[from + row] = rowPhi;
+      }
+    }
+    this.rows = null;
+    return result;
+  }
+
+  /**
+   * See {@link CompiledTreeSHAP}, the one fractions of the node are passed at the depth of the node
+   * in {@link #childOneFractions}.
+   */
+  private void recurse(
+      final int node,
+      final int depth,
+      final int parentPathIndex,
+      int pathLength,
+      final double zeroFraction,
+      final int parentPlayer) {
+    final int pathIndex = parentPathIndex + pathLength + 1;
+    System.arraycopy(pathFeatures, parentPathIndex, pathFeatures, pathIndex, pathLength + 1);
+    System.arraycopy(zeroFractions, parentPathIndex, zeroFractions, pathIndex, pathLength + 1);
+    System.arraycopy(
+        oneFractions, parentPathIndex * B, oneFractions, pathIndex * B, (pathLength + 1) * B);
+    System.arraycopy(
+        proportions, parentPathIndex * B, proportions, pathIndex * B, (pathLength + 1) * B);
+    extendPath(pathIndex, pathLength, zeroFraction, depth * B, parentPlayer);
+    if (ensemble.isLeaf(node)) {
+      final double value = ensemble.getValue(node);
+      final int stride = ensemble.getNrPlayers() + 1;
+      for (int i = 1; i <= pathLength; i++) {
+        unwoundPathSum(pathIndex, pathLength, i);
+        final int element = (pathIndex + i) * B;
+        final double zero = zeroFractions[pathIndex + i];
+        final int player = pathFeatures[pathIndex + i];
+        for (int row = 0; row < nrRows; row++) {
+          phi[row * stride + player] += weights[row] * (oneFractions[element + row] - zero) * value;
+        }
+      }
+      return;
+    }
+    final int player = ensemble.getPlayer(node);
+    final int leftChild = ensemble.getLeftChild(node);
+    final int rightChild = ensemble.getRightChild(node);
+    final double cover = ensemble.getCover(node);
+    final int level = depth * B;
+    double incomingZeroFraction = 1;
+    Arrays.fill(incomingOneFractions, level, level + B, 1);
+    // Undo a previous split on the same player, so it can be redone for this node.
+    int previous = 1;
+    while (previous <= pathLength && pathFeatures[pathIndex + previous] != player) {
+      previous++;
+    }
+    if (previous <= pathLength) {
+      incomingZeroFraction = zeroFractions[pathIndex + previous];
+      System.arraycopy(
+          oneFractions, (pathIndex + previous) * B, incomingOneFractions, level, nrRows);
+      unwindPath(pathIndex, pathLength, previous);
+      pathLength--;
+    }
+    for (int row = 0; row < nrRows; row++) {
+      goesRight[level + row] = ensemble.goesRight(node, rows[row]);
+    }
+    final int childLevel = level + B;
+    for (int row = 0; row < nrRows; row++) {
+      childOneFractions[childLevel + row] =
+          goesRight[level + row] ? 0 : incomingOneFractions[level + row];
+    }
+    recurse(
+        leftChild,
+        depth + 1,
+        pathIndex,
+        pathLength + 1,
+        ensemble.getCover(leftChild) / cover * incomingZeroFraction,
+        player);
+    for (int row = 0; row < nrRows; row++) {
+      childOneFractions[childLevel + row] =
+          goesRight[level + row] ? incomingOneFractions[level + row] : 0;
+    }
+    recurse(
+        rightChild,
+        depth + 1,
+        pathIndex,
+        pathLength + 1,
+        ensemble.getCover(rightChild) / cover * incomingZeroFraction,
+        player);
+  }
+
+  private void extendPath(
+      final int pathIndex,
+      final int pathLength,
+      final double zeroFraction,
+      final int oneFractionOffset,
+      final int player) {
+    pathFeatures[pathIndex + pathLength] = player;
+    zeroFractions[pathIndex + pathLength] = zeroFraction;
+    final int top = (pathIndex + pathLength) * B;
+    System.arraycopy(childOneFractions, oneFractionOffset, oneFractions, top, nrRows);
+    Arrays.fill(proportions, top, top + nrRows, pathLength == 0 ? 1 : 0);
+    for (int i = pathLength - 1; i >= 0; i--) {
+      final int lower = (pathIndex + i) * B;
+      final int upper = lower + B;
+      final double up = (i + 1) / (double) (pathLength + 1);
+      final double down = zeroFraction * (pathLength - i) / (pathLength + 1);
+      for (int row = 0; row < nrRows; row++) {
+        proportions[upper + row] += oneFractions[top + row] * proportions[lower + row] * up;
+        proportions[lower + row] *= down;
+      }
+    }
+  }
+
+  private void unwindPath(final int pathIndex, final int pathLength, final int index) {
+    final int element = (pathIndex + index) * B;
+    final double zeroFraction = zeroFractions[pathIndex + index];
+    System.arraycopy(proportions, (pathIndex + pathLength) * B, nextOneProportions, 0, nrRows);
+    for (int i = pathLength - 1; i >= 0; i--) {
+      final int lower = (pathIndex + i) * B;
+      final double oneScale = (pathLength + 1) / (double) (i + 1);
+      final double zeroScale = zeroFraction * (pathLength - i) / (pathLength + 1);
+      final double zeroOnlyScale = (pathLength + 1) / (zeroFraction * (pathLength - i));
+      for (int row = 0; row < nrRows; row++) {
+        final double oneFraction = oneFractions[element + row];
+        if (oneFraction != 0) {
+          final double tmp = proportions[lower + row];
+          proportions[lower + row] = nextOneProportions[row] * oneScale / oneFraction;
+          nextOneProportions[row] = tmp - proportions[lower + row] * zeroScale;
+        } else {
+          proportions[lower + row] *= zeroOnlyScale;
+        }
+      }
+    }
+    for (int i = index; i < pathLength; i++) {
+      pathFeatures[pathIndex + i] = pathFeatures[pathIndex + i + 1];
+      zeroFractions[pathIndex + i] = zeroFractions[pathIndex + i + 1];
+    }
+    System.arraycopy(oneFractions, element + B, oneFractions, element, (pathLength - index) * B);
+  }
+
+  /** Computes the weights of the path element for every row into {@link #weights}. */
+  private void unwoundPathSum(final int pathIndex, final int pathLength, final int index) {
+    final int element = (pathIndex + index) * B;
+    final double zeroFraction = zeroFractions[pathIndex + index];
+    System.arraycopy(proportions, (pathIndex + pathLength) * B, nextOneProportions, 0, nrRows);
+    Arrays.fill(weights, 0, nrRows, 0);
+    for (int i = pathLength - 1; i >= 0; i--) {
+      final int lower = (pathIndex + i) * B;
+      final double zeroScale = zeroFraction * (pathLength - i);
+      for (int row = 0; row < nrRows; row++) {
+        final double oneFraction = oneFractions[element + row];
+        if (oneFraction != 0) {
+          final double tmp = nextOneProportions[row] / ((i + 1) * oneFraction);
+          weights[row] += tmp;
+          nextOneProportions[row] = proportions[lower + row] - tmp * zeroScale;
+        } else {
+          weights[row] += proportions[lower + row] / zeroScale;
+        }
+      }
+    }
+    for (int row = 0; row < nrRows; row++) {
+      weights[row] *= pathLength + 1;
+    }
+  }
+}
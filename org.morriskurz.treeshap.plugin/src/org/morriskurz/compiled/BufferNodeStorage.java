@@ -0,0 +1,100 @@
+package org.morriskurz.compiled;
+
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * Nodes stored in byte buffers, one buffer per node field, e.g. the sections of a memory mapped
+ * file, see {@link CompiledEnsembleSerializer}. The buffers are read in place, nothing is copied to
+ * the heap.
+ *
+ * @author Morris Kurz, morriskurz@gmail.com
+ */
+public final class BufferNodeStorage implements INodeStorage {
+
+  private final IntBuffer leftChildren;
+
+  private final IntBuffer rightChildren;
+
+  private final IntBuffer splitFeatures;
+
+  private final DoubleBuffer thresholds;
+
+  private final ByteBuffer splitFlags;
+
+  private final DoubleBuffer values;
+
+  private final DoubleBuffer covers;
+
+  private final ByteBuffer[] buffers;
+
+  /** The buffers must have the byte order they were written in. */
+  public BufferNodeStorage(
+      final ByteBuffer leftChildren,
+      final ByteBuffer rightChildren,
+      final ByteBuffer splitFeatures,
+      final ByteBuffer thresholds,
+      final ByteBuffer splitFlags,
+      final ByteBuffer values,
+      final ByteBuffer covers) {
+    this.leftChildren = leftChildren.asIntBuffer();
+    this.rightChildren = rightChildren.asIntBuffer();
+    this.splitFeatures = splitFeatures.asIntBuffer();
+    this.thresholds = thresholds.asDoubleBuffer();
+    this.splitFlags = splitFlags;
+    this.values = values.asDoubleBuffer();
+    this.covers = covers.asDoubleBuffer();
+    buffers =
+        new ByteBuffer[] {
+          leftChildren, rightChildren, splitFeatures, thresholds, splitFlags, values, covers
+        };
+  }
+
+  @Override
+  public void free() {
+    for (final ByteBuffer buffer : buffers) {
+      DirectBuffers.free(buffer);
+    }
+  }
+
+  @Override
+  public int getNrNodes() {
+    return rightChildren.limit();
+  }
+
+  @Override
+  public int getLeftChild(final int node) {
+    return leftChildren.get(node);
+  }
+
+  @Override
+  public int getRightChild(final int node) {
+    return rightChildren.get(node);
+  }
+
+  @Override
+  public int getSplitFeature(final int node) {
+    return splitFeatures.get(node);
+  }
+
+  @Override
+  public double getThreshold(final int node) {
+    return thresholds.get(node);
+  }
+
+  @Override
+  public byte getSplitFlags(final int node) {
+    return splitFlags.get(node);
+  }
+
+  @Override
+  public double getValue(final int node) {
+    return values.get(node);
+  }
+
+  @Override
+  public double getCover(final int node) {
+    return covers.get(node);
+  }
+}
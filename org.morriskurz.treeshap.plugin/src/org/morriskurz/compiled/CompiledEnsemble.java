@@ -0,0 +1,235 @@
+package org.morriskurz.compiled;
+
+/**
+ * Tree ensemble compiled into flat arrays for the SHAP computation.
+ *
+ * <p>The nodes of all trees are stored contiguously in a {@link INodeStorage}. Every split compares
+ * a numeric feature with a threshold; for each of the outcomes less, equal, greater and missing,
+ * the split flags tell whether the row takes the right child. The node values are the expected
+ * predictions of the nodes, the covers the amount of training data reaching them.
+ *
+ * @author Morris Kurz, morriskurz@gmail.com
+ */
+public final class CompiledEnsemble {
+
+  /** The row takes the right child if its value is less than the threshold. */
+  public static final byte LESS_RIGHT = 1;
+
+  /** The row takes the right child if its value equals the threshold. */
+  public static final byte EQUAL_RIGHT = 2;
+
+  /** The row takes the right child if its value is greater than the threshold. */
+  public static final byte GREATER_RIGHT = 4;
+
+  /** The row takes the right child if its value is missing. */
+  public static final byte MISSING_RIGHT = 8;
+
+  private final int[] treeOffsets;
+
+  private final INodeStorage nodes;
+
+  private final int[] playerOfFeature;
+
+  private final int nrPlayers;
+
+  private final double scaling;
+
+  private final double baseOffset;
+
+  private final int maxDepth;
+
+  /**
+   * @param treeOffsets The index of the root of every tree, followed by the number of nodes.
+   * @param nodes The nodes of all trees.
+   * @param playerOfFeature The player every feature belongs to.
+   * @param nrPlayers The number of players.
+   * @param scaling The factor applied to the summed tree outputs, e.g. 1 / #trees for forests.
+   * @param baseOffset The output of the ensemble not stored in the trees, e.g. the initial value of
+   *     boosted trees.
+   * @param maxDepth The maximum number of levels of a tree.
+   */
+  public CompiledEnsemble(
+      final int[] treeOffsets,
+      final INodeStorage nodes,
+      final int[] playerOfFeature,
+      final int nrPlayers,
+      final double scaling,
+      final double baseOffset,
+      final int maxDepth) {
+    this.treeOffsets = treeOffsets;
+    this.nodes = nodes;
+    this.playerOfFeature = playerOfFeature;
+    this.nrPlayers = nrPlayers;
+    this.scaling = scaling;
+    this.baseOffset = baseOffset;
+    this.maxDepth = maxDepth;
+  }
+
+  /**
+   * Turns the summed contributions of the trees into the SHAP values of the ensemble by applying
+   * the scaling and adding the base offset to the bias.
+   *
+   * @param phi The summed SHAP values of every player, followed by the summed expected values.
+   */
+  public void finishExplanation(final double[] phi) {
+    for (int i = 0; i <= nrPlayers; i++) {
+      phi[i] *= scaling;
+    }
+    phi[nrPlayers] += baseOffset;
+  }
+
+  /**
+   * Finds the child the row takes at an inner node.
+   *
+   * @param node An inner node.
+   * @param row The feature values of the row, NaN for missing values.
+   * @return the index of the child node
+   */
+  public int getChild(final int node, final double[] row) {
+    return goesRight(node, row) ? nodes.getRightChild(node) : nodes.getLeftChild(node);
+  }
+
+  public double getBaseOffset() {
+    return baseOffset;
+  }
+
+  public double getCover(final int node) {
+    return nodes.getCover(node);
+  }
+
+  public int getLeftChild(final int node) {
+    return nodes.getLeftChild(node);
+  }
+
+  public int getMaximumDepth() {
+    return maxDepth;
+  }
+
+  public int getNrFeatures() {
+    return playerOfFeature.length;
+  }
+
+  public int getNrNodes() {
+    return treeOffsets[treeOffsets.length - 1];
+  }
+
+  public int getNrPlayers() {
+    return nrPlayers;
+  }
+
+  public int getNrTrees() {
+    return treeOffsets.length - 1;
+  }
+
+  /** @return the player of the split feature of an inner node. */
+  public int getPlayer(final int node) {
+    return playerOfFeature[nodes.getSplitFeature(node)];
+  }
+
+  public int getRightChild(final int node) {
+    return nodes.getRightChild(node);
+  }
+
+  public int getRoot(final int tree) {
+    return treeOffsets[tree];
+  }
+
+  public INodeStorage getNodes() {
+    return nodes;
+  }
+
+  public double getScaling() {
+    return scaling;
+  }
+
+  public int getSplitFeature(final int node) {
+    return nodes.getSplitFeature(node);
+  }
+
+  public byte getSplitFlags(final int node) {
+    return nodes.getSplitFlags(node);
+  }
+
+  public double getThreshold(final int node) {
+    return nodes.getThreshold(node);
+  }
+
+  public double getValue(final int node) {
+    return nodes.getValue(node);
+  }
+
+  /**
+   * @param node An inner node.
+   * @param row The feature values of the row, NaN for missing values.
+   * @return whether the row takes the right child
+   */
+  public boolean goesRight(final int node, final double[] row) {
+    return (nodes.getSplitFlags(node)
+            & getOutcome(row[nodes.getSplitFeature(node)], nodes.getThreshold(node)))
+        != 0;
+  }
+
+  public boolean isLeaf(final int node) {
+    return nodes.getRightChild(node) < 0;
+  }
+
+  /**
+   * @param row The feature values of the row, NaN for missing values.
+   * @return the output of the ensemble for the row, which the SHAP values and the bias add up to
+   */
+  public double predict(final double[] row) {
+    double sum = 0;
+    for (int tree = 0; tree < getNrTrees(); tree++) {
+      int node = treeOffsets[tree];
+      while (!isLeaf(node)) {
+        node = getChild(node, row);
+      }
+      sum += nodes.getValue(node);
+    }
+    return sum * scaling + baseOffset;
+  }
+
+  /**
+   * @return the smallest and the largest output of the ensemble, bounded by the smallest and the
+   *     largest leaf of every tree
+   */
+  public double[] getOutputBounds() {
+    double lower = 0;
+    double upper = 0;
+    for (int tree = 0; tree < getNrTrees(); tree++) {
+      double treeLower = Double.POSITIVE_INFINITY;
+      double treeUpper = Double.NEGATIVE_INFINITY;
+      for (int node = treeOffsets[tree]; node < treeOffsets[tree + 1]; node++) {
+        if (isLeaf(node)) {
+          treeLower = Math.min(treeLower, nodes.getValue(node));
+          treeUpper = Math.max(treeUpper, nodes.getValue(node));
+        }
+      }
+      lower += treeLower;
+      upper += treeUpper;
+    }
+    // A negative scaling swaps the bounds.
+    final double scaledLower = lower * scaling + baseOffset;
+    final double scaledUpper = upper * scaling + baseOffset;
+    return new double[] {Math.min(scaledLower, scaledUpper), Math.max(scaledLower, scaledUpper)};
+  }
+
+  /** @return the flag of the outcome of comparing the value with the threshold. */
+  static byte getOutcome(final double value, final double threshold) {
+    if (Double.isNaN(value)) {
+      return MISSING_RIGHT;
+    }
+    if (value < threshold) {
+      return LESS_RIGHT;
+    }
+    return value == threshold ? EQUAL_RIGHT : GREATER_RIGHT;
+  }
+
+  int[] getPlayerOfFeature() {
+    return playerOfFeature;
+  }
+
+  int[] getTreeOffsets() {
+    return treeOffsets;
+  }
+}
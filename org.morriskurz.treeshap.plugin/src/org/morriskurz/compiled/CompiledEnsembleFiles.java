@@ -0,0 +1,75 @@
+package org.morriskurz.compiled;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Writes compiled ensembles to the files of KNIME file stores, see {@link
+ * CompiledEnsembleSerializer}. The hash of the content of a file identifies its ensemble, so all
+ * explainers with the same ensemble share one mapping, see {@link OffHeapEnsembleCache}.
+ *
+ * @author Morris Kurz, morriskurz@gmail.com
+ */
+public final class CompiledEnsembleFiles {
+
+  private CompiledEnsembleFiles() {}
+
+  /**
+   * @param ensemble The compiled ensemble.
+   * @param file The file of a file store, created or replaced.
+   * @return the hex SHA-256 hash of the content of the file
+   * @throws IOException if the file cannot be written
+   */
+  public static String write(final CompiledEnsemble ensemble, final Path file)
+      throws IOException {
+    final MessageDigest digest = createDigest();
+    try (final FileChannel channel =
+        FileChannel.open(
+            file,
+            StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING)) {
+      CompiledEnsembleSerializer.write(
+          ensemble,
+          new WritableByteChannel() {
+            @Override
+            public boolean isOpen() {
+              return channel.isOpen();
+            }
+
+            @Override
+            public void close() throws IOException {
+              channel.close();
+            }
+
+            @Override
+            public int write(final ByteBuffer src) throws IOException {
+              final ByteBuffer written = src.duplicate();
+              final int bytes = channel.write(src);
+              written.limit(written.position() + bytes);
+              digest.update(written);
+              return bytes;
+            }
+          });
+    }
+    final StringBuilder hash = new StringBuilder();
+    for (final byte b : digest.digest()) {
+      hash.append(String.format("%02x", b));
+    }
+    return hash.toString();
+  }
+
+  private static MessageDigest createDigest() throws IOException {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (final NoSuchAlgorithmException e) {
+      throw new IOException(e);
+    }
+  }
+}
@@ -0,0 +1,328 @@
+package org.morriskurz.compiled;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Compact, versioned binary format of a {@link CompiledEnsemble}, such that a saved explainer is
+ * loaded without compiling the model again.
+ *
+ * <p>The format is a header of {@value #HEADER_SIZE} bytes followed by one section per array: the
+ * tree offsets, the player of every feature and then the nodes, either with one section per node
+ * field or, for a {@link QuantizedNodeStorage}, the root values, the encoded nodes and the
+ * thresholds not representable as float. All values
+ * are little endian and every section starts at a multiple of 8 bytes, so a file can be memory
+ * mapped with {@link #map(Path)} and the nodes are read from the mapped sections in place.
+ * Processes mapping the same file share its pages.
+ *
+ * @author Morris Kurz, morriskurz@gmail.com
+ */
+public final class CompiledEnsembleSerializer {
+
+  /** Reads the sections of the format, given their offset and length. */
+  private interface SectionSource {
+    ByteBuffer get(long offset, long length) throws IOException;
+  }
+
+  private static final int MAGIC = 0x54534845;
+
+  private static final int VERSION = 3;
+
+  /** One section per node field, in the order of the section constants. */
+  private static final int ENCODING_SECTIONS = 0;
+
+  /** The root values and the nodes of a {@link QuantizedNodeStorage}. */
+  private static final int ENCODING_COMPACT = 1;
+
+  private static final int HEADER_SIZE = 64;
+
+  private static final int TREE_OFFSETS = 0;
+  private static final int PLAYER_OF_FEATURE = 1;
+  private static final int LEFT_CHILDREN = 2;
+  private static final int RIGHT_CHILDREN = 3;
+  private static final int SPLIT_FEATURES = 4;
+  private static final int THRESHOLDS = 5;
+  private static final int VALUES = 6;
+  private static final int COVERS = 7;
+  private static final int SPLIT_FLAGS = 8;
+  private static final int NR_SECTIONS = 9;
+
+  private static final int ROOT_VALUES = 2;
+  private static final int COMPACT_NODES = 3;
+  private static final int EXACT_THRESHOLDS = 4;
+  private static final int NR_COMPACT_SECTIONS = 5;
+
+  private static final ByteOrder ORDER = ByteOrder.LITTLE_ENDIAN;
+
+  private CompiledEnsembleSerializer() {}
+
+  /** Writes the ensemble, the channel is not closed. */
+  public static void write(final CompiledEnsemble ensemble, final WritableByteChannel out)
+      throws IOException {
+    final int nrTrees = ensemble.getNrTrees();
+    final int nrNodes = ensemble.getNrNodes();
+    final int nrFeatures = ensemble.getNrFeatures();
+    final INodeStorage nodes = ensemble.getNodes();
+    final boolean isCompact = nodes instanceof QuantizedNodeStorage;
+    final ByteBuffer buffer = ByteBuffer.allocate(1 << 16).order(ORDER);
+    buffer.putInt(MAGIC);
+    buffer.putInt(VERSION);
+    buffer.putInt(isCompact ? ENCODING_COMPACT : ENCODING_SECTIONS);
+    buffer.putInt(nrTrees);
+    buffer.putInt(nrNodes);
+    buffer.putInt(nrFeatures);
+    buffer.putInt(ensemble.getNrPlayers());
+    buffer.putInt(ensemble.getMaximumDepth());
+    buffer.putDouble(ensemble.getScaling());
+    buffer.putDouble(ensemble.getBaseOffset());
+    buffer.putInt(isCompact ? ((QuantizedNodeStorage) nodes).getNrExactThresholds() : 0);
+    pad(buffer, out, HEADER_SIZE);
+    for (final int offset : ensemble.getTreeOffsets()) {
+      ensureRemaining(buffer, out, 4).putInt(offset);
+    }
+    pad(buffer, out, 8);
+    for (final int player : ensemble.getPlayerOfFeature()) {
+      ensureRemaining(buffer, out, 4).putInt(player);
+    }
+    pad(buffer, out, 8);
+    if (isCompact) {
+      final QuantizedNodeStorage compactNodes = (QuantizedNodeStorage) nodes;
+      for (int tree = 0; tree < nrTrees; tree++) {
+        ensureRemaining(buffer, out, 8).putDouble(compactNodes.getRootValue(tree));
+      }
+      for (int node = 0; node < nrNodes; node++) {
+        compactNodes.copyNode(
+            node, ensureRemaining(buffer, out, QuantizedNodeStorage.NODE_SIZE));
+      }
+      pad(buffer, out, 8);
+      for (int i = 0; i < compactNodes.getNrExactThresholds(); i++) {
+        ensureRemaining(buffer, out, 8).putDouble(compactNodes.getExactThreshold(i));
+      }
+      flush(buffer, out);
+      return;
+    }
+    for (int section = LEFT_CHILDREN; section < NR_SECTIONS; section++) {
+      for (int node = 0; node < nrNodes; node++) {
+        switch (section) {
+          case LEFT_CHILDREN:
+            ensureRemaining(buffer, out, 4).putInt(nodes.getLeftChild(node));
+            break;
+          case RIGHT_CHILDREN:
+            ensureRemaining(buffer, out, 4).putInt(nodes.getRightChild(node));
+            break;
+          case SPLIT_FEATURES:
+            ensureRemaining(buffer, out, 4).putInt(nodes.getSplitFeature(node));
+            break;
+          case THRESHOLDS:
+            ensureRemaining(buffer, out, 8).putDouble(nodes.getThreshold(node));
+            break;
+          case VALUES:
+            ensureRemaining(buffer, out, 8).putDouble(nodes.getValue(node));
+            break;
+          case COVERS:
+            ensureRemaining(buffer, out, 8).putDouble(nodes.getCover(node));
+            break;
+          default:
+            ensureRemaining(buffer, out, 1).put(nodes.getSplitFlags(node));
+        }
+      }
+      pad(buffer, out, 8);
+    }
+    flush(buffer, out);
+  }
+
+  /**
+   * Reads an ensemble from a stream, the nodes are copied into heap buffers. The channel is not
+   * closed.
+   */
+  public static CompiledEnsemble read(final ReadableByteChannel in) throws IOException {
+    final ByteBuffer header = readFully(in, HEADER_SIZE);
+    return read(
+        header,
+        new SectionSource() {
+          private long position = HEADER_SIZE;
+
+          @Override
+          public ByteBuffer get(final long offset, final long length) throws IOException {
+            // The sections are read in the order they are written, only the padding is skipped.
+            readFully(in, (int) (offset - position));
+            position = offset + length;
+            return readFully(in, checkedLength(length));
+          }
+        });
+  }
+
+  /**
+   * Maps a file written by {@link #write(CompiledEnsemble, WritableByteChannel)} into memory. The
+   * nodes are read from the mapped file, so loading is independent of the size of the ensemble. The
+   * mapping stays valid after the channel is closed.
+   */
+  public static CompiledEnsemble map(final Path file) throws IOException {
+    try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      final long size = channel.size();
+      if (size < HEADER_SIZE) {
+        throw new EOFException("The compiled ensemble is truncated.");
+      }
+      final ByteBuffer header = channel.map(MapMode.READ_ONLY, 0, HEADER_SIZE);
+      return read(
+          header,
+          new SectionSource() {
+            @Override
+            public ByteBuffer get(final long offset, final long length) throws IOException {
+              if (offset + length > size) {
+                throw new EOFException("The compiled ensemble is truncated.");
+              }
+              // Mapped per section, since a single buffer cannot exceed 2 GB.
+              return channel.map(MapMode.READ_ONLY, offset, checkedLength(length));
+            }
+          });
+    }
+  }
+
+  private static CompiledEnsemble read(final ByteBuffer header, final SectionSource source)
+      throws IOException {
+    header.order(ORDER);
+    if (header.getInt() != MAGIC) {
+      throw new IOException("The stream does not hold a compiled TreeSHAP ensemble.");
+    }
+    final int version = header.getInt();
+    if (version != VERSION) {
+      throw new IOException("Unsupported version " + version + " of the compiled ensemble.");
+    }
+    final int encoding = header.getInt();
+    if (encoding != ENCODING_SECTIONS && encoding != ENCODING_COMPACT) {
+      throw new IOException("Unsupported node encoding " + encoding + " of the compiled ensemble.");
+    }
+    final int nrTrees = header.getInt();
+    final int nrNodes = header.getInt();
+    final int nrFeatures = header.getInt();
+    final int nrPlayers = header.getInt();
+    final int maxDepth = header.getInt();
+    final double scaling = header.getDouble();
+    final double baseOffset = header.getDouble();
+    final int nrExactThresholds = header.getInt();
+    final long[] lengths =
+        getSectionLengths(encoding, nrTrees, nrNodes, nrFeatures, nrExactThresholds);
+    final ByteBuffer[] sections = new ByteBuffer[lengths.length];
+    long offset = HEADER_SIZE;
+    for (int section = 0; section < lengths.length; section++) {
+      sections[section] = source.get(offset, lengths[section]).order(ORDER);
+      offset = align(offset + lengths[section]);
+    }
+    final int[] treeOffsets = new int[nrTrees + 1];
+    sections[TREE_OFFSETS].asIntBuffer().get(treeOffsets);
+    final int[] playerOfFeature = new int[nrFeatures];
+    sections[PLAYER_OF_FEATURE].asIntBuffer().get(playerOfFeature);
+    final INodeStorage nodes;
+    if (encoding == ENCODING_COMPACT) {
+      nodes =
+          new QuantizedNodeStorage(
+              sections[COMPACT_NODES],
+              treeOffsets,
+              sections[ROOT_VALUES],
+              sections[EXACT_THRESHOLDS]);
+    } else {
+      nodes =
+          new BufferNodeStorage(
+              sections[LEFT_CHILDREN],
+              sections[RIGHT_CHILDREN],
+              sections[SPLIT_FEATURES],
+              sections[THRESHOLDS],
+              sections[SPLIT_FLAGS],
+              sections[VALUES],
+              sections[COVERS]);
+    }
+    return new CompiledEnsemble(
+        treeOffsets,
+        nodes,
+        playerOfFeature,
+        nrPlayers,
+        scaling,
+        baseOffset,
+        maxDepth);
+  }
+
+  private static long[] getSectionLengths(
+      final int encoding,
+      final int nrTrees,
+      final int nrNodes,
+      final int nrFeatures,
+      final int nrExactThresholds) {
+    final long[] lengths =
+        new long[encoding == ENCODING_COMPACT ? NR_COMPACT_SECTIONS : NR_SECTIONS];
+    lengths[TREE_OFFSETS] = 4L * (nrTrees + 1);
+    lengths[PLAYER_OF_FEATURE] = 4L * nrFeatures;
+    if (encoding == ENCODING_COMPACT) {
+      lengths[ROOT_VALUES] = 8L * nrTrees;
+      lengths[COMPACT_NODES] = (long) QuantizedNodeStorage.NODE_SIZE * nrNodes;
+      lengths[EXACT_THRESHOLDS] = 8L * nrExactThresholds;
+      return lengths;
+    }
+    lengths[LEFT_CHILDREN] = 4L * nrNodes;
+    lengths[RIGHT_CHILDREN] = 4L * nrNodes;
+    lengths[SPLIT_FEATURES] = 4L * nrNodes;
+    lengths[THRESHOLDS] = 8L * nrNodes;
+    lengths[VALUES] = 8L * nrNodes;
+    lengths[COVERS] = 8L * nrNodes;
+    lengths[SPLIT_FLAGS] = nrNodes;
+    return lengths;
+  }
+
+  private static long align(final long offset) {
+    return (offset + 7) & ~7L;
+  }
+
+  private static int checkedLength(final long length) throws IOException {
+    if (length > Integer.MAX_VALUE) {
+      throw new IOException("A section of the compiled ensemble exceeds 2 GB.");
+    }
+    return (int) length;
+  }
+
+  private static ByteBuffer readFully(final ReadableByteChannel in, final int length)
+      throws IOException {
+    final ByteBuffer buffer = ByteBuffer.allocate(length);
+    while (buffer.hasRemaining()) {
+      if (in.read(buffer) < 0) {
+        throw new EOFException("The compiled ensemble is truncated.");
+      }
+    }
+    buffer.flip();
+    return buffer;
+  }
+
+  private static ByteBuffer ensureRemaining(
+      final ByteBuffer buffer, final WritableByteChannel out, final int bytes) throws IOException {
+    if (buffer.remaining() < bytes) {
+      flush(buffer, out);
+    }
+    return buffer;
+  }
+
+  /** Pads the written bytes with zeros to a multiple of the alignment. */
+  private static void pad(
+      final ByteBuffer buffer, final WritableByteChannel out, final int alignment)
+      throws IOException {
+    // The buffer size is a multiple of every alignment, so the position within it suffices.
+    while (buffer.position() % alignment != 0) {
+      ensureRemaining(buffer, out, 1).put((byte) 0);
+    }
+  }
+
+  private static void flush(final ByteBuffer buffer, final WritableByteChannel out)
+      throws IOException {
+    buffer.flip();
+    while (buffer.hasRemaining()) {
+      out.write(buffer);
+    }
+    buffer.clear();
+  }
+}
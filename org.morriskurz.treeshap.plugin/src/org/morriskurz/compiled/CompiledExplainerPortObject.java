@@ -0,0 +1,135 @@
+package org.morriskurz.compiled;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.zip.ZipEntry;
+
+import javax.swing.JComponent;
+
+import org.knime.core.data.filestore.FileStore;
+import org.knime.core.data.filestore.FileStorePortObject;
+import org.knime.core.node.CanceledExecutionException;
+import org.knime.core.node.ExecutionMonitor;
+import org.knime.core.node.port.PortObjectSpec;
+import org.knime.core.node.port.PortObjectZipInputStream;
+import org.knime.core.node.port.PortObjectZipOutputStream;
+import org.knime.core.node.port.PortType;
+import org.knime.core.node.port.PortTypeRegistry;
+import org.morriskurz.TreeSHAPNodePlugin;
+import org.morriskurz.compiled.OffHeapEnsembleCache.Lease;
+
+/**
+ * Port object carrying a compiled TreeSHAP explainer. The explainer is compiled once from the tree
+ * ensemble and can be applied in many branches and loop iterations without compiling it again.
+ *
+ * <p>The ensemble is kept off the heap in the file of a KNIME file store written by {@link
+ * CompiledEnsembleFiles}, which is mapped into memory on use, see {@link OffHeapEnsembleCache}.
+ * KNIME owns the file: it is saved with the workflow and deleted when the node is reset or the
+ * workflow is closed.
+ *
+ * @author Morris Kurz, morriskurz@gmail.com
+ */
+public final class CompiledExplainerPortObject extends FileStorePortObject {
+
+  /** Serializer of the port object, the file store is saved by the framework. */
+  public static final class Serializer extends PortObjectSerializer<CompiledExplainerPortObject> {
+
+    @Override
+    public void savePortObject(
+        final CompiledExplainerPortObject portObject,
+        final PortObjectZipOutputStream out,
+        final ExecutionMonitor exec)
+        throws IOException, CanceledExecutionException {
+      out.putNextEntry(new ZipEntry(CONTENT_HASH_ENTRY));
+      // The zip stream is closed by the framework.
+      out.write(portObject.contentHash.getBytes(StandardCharsets.US_ASCII));
+      out.closeEntry();
+    }
+
+    @Override
+    public CompiledExplainerPortObject loadPortObject(
+        final PortObjectZipInputStream in, final PortObjectSpec spec, final ExecutionMonitor exec)
+        throws IOException, CanceledExecutionException {
+      final ZipEntry entry = in.getNextEntry();
+      if (entry == null || !CONTENT_HASH_ENTRY.equals(entry.getName())) {
+        throw new IOException("Expected zip entry " + CONTENT_HASH_ENTRY + ", got " + entry);
+      }
+      final ByteArrayOutputStream contentHash = new ByteArrayOutputStream();
+      final byte[] buffer = new byte[128];
+      int length;
+      while ((length = in.read(buffer)) >= 0) {
+        contentHash.write(buffer, 0, length);
+      }
+      return new CompiledExplainerPortObject(
+          (CompiledExplainerPortObjectSpec) spec,
+          new String(contentHash.toByteArray(), StandardCharsets.US_ASCII));
+    }
+  }
+
+  /** The port type of compiled explainers. */
+  public static final PortType TYPE =
+      PortTypeRegistry.getInstance().getPortType(CompiledExplainerPortObject.class);
+
+  private static final String CONTENT_HASH_ENTRY = "contentHash.txt";
+
+  private final CompiledExplainerPortObjectSpec spec;
+
+  private final String contentHash;
+
+  /**
+   * @param spec The spec of the explainer.
+   * @param fileStore The file store whose file holds the compiled ensemble.
+   * @param contentHash The hash of the content of the file, see {@link CompiledEnsembleFiles}.
+   */
+  public CompiledExplainerPortObject(
+      final CompiledExplainerPortObjectSpec spec,
+      final FileStore fileStore,
+      final String contentHash) {
+    super(Collections.singletonList(fileStore));
+    this.spec = spec;
+    this.contentHash = contentHash;
+  }
+
+  /** Loading constructor, the file store is restored by the framework. */
+  private CompiledExplainerPortObject(
+      final CompiledExplainerPortObjectSpec spec, final String contentHash) {
+    this.spec = spec;
+    this.contentHash = contentHash;
+  }
+
+  /**
+   * Pins the compiled ensemble in memory, the lease must be closed after use.
+   *
+   * @return the lease of the ensemble
+   * @throws IOException if the ensemble cannot be mapped
+   */
+  public Lease acquireEnsemble() throws IOException {
+    return TreeSHAPNodePlugin.getOffHeapEnsembleCache()
+        .acquire(contentHash, getFileStore(0).getFile().toPath());
+  }
+
+  @Override
+  public CompiledExplainerPortObjectSpec getSpec() {
+    return spec;
+  }
+
+  @Override
+  public String getSummary() {
+    try (final Lease lease = acquireEnsemble()) {
+      return "Compiled TreeSHAP explainer with "
+          + lease.getEnsemble().getNrTrees()
+          + " trees and "
+          + lease.getEnsemble().getNrNodes()
+          + " nodes";
+    } catch (final IOException e) {
+      return "Compiled TreeSHAP explainer";
+    }
+  }
+
+  @Override
+  public JComponent[] getViews() {
+    return new JComponent[0];
+  }
+}
@@ -0,0 +1,133 @@
+package org.morriskurz.compiled;
+
+import javax.swing.JComponent;
+
+import org.knime.core.data.DataCell;
+import org.knime.core.data.DataRow;
+import org.knime.core.data.DataTableSpec;
+import org.knime.core.data.DoubleValue;
+import org.knime.core.node.InvalidSettingsException;
+import org.knime.core.node.ModelContentRO;
+import org.knime.core.node.ModelContentWO;
+import org.knime.core.node.port.AbstractSimplePortObjectSpec;
+
+/**
+ * Spec of a {@link CompiledExplainerPortObject}, holding the features of the model and the players
+ * explained.
+ *
+ * @author Morris Kurz, morriskurz@gmail.com
+ */
+public final class CompiledExplainerPortObjectSpec extends AbstractSimplePortObjectSpec {
+
+  /** Serializer of the spec. */
+  public static final class Serializer
+      extends AbstractSimplePortObjectSpecSerializer<CompiledExplainerPortObjectSpec> {}
+
+  private static final String CFG_FEATURE_NAMES = "featureNames";
+
+  private static final String CFG_PLAYER_NAMES = "playerNames";
+
+  private static final String CFG_TARGET_NAME = "targetName";
+
+  private static final String CFG_POSITIVE_CLASS = "positiveClass";
+
+  private String[] featureNames;
+
+  private String[] playerNames;
+
+  private String targetName;
+
+  private String positiveClass;
+
+  /** Framework constructor, the spec is loaded afterwards. */
+  public CompiledExplainerPortObjectSpec() {}
+
+  /**
+   * @param featureNames The columns the model was learned on, in the order of the model.
+   * @param playerNames The names of the explained players, i.e. the features or feature groups.
+   * @param targetName The name of the target column.
+   * @param positiveClass The explained class, null for regression models.
+   */
+  public CompiledExplainerPortObjectSpec(
+      final String[] featureNames,
+      final String[] playerNames,
+      final String targetName,
+      final String positiveClass) {
+    this.featureNames = featureNames;
+    this.playerNames = playerNames;
+    this.targetName = targetName;
+    this.positiveClass = positiveClass;
+  }
+
+  /**
+   * @param dataSpec The spec of the data to explain.
+   * @return the column of every feature in the data
+   * @throws InvalidSettingsException if the data misses a feature column
+   */
+  public int[] findFeatureColumns(final DataTableSpec dataSpec) throws InvalidSettingsException {
+    final int[] columns = new int[featureNames.length];
+    for (int i = 0; i < featureNames.length; i++) {
+      columns[i] = dataSpec.findColumnIndex(featureNames[i]);
+      if (columns[i] < 0) {
+        throw new InvalidSettingsException(
+            "The input table is missing the feature column \"" + featureNames[i] + "\".");
+      }
+    }
+    return columns;
+  }
+
+  /**
+   * @param row A row of the data to explain.
+   * @param featureColumns The column of every feature, see {@link #findFeatureColumns}.
+   * @return the value of every feature of the row, NaN for missing and non-numeric cells
+   */
+  public static double[] getFeatures(final DataRow row, final int[] featureColumns) {
+    final double[] features = new double[featureColumns.length];
+    for (int i = 0; i < featureColumns.length; i++) {
+      final DataCell cell = row.getCell(featureColumns[i]);
+      features[i] =
+          !cell.isMissing() && cell instanceof DoubleValue
+              ? ((DoubleValue) cell).getDoubleValue()
+              : Double.NaN;
+    }
+    return features;
+  }
+
+  public String[] getFeatureNames() {
+    return featureNames;
+  }
+
+  public String[] getPlayerNames() {
+    return playerNames;
+  }
+
+  /** @return the explained class, null for regression models. */
+  public String getPositiveClass() {
+    return positiveClass;
+  }
+
+  public String getTargetName() {
+    return targetName;
+  }
+
+  @Override
+  public JComponent[] getViews() {
+    return new JComponent[0];
+  }
+
+  @Override
+  protected void load(final ModelContentRO model) throws InvalidSettingsException {
+    featureNames = model.getStringArray(CFG_FEATURE_NAMES);
+    playerNames = model.getStringArray(CFG_PLAYER_NAMES);
+    targetName = model.getString(CFG_TARGET_NAME);
+    positiveClass = model.getString(CFG_POSITIVE_CLASS, null);
+  }
+
+  @Override
+  protected void save(final ModelContentWO model) {
+    model.addStringArray(CFG_FEATURE_NAMES, featureNames);
+    model.addStringArray(CFG_PLAYER_NAMES, playerNames);
+    model.addString(CFG_TARGET_NAME, targetName);
+    model.addString(CFG_POSITIVE_CLASS, positiveClass);
+  }
+}
@@ -0,0 +1,192 @@
+package org.morriskurz.compiled;
+
+/**
+ * Path dependent TreeSHAP on a {@link CompiledEnsemble}, see <a href=
+ * "https://github.com/slundberg/shap/blob/master/shap/tree_shap.h">github.com/shap</a>.
+ *
+ * <p>The unique paths are kept in primitive arrays which are allocated once per explainer, so an
+ * explainer must not be shared between threads.
+ *
+ * @author Morris Kurz, morriskurz@gmail.com
+ */
+public final class CompiledTreeSHAP implements ICompiledExplainer {
+
+  private final CompiledEnsemble ensemble;
+
+  private final int[] pathFeatures;
+
+  private final double[] zeroFractions;
+
+  private final double[] oneFractions;
+
+  private final double[] proportions;
+
+  public CompiledTreeSHAP(final CompiledEnsemble ensemble) {
+    this.ensemble = ensemble;
+    final int maxDepth = ensemble.getMaximumDepth();
+    final int arraySize = (maxDepth + 2) * (maxDepth + 3) / 2;
+    pathFeatures = new int[arraySize];
+    zeroFractions = new double[arraySize];
+    oneFractions = new double[arraySize];
+    proportions = new double[arraySize];
+  }
+
+  @Override
+  public double[] explain(final double[] row) {
+    final double[] phi = new double[ensemble.getNrPlayers() + 1];
+    addTrees(row, 0, ensemble.getNrTrees(), phi);
+    ensemble.finishExplanation(phi);
+    return phi;
+  }
+
+  /**
+   * Adds the unscaled SHAP values of a range of trees to phi and their expected values to the bias,
+   * see {@link CompiledEnsemble#finishExplanation(double[])}.
+   *
+   * @param row The feature values of the row, NaN for missing values.
+   * @param firstTree The first tree of the range.
+   * @param lastTree The tree after the range.
+   * @param phi The SHAP values of every player, followed by the bias.
+   */
+  public void addTrees(
+      final double[] row, final int firstTree, final int lastTree, final double[] phi) {
+    for (int tree = firstTree; tree < lastTree; tree++) {
+      final int root = ensemble.getRoot(tree);
+      recurse(root, row, phi, 0, 0, 1, 1, -1);
+      phi[ensemble.getNrPlayers()] += ensemble.getValue(root);
+    }
+  }
+
+  /**
+   * @param node The current node.
+   * @param parentPathIndex Start of the path of the parent.
+   * @param pathLength The number of unique features on the path of the parent.
+   * @param zeroFraction Fraction of "zero" paths passing through this node.
+   * @param oneFraction Fraction of "one" paths passing through this node.
+   * @param parentPlayer The player split on by the parent, -1 for the root.
+   */
+  private void recurse(
+      final int node,
+      final double[] row,
+      final double[] phi,
+      final int parentPathIndex,
+      int pathLength,
+      final double zeroFraction,
+      final double oneFraction,
+      final int parentPlayer) {
+    final int pathIndex = parentPathIndex + pathLength + 1;
+    System.arraycopy(pathFeatures, parentPathIndex, pathFeatures, pathIndex, pathLength + 1);
+    System.arraycopy(zeroFractions, parentPathIndex, zeroFractions, pathIndex, pathLength + 1);
+    System.arraycopy(oneFractions, parentPathIndex, oneFractions, pathIndex, pathLength + 1);
+    System.arraycopy(proportions, parentPathIndex, proportions, pathIndex, pathLength + 1);
+    extendPath(pathIndex, pathLength, zeroFraction, oneFraction, parentPlayer);
+    if (ensemble.isLeaf(node)) {
+      final double value = ensemble.getValue(node);
+      for (int i = 1; i <= pathLength; i++) {
+        final double w = unwoundPathSum(pathIndex, pathLength, i);
+        phi[pathFeatures[pathIndex + i]] +=
+            w * (oneFractions[pathIndex + i] - zeroFractions[pathIndex + i]) * value;
+      }
+      return;
+    }
+    final int player = ensemble.getPlayer(node);
+    final int hotChild = ensemble.getChild(node, row);
+    final int coldChild =
+        hotChild == ensemble.getRightChild(node)
+            ? ensemble.getLeftChild(node)
+            : ensemble.getRightChild(node);
+    final double cover = ensemble.getCover(node);
+    final double hotZeroFraction = ensemble.getCover(hotChild) / cover;
+    final double coldZeroFraction = ensemble.getCover(coldChild) / cover;
+    double incomingZeroFraction = 1;
+    double incomingOneFraction = 1;
+    // Undo a previous split on the same player, so it can be redone for this node.
+    int previous = 1;
+    while (previous <= pathLength && pathFeatures[pathIndex + previous] != player) {
+      previous++;
+    }
+    if (previous <= pathLength) {
+      incomingZeroFraction = zeroFractions[pathIndex + previous];
+      incomingOneFraction = oneFractions[pathIndex + previous];
+      unwindPath(pathIndex, pathLength, previous);
+      pathLength--;
+    }
+    recurse(
+        hotChild,
+        row,
+        phi,
+        pathIndex,
+        pathLength + 1,
+        hotZeroFraction * incomingZeroFraction,
+        incomingOneFraction,
+        player);
+    recurse(
+        coldChild,
+        row,
+        phi,
+        pathIndex,
+        pathLength + 1,
+        coldZeroFraction * incomingZeroFraction,
+        0,
+        player);
+  }
+
+  private void extendPath(
+      final int pathIndex,
+      final int pathLength,
+      final double zeroFraction,
+      final double oneFraction,
+      final int player) {
+    pathFeatures[pathIndex + pathLength] = player;
+    zeroFractions[pathIndex + pathLength] = zeroFraction;
+    oneFractions[pathIndex + pathLength] = oneFraction;
+    proportions[pathIndex + pathLength] = pathLength == 0 ? 1 : 0;
+    for (int i = pathLength - 1; i >= 0; i--) {
+      proportions[pathIndex + i + 1] +=
+          oneFraction * proportions[pathIndex + i] * (i + 1) / (pathLength + 1);
+      proportions[pathIndex + i] =
+          zeroFraction * proportions[pathIndex + i] * (pathLength - i) / (pathLength + 1);
+    }
+  }
+
+  private void unwindPath(final int pathIndex, final int pathLength, final int index) {
+    final double oneFraction = oneFractions[pathIndex + index];
+    final double zeroFraction = zeroFractions[pathIndex + index];
+    double nextOneProportion = proportions[pathIndex + pathLength];
+    for (int i = pathLength - 1; i >= 0; i--) {
+      if (oneFraction != 0) {
+        final double tmp = proportions[pathIndex + i];
+        proportions[pathIndex + i] = nextOneProportion * (pathLength + 1) / ((i + 1) * oneFraction);
+        nextOneProportion =
+            tmp - proportions[pathIndex + i] * zeroFraction * (pathLength - i) / (pathLength + 1);
+      } else {
+        proportions[pathIndex + i] =
+            proportions[pathIndex + i] * (pathLength + 1) / (zeroFraction * (pathLength - i));
+      }
+    }
+    for (int i = index; i < pathLength; i++) {
+      pathFeatures[pathIndex + i] = pathFeatures[pathIndex + i + 1];
+      zeroFractions[pathIndex + i] = zeroFractions[pathIndex + i + 1];
+      oneFractions[pathIndex + i] = oneFractions[pathIndex + i + 1];
+    }
+  }
+
+  private double unwoundPathSum(final int pathIndex, final int pathLength, final int index) {
+    final double oneFraction = oneFractions[pathIndex + index];
+    final double zeroFraction = zeroFractions[pathIndex + index];
+    double nextOneProportion = proportions[pathIndex + pathLength];
+    double total = 0;
+    if (oneFraction != 0) {
+      for (int i = pathLength - 1; i >= 0; i--) {
+        final double tmp = nextOneProportion / ((i + 1) * oneFraction);
+        total += tmp;
+        nextOneProportion = proportions[pathIndex + i] - tmp * zeroFraction * (pathLength - i);
+      }
+    } else {
+      for (int i = pathLength - 1; i >= 0; i--) {
+        total += proportions[pathIndex + i] / (zeroFraction * (pathLength - i));
+      }
+    }
+    return total * (pathLength + 1);
+  }
+}
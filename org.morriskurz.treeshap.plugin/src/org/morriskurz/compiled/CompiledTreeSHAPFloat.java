@@ -0,0 +1,178 @@
+package org.morriskurz.compiled;
+
+/**
+ * Single precision variant of {@link CompiledTreeSHAP}. The path weights, the proportions and the
+ * SHAP values are computed in float, which halves the memory traffic of the path arrays. The
+ * results deviate from the double precision engine in the order of the float precision relative to
+ * the largest contribution of a tree.
+ *
+ * <p>The unique paths are kept in primitive arrays which are allocated once per explainer, so an
+ * explainer must not be shared between threads.
+ *
+ * @author Morris Kurz, morriskurz@gmail.com
+ */
+public final class CompiledTreeSHAPFloat implements ICompiledExplainer {
+
+  private final CompiledEnsemble ensemble;
+
+  private final int[] pathFeatures;
+
+  private final float[] zeroFractions;
+
+  private final float[] oneFractions;
+
+  private final float[] proportions;
+
+  public CompiledTreeSHAPFloat(final CompiledEnsemble ensemble) {
+    this.ensemble = ensemble;
+    final int maxDepth = ensemble.getMaximumDepth();
+    final int arraySize = (maxDepth + 2) * (maxDepth + 3) / 2;
+    pathFeatures = new int[arraySize];
+    zeroFractions = new float[arraySize];
+    oneFractions = new float[arraySize];
+    proportions = new float[arraySize];
+  }
+
+  @Override
+  public double[] explain(final double[] row) {
+    final int nrPlayers = ensemble.getNrPlayers();
+    final float[] phi = new float[nrPlayers + 1];
+    for (int tree = 0; tree < ensemble.getNrTrees(); tree++) {
+      final int root = ensemble.getRoot(tree);
+      recurse(root, row, phi, 0, 0, 1, 1, -1);
+      phi[nrPlayers] += (float) ensemble.getValue(root);
+    }
+    final double[] result = new double[nrPlayers + 1];
+    for (int i = 0; i <= nrPlayers; i++) {
+      result[i] = phi[i] * (float) ensemble.getScaling();
+    }
+    result[nrPlayers] += ensemble.getBaseOffset();
+    return result;
+  }
+
+  /** See {@link CompiledTreeSHAP}. */
+  private void recurse(
+      final int node,
+      final double[] row,
+      final float[] phi,
+      final int parentPathIndex,
+      int pathLength,
+      final float zeroFraction,
+      final float oneFraction,
+      final int parentPlayer) {
+    final int pathIndex = parentPathIndex + pathLength + 1;
+    System.arraycopy(pathFeatures, parentPathIndex, pathFeatures, pathIndex, pathLength + 1);
+    System.arraycopy(zeroFractions, parentPathIndex, zeroFractions, pathIndex, pathLength + 1);
+    System.arraycopy(oneFractions, parentPathIndex, oneFractions, pathIndex, pathLength + 1);
+    System.arraycopy(proportions, parentPathIndex, proportions, pathIndex, pathLength + 1);
+    extendPath(pathIndex, pathLength, zeroFraction, oneFraction, parentPlayer);
+    if (ensemble.isLeaf(node)) {
+      final float value = (float) ensemble.getValue(node);
+      for (int i = 1; i <= pathLength; i++) {
+        final float w = unwoundPathSum(pathIndex, pathLength, i);
+        phi[pathFeatures[pathIndex + i]] +=
+            w * (oneFractions[pathIndex + i] - zeroFractions[pathIndex + i]) * value;
+      }
+      return;
+    }
+    final int player = ensemble.getPlayer(node);
+    final int hotChild = ensemble.getChild(node, row);
+    final int coldChild =
+        hotChild == ensemble.getRightChild(node)
+            ? ensemble.getLeftChild(node)
+            : ensemble.getRightChild(node);
+    final float cover = (float) ensemble.getCover(node);
+    final float hotZeroFraction = (float) ensemble.getCover(hotChild) / cover;
+    final float coldZeroFraction = (float) ensemble.getCover(coldChild) / cover;
+    float incomingZeroFraction = 1;
+    float incomingOneFraction = 1;
+    // Undo a previous split on the same player, so it can be redone for this node.
+    int previous = 1;
+    while (previous <= pathLength && pathFeatures[pathIndex + previous] != player) {
+      previous++;
+    }
+    if (previous <= pathLength) {
+      incomingZeroFraction = zeroFractions[pathIndex + previous];
+      incomingOneFraction = oneFractions[pathIndex + previous];
+      unwindPath(pathIndex, pathLength, previous);
+      pathLength--;
+    }
+    recurse(
+        hotChild,
+        row,
+        phi,
+        pathIndex,
+        pathLength + 1,
+        hotZeroFraction * incomingZeroFraction,
+        incomingOneFraction,
+        player);
+    recurse(
+        coldChild,
+        row,
+        phi,
+        pathIndex,
+        pathLength + 1,
+        coldZeroFraction * incomingZeroFraction,
+        0,
+        player);
+  }
+
+  private void extendPath(
+      final int pathIndex,
+      final int pathLength,
+      final float zeroFraction,
+      final float oneFraction,
+      final int player) {
+    pathFeatures[pathIndex + pathLength] = player;
+    zeroFractions[pathIndex + pathLength] = zeroFraction;
+    oneFractions[pathIndex + pathLength] = oneFraction;
+    proportions[pathIndex + pathLength] = pathLength == 0 ? 1 : 0;
+    for (int i = pathLength - 1; i >= 0; i--) {
+      proportions[pathIndex + i + 1] +=
+          oneFraction * proportions[pathIndex + i] * (i + 1) / (pathLength + 1);
+      proportions[pathIndex + i] =
+          zeroFraction * proportions[pathIndex + i] * (pathLength - i) / (pathLength + 1);
+    }
+  }
+
+  private void unwindPath(final int pathIndex, final int pathLength, final int index) {
+    final float oneFraction = oneFractions[pathIndex + index];
+    final float zeroFraction = zeroFractions[pathIndex + index];
+    float nextOneProportion = proportions[pathIndex + pathLength];
+    for (int i = pathLength - 1; i >= 0; i--) {
+      if (oneFraction != 0) {
+        final float tmp = proportions[pathIndex + i];
+        proportions[pathIndex + i] = nextOneProportion * (pathLength + 1) / ((i + 1) * oneFraction);
+        nextOneProportion =
+            tmp - proportions[pathIndex + i] * zeroFraction * (pathLength - i) / (pathLength + 1);
+      } else {
+        proportions[pathIndex + i] =
+            proportions[pathIndex + i] * (pathLength + 1) / (zeroFraction * (pathLength - i));
+      }
+    }
+    for (int i = index; i < pathLength; i++) {
+      pathFeatures[pathIndex + i] = pathFeatures[pathIndex + i + 1];
+      zeroFractions[pathIndex + i] = zeroFractions[pathIndex + i + 1];
+      oneFractions[pathIndex + i] = oneFractions[pathIndex + i + 1];
+    }
+  }
+
+  private float unwoundPathSum(final int pathIndex, final int pathLength, final int index) {
+    final float oneFraction = oneFractions[pathIndex + index];
+    final float zeroFraction = zeroFractions[pathIndex + index];
+    float nextOneProportion = proportions[pathIndex + pathLength];
+    float total = 0;
+    if (oneFraction != 0) {
+      for (int i = pathLength - 1; i >= 0; i--) {
+        final float tmp = nextOneProportion / ((i + 1) * oneFraction);
+        total += tmp;
+        nextOneProportion = proportions[pathIndex + i] - tmp * zeroFraction * (pathLength - i);
+      }
+    } else {
+      for (int i = pathLength - 1; i >= 0; i--) {
+        total += proportions[pathIndex + i] / (zeroFraction * (pathLength - i));
+      }
+    }
+    return total * (pathLength + 1);
+  }
+}
@@ -0,0 +1,61 @@
+package org.morriskurz.compiled;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+
+/**
+ * Frees the memory of direct and mapped byte buffers explicitly, instead of waiting for the garbage
+ * collector to collect the buffers. A freed buffer must not be accessed anymore.
+ *
+ * @author Morris Kurz, morriskurz@gmail.com
+ */
+final class DirectBuffers {
+
+  /** The unsafe instance of Java 9 and later, null on Java 8. */
+  private static final Object UNSAFE;
+
+  private static final Method INVOKE_CLEANER;
+
+  static {
+    Object unsafe = null;
+    Method invokeCleaner = null;
+    try {
+      final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+      invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+      final Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+      theUnsafe.setAccessible(true);
+      unsafe = theUnsafe.get(null);
+    } catch (final ReflectiveOperationException | RuntimeException e) {
+      invokeCleaner = null;
+    }
+    UNSAFE = unsafe;
+    INVOKE_CLEANER = invokeCleaner;
+  }
+
+  private DirectBuffers() {}
+
+  /**
+   * Frees the memory of a direct buffer which is neither a slice nor a duplicate. Heap buffers are
+   * ignored. If the memory cannot be freed explicitly, it is freed once the buffer is collected.
+   */
+  static void free(final ByteBuffer buffer) {
+    if (!buffer.isDirect()) {
+      return;
+    }
+    try {
+      if (INVOKE_CLEANER != null) {
+        INVOKE_CLEANER.invoke(UNSAFE, buffer);
+      } else {
+        final Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+        cleanerMethod.setAccessible(true);
+        final Object cleaner = cleanerMethod.invoke(buffer);
+        if (cleaner != null) {
+          cleaner.getClass().getMethod("clean").invoke(cleaner);
+        }
+      }
+    } catch (final ReflectiveOperationException | RuntimeException e) {
+      // Left to the garbage collector.
+    }
+  }
+}
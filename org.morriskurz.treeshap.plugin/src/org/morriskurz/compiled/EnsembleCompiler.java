@@ -0,0 +1,237 @@
+package org.morriskurz.compiled;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.knime.base.node.mine.treeensemble2.data.PredictorRecord;
+import org.knime.base.node.mine.treeensemble2.model.AbstractTreeNode;
+import org.knime.base.node.mine.treeensemble2.model.TreeNodeClassification;
+import org.knime.base.node.mine.treeensemble2.model.TreeNodeCondition;
+import org.knime.base.node.mine.treeensemble2.model.TreeNodeNumericCondition;
+import org.knime.base.node.mine.treeensemble2.model.TreeNodeRegression;
+import org.knime.core.node.InvalidSettingsException;
+import org.morriskurz.parser.FeatureGroups;
+
+/**
+ * Compiles the trees of an ensemble into a {@link CompiledEnsemble}.
+ *
+ * <p>Only binary splits on numeric columns are supported. The branch a value takes is determined
+ * by testing the split conditions of the children with a value below, at and above the split value
+ * and with a missing value, exactly as the tree ensemble predictor does. Values which no child
+ * accepts follow the left child, as in the SHAP computation on the model.
+ *
+ * @author Morris Kurz, morriskurz@gmail.com
+ */
+public final class EnsembleCompiler {
+
+  private final AbstractTreeNode[] roots;
+
+  private final List<Map<AbstractTreeNode, Double>> expectations;
+
+  private final int positiveClassIndex;
+
+  private final int nrFeatures;
+
+  private final FeatureGroups featureGroups;
+
+  private int nrNodes;
+
+  private int[] rightChildren;
+
+  private int[] splitFeatures;
+
+  private double[] thresholds;
+
+  private byte[] splitFlags;
+
+  private double[] values;
+
+  private double[] covers;
+
+  /**
+   * @param roots The roots of the explained trees.
+   * @param expectations The expected value of every node per tree for gradient boosted trees, whose
+   *     node means are not the predictions. Null for random forests.
+   * @param positiveClassIndex The explained class of classification forests.
+   * @param nrFeatures The number of features of the model.
+   * @param featureGroups The groups forming the players, null if every feature is a player.
+   */
+  public EnsembleCompiler(
+      final AbstractTreeNode[] roots,
+      final List<Map<AbstractTreeNode, Double>> expectations,
+      final int positiveClassIndex,
+      final int nrFeatures,
+      final FeatureGroups featureGroups) {
+    this.roots = roots;
+    this.expectations = expectations;
+    this.positiveClassIndex = positiveClassIndex;
+    this.nrFeatures = nrFeatures;
+    this.featureGroups = featureGroups;
+  }
+
+  /**
+   * Compiles the trees.
+   *
+   * @param scaling The factor applied to the summed tree outputs.
+   * @param baseOffset The output of the ensemble not stored in the trees.
+   * @return the compiled ensemble
+   * @throws InvalidSettingsException if a split is not supported
+   */
+  public CompiledEnsemble compile(final double scaling, final double baseOffset)
+      throws InvalidSettingsException {
+    final int capacity = 1024;
+    rightChildren = new int[capacity];
+    splitFeatures = new int[capacity];
+    thresholds = new double[capacity];
+    splitFlags = new byte[capacity];
+    values = new double[capacity];
+    covers = new double[capacity];
+    nrNodes = 0;
+    final int[] treeOffsets = new int[roots.length + 1];
+    int maxDepth = 0;
+    for (int tree = 0; tree < roots.length; tree++) {
+      treeOffsets[tree] = nrNodes;
+      maxDepth = Math.max(maxDepth, addNode(roots[tree], tree));
+    }
+    treeOffsets[roots.length] = nrNodes;
+    final int[] playerOfFeature = new int[nrFeatures];
+    for (int feature = 0; feature < nrFeatures; feature++) {
+      playerOfFeature[feature] =
+          featureGroups == null ? feature : featureGroups.getGroup(feature);
+    }
+    return new CompiledEnsemble(
+        treeOffsets,
+        new ArrayNodeStorage(
+            Arrays.copyOf(rightChildren, nrNodes),
+            Arrays.copyOf(splitFeatures, nrNodes),
+            Arrays.copyOf(thresholds, nrNodes),
+            Arrays.copyOf(splitFlags, nrNodes),
+            Arrays.copyOf(values, nrNodes),
+            Arrays.copyOf(covers, nrNodes)),
+        playerOfFeature,
+        featureGroups == null ? nrFeatures : featureGroups.getNrGroups(),
+        scaling,
+        baseOffset,
+        maxDepth);
+  }
+
+  /**
+   * Appends the subtree of the node in preorder.
+   *
+   * @return the number of levels of the subtree
+   */
+  private int addNode(final AbstractTreeNode node, final int tree)
+      throws InvalidSettingsException {
+    final int index = nrNodes++;
+    if (index == rightChildren.length) {
+      grow();
+    }
+    values[index] = getValue(node, tree);
+    covers[index] = getCover(node);
+    if (node.getNrChildren() == 0) {
+      rightChildren[index] = -1;
+      splitFeatures[index] = -1;
+      return 1;
+    }
+    compileSplit(node, index);
+    final int leftDepth = addNode(node.getChild(0), tree);
+    rightChildren[index] = nrNodes;
+    final int rightDepth = addNode(node.getChild(1), tree);
+    return Math.max(leftDepth, rightDepth) + 1;
+  }
+
+  private void compileSplit(final AbstractTreeNode node, final int index)
+      throws InvalidSettingsException {
+    if (node.getNrChildren() != 2) {
+      throw new InvalidSettingsException(
+          "The compiled explainer only supports binary splits. Make sure you don't have a tree "
+              + "with non-binary splits.");
+    }
+    final TreeNodeCondition left = node.getChild(0).getCondition();
+    final TreeNodeCondition right = node.getChild(1).getCondition();
+    if (!(left instanceof TreeNodeNumericCondition)
+        || !(right instanceof TreeNodeNumericCondition)) {
+      throw new InvalidSettingsException(
+          "The compiled explainer only supports splits on numeric columns, found the split "
+              + left
+              + ".");
+    }
+    final TreeNodeNumericCondition leftNumeric = (TreeNodeNumericCondition) left;
+    final TreeNodeNumericCondition rightNumeric = (TreeNodeNumericCondition) right;
+    final String column = leftNumeric.getColumnMetaData().getAttributeName();
+    final double threshold = leftNumeric.getSplitValue();
+    if (!column.equals(rightNumeric.getColumnMetaData().getAttributeName())
+        || Double.compare(threshold, rightNumeric.getSplitValue()) != 0) {
+      throw new InvalidSettingsException(
+          "The children of a split test different columns or split values: " + left + ", " + right);
+    }
+    byte flags = 0;
+    if (takesRight(left, right, column, Math.nextDown(threshold))) {
+      flags |= CompiledEnsemble.LESS_RIGHT;
+    }
+    if (takesRight(left, right, column, threshold)) {
+      flags |= CompiledEnsemble.EQUAL_RIGHT;
+    }
+    if (takesRight(left, right, column, Math.nextUp(threshold))) {
+      flags |= CompiledEnsemble.GREATER_RIGHT;
+    }
+    if (takesRight(left, right, column, PredictorRecord.NULL)) {
+      flags |= CompiledEnsemble.MISSING_RIGHT;
+    }
+    splitFeatures[index] = node.getSplitAttributeIndex();
+    thresholds[index] = threshold;
+    splitFlags[index] = flags;
+  }
+
+  /** Mirrors the branch selection of the tree nodes: the first accepting child, else the left. */
+  private static boolean takesRight(
+      final TreeNodeCondition left,
+      final TreeNodeCondition right,
+      final String column,
+      final Object value) {
+    final Map<String, Object> values = new HashMap<>();
+    values.put(column, value);
+    final PredictorRecord record = new PredictorRecord(values);
+    return !left.testCondition(record) && right.testCondition(record);
+  }
+
+  private double getValue(final AbstractTreeNode node, final int tree) {
+    if (expectations != null) {
+      return expectations.get(tree).get(node);
+    }
+    if (node instanceof TreeNodeClassification) {
+      final float[] distribution = ((TreeNodeClassification) node).getTargetDistribution();
+      final double cover = sum(distribution);
+      // A node no training row reached has no probability; its zero cover gives it no weight.
+      return cover == 0 ? 0 : distribution[positiveClassIndex] / cover;
+    }
+    return ((TreeNodeRegression) node).getMean();
+  }
+
+  private static double getCover(final AbstractTreeNode node) {
+    if (node instanceof TreeNodeClassification) {
+      return sum(((TreeNodeClassification) node).getTargetDistribution());
+    }
+    return ((TreeNodeRegression) node).getTotalSum();
+  }
+
+  private static double sum(final float[] distribution) {
+    double sum = 0;
+    for (final float d : distribution) {
+      sum += d;
+    }
+    return sum;
+  }
+
+  private void grow() {
+    final int capacity = 2 * rightChildren.length;
+    rightChildren = Arrays.copyOf(rightChildren, capacity);
+    splitFeatures = Arrays.copyOf(splitFeatures, capacity);
+    thresholds = Arrays.copyOf(thresholds, capacity);
+    splitFlags = Arrays.copyOf(splitFlags, capacity);
+    values = Arrays.copyOf(values, capacity);
+    covers = Arrays.copyOf(covers, capacity);
+  }
+}
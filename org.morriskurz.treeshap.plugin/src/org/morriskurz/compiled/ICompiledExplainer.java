@@ -0,0 +1,18 @@
+package org.morriskurz.compiled;
+
+/**
+ * Computes the SHAP values of rows on a {@link CompiledEnsemble}. Explainers keep their working
+ * state in fields and must not be shared between threads.
+ *
+ * @author Morris Kurz, morriskurz@gmail.com
+ */
+public interface ICompiledExplainer {
+
+  /**
+   * Computes the SHAP values of a row.
+   *
+   * @param row The feature values of the row, NaN for missing values.
+   * @return the SHAP value of every player, followed by the bias
+   */
+  double[] explain(double[] row);
+}
@@ -0,0 +1,33 @@
+package org.morriskurz.compiled;
+
+/**
+ * Storage of the nodes of a {@link CompiledEnsemble}. Leaves have no children, i.e. both children
+ * are -1, and no split.
+ *
+ * @author Morris Kurz, morriskurz@gmail.com
+ */
+public interface INodeStorage {
+
+  int getNrNodes();
+
+  int getLeftChild(int node);
+
+  int getRightChild(int node);
+
+  int getSplitFeature(int node);
+
+  double getThreshold(int node);
+
+  /** @return the outcomes taking the right child, see {@link CompiledEnsemble#LESS_RIGHT}. */
+  byte getSplitFlags(int node);
+
+  double getValue(int node);
+
+  double getCover(int node);
+
+  /**
+   * Frees the memory held outside of the heap right away, the storage must not be accessed
+   * afterwards. Heap storages are left to the garbage collector.
+   */
+  void free();
+}
@@ -0,0 +1,148 @@
+package org.morriskurz.compiled;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Cache of the compiled ensembles mapped into memory, shared by all nodes of the plugin.
+ *
+ * <p>The nodes of a mapped ensemble live outside of the Java heap, so even very large explainers
+ * add no pressure on the garbage collector. The memory is managed explicitly instead: an ensemble
+ * is used through a {@link Lease}, which pins it. Ensembles are evicted least recently used first
+ * once the mapped memory exceeds the budget, and unmapped as soon as they are evicted and no lease
+ * is open anymore. An evicted ensemble is mapped again on the next lease, which is cheap since the
+ * file stays in the page cache. The ensembles are keyed by the hash of their content, so all port
+ * objects of the same ensemble share one mapping.
+ *
+ * @author Morris Kurz, morriskurz@gmail.com
+ */
+public final class OffHeapEnsembleCache {
+
+  /** A pinned ensemble, which must be closed after use. */
+  public final class Lease implements AutoCloseable {
+    private final Entry entry;
+
+    private boolean closed;
+
+    private Lease(final Entry entry) {
+      this.entry = entry;
+    }
+
+    public CompiledEnsemble getEnsemble() {
+      return entry.ensemble;
+    }
+
+    @Override
+    public void close() {
+      synchronized (OffHeapEnsembleCache.this) {
+        if (!closed) {
+          closed = true;
+          release(entry);
+        }
+      }
+    }
+  }
+
+  private static final class Entry {
+    private final CompiledEnsemble ensemble;
+
+    private final long memory;
+
+    private int pins;
+
+    private boolean evicted;
+
+    private Entry(final CompiledEnsemble ensemble, final long memory) {
+      this.ensemble = ensemble;
+      this.memory = memory;
+    }
+  }
+
+  private final long maxMemory;
+
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+  private long memory;
+
+  /** @param maxMemory The maximum size of all mapped ensembles in bytes. */
+  public OffHeapEnsembleCache(final long maxMemory) {
+    this.maxMemory = maxMemory;
+  }
+
+  /**
+   * Pins the ensemble of the file, mapping it if it is not cached.
+   *
+   * @param contentHash The hash of the content of the file, see {@link CompiledEnsembleFiles}.
+   * @param file A file written by {@link CompiledEnsembleFiles}.
+   * @return the lease of the ensemble
+   * @throws IOException if the file cannot be mapped
+   */
+  public synchronized Lease acquire(final String contentHash, final Path file) throws IOException {
+    Entry entry = entries.get(contentHash);
+    if (entry == null) {
+      entry = new Entry(CompiledEnsembleSerializer.map(file), Files.size(file));
+      entries.put(contentHash, entry);
+      memory += entry.memory;
+      evictOverBudget(entry);
+    }
+    entry.pins++;
+    return new Lease(entry);
+  }
+
+  /** @return the size of all mapped ensembles in bytes. */
+  public synchronized long getMemory() {
+    return memory;
+  }
+
+  /** @return the number of mapped ensembles. */
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  /** Evicts all entries, pinned ensembles are unmapped once their last lease is closed. */
+  public synchronized void clear() {
+    final List<Entry> evicted = new ArrayList<>(entries.values());
+    entries.clear();
+    memory = 0;
+    for (final Entry entry : evicted) {
+      evict(entry);
+    }
+  }
+
+  /** Evicts entries beyond the budget, except for the newest entry. */
+  private void evictOverBudget(final Entry newest) {
+    final Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+    while (memory > maxMemory && iterator.hasNext()) {
+      final Entry entry = iterator.next().getValue();
+      if (entry != newest) {
+        iterator.remove();
+        memory -= entry.memory;
+        evict(entry);
+      }
+    }
+  }
+
+  private static void evict(final Entry entry) {
+    entry.evicted = true;
+    if (entry.pins == 0) {
+      free(entry);
+    }
+  }
+
+  private static void release(final Entry entry) {
+    entry.pins--;
+    if (entry.pins == 0 && entry.evicted) {
+      free(entry);
+    }
+  }
+
+  private static void free(final Entry entry) {
+    entry.ensemble.getNodes().free();
+  }
+}
@@ -0,0 +1,329 @@
+package org.morriskurz.compiled;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The trees of a {@link CompiledEnsemble} as a flat list of root to leaf paths, see <a
+ * href="https://arxiv.org/abs/2010.13972">GPUTreeShap</a>.
+ *
+ * <p>A path has one element per player split on along it and the value of its leaf. The zero
+ * fraction of an element is the product of the cover ratios of the splits on the player, its
+ * constraints are the splits, each as a feature, a threshold and the outcomes of comparing a value
+ * with the threshold which follow the path. The SHAP values of a tree are the sum of the
+ * independent contributions of its paths, computed by {@link PathListTreeSHAP} without recursion.
+ *
+ * <p>The paths are packed into blocks of similar cost, which are balanced units of parallel work.
+ * The paths of a block are stored contiguously. A path list is immutable and can be shared
+ * between threads.
+ *
+ * @author Morris Kurz, morriskurz@gmail.com
+ */
+public final class PathList {
+
+  /** The minimum cost of a block, in squared path lengths. */
+  private static final int BLOCK_COST = 4096;
+
+  private final int nrPlayers;
+
+  private final double bias;
+
+  private final int maxPathLength;
+
+  /** The first path of every block, followed by the number of paths. */
+  private final int[] blockOffsets;
+
+  /** The first element of every path, followed by the number of elements. */
+  private final int[] elementOffsets;
+
+  /** The leaf value of every path, multiplied by the scaling of the ensemble. */
+  private final double[] leafValues;
+
+  private final int[] elementPlayers;
+
+  private final double[] zeroFractions;
+
+  /** The first constraint of every element, followed by the number of constraints. */
+  private final int[] constraintOffsets;
+
+  private final int[] constraintFeatures;
+
+  private final double[] constraintThresholds;
+
+  /** The outcomes of the comparison with the threshold, as split flags, that satisfy it. */
+  private final byte[] constraintOutcomes;
+
+  /** A root to leaf path while the paths are collected. */
+  private static final class Path {
+
+    private final int[] players;
+
+    private final double[] zeroFractions;
+
+    private final int[] constraintCounts;
+
+    private final int[] features;
+
+    private final double[] thresholds;
+
+    private final byte[] outcomes;
+
+    private final double leafValue;
+
+    private Path(
+        final int[] players,
+        final double[] zeroFractions,
+        final int[] constraintCounts,
+        final int[] features,
+        final double[] thresholds,
+        final byte[] outcomes,
+        final double leafValue) {
+      this.players = players;
+      this.zeroFractions = zeroFractions;
+      this.constraintCounts = constraintCounts;
+      this.features = features;
+      this.thresholds = thresholds;
+      this.outcomes = outcomes;
+      this.leafValue = leafValue;
+    }
+
+    /** The work of the path, dominated by extending and unwinding its elements. */
+    private int getCost() {
+      return (players.length + 1) * (players.length + 1) + features.length;
+    }
+  }
+
+  private PathList(final int nrPlayers, final double bias, final List<Path> paths) {
+    this.nrPlayers = nrPlayers;
+    this.bias = bias;
+    int nrElements = 0;
+    int nrConstraints = 0;
+    int maxLength = 0;
+    for (final Path path : paths) {
+      nrElements += path.players.length;
+      nrConstraints += path.features.length;
+      maxLength = Math.max(maxLength, path.players.length);
+    }
+    maxPathLength = maxLength;
+    elementOffsets = new int[paths.size() + 1];
+    leafValues = new double[paths.size()];
+    elementPlayers = new int[nrElements];
+    zeroFractions = new double[nrElements];
+    constraintOffsets = new int[nrElements + 1];
+    constraintFeatures = new int[nrConstraints];
+    constraintThresholds = new double[nrConstraints];
+    constraintOutcomes = new byte[nrConstraints];
+    final int blockCost = Math.max(BLOCK_COST, (maxLength + 1) * (maxLength + 1));
+    final int[] blocks = new int[paths.size() + 1];
+    int nrBlocks = 0;
+    int cost = blockCost;
+    int element = 0;
+    int constraint = 0;
+    for (int i = 0; i < paths.size(); i++) {
+      final Path path = paths.get(i);
+      if (cost + path.getCost() > blockCost) {
+        blocks[nrBlocks++] = i;
+        cost = 0;
+      }
+      cost += path.getCost();
+      elementOffsets[i] = element;
+      leafValues[i] = path.leafValue;
+      for (int j = 0; j < path.players.length; j++) {
+        elementPlayers[element] = path.players[j];
+        zeroFractions[element] = path.zeroFractions[j];
+        constraintOffsets[element++] = constraint;
+        constraint += path.constraintCounts[j];
+      }
+      final int first = constraint - path.features.length;
+      System.arraycopy(path.features, 0, constraintFeatures, first, path.features.length);
+      System.arraycopy(path.thresholds, 0, constraintThresholds, first, path.features.length);
+      System.arraycopy(path.outcomes, 0, constraintOutcomes, first, path.features.length);
+    }
+    elementOffsets[paths.size()] = element;
+    constraintOffsets[nrElements] = constraint;
+    blocks[nrBlocks] = paths.size();
+    blockOffsets = Arrays.copyOf(blocks, nrBlocks + 1);
+  }
+
+  /**
+   * Decomposes the trees of the ensemble into their paths.
+   *
+   * @param ensemble The compiled ensemble.
+   * @return the paths of all trees, packed into blocks
+   */
+  public static PathList create(final CompiledEnsemble ensemble) {
+    final List<Path> paths = new ArrayList<>();
+    final int[] splits = new int[ensemble.getMaximumDepth()];
+    final boolean[] directions = new boolean[ensemble.getMaximumDepth()];
+    double rootValues = 0;
+    for (int tree = 0; tree < ensemble.getNrTrees(); tree++) {
+      final int root = ensemble.getRoot(tree);
+      collect(ensemble, root, 0, splits, directions, paths);
+      rootValues += ensemble.getValue(root);
+    }
+    // Packed in order of decreasing cost, so the cheap paths fill up the last blocks.
+    Collections.sort(
+        paths,
+        new Comparator<Path>() {
+          @Override
+          public int compare(final Path p1, final Path p2) {
+            return Integer.compare(p2.getCost(), p1.getCost());
+          }
+        });
+    return new PathList(
+        ensemble.getNrPlayers(),
+        rootValues * ensemble.getScaling() + ensemble.getBaseOffset(),
+        paths);
+  }
+
+  /**
+   * Collects the paths of the subtree of the node.
+   *
+   * @param depth The number of splits above the node.
+   * @param splits The splits above the node.
+   * @param directions Whether the path takes the right child of each split.
+   */
+  private static void collect(
+      final CompiledEnsemble ensemble,
+      final int node,
+      final int depth,
+      final int[] splits,
+      final boolean[] directions,
+      final List<Path> paths) {
+    if (ensemble.isLeaf(node)) {
+      paths.add(createPath(ensemble, node, depth, splits, directions));
+      return;
+    }
+    splits[depth] = node;
+    directions[depth] = false;
+    collect(ensemble, ensemble.getLeftChild(node), depth + 1, splits, directions, paths);
+    directions[depth] = true;
+    collect(ensemble, ensemble.getRightChild(node), depth + 1, splits, directions, paths);
+  }
+
+  private static Path createPath(
+      final CompiledEnsemble ensemble,
+      final int leaf,
+      final int depth,
+      final int[] splits,
+      final boolean[] directions) {
+    // The element of every split, in the order the players are first split on.
+    final int[] players = new int[depth];
+    final double[] zeroFractions = new double[depth];
+    final int[] elementOfSplit = new int[depth];
+    int nrElements = 0;
+    for (int i = 0; i < depth; i++) {
+      final int node = splits[i];
+      final int player = ensemble.getPlayer(node);
+      int element = 0;
+      while (element < nrElements && players[element] != player) {
+        element++;
+      }
+      if (element == nrElements) {
+        players[nrElements] = player;
+        zeroFractions[nrElements++] = 1;
+      }
+      final int child = i + 1 < depth ? splits[i + 1] : leaf;
+      zeroFractions[element] *= ensemble.getCover(child) / ensemble.getCover(node);
+      elementOfSplit[i] = element;
+    }
+    // The constraints grouped by element, dropping repeated splits.
+    final int[] constraintCounts = new int[nrElements];
+    final int[] features = new int[depth];
+    final double[] thresholds = new double[depth];
+    final byte[] outcomes = new byte[depth];
+    final INodeStorage nodes = ensemble.getNodes();
+    int nrConstraints = 0;
+    for (int element = 0; element < nrElements; element++) {
+      final int first = nrConstraints;
+      for (int i = 0; i < depth; i++) {
+        if (elementOfSplit[i] != element) {
+          continue;
+        }
+        final int node = splits[i];
+        final int feature = nodes.getSplitFeature(node);
+        final double threshold = nodes.getThreshold(node);
+        final byte flags = nodes.getSplitFlags(node);
+        final byte outcome = (byte) (directions[i] ? flags : ~flags & 0xF);
+        int constraint = first;
+        while (constraint < nrConstraints
+            && (features[constraint] != feature
+                || Double.compare(thresholds[constraint], threshold) != 0
+                || outcomes[constraint] != outcome)) {
+          constraint++;
+        }
+        if (constraint == nrConstraints) {
+          features[nrConstraints] = feature;
+          thresholds[nrConstraints] = threshold;
+          outcomes[nrConstraints++] = outcome;
+        }
+      }
+      constraintCounts[element] = nrConstraints - first;
+    }
+    return new Path(
+        Arrays.copyOf(players, nrElements),
+        Arrays.copyOf(zeroFractions, nrElements),
+        constraintCounts,
+        Arrays.copyOf(features, nrConstraints),
+        Arrays.copyOf(thresholds, nrConstraints),
+        Arrays.copyOf(outcomes, nrConstraints),
+        ensemble.getValue(leaf) * ensemble.getScaling());
+  }
+
+  /** @return the expected output of the ensemble, including its base offset. */
+  public double getBias() {
+    return bias;
+  }
+
+  public int getNrBlocks() {
+    return blockOffsets.length - 1;
+  }
+
+  public int getNrPaths() {
+    return leafValues.length;
+  }
+
+  public int getNrPlayers() {
+    return nrPlayers;
+  }
+
+  /** @return the largest number of elements of a path */
+  public int getMaximumPathLength() {
+    return maxPathLength;
+  }
+
+  int getFirstPath(final int block) {
+    return blockOffsets[block];
+  }
+
+  int getFirstElement(final int path) {
+    return elementOffsets[path];
+  }
+
+  double getLeafValue(final int path) {
+    return leafValues[path];
+  }
+
+  int getPlayer(final int element) {
+    return elementPlayers[element];
+  }
+
+  double getZeroFraction(final int element) {
+    return zeroFractions[element];
+  }
+
+  /** @return whether the row satisfies all constraints of the element. */
+  boolean isSatisfied(final int element, final double[] row) {
+    for (int c = constraintOffsets[element]; c < constraintOffsets[element + 1]; c++) {
+      final byte outcome =
+          CompiledEnsemble.getOutcome(row[constraintFeatures[c]], constraintThresholds[c]);
+      if ((constraintOutcomes[c] & outcome) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,106 @@
+package org.morriskurz.compiled;
+
+/**
+ * Path dependent TreeSHAP on a {@link PathList}. The contribution of a path is computed by
+ * extending a path with all of its elements and unwinding each of them, without recursion and with
+ * working arrays the size of the longest path.
+ *
+ * <p>The blocks of the path list are independent, {@link #addBlock(double[], int, double[])} allows
+ * to spread the paths of a row over threads. The working arrays are allocated once per explainer,
+ * so an explainer must not be shared between threads.
+ *
+ * @author Morris Kurz, morriskurz@gmail.com
+ */
+public final class PathListTreeSHAP implements ICompiledExplainer {
+
+  private final PathList paths;
+
+  private final int[] pathPlayers;
+
+  private final double[] zeroFractions;
+
+  private final double[] oneFractions;
+
+  private final double[] proportions;
+
+  public PathListTreeSHAP(final PathList paths) {
+    this.paths = paths;
+    final int arraySize = paths.getMaximumPathLength() + 1;
+    pathPlayers = new int[arraySize];
+    zeroFractions = new double[arraySize];
+    oneFractions = new double[arraySize];
+    proportions = new double[arraySize];
+  }
+
+  @Override
+  public double[] explain(final double[] row) {
+    final double[] phi = new double[paths.getNrPlayers() + 1];
+    phi[paths.getNrPlayers()] = paths.getBias();
+    for (int block = 0; block < paths.getNrBlocks(); block++) {
+      addBlock(row, block, phi);
+    }
+    return phi;
+  }
+
+  /**
+   * Adds the contributions of the paths of a block to the SHAP values of a row. The SHAP values of
+   * the row are the sum over all blocks, with the bias of the path list as last value.
+   *
+   * @param row The feature values of the row, NaN for missing values.
+   * @param block The block of paths.
+   * @param phi The SHAP values of the players to add to.
+   */
+  public void addBlock(final double[] row, final int block, final double[] phi) {
+    for (int path = paths.getFirstPath(block); path < paths.getFirstPath(block + 1); path++) {
+      addPath(row, path, phi);
+    }
+  }
+
+  private void addPath(final double[] row, final int path, final double[] phi) {
+    final int firstElement = paths.getFirstElement(path);
+    final int pathLength = paths.getFirstElement(path + 1) - firstElement;
+    // The path starts with an element without player, as in the recursive algorithm.
+    proportions[0] = 1;
+    for (int i = 1; i <= pathLength; i++) {
+      final int element = firstElement + i - 1;
+      pathPlayers[i] = paths.getPlayer(element);
+      zeroFractions[i] = paths.getZeroFraction(element);
+      oneFractions[i] = paths.isSatisfied(element, row) ? 1 : 0;
+      extendPath(i);
+    }
+    final double value = paths.getLeafValue(path);
+    for (int i = 1; i <= pathLength; i++) {
+      final double w = unwoundPathSum(pathLength, i);
+      phi[pathPlayers[i]] += w * (oneFractions[i] - zeroFractions[i]) * value;
+    }
+  }
+
+  private void extendPath(final int pathLength) {
+    final double zeroFraction = zeroFractions[pathLength];
+    final double oneFraction = oneFractions[pathLength];
+    proportions[pathLength] = 0;
+    for (int i = pathLength - 1; i >= 0; i--) {
+      proportions[i + 1] += oneFraction * proportions[i] * (i + 1) / (pathLength + 1);
+      proportions[i] = zeroFraction * proportions[i] * (pathLength - i) / (pathLength + 1);
+    }
+  }
+
+  private double unwoundPathSum(final int pathLength, final int index) {
+    final double oneFraction = oneFractions[index];
+    final double zeroFraction = zeroFractions[index];
+    double nextOneProportion = proportions[pathLength];
+    double total = 0;
+    if (oneFraction != 0) {
+      for (int i = pathLength - 1; i >= 0; i--) {
+        final double tmp = nextOneProportion / ((i + 1) * oneFraction);
+        total += tmp;
+        nextOneProportion = proportions[i] - tmp * zeroFraction * (pathLength - i);
+      }
+    } else {
+      for (int i = pathLength - 1; i >= 0; i--) {
+        total += proportions[i] / (zeroFraction * (pathLength - i));
+      }
+    }
+    return total * (pathLength + 1);
+  }
+}
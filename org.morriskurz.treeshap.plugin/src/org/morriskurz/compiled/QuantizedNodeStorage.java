@@ -0,0 +1,232 @@
+package org.morriskurz.compiled;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.knime.core.node.InvalidSettingsException;
+
+/**
+ * Nodes encoded in {@value #NODE_SIZE} bytes each, so a cache line holds four nodes.
+ *
+ * <p>Every tree is laid out breadth first, so the children of a node are adjacent and only the
+ * left child is stored. An inner node holds its 16 bit split feature, the split flags, the
+ * threshold as float, the left child and the cover as float. A leaf holds the feature {@value
+ * #LEAF}, its value as double and the cover as float. The values of inner nodes are only needed
+ * for the roots and kept per tree.
+ *
+ * <p>A threshold exactly representable as float is stored in the node. Other thresholds, such as
+ * the midpoints between training values most learners split at, are kept as double in a table of
+ * their own, the node holding their index and the flag {@value #EXACT_THRESHOLD}, so every split is
+ * the same as in the model. The covers are rounded to float, which changes the SHAP values in the
+ * order of the float precision.
+ *
+ * @author Morris Kurz, morriskurz@gmail.com
+ */
+public final class QuantizedNodeStorage implements INodeStorage {
+
+  /** The size of an encoded node in bytes. */
+  public static final int NODE_SIZE = 16;
+
+  /** The split feature of leaves, one more than the largest encodable feature. */
+  private static final int LEAF = 0xFFFF;
+
+  /** Flags a node whose threshold is kept in the table of exact thresholds. */
+  private static final byte EXACT_THRESHOLD = 16;
+
+  private static final int FLAGS = 2;
+  private static final int THRESHOLD = 4;
+  private static final int VALUE = 4;
+  private static final int LEFT_CHILD = 8;
+  private static final int COVER = 12;
+
+  private static final ByteOrder ORDER = ByteOrder.LITTLE_ENDIAN;
+
+  private final ByteBuffer nodes;
+
+  private final int[] treeOffsets;
+
+  private final ByteBuffer rootValueBuffer;
+
+  private final DoubleBuffer rootValues;
+
+  private final ByteBuffer exactThresholdBuffer;
+
+  private final DoubleBuffer exactThresholds;
+
+  /**
+   * @param nodes The encoded nodes, in little endian order.
+   * @param treeOffsets The index of the root of every tree, followed by the number of nodes.
+   * @param rootValues The value of the root of every tree, in little endian order.
+   * @param exactThresholds The thresholds not representable as float, in little endian order.
+   */
+  public QuantizedNodeStorage(
+      final ByteBuffer nodes,
+      final int[] treeOffsets,
+      final ByteBuffer rootValues,
+      final ByteBuffer exactThresholds) {
+    this.nodes = nodes;
+    this.treeOffsets = treeOffsets;
+    rootValueBuffer = rootValues;
+    this.rootValues = rootValues.asDoubleBuffer();
+    exactThresholdBuffer = exactThresholds;
+    this.exactThresholds = exactThresholds.asDoubleBuffer();
+  }
+
+  /**
+   * Encodes the nodes of an ensemble compactly.
+   *
+   * @return the ensemble with the encoded nodes
+   * @throws InvalidSettingsException if the ensemble has more than {@value #LEAF} features
+   */
+  public static CompiledEnsemble encode(final CompiledEnsemble ensemble)
+      throws InvalidSettingsException {
+    if (ensemble.getNrFeatures() > LEAF) {
+      throw new InvalidSettingsException(
+          "The compact node encoding supports at most " + LEAF + " features.");
+    }
+    final int nrNodes = ensemble.getNrNodes();
+    final int nrTrees = ensemble.getNrTrees();
+    if (nrNodes > Integer.MAX_VALUE / NODE_SIZE) {
+      throw new InvalidSettingsException(
+          "The compact node encoding supports at most "
+              + Integer.MAX_VALUE / NODE_SIZE
+              + " nodes.");
+    }
+    final ByteBuffer nodes = ByteBuffer.allocate(NODE_SIZE * nrNodes).order(ORDER);
+    final ByteBuffer rootValues = ByteBuffer.allocate(8 * nrTrees).order(ORDER);
+    final List<Double> exactThresholds = new ArrayList<>();
+    final int[] order = new int[nrNodes];
+    for (int tree = 0; tree < nrTrees; tree++) {
+      final int root = ensemble.getRoot(tree);
+      rootValues.putDouble(8 * tree, ensemble.getValue(root));
+      // The breadth first order of the tree, the queue being the order itself.
+      order[root] = root;
+      int end = root + 1;
+      for (int index = root; index < end; index++) {
+        final int node = order[index];
+        final int base = NODE_SIZE * index;
+        nodes.putFloat(base + COVER, (float) ensemble.getCover(node));
+        if (ensemble.isLeaf(node)) {
+          nodes.putShort(base, (short) LEAF);
+          nodes.putDouble(base + VALUE, ensemble.getValue(node));
+          continue;
+        }
+        final double threshold = ensemble.getThreshold(node);
+        nodes.putShort(base, (short) ensemble.getSplitFeature(node));
+        if ((float) threshold == threshold) {
+          nodes.put(base + FLAGS, ensemble.getSplitFlags(node));
+          nodes.putFloat(base + THRESHOLD, (float) threshold);
+        } else {
+          nodes.put(base + FLAGS, (byte) (ensemble.getSplitFlags(node) | EXACT_THRESHOLD));
+          nodes.putInt(base + THRESHOLD, exactThresholds.size());
+          exactThresholds.add(threshold);
+        }
+        nodes.putInt(base + LEFT_CHILD, end);
+        order[end++] = ensemble.getLeftChild(node);
+        order[end++] = ensemble.getRightChild(node);
+      }
+    }
+    final ByteBuffer exactThresholdBuffer =
+        ByteBuffer.allocate(8 * exactThresholds.size()).order(ORDER);
+    for (int i = 0; i < exactThresholds.size(); i++) {
+      exactThresholdBuffer.putDouble(8 * i, exactThresholds.get(i));
+    }
+    return new CompiledEnsemble(
+        ensemble.getTreeOffsets(),
+        new QuantizedNodeStorage(
+            nodes, ensemble.getTreeOffsets(), rootValues, exactThresholdBuffer),
+        ensemble.getPlayerOfFeature(),
+        ensemble.getNrPlayers(),
+        ensemble.getScaling(),
+        ensemble.getBaseOffset(),
+        ensemble.getMaximumDepth());
+  }
+
+  @Override
+  public int getNrNodes() {
+    return nodes.limit() / NODE_SIZE;
+  }
+
+  @Override
+  public int getLeftChild(final int node) {
+    return isLeaf(node) ? -1 : nodes.getInt(NODE_SIZE * node + LEFT_CHILD);
+  }
+
+  @Override
+  public int getRightChild(final int node) {
+    return isLeaf(node) ? -1 : nodes.getInt(NODE_SIZE * node + LEFT_CHILD) + 1;
+  }
+
+  @Override
+  public int getSplitFeature(final int node) {
+    final int feature = nodes.getShort(NODE_SIZE * node) & 0xFFFF;
+    return feature == LEAF ? -1 : feature;
+  }
+
+  @Override
+  public double getThreshold(final int node) {
+    if (isLeaf(node)) {
+      return 0;
+    }
+    if ((nodes.get(NODE_SIZE * node + FLAGS) & EXACT_THRESHOLD) != 0) {
+      return exactThresholds.get(nodes.getInt(NODE_SIZE * node + THRESHOLD));
+    }
+    return nodes.getFloat(NODE_SIZE * node + THRESHOLD);
+  }
+
+  @Override
+  public byte getSplitFlags(final int node) {
+    return isLeaf(node) ? 0 : (byte) (nodes.get(NODE_SIZE * node + FLAGS) & ~EXACT_THRESHOLD);
+  }
+
+  /** Only the values of leaves and roots are stored. */
+  @Override
+  public double getValue(final int node) {
+    if (isLeaf(node)) {
+      return nodes.getDouble(NODE_SIZE * node + VALUE);
+    }
+    final int tree = Arrays.binarySearch(treeOffsets, 0, treeOffsets.length - 1, node);
+    if (tree < 0) {
+      throw new IllegalArgumentException("The value of the inner node " + node + " is not stored.");
+    }
+    return rootValues.get(tree);
+  }
+
+  @Override
+  public double getCover(final int node) {
+    return nodes.getFloat(NODE_SIZE * node + COVER);
+  }
+
+  @Override
+  public void free() {
+    DirectBuffers.free(nodes);
+    DirectBuffers.free(rootValueBuffer);
+    DirectBuffers.free(exactThresholdBuffer);
+  }
+
+  /** Copies the encoded node into the buffer. */
+  void copyNode(final int node, final ByteBuffer target) {
+    final int base = NODE_SIZE * node;
+    target.putLong(nodes.getLong(base)).putLong(nodes.getLong(base + 8));
+  }
+
+  double getRootValue(final int tree) {
+    return rootValues.get(tree);
+  }
+
+  int getNrExactThresholds() {
+    return exactThresholds.limit();
+  }
+
+  double getExactThreshold(final int index) {
+    return exactThresholds.get(index);
+  }
+
+  private boolean isLeaf(final int node) {
+    return (nodes.getShort(NODE_SIZE * node) & 0xFFFF) == LEAF;
+  }
+}
@@ -0,0 +1,224 @@
+package org.morriskurz.compiled;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Explains rows on a {@link CompiledEnsemble} with {@link CompiledTreeSHAP}, spreading the work
+ * over a work stealing pool as tasks of a range of rows and a range of tree blocks.
+ *
+ * <p>The cost of a row varies a lot between the trees, with the number of unique players on the
+ * paths, and between rows. Splitting the rows evenly over threads leaves threads idle while the
+ * expensive rows finish. Here, tasks are split recursively until their estimated cost is small
+ * enough, first by rows and then, for a single row, by tree blocks. Idle threads steal the pending
+ * halves, so expensive rows and trees are shared by all threads.
+ *
+ * <p>The trees are grouped into consecutive blocks of a similar estimated cost, the cost of a tree
+ * being its nodes times the unique players on its paths. The partial SHAP values of the blocks are
+ * always summed in the same order, by halving the range of blocks, so the SHAP values do not depend
+ * on how the tasks are split. An instance can be shared between threads.
+ *
+ * @author Morris Kurz, morriskurz@gmail.com
+ */
+public final class WorkStealingTreeSHAP {
+
+  /** The minimum estimated cost of a block of trees. */
+  private static final long BLOCK_COST = 1 << 16;
+
+  /** The estimated cost below which a task is not split. */
+  private static final long MIN_TASK_COST = 1 << 18;
+
+  /** The number of tasks per thread, such that the work can be balanced at the end. */
+  private static final int TASKS_PER_THREAD = 8;
+
+  private final CompiledEnsemble ensemble;
+
+  private final ForkJoinPool pool;
+
+  /** The first tree of every block, followed by the number of trees. */
+  private final int[] blockOffsets;
+
+  /** The summed estimated costs of the blocks before every block. */
+  private final long[] blockCosts;
+
+  /** The explainers keep their paths in fields, so every thread gets its own. */
+  private final ThreadLocal<CompiledTreeSHAP> explainers =
+      new ThreadLocal<CompiledTreeSHAP>() {
+        @Override
+        protected CompiledTreeSHAP initialValue() {
+          return new CompiledTreeSHAP(ensemble);
+        }
+      };
+
+  /** The explanation of a range of rows on a range of tree blocks. */
+  private final class ExplainTask extends RecursiveTask<double[][]> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final double[][] rows;
+
+    private final int firstRow;
+
+    private final int lastRow;
+
+    private final int firstBlock;
+
+    private final int lastBlock;
+
+    private final long taskCost;
+
+    private ExplainTask(
+        final double[][] rows,
+        final int firstRow,
+        final int lastRow,
+        final int firstBlock,
+        final int lastBlock,
+        final long taskCost) {
+      this.rows = rows;
+      this.firstRow = firstRow;
+      this.lastRow = lastRow;
+      this.firstBlock = firstBlock;
+      this.lastBlock = lastBlock;
+      this.taskCost = taskCost;
+    }
+
+    @Override
+    protected double[][] compute() {
+      final int nrRows = lastRow - firstRow;
+      final long cost = nrRows * (blockCosts[lastBlock] - blockCosts[firstBlock]);
+      if (cost <= taskCost || (nrRows == 1 && lastBlock - firstBlock == 1)) {
+        final double[][] phi = new double[nrRows][];
+        for (int row = 0; row < nrRows; row++) {
+          phi[row] = explainBlocks(rows[firstRow + row], firstBlock, lastBlock);
+        }
+        return phi;
+      }
+      if (nrRows > 1) {
+        final int middle = (firstRow + lastRow) >>> 1;
+        final ExplainTask left =
+            new ExplainTask(rows, firstRow, middle, firstBlock, lastBlock, taskCost);
+        left.fork();
+        final double[][] right;
+        try {
+          right = new ExplainTask(rows, middle, lastRow, firstBlock, lastBlock, taskCost).compute();
+        } finally {
+          // Waits for the forked half also if this half failed, so no task outlives the call.
+          left.quietlyJoin();
+        }
+        final double[][] phi = Arrays.copyOf(left.join(), nrRows);
+        System.arraycopy(right, 0, phi, middle - firstRow, right.length);
+        return phi;
+      }
+      // The same halving as in explainBlocks, so the values are summed in the same order.
+      final int middle = (firstBlock + lastBlock) >>> 1;
+      final ExplainTask left =
+          new ExplainTask(rows, firstRow, lastRow, firstBlock, middle, taskCost);
+      left.fork();
+      final double[] right;
+      try {
+        right = new ExplainTask(rows, firstRow, lastRow, middle, lastBlock, taskCost).compute()[0];
+      } finally {
+        left.quietlyJoin();
+      }
+      final double[] phi = left.join()[0];
+      add(right, phi);
+      return new double[][] {phi};
+    }
+  }
+
+  /**
+   * @param ensemble The compiled ensemble.
+   * @param pool The pool the tasks are run on.
+   */
+  public WorkStealingTreeSHAP(final CompiledEnsemble ensemble, final ForkJoinPool pool) {
+    this.ensemble = ensemble;
+    this.pool = pool;
+    final long[] treeCosts = estimateTreeCosts(ensemble);
+    final int[] offsets = new int[treeCosts.length + 1];
+    final long[] costs = new long[treeCosts.length + 1];
+    int nrBlocks = 0;
+    long cost = 0;
+    for (int tree = 0; tree < treeCosts.length; tree++) {
+      cost += treeCosts[tree];
+      if (cost >= BLOCK_COST || tree == treeCosts.length - 1) {
+        nrBlocks++;
+        offsets[nrBlocks] = tree + 1;
+        costs[nrBlocks] = costs[nrBlocks - 1] + cost;
+        cost = 0;
+      }
+    }
+    blockOffsets = Arrays.copyOf(offsets, nrBlocks + 1);
+    blockCosts = Arrays.copyOf(costs, nrBlocks + 1);
+  }
+
+  /**
+   * Computes the SHAP values of rows.
+   *
+   * @param rows The feature values of the rows, NaN for missing values.
+   * @return the SHAP value of every player, followed by the bias, per row
+   */
+  public double[][] explain(final double[][] rows) {
+    final int nrBlocks = blockOffsets.length - 1;
+    if (rows.length == 0 || nrBlocks == 0) {
+      return new double[rows.length][ensemble.getNrPlayers() + 1];
+    }
+    final long totalCost = rows.length * blockCosts[nrBlocks];
+    final long taskCost =
+        Math.max(MIN_TASK_COST, totalCost / ((long) pool.getParallelism() * TASKS_PER_THREAD));
+    final double[][] phi =
+        pool.invoke(new ExplainTask(rows, 0, rows.length, 0, nrBlocks, taskCost));
+    for (final double[] rowPhi : phi) {
+      ensemble.finishExplanation(rowPhi);
+    }
+    return phi;
+  }
+
+  /** @return the unscaled SHAP values of the row on the tree blocks. */
+  private double[] explainBlocks(final double[] row, final int firstBlock, final int lastBlock) {
+    if (lastBlock - firstBlock == 1) {
+      final double[] phi = new double[ensemble.getNrPlayers() + 1];
+      explainers.get().addTrees(row, blockOffsets[firstBlock], blockOffsets[lastBlock], phi);
+      return phi;
+    }
+    final int middle = (firstBlock + lastBlock) >>> 1;
+    final double[] phi = explainBlocks(row, firstBlock, middle);
+    add(explainBlocks(row, middle, lastBlock), phi);
+    return phi;
+  }
+
+  private static void add(final double[] values, final double[] sum) {
+    for (int i = 0; i < values.length; i++) {
+      sum[i] += values[i];
+    }
+  }
+
+  /**
+   * Estimates the cost of explaining a row on every tree. Every node extends the path by one
+   * element, every leaf unwinds all elements, both linear in the number of elements, which is
+   * bounded by the unique players of the tree.
+   */
+  private static long[] estimateTreeCosts(final CompiledEnsemble ensemble) {
+    final long[] costs = new long[ensemble.getNrTrees()];
+    final boolean[] isUsed = new boolean[ensemble.getNrPlayers()];
+    for (int tree = 0; tree < costs.length; tree++) {
+      final int firstNode = ensemble.getRoot(tree);
+      final int lastNode =
+          tree + 1 < costs.length ? ensemble.getRoot(tree + 1) : ensemble.getNrNodes();
+      Arrays.fill(isUsed, false);
+      long nrUniquePlayers = 0;
+      long nrLeaves = 0;
+      for (int node = firstNode; node < lastNode; node++) {
+        if (ensemble.isLeaf(node)) {
+          nrLeaves++;
+        } else if (!isUsed[ensemble.getPlayer(node)]) {
+          isUsed[ensemble.getPlayer(node)] = true;
+          nrUniquePlayers++;
+        }
+      }
+      final long pathLength = Math.min(nrUniquePlayers, ensemble.getMaximumDepth()) + 1;
+      costs[tree] = (lastNode - firstNode) * pathLength + nrLeaves * pathLength * pathLength;
+    }
+    return costs;
+  }
+}
@@ -0,0 +1,59 @@
+package org.morriskurz.compiled.apply;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+import org.knime.core.util.ThreadPool;
+import org.morriskurz.compiled.BatchedTreeSHAP;
+import org.morriskurz.compiled.CompiledEnsemble;
+
+/**
+ * Explains the rows in blocks of {@link BatchedTreeSHAP#BATCH_SIZE}, the blocks of a chunk in
+ * parallel.
+ *
+ * @author Morris Kurz, morriskurz@gmail.com
+ */
+final class BatchedRowExplainer extends ChunkedRowExplainer {
+
+  private final CompiledEnsemble ensemble;
+
+  /** The explainers keep their paths in fields, so every thread gets its own. */
+  private final ThreadLocal<BatchedTreeSHAP> explainers =
+      new ThreadLocal<BatchedTreeSHAP>() {
+        @Override
+        protected BatchedTreeSHAP initialValue() {
+          return new BatchedTreeSHAP(ensemble);
+        }
+      };
+
+  /**
+   * @param ensemble The compiled ensemble.
+   * @param featureColumns The column of every feature of the model in the input table.
+   */
+  BatchedRowExplainer(final CompiledEnsemble ensemble, final int[] featureColumns) {
+    super(
+        featureColumns,
+        BatchedTreeSHAP.BATCH_SIZE * Runtime.getRuntime().availableProcessors());
+    this.ensemble = ensemble;
+  }
+
+  @Override
+  double[][] explain(final double[][] rows, final ThreadPool workers) throws Exception {
+    final int batchSize = BatchedTreeSHAP.BATCH_SIZE;
+    final double[][] phi = new double[rows.length][];
+    runTasks(
+        workers,
+        (rows.length + batchSize - 1) / batchSize,
+        new IntConsumer() {
+          @Override
+          public void accept(final int block) {
+            final int from = block * batchSize;
+            final int to = Math.min(from + batchSize, rows.length);
+            final double[][] blockPhi =
+                explainers.get().explain(Arrays.copyOfRange(rows, from, to));
+            System.arraycopy(blockPhi, 0, phi, from, blockPhi.length);
+          }
+        });
+    return phi;
+  }
+}
@@ -0,0 +1,322 @@
+package org.morriskurz.compiled.apply;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntConsumer;
+
+import org.knime.core.data.DataCell;
+import org.knime.core.data.DataRow;
+import org.knime.core.data.append.AppendedColumnRow;
+import org.knime.core.node.ExecutionMonitor;
+import org.knime.core.node.KNIMEConstants;
+import org.knime.core.node.NodeLogger;
+import org.knime.core.node.streamable.RowInput;
+import org.knime.core.node.streamable.RowOutput;
+import org.knime.core.util.ThreadPool;
+import org.morriskurz.compiled.CompiledExplainerPortObjectSpec;
+import org.morriskurz.summary.ExplanationSummary;
+
+/**
+ * Explains the rows of an input in chunks and appends the SHAP values, keeping the order of the
+ * rows. The rows of a chunk are explained together, which allows the engines to spread the work of
+ * a chunk over threads.
+ *
+ * <p>The chunks pass a pipeline of stages: the calling thread reads the rows of a chunk and decodes
+ * their features, the chunk is explained and its cells are built by a worker of a sub pool of the
+ * KNIME thread pool, and the calling thread pushes the rows of the oldest chunk once {@value
+ * #PIPELINE_DEPTH} chunks are in flight. The workers run in the node context of the node, and the
+ * engines spread the work of a chunk over the same workers, see {@link #runTasks}. Reading,
+ * computing and writing thus overlap, while rows are only read as fast as they are written. The
+ * time spent in every stage is logged at debug level, which shows whether reading, computing,
+ * building the cells or writing is the bottleneck.
+ *
+ * <p>With a {@link RowSampler}, only the sampled rows are explained and written, and reading stops
+ * once the importance estimated from the explained rows is stable. The chunks read until then are
+ * still explained, written and added to the importance.
+ *
+ * @author Morris Kurz, morriskurz@gmail.com
+ */
+abstract class ChunkedRowExplainer {
+
+  private static final NodeLogger LOGGER = NodeLogger.getLogger(ChunkedRowExplainer.class);
+
+  /** The maximum number of chunks read but not yet written. */
+  private static final int PIPELINE_DEPTH = 3;
+
+  private final int[] featureColumns;
+
+  /** The number of rows read before they are explained. */
+  private final int chunkSize;
+
+  private final AtomicLong explainNanos = new AtomicLong();
+
+  private final AtomicLong cellNanos = new AtomicLong();
+
+  /** A chunk of rows passing the stages of the pipeline. */
+  private static final class Chunk {
+
+    private final List<DataRow> rows;
+
+    private final double[][] features;
+
+    /** The stratum of every row, null unless the rows are sampled. */
+    private final int[] strata;
+
+    private double[][] phi;
+
+    private DataCell[][] cells;
+
+    private Chunk(final List<DataRow> rows, final double[][] features, final int[] strata) {
+      this.rows = rows;
+      this.features = features;
+      this.strata = strata;
+    }
+  }
+
+  /**
+   * @param featureColumns The column of every feature of the model in the input table.
+   * @param chunkSize The number of rows explained together.
+   */
+  ChunkedRowExplainer(final int[] featureColumns, final int chunkSize) {
+    this.featureColumns = featureColumns;
+    this.chunkSize = chunkSize;
+  }
+
+  /**
+   * Explains all rows of the input and closes input and output.
+   *
+   * @param nrRows The number of input rows for the progress, negative if unknown.
+   * @param summary The summary the SHAP values of every row are added to.
+   * @param featureOfPlayer The feature of every player, see {@link
+   *     ExplainerCellFactory#getPlayerValues(double[], int[])}, null if the distribution is not
+   *     summarized.
+   * @param sampler The sampler choosing the rows to explain, null to explain all rows.
+   */
+  void run(
+      final RowInput in,
+      final RowOutput out,
+      final ExecutionMonitor exec,
+      final long nrRows,
+      final ExplanationSummary summary,
+      final int[] featureOfPlayer,
+      final RowSampler sampler)
+      throws Exception {
+    final ThreadPool workers =
+        KNIMEConstants.GLOBAL_THREAD_POOL.createSubPool(Runtime.getRuntime().availableProcessors());
+    final ArrayDeque<Future<Chunk>> pending = new ArrayDeque<>();
+    long decodeNanos = 0;
+    long waitNanos = 0;
+    long emitNanos = 0;
+    long nrWritten = 0;
+    try {
+      boolean isLastChunk = false;
+      while (!isLastChunk) {
+        long start = System.nanoTime();
+        final Chunk chunk = decode(in, sampler);
+        decodeNanos += System.nanoTime() - start;
+        isLastChunk = chunk.rows.size() < chunkSize;
+        if (!chunk.rows.isEmpty()) {
+          pending.add(submit(workers, chunk, sampler == null ? summary : null, featureOfPlayer));
+        }
+        while (!pending.isEmpty() && (pending.size() >= PIPELINE_DEPTH || isLastChunk)) {
+          start = System.nanoTime();
+          final Chunk done = getResult(workers, pending.poll());
+          waitNanos += System.nanoTime() - start;
+          start = System.nanoTime();
+          for (int i = 0; i < done.rows.size(); i++) {
+            out.push(new AppendedColumnRow(done.rows.get(i), done.cells[i]));
+          }
+          emitNanos += System.nanoTime() - start;
+          nrWritten += done.rows.size();
+          exec.checkCanceled();
+          if (nrRows > 0) {
+            exec.setProgress(nrWritten / (double) nrRows);
+          }
+          if (sampler != null) {
+            // Added in order of the rows, such that the sample does not depend on the threads.
+            for (int i = 0; i < done.rows.size(); i++) {
+              sampler.add(done.strata[i], done.phi[i]);
+              summary.addShapValues(
+                  done.phi[i],
+                  ExplainerCellFactory.getPlayerValues(done.features[i], featureOfPlayer));
+            }
+            // The chunks in flight are counted as read, so they are still written and added.
+            if (sampler.isDone()) {
+              isLastChunk = true;
+            }
+          }
+        }
+      }
+    } finally {
+      // The running chunks read the ensemble, so they are awaited before the caller may release
+      // it rather than cancelled. Their results and failures are irrelevant here.
+      for (final Future<Chunk> future : pending) {
+        try {
+          getResult(workers, future);
+        } catch (final Exception e) {
+          // Ignored, the chunk is not written.
+        }
+      }
+    }
+    in.close();
+    out.close();
+    LOGGER.debug(
+        "Explained "
+            + nrWritten
+            + " rows, reading "
+            + toMillis(decodeNanos)
+            + " ms, explaining "
+            + toMillis(explainNanos.get())
+            + " ms, building cells "
+            + toMillis(cellNanos.get())
+            + " ms, writing "
+            + toMillis(emitNanos)
+            + " ms, waiting for explanations "
+            + toMillis(waitNanos)
+            + " ms.");
+  }
+
+  /**
+   * @return the next chunk of rows with their features, fewer rows only at the end. Only the
+   *     sampled rows if a sampler is given.
+   */
+  private Chunk decode(final RowInput in, final RowSampler sampler) throws InterruptedException {
+    final List<DataRow> rows = new ArrayList<>(chunkSize);
+    final List<double[]> features = new ArrayList<>(chunkSize);
+    final int[] strata = sampler == null ? null : new int[chunkSize];
+    DataRow row;
+    while (rows.size() < chunkSize && (row = in.poll()) != null) {
+      final double[] rowFeatures =
+          CompiledExplainerPortObjectSpec.getFeatures(row, featureColumns);
+      if (sampler != null) {
+        final int stratum = sampler.sample(rowFeatures);
+        if (stratum < 0) {
+          continue;
+        }
+        strata[rows.size()] = stratum;
+      }
+      rows.add(row);
+      features.add(rowFeatures);
+    }
+    return new Chunk(rows, features.toArray(new double[features.size()][]), strata);
+  }
+
+  /**
+   * Starts explaining the chunk, building its cells and summarizing it. A sampled chunk keeps its
+   * SHAP values and is summarized once it is written, see {@link #run}.
+   */
+  private Future<Chunk> submit(
+      final ThreadPool workers,
+      final Chunk chunk,
+      final ExplanationSummary summary,
+      final int[] featureOfPlayer) {
+    return workers.enqueue(
+        new Callable<Chunk>() {
+          @Override
+          public Chunk call() throws Exception {
+            long start = System.nanoTime();
+            final double[][] phi = explain(chunk.features, workers);
+            explainNanos.addAndGet(System.nanoTime() - start);
+            start = System.nanoTime();
+            chunk.cells = new DataCell[phi.length][];
+            for (int i = 0; i < phi.length; i++) {
+              chunk.cells[i] = ExplainerCellFactory.createCells(phi[i]);
+              if (summary != null) {
+                summary.addShapValues(
+                    phi[i],
+                    ExplainerCellFactory.getPlayerValues(chunk.features[i], featureOfPlayer));
+              }
+            }
+            if (chunk.strata != null) {
+              chunk.phi = phi;
+            }
+            cellNanos.addAndGet(System.nanoTime() - start);
+            return chunk;
+          }
+        });
+  }
+
+  /**
+   * Runs the tasks on the workers and waits for them. The calling thread and the workers take the
+   * next task until all are taken, so tasks of different cost are balanced, and the tasks finish
+   * even if no worker is free.
+   *
+   * @param workers The workers of the pipeline.
+   * @param nrTasks The number of tasks.
+   * @param task Runs the task of the given index.
+   */
+  static void runTasks(final ThreadPool workers, final int nrTasks, final IntConsumer task)
+      throws Exception {
+    final AtomicInteger nextTask = new AtomicInteger();
+    final Callable<Void> worker =
+        new Callable<Void>() {
+          @Override
+          public Void call() {
+            for (int i = nextTask.getAndIncrement(); i < nrTasks; i = nextTask.getAndIncrement()) {
+              task.accept(i);
+            }
+            return null;
+          }
+        };
+    final int nrHelpers = Math.min(nrTasks, Runtime.getRuntime().availableProcessors()) - 1;
+    final List<Future<Void>> helpers = new ArrayList<>(Math.max(nrHelpers, 0));
+    for (int i = 0; i < nrHelpers; i++) {
+      helpers.add(workers.enqueue(worker));
+    }
+    try {
+      worker.call();
+    } finally {
+      for (final Future<Void> helper : helpers) {
+        getResult(workers, helper);
+      }
+    }
+  }
+
+  /** Waits for the future without counting as a thread of the pool, rethrowing its failure. */
+  private static <T> T getResult(final ThreadPool workers, final Future<T> future)
+      throws Exception {
+    try {
+      return workers.runInvisible(
+          new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+              return future.get();
+            }
+          });
+    } catch (final ExecutionException e) {
+      Throwable cause = e.getCause();
+      while (cause instanceof ExecutionException && cause.getCause() != null) {
+        cause = cause.getCause();
+      }
+      if (cause instanceof Exception) {
+        throw (Exception) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw e;
+    }
+  }
+
+  private static long toMillis(final long nanos) {
+    return TimeUnit.NANOSECONDS.toMillis(nanos);
+  }
+
+  /**
+   * Computes the SHAP values of a chunk of rows. Chunks may be explained concurrently.
+   *
+   * @param rows The feature values of the rows, NaN for missing values.
+   * @param workers The workers of the pipeline, to spread the work of the chunk with {@link
+   *     #runTasks}.
+   * @return the SHAP value of every player, followed by the bias, per row
+   * @throws Exception if the rows cannot be explained
+   */
+  abstract double[][] explain(double[][] rows, ThreadPool workers) throws Exception;
+}
@@ -0,0 +1,193 @@
+package org.morriskurz.compiled.apply;
+
+import java.awt.GridBagConstraints;
+import java.awt.GridBagLayout;
+import java.awt.Insets;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+
+import javax.swing.JCheckBox;
+import javax.swing.JComboBox;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.JSpinner;
+import javax.swing.SpinnerNumberModel;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+
+import org.knime.core.node.InvalidSettingsException;
+import org.knime.core.node.NodeDialogPane;
+import org.knime.core.node.NodeSettingsRO;
+import org.knime.core.node.NodeSettingsWO;
+import org.knime.core.node.NotConfigurableException;
+import org.knime.core.node.port.PortObjectSpec;
+
+/**
+ * The node dialog of the "TreeSHAP Explainer Apply" node.
+ *
+ * @author Morris Kurz, morriskurz@gmail.com
+ */
+public final class ExplainerApplyNodeDialog extends NodeDialogPane {
+
+  private final JCheckBox m_singlePrecisionChecker =
+      new JCheckBox("Compute in single precision (float)");
+
+  private final JComboBox<String> m_engine = new JComboBox<>(ExplainerApplySettings.ENGINES);
+
+  private final JSpinner m_distributionBinsSpinner =
+      new JSpinner(new SpinnerNumberModel(0, 0, Integer.MAX_VALUE, 1));
+
+  private final JCheckBox m_sampledChecker =
+      new JCheckBox("Only estimate the feature importance from a sample");
+
+  private final JSpinner m_samplingRateSpinner =
+      new JSpinner(
+          new SpinnerNumberModel(ExplainerApplySettings.DEFAULT_SAMPLING_RATE, 1e-6, 1, 0.01));
+
+  private final JCheckBox m_stratifiedChecker = new JCheckBox("Stratify the sample by prediction");
+
+  private final JSpinner m_rankingToleranceSpinner =
+      new JSpinner(
+          new SpinnerNumberModel(
+              ExplainerApplySettings.DEFAULT_RANKING_TOLERANCE, 0, Double.MAX_VALUE, 0.01));
+
+  private final JSpinner m_minSampledRowsSpinner =
+      new JSpinner(
+          new SpinnerNumberModel(
+              ExplainerApplySettings.DEFAULT_MIN_SAMPLED_ROWS, 2, Integer.MAX_VALUE, 100));
+
+  private final JSpinner m_samplingSeedSpinner =
+      new JSpinner(
+          new SpinnerNumberModel(
+              Long.valueOf(0), Long.valueOf(Long.MIN_VALUE), Long.valueOf(Long.MAX_VALUE), 1L));
+
+  /** */
+  public ExplainerApplyNodeDialog() {
+    final JPanel panel = new JPanel(new GridBagLayout());
+    final GridBagConstraints gbc = new GridBagConstraints();
+    gbc.insets = new Insets(5, 5, 5, 5);
+    gbc.anchor = GridBagConstraints.WEST;
+    m_engine.addActionListener(
+        new ActionListener() {
+
+          @Override
+          public void actionPerformed(final ActionEvent e) {
+            updateSinglePrecisionEnabled();
+          }
+        });
+    gbc.gridx = 0;
+    gbc.gridy = 0;
+    panel.add(new JLabel("Engine"), gbc);
+    gbc.gridx += 1;
+    panel.add(m_engine, gbc);
+    gbc.gridx = 0;
+    gbc.gridy += 1;
+    gbc.gridwidth = 2;
+    panel.add(m_singlePrecisionChecker, gbc);
+    gbc.gridy += 1;
+    gbc.gridwidth = 1;
+    panel.add(new JLabel("SHAP distribution bins (0 = none)"), gbc);
+    gbc.gridx += 1;
+    panel.add(m_distributionBinsSpinner, gbc);
+    addTab("Explainer Settings", panel);
+    addTab("Sampling", createSamplingPanel());
+  }
+
+  private JPanel createSamplingPanel() {
+    m_sampledChecker.addChangeListener(
+        new ChangeListener() {
+
+          @Override
+          public void stateChanged(final ChangeEvent e) {
+            updateSamplingEnabled();
+          }
+        });
+    updateSamplingEnabled();
+    final JPanel panel = new JPanel(new GridBagLayout());
+    final GridBagConstraints gbc = new GridBagConstraints();
+    gbc.insets = new Insets(5, 5, 5, 5);
+    gbc.anchor = GridBagConstraints.WEST;
+    gbc.gridx = 0;
+    gbc.gridy = 0;
+    gbc.gridwidth = 2;
+    panel.add(m_sampledChecker, gbc);
+    gbc.gridy += 1;
+    gbc.gridwidth = 1;
+    panel.add(new JLabel("Sampling rate"), gbc);
+    gbc.gridx += 1;
+    panel.add(m_samplingRateSpinner, gbc);
+    gbc.gridx = 0;
+    gbc.gridy += 1;
+    gbc.gridwidth = 2;
+    panel.add(m_stratifiedChecker, gbc);
+    gbc.gridy += 1;
+    gbc.gridwidth = 1;
+    panel.add(new JLabel("Ranking tolerance"), gbc);
+    gbc.gridx += 1;
+    panel.add(m_rankingToleranceSpinner, gbc);
+    gbc.gridx = 0;
+    gbc.gridy += 1;
+    panel.add(new JLabel("Minimum explained rows"), gbc);
+    gbc.gridx += 1;
+    panel.add(m_minSampledRowsSpinner, gbc);
+    gbc.gridx = 0;
+    gbc.gridy += 1;
+    panel.add(new JLabel("Random seed"), gbc);
+    gbc.gridx += 1;
+    panel.add(m_samplingSeedSpinner, gbc);
+    return panel;
+  }
+
+  /** Only the recursive engine computes in single precision. */
+  private void updateSinglePrecisionEnabled() {
+    final boolean isSupported =
+        ExplainerApplySettings.isSinglePrecisionSupported((String) m_engine.getSelectedItem());
+    m_singlePrecisionChecker.setEnabled(isSupported);
+    if (!isSupported) {
+      m_singlePrecisionChecker.setSelected(false);
+    }
+  }
+
+  private void updateSamplingEnabled() {
+    final boolean isSampled = m_sampledChecker.isSelected();
+    m_samplingRateSpinner.setEnabled(isSampled);
+    m_stratifiedChecker.setEnabled(isSampled);
+    m_rankingToleranceSpinner.setEnabled(isSampled);
+    m_minSampledRowsSpinner.setEnabled(isSampled);
+    m_samplingSeedSpinner.setEnabled(isSampled);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  protected void loadSettingsFrom(final NodeSettingsRO settings, final PortObjectSpec[] specs)
+      throws NotConfigurableException {
+    final ExplainerApplySettings config = new ExplainerApplySettings();
+    config.loadInDialog(settings);
+    m_singlePrecisionChecker.setSelected(config.isSinglePrecision());
+    m_engine.setSelectedItem(config.getEngine());
+    updateSinglePrecisionEnabled();
+    m_distributionBinsSpinner.setValue(config.getDistributionBins());
+    m_samplingRateSpinner.setValue(config.getSamplingRate());
+    m_stratifiedChecker.setSelected(config.isStratified());
+    m_rankingToleranceSpinner.setValue(config.getRankingTolerance());
+    m_minSampledRowsSpinner.setValue(config.getMinSampledRows());
+    m_samplingSeedSpinner.setValue(config.getSamplingSeed());
+    m_sampledChecker.setSelected(config.isSampled());
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  protected void saveSettingsTo(final NodeSettingsWO settings) throws InvalidSettingsException {
+    final ExplainerApplySettings config = new ExplainerApplySettings();
+    config.setSinglePrecision(m_singlePrecisionChecker.isSelected());
+    config.setEngine((String) m_engine.getSelectedItem());
+    config.setDistributionBins((Integer) m_distributionBinsSpinner.getValue());
+    config.setSampled(m_sampledChecker.isSelected());
+    config.setSamplingRate((Double) m_samplingRateSpinner.getValue());
+    config.setStratified(m_stratifiedChecker.isSelected());
+    config.setRankingTolerance((Double) m_rankingToleranceSpinner.getValue());
+    config.setMinSampledRows((Integer) m_minSampledRowsSpinner.getValue());
+    config.setSamplingSeed((Long) m_samplingSeedSpinner.getValue());
+    config.save(settings);
+  }
+}
@@ -0,0 +1,44 @@
+package org.morriskurz.compiled.apply;
+
+import org.knime.core.node.NodeDialogPane;
+import org.knime.core.node.NodeFactory;
+import org.knime.core.node.NodeView;
+
+/**
+ * Node factory of the "TreeSHAP Explainer Apply" node.
+ *
+ * @author Morris Kurz, morriskurz@gmail.com
+ */
+public class ExplainerApplyNodeFactory extends NodeFactory<ExplainerApplyNodeModel> {
+
+  /** {@inheritDoc} */
+  @Override
+  public NodeDialogPane createNodeDialogPane() {
+    return new ExplainerApplyNodeDialog();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public ExplainerApplyNodeModel createNodeModel() {
+    return new ExplainerApplyNodeModel();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public NodeView<ExplainerApplyNodeModel> createNodeView(
+      final int viewIndex, final ExplainerApplyNodeModel nodeModel) {
+    throw new IndexOutOfBoundsException();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public int getNrNodeViews() {
+    return 0;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean hasDialog() {
+    return true;
+  }
+}
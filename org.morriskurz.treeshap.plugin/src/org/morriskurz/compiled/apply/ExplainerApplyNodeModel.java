@@ -0,0 +1,377 @@
+package org.morriskurz.compiled.apply;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.knime.core.data.DataColumnSpec;
+import org.knime.core.data.DataTableSpec;
+import org.knime.core.data.container.ColumnRearranger;
+import org.knime.core.data.def.DoubleCell;
+import org.knime.core.node.BufferedDataTable;
+import org.knime.core.node.CanceledExecutionException;
+import org.knime.core.node.ExecutionContext;
+import org.knime.core.node.ExecutionMonitor;
+import org.knime.core.node.InvalidSettingsException;
+import org.knime.core.node.NodeModel;
+import org.knime.core.node.NodeSettingsRO;
+import org.knime.core.node.NodeSettingsWO;
+import org.knime.core.node.port.PortObject;
+import org.knime.core.node.port.PortObjectSpec;
+import org.knime.core.node.port.PortType;
+import org.knime.core.node.streamable.BufferedDataTableRowOutput;
+import org.knime.core.node.streamable.DataTableRowInput;
+import org.knime.core.node.streamable.InputPortRole;
+import org.knime.core.node.streamable.MergeOperator;
+import org.knime.core.node.streamable.OutputPortRole;
+import org.knime.core.node.streamable.PartitionInfo;
+import org.knime.core.node.streamable.PortInput;
+import org.knime.core.node.streamable.PortObjectInput;
+import org.knime.core.node.streamable.PortOutput;
+import org.knime.core.node.streamable.RowInput;
+import org.knime.core.node.streamable.RowOutput;
+import org.knime.core.node.streamable.StreamableOperator;
+import org.knime.core.node.streamable.StreamableOperatorInternals;
+import org.knime.core.util.UniqueNameGenerator;
+import org.morriskurz.compiled.CompiledEnsemble;
+import org.morriskurz.compiled.CompiledExplainerPortObject;
+import org.morriskurz.compiled.CompiledExplainerPortObjectSpec;
+import org.morriskurz.compiled.OffHeapEnsembleCache.Lease;
+import org.morriskurz.compiled.PathList;
+import org.morriskurz.summary.ExplanationSummary;
+import org.morriskurz.summary.SampledImportance;
+
+/**
+ * Node model of the "TreeSHAP Explainer Apply" node. Appends the SHAP values computed by a compiled
+ * explainer to the input table.
+ *
+ * @author Morris Kurz, morriskurz@gmail.com
+ */
+public class ExplainerApplyNodeModel extends NodeModel {
+
+  private final ExplainerApplySettings settings = new ExplainerApplySettings();
+
+  /** Constructor for the node model. */
+  protected ExplainerApplyNodeModel() {
+    super(
+        new PortType[] {CompiledExplainerPortObject.TYPE, BufferedDataTable.TYPE},
+        new PortType[] {BufferedDataTable.TYPE, BufferedDataTable.TYPE, BufferedDataTable.TYPE});
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  protected PortObjectSpec[] configure(final PortObjectSpec[] inSpecs)
+      throws InvalidSettingsException {
+    final CompiledExplainerPortObjectSpec explainerSpec =
+        (CompiledExplainerPortObjectSpec) inSpecs[0];
+    final DataTableSpec dataSpec = (DataTableSpec) inSpecs[1];
+    explainerSpec.findFeatureColumns(dataSpec);
+    if (settings.isSinglePrecision()
+        && !ExplainerApplySettings.isSinglePrecisionSupported(settings.getEngine())) {
+      throw new InvalidSettingsException(
+          "The engine \""
+              + settings.getEngine()
+              + "\" computes in double precision only. Select the recursive engine or compute in "
+              + "double precision.");
+    }
+    if (settings.isSampled()
+        && ExplainerApplySettings.ENGINE_RECURSIVE.equals(settings.getEngine())) {
+      throw new InvalidSettingsException(
+          "The sampled feature importance is not available for the recursive engine, which "
+              + "explains the rows one by one. Select another engine.");
+    }
+    return new PortObjectSpec[] {
+      new DataTableSpec(dataSpec, new DataTableSpec(createColumnSpecs(explainerSpec, dataSpec))),
+      settings.isSampled()
+          ? ExplanationSummary.createSampledImportanceSpec()
+          : ExplanationSummary.createImportanceSpec(),
+      ExplanationSummary.createDistributionSpec()
+    };
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public StreamableOperator createStreamableOperator(
+      final PartitionInfo partitionInfo, final PortObjectSpec[] inSpecs)
+      throws InvalidSettingsException {
+    return new StreamableOperator() {
+
+      private final ExplanationSummary summary =
+          new ExplanationSummary(settings.getDistributionBins());
+
+      @Override
+      public void runFinal(
+          final PortInput[] inputs, final PortOutput[] outputs, final ExecutionContext exec)
+          throws Exception {
+        final CompiledExplainerPortObject explainer =
+            (CompiledExplainerPortObject) ((PortObjectInput) inputs[0]).getPortObject();
+        summary.setPlayerNames(explainer.getSpec().getPlayerNames());
+        try (final Lease lease = explainer.acquireEnsemble()) {
+          final ChunkedRowExplainer chunkedExplainer =
+              createChunkedExplainer(
+                  explainer.getSpec(), lease.getEnsemble(), (DataTableSpec) inSpecs[1]);
+          if (chunkedExplainer != null) {
+            chunkedExplainer.run(
+                (RowInput) inputs[1],
+                (RowOutput) outputs[0],
+                exec,
+                -1,
+                summary,
+                findPlayerFeatures(explainer.getSpec()),
+                createSampler(
+                    explainer.getSpec(),
+                    lease.getEnsemble(),
+                    summary,
+                    partitionInfo.getPartitionIndex()));
+            return;
+          }
+          createRearranger(
+                  explainer.getSpec(), lease.getEnsemble(), (DataTableSpec) inSpecs[1], summary)
+              .createStreamableFunction(1, 0)
+              .runFinal(inputs, outputs, exec);
+        }
+      }
+
+      @Override
+      public StreamableOperatorInternals saveInternals() {
+        return summary.saveInternals();
+      }
+    };
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  protected PortObject[] execute(final PortObject[] inObjects, final ExecutionContext exec)
+      throws Exception {
+    final CompiledExplainerPortObject explainer = (CompiledExplainerPortObject) inObjects[0];
+    final BufferedDataTable inData = (BufferedDataTable) inObjects[1];
+    final ExplanationSummary summary = new ExplanationSummary(settings.getDistributionBins());
+    summary.setPlayerNames(explainer.getSpec().getPlayerNames());
+    // The ensemble stays pinned off the heap until all rows are explained.
+    try (final Lease lease = explainer.acquireEnsemble()) {
+      final DataTableSpec dataSpec = inData.getDataTableSpec();
+      final ChunkedRowExplainer chunkedExplainer =
+          createChunkedExplainer(explainer.getSpec(), lease.getEnsemble(), dataSpec);
+      if (chunkedExplainer != null) {
+        final BufferedDataTableRowOutput out =
+            new BufferedDataTableRowOutput(
+                exec.createDataContainer(
+                    new DataTableSpec(
+                        dataSpec,
+                        new DataTableSpec(createColumnSpecs(explainer.getSpec(), dataSpec)))));
+        final RowSampler sampler =
+            createSampler(explainer.getSpec(), lease.getEnsemble(), summary, 0);
+        chunkedExplainer.run(
+            new DataTableRowInput(inData),
+            out,
+            exec,
+            // The explained rows of a sample are no measure of the progress.
+            sampler == null ? inData.size() : -1,
+            summary,
+            findPlayerFeatures(explainer.getSpec()),
+            sampler);
+        return new BufferedDataTable[] {
+          out.getDataTable(),
+          createImportanceTable(summary, exec),
+          createDistributionTable(summary, exec)
+        };
+      }
+      final ColumnRearranger rearranger =
+          createRearranger(explainer.getSpec(), lease.getEnsemble(), dataSpec, summary);
+      return new BufferedDataTable[] {
+        exec.createColumnRearrangeTable(inData, rearranger, exec),
+        createImportanceTable(summary, exec),
+        createDistributionTable(summary, exec)
+      };
+    }
+  }
+
+  private BufferedDataTable createImportanceTable(
+      final ExplanationSummary summary, final ExecutionContext exec) throws InterruptedException {
+    if (settings.isSampled()) {
+      final BufferedDataTableRowOutput out =
+          new BufferedDataTableRowOutput(
+              exec.createDataContainer(ExplanationSummary.createSampledImportanceSpec()));
+      summary.writeSampledImportance(out, settings.getRankingTolerance());
+      return out.getDataTable();
+    }
+    final BufferedDataTableRowOutput out =
+        new BufferedDataTableRowOutput(
+            exec.createDataContainer(ExplanationSummary.createImportanceSpec()));
+    summary.writeImportance(out);
+    return out.getDataTable();
+  }
+
+  /**
+   * @param partitionIndex The index of the streamed partition, which varies the seed.
+   * @return the sampler of the rows, null if all rows are explained
+   */
+  private RowSampler createSampler(
+      final CompiledExplainerPortObjectSpec explainerSpec,
+      final CompiledEnsemble ensemble,
+      final ExplanationSummary summary,
+      final int partitionIndex) {
+    if (!settings.isSampled()) {
+      return null;
+    }
+    final SampledImportance importance =
+        new SampledImportance(
+            explainerSpec.getPlayerNames(), settings.isStratified() ? RowSampler.NR_STRATA : 1);
+    summary.setSampledImportance(importance);
+    return new RowSampler(
+        importance,
+        ensemble,
+        settings.getSamplingRate(),
+        settings.getRankingTolerance(),
+        settings.getMinSampledRows(),
+        settings.getSamplingSeed() + partitionIndex);
+  }
+
+  private static BufferedDataTable createDistributionTable(
+      final ExplanationSummary summary, final ExecutionContext exec) throws InterruptedException {
+    final BufferedDataTableRowOutput out =
+        new BufferedDataTableRowOutput(
+            exec.createDataContainer(ExplanationSummary.createDistributionSpec()));
+    summary.writeDistribution(out);
+    return out.getDataTable();
+  }
+
+  private ColumnRearranger createRearranger(
+      final CompiledExplainerPortObjectSpec explainerSpec,
+      final CompiledEnsemble ensemble,
+      final DataTableSpec dataSpec,
+      final ExplanationSummary summary)
+      throws InvalidSettingsException {
+    final ColumnRearranger rearranger = new ColumnRearranger(dataSpec);
+    rearranger.append(
+        new ExplainerCellFactory(
+            createColumnSpecs(explainerSpec, dataSpec),
+            ensemble,
+            explainerSpec.findFeatureColumns(dataSpec),
+            settings.isSinglePrecision(),
+            summary,
+            findPlayerFeatures(explainerSpec)));
+    return rearranger;
+  }
+
+  /**
+   * @return the explainer of the selected engine, null for the recursive engine, which explains
+   *     the rows one by one.
+   */
+  private ChunkedRowExplainer createChunkedExplainer(
+      final CompiledExplainerPortObjectSpec explainerSpec,
+      final CompiledEnsemble ensemble,
+      final DataTableSpec dataSpec)
+      throws InvalidSettingsException {
+    final int[] featureColumns = explainerSpec.findFeatureColumns(dataSpec);
+    switch (settings.getEngine()) {
+      case ExplainerApplySettings.ENGINE_BATCHED:
+        return new BatchedRowExplainer(ensemble, featureColumns);
+      case ExplainerApplySettings.ENGINE_PATH_LIST:
+        return new PathListRowExplainer(PathList.create(ensemble), featureColumns);
+      case ExplainerApplySettings.ENGINE_WORK_STEALING:
+        return new WorkStealingRowExplainer(ensemble, featureColumns);
+      default:
+        return null;
+    }
+  }
+
+  /** @return one SHAP column per player, followed by the bias column. */
+  private static DataColumnSpec[] createColumnSpecs(
+      final CompiledExplainerPortObjectSpec explainerSpec, final DataTableSpec dataSpec) {
+    final UniqueNameGenerator nameGenerator = new UniqueNameGenerator(dataSpec);
+    final String[] playerNames = explainerSpec.getPlayerNames();
+    final DataColumnSpec[] specs = new DataColumnSpec[playerNames.length + 1];
+    for (int i = 0; i < playerNames.length; i++) {
+      specs[i] = nameGenerator.newColumn("SHAP " + playerNames[i], DoubleCell.TYPE);
+    }
+    specs[playerNames.length] = nameGenerator.newColumn("Bias", DoubleCell.TYPE);
+    return specs;
+  }
+
+  /**
+   * @return the feature of every player, -1 if the player is a group of features, null if the
+   *     distribution is not summarized.
+   */
+  private int[] findPlayerFeatures(final CompiledExplainerPortObjectSpec explainerSpec) {
+    if (settings.getDistributionBins() == 0) {
+      return null;
+    }
+    final List<String> featureNames = Arrays.asList(explainerSpec.getFeatureNames());
+    final String[] playerNames = explainerSpec.getPlayerNames();
+    final int[] features = new int[playerNames.length];
+    for (int i = 0; i < playerNames.length; i++) {
+      features[i] = featureNames.indexOf(playerNames[i]);
+    }
+    return features;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public InputPortRole[] getInputPortRoles() {
+    return new InputPortRole[] {
+      InputPortRole.NONDISTRIBUTED_NONSTREAMABLE, InputPortRole.DISTRIBUTED_STREAMABLE
+    };
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public OutputPortRole[] getOutputPortRoles() {
+    return new OutputPortRole[] {
+      OutputPortRole.DISTRIBUTED, OutputPortRole.NONDISTRIBUTED, OutputPortRole.NONDISTRIBUTED
+    };
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public MergeOperator createMergeOperator() {
+    return ExplanationSummary.createMergeOperator();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void finishStreamableExecution(
+      final StreamableOperatorInternals internals,
+      final ExecutionContext exec,
+      final PortOutput[] output)
+      throws Exception {
+    if (settings.isSampled()) {
+      ExplanationSummary.writeSampledImportance(
+          internals, (RowOutput) output[1], settings.getRankingTolerance());
+    } else {
+      ExplanationSummary.writeImportance(internals, (RowOutput) output[1]);
+    }
+    ExplanationSummary.writeDistribution(internals, (RowOutput) output[2]);
+  }
+
+  @Override
+  protected void loadInternals(final File nodeInternDir, final ExecutionMonitor exec)
+      throws IOException, CanceledExecutionException {}
+
+  /** {@inheritDoc} */
+  @Override
+  protected void loadValidatedSettingsFrom(final NodeSettingsRO settings)
+      throws InvalidSettingsException {
+    this.settings.loadInModel(settings);
+  }
+
+  @Override
+  protected void reset() {}
+
+  @Override
+  protected void saveInternals(final File nodeInternDir, final ExecutionMonitor exec)
+      throws IOException, CanceledExecutionException {}
+
+  /** {@inheritDoc} */
+  @Override
+  protected void saveSettingsTo(final NodeSettingsWO settings) {
+    this.settings.save(settings);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  protected void validateSettings(final NodeSettingsRO settings) throws InvalidSettingsException {
+    new ExplainerApplySettings().loadInModel(settings);
+  }
+}
@@ -0,0 +1,233 @@
+package org.morriskurz.compiled.apply;
+
+import java.util.Arrays;
+
+import org.knime.core.node.InvalidSettingsException;
+import org.knime.core.node.NodeSettingsRO;
+import org.knime.core.node.NodeSettingsWO;
+
+/**
+ * Settings of the "TreeSHAP Explainer Apply" node.
+ *
+ * @author Morris Kurz, morriskurz@gmail.com
+ */
+public final class ExplainerApplySettings {
+
+  private static final String CFG_SINGLE_PRECISION = "singlePrecision";
+
+  private static final String CFG_ENGINE = "engine";
+
+  private static final String CFG_DISTRIBUTION_BINS = "distributionBins";
+
+  private static final String CFG_SAMPLED = "sampled";
+
+  private static final String CFG_SAMPLING_RATE = "samplingRate";
+
+  private static final String CFG_STRATIFIED = "stratified";
+
+  private static final String CFG_RANKING_TOLERANCE = "rankingTolerance";
+
+  private static final String CFG_MIN_SAMPLED_ROWS = "minSampledRows";
+
+  private static final String CFG_SAMPLING_SEED = "samplingSeed";
+
+  /** The default fraction of the rows explained in the sampled mode. */
+  public static final double DEFAULT_SAMPLING_RATE = 0.01;
+
+  /** The default tolerance of the ranking in the sampled mode. */
+  public static final double DEFAULT_RANKING_TOLERANCE = 0.05;
+
+  /** The default number of rows explained before the ranking is checked. */
+  public static final int DEFAULT_MIN_SAMPLED_ROWS = 1000;
+
+  /** Walks the trees recursively, row by row. The only engine computing in single precision. */
+  public static final String ENGINE_RECURSIVE = "Recursive";
+
+  /** Walks the trees recursively, split into tasks of rows and tree blocks for idle threads. */
+  public static final String ENGINE_WORK_STEALING = "Work stealing";
+
+  /** Walks the trees once per block of rows. */
+  public static final String ENGINE_BATCHED = "Batched rows";
+
+  /** Computes the contributions of the root to leaf paths of the trees. */
+  public static final String ENGINE_PATH_LIST = "Path list";
+
+  /** All engines, as offered in the dialog. */
+  public static final String[] ENGINES = {
+    ENGINE_WORK_STEALING, ENGINE_RECURSIVE, ENGINE_BATCHED, ENGINE_PATH_LIST
+  };
+
+  private boolean singlePrecision;
+
+  private String engine = ENGINE_WORK_STEALING;
+
+  private int distributionBins;
+
+  private boolean sampled;
+
+  private double samplingRate = DEFAULT_SAMPLING_RATE;
+
+  private boolean stratified;
+
+  private double rankingTolerance = DEFAULT_RANKING_TOLERANCE;
+
+  private int minSampledRows = DEFAULT_MIN_SAMPLED_ROWS;
+
+  private long samplingSeed;
+
+  /** @return whether the SHAP values are computed in float. */
+  public boolean isSinglePrecision() {
+    return singlePrecision;
+  }
+
+  /** @return the engine computing the SHAP values, one of {@link #ENGINES}. */
+  public String getEngine() {
+    return engine;
+  }
+
+  /**
+   * @param engine One of {@link #ENGINES}.
+   * @return whether the engine can compute in single precision
+   */
+  public static boolean isSinglePrecisionSupported(final String engine) {
+    return ENGINE_RECURSIVE.equals(engine);
+  }
+
+  /**
+   * @return the number of quantile bins of the feature values and of the SHAP values in the SHAP
+   *     distribution, 0 to not summarize the distribution
+   */
+  public int getDistributionBins() {
+    return distributionBins;
+  }
+
+  /** @return the number of rows explained before the ranking is checked in the sampled mode. */
+  public int getMinSampledRows() {
+    return minSampledRows;
+  }
+
+  /**
+   * @return the tolerance of the ranking in the sampled mode, relative to the largest mean absolute
+   *     SHAP value
+   */
+  public double getRankingTolerance() {
+    return rankingTolerance;
+  }
+
+  /** @return the fraction of the rows explained in the sampled mode. */
+  public double getSamplingRate() {
+    return samplingRate;
+  }
+
+  public long getSamplingSeed() {
+    return samplingSeed;
+  }
+
+  /**
+   * @return whether only a sample of the rows is explained, until the importance ranking is
+   *     stable
+   */
+  public boolean isSampled() {
+    return sampled;
+  }
+
+  /** @return whether the sample is stratified by the prediction. */
+  public boolean isStratified() {
+    return stratified;
+  }
+
+  public void loadInDialog(final NodeSettingsRO settings) {
+    singlePrecision = settings.getBoolean(CFG_SINGLE_PRECISION, false);
+    engine = settings.getString(CFG_ENGINE, ENGINE_RECURSIVE);
+    distributionBins = settings.getInt(CFG_DISTRIBUTION_BINS, 0);
+    sampled = settings.getBoolean(CFG_SAMPLED, false);
+    samplingRate = settings.getDouble(CFG_SAMPLING_RATE, DEFAULT_SAMPLING_RATE);
+    stratified = settings.getBoolean(CFG_STRATIFIED, false);
+    rankingTolerance = settings.getDouble(CFG_RANKING_TOLERANCE, DEFAULT_RANKING_TOLERANCE);
+    minSampledRows = settings.getInt(CFG_MIN_SAMPLED_ROWS, DEFAULT_MIN_SAMPLED_ROWS);
+    samplingSeed = settings.getLong(CFG_SAMPLING_SEED, 0);
+  }
+
+  public void loadInModel(final NodeSettingsRO settings) throws InvalidSettingsException {
+    // Added later, older settings compute in double.
+    singlePrecision = settings.getBoolean(CFG_SINGLE_PRECISION, false);
+    // Added later, older settings explain row by row.
+    engine = settings.getString(CFG_ENGINE, ENGINE_RECURSIVE);
+    if (!Arrays.asList(ENGINES).contains(engine)) {
+      throw new InvalidSettingsException("Unknown engine \"" + engine + "\".");
+    }
+    // Added later, older settings do not summarize the distribution.
+    distributionBins = settings.getInt(CFG_DISTRIBUTION_BINS, 0);
+    if (distributionBins < 0) {
+      throw new InvalidSettingsException(
+          "The number of distribution bins must not be negative: " + distributionBins);
+    }
+    // Added later, older settings explain all rows.
+    sampled = settings.getBoolean(CFG_SAMPLED, false);
+    samplingRate = settings.getDouble(CFG_SAMPLING_RATE, DEFAULT_SAMPLING_RATE);
+    if (!(samplingRate > 0 && samplingRate <= 1)) {
+      throw new InvalidSettingsException("The sampling rate must be in (0, 1]: " + samplingRate);
+    }
+    stratified = settings.getBoolean(CFG_STRATIFIED, false);
+    rankingTolerance = settings.getDouble(CFG_RANKING_TOLERANCE, DEFAULT_RANKING_TOLERANCE);
+    if (!(rankingTolerance >= 0)) {
+      throw new InvalidSettingsException(
+          "The ranking tolerance must not be negative: " + rankingTolerance);
+    }
+    minSampledRows = settings.getInt(CFG_MIN_SAMPLED_ROWS, DEFAULT_MIN_SAMPLED_ROWS);
+    if (minSampledRows < 2) {
+      throw new InvalidSettingsException(
+          "At least two rows must be explained before the ranking is checked: "
+              + minSampledRows);
+    }
+    samplingSeed = settings.getLong(CFG_SAMPLING_SEED, 0);
+  }
+
+  public void save(final NodeSettingsWO settings) {
+    settings.addBoolean(CFG_SINGLE_PRECISION, singlePrecision);
+    settings.addString(CFG_ENGINE, engine);
+    settings.addInt(CFG_DISTRIBUTION_BINS, distributionBins);
+    settings.addBoolean(CFG_SAMPLED, sampled);
+    settings.addDouble(CFG_SAMPLING_RATE, samplingRate);
+    settings.addBoolean(CFG_STRATIFIED, stratified);
+    settings.addDouble(CFG_RANKING_TOLERANCE, rankingTolerance);
+    settings.addInt(CFG_MIN_SAMPLED_ROWS, minSampledRows);
+    settings.addLong(CFG_SAMPLING_SEED, samplingSeed);
+  }
+
+  public void setDistributionBins(final int distributionBins) {
+    this.distributionBins = distributionBins;
+  }
+
+  public void setEngine(final String engine) {
+    this.engine = engine;
+  }
+
+  public void setMinSampledRows(final int minSampledRows) {
+    this.minSampledRows = minSampledRows;
+  }
+
+  public void setRankingTolerance(final double rankingTolerance) {
+    this.rankingTolerance = rankingTolerance;
+  }
+
+  public void setSampled(final boolean sampled) {
+    this.sampled = sampled;
+  }
+
+  public void setSamplingRate(final double samplingRate) {
+    this.samplingRate = samplingRate;
+  }
+
+  public void setSamplingSeed(final long samplingSeed) {
+    this.samplingSeed = samplingSeed;
+  }
+
+  public void setSinglePrecision(final boolean singlePrecision) {
+    this.singlePrecision = singlePrecision;
+  }
+
+  public void setStratified(final boolean stratified) {
+    this.stratified = stratified;
+  }
+}
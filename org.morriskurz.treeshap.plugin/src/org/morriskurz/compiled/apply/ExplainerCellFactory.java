@@ -0,0 +1,101 @@
+package org.morriskurz.compiled.apply;
+
+import org.knime.core.data.DataCell;
+import org.knime.core.data.DataColumnSpec;
+import org.knime.core.data.DataRow;
+import org.knime.core.data.container.AbstractCellFactory;
+import org.knime.core.data.def.DoubleCell;
+import org.morriskurz.compiled.CompiledEnsemble;
+import org.morriskurz.compiled.CompiledExplainerPortObjectSpec;
+import org.morriskurz.compiled.CompiledTreeSHAP;
+import org.morriskurz.compiled.CompiledTreeSHAPFloat;
+import org.morriskurz.compiled.ICompiledExplainer;
+import org.morriskurz.summary.ExplanationSummary;
+
+/**
+ * Appends the SHAP values of every player and the bias computed by a compiled explainer.
+ *
+ * @author Morris Kurz, morriskurz@gmail.com
+ */
+final class ExplainerCellFactory extends AbstractCellFactory {
+
+  private final CompiledEnsemble ensemble;
+
+  private final int[] featureColumns;
+
+  private final boolean singlePrecision;
+
+  private final ExplanationSummary summary;
+
+  private final int[] featureOfPlayer;
+
+  /** The explainers keep their paths in fields, so every thread gets its own. */
+  private final ThreadLocal<ICompiledExplainer> explainers =
+      new ThreadLocal<ICompiledExplainer>() {
+        @Override
+        protected ICompiledExplainer initialValue() {
+          return singlePrecision
+              ? new CompiledTreeSHAPFloat(ensemble)
+              : new CompiledTreeSHAP(ensemble);
+        }
+      };
+
+  /**
+   * @param colSpecs The specs of the SHAP columns followed by the bias column.
+   * @param ensemble The compiled ensemble.
+   * @param featureColumns The column of every feature of the model in the input table.
+   * @param singlePrecision Whether the SHAP values are computed in float.
+   * @param summary The summary the SHAP values of every row are added to.
+   * @param featureOfPlayer The feature of every player, see {@link #getPlayerValues(double[],
+   *     int[])}, null if the distribution is not summarized.
+   */
+  ExplainerCellFactory(
+      final DataColumnSpec[] colSpecs,
+      final CompiledEnsemble ensemble,
+      final int[] featureColumns,
+      final boolean singlePrecision,
+      final ExplanationSummary summary,
+      final int[] featureOfPlayer) {
+    super(colSpecs);
+    this.ensemble = ensemble;
+    this.featureColumns = featureColumns;
+    this.singlePrecision = singlePrecision;
+    this.summary = summary;
+    this.featureOfPlayer = featureOfPlayer;
+    setParallelProcessing(true);
+  }
+
+  @Override
+  public DataCell[] getCells(final DataRow row) {
+    final double[] features = CompiledExplainerPortObjectSpec.getFeatures(row, featureColumns);
+    final double[] phi = explainers.get().explain(features);
+    summary.addShapValues(phi, getPlayerValues(features, featureOfPlayer));
+    return createCells(phi);
+  }
+
+  /**
+   * @param features The value of every feature of a row.
+   * @param featureOfPlayer The feature of every player, -1 if the player is a group of features.
+   *     Null if the distribution is not summarized.
+   * @return the feature value of every player, NaN for groups, null if featureOfPlayer is null
+   */
+  static double[] getPlayerValues(final double[] features, final int[] featureOfPlayer) {
+    if (featureOfPlayer == null) {
+      return null;
+    }
+    final double[] values = new double[featureOfPlayer.length];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = featureOfPlayer[i] < 0 ? Double.NaN : features[featureOfPlayer[i]];
+    }
+    return values;
+  }
+
+  /** @return the cells of the SHAP values and the bias. */
+  static DataCell[] createCells(final double[] phi) {
+    final DataCell[] cells = new DataCell[phi.length];
+    for (int i = 0; i < phi.length; i++) {
+      cells[i] = new DoubleCell(phi[i]);
+    }
+    return cells;
+  }
+}
@@ -0,0 +1,70 @@
+package org.morriskurz.compiled.apply;
+
+import java.util.function.IntConsumer;
+
+import org.knime.core.util.ThreadPool;
+import org.morriskurz.compiled.PathList;
+import org.morriskurz.compiled.PathListTreeSHAP;
+
+/**
+ * Explains the rows on the paths of a {@link PathList}. The work of a chunk is split into one task
+ * per row and block of paths, so unbalanced trees and rows are spread evenly over the workers. The
+ * partial SHAP values of the blocks are summed in block order, so they do not depend on the order
+ * the tasks run in.
+ *
+ * @author Morris Kurz, morriskurz@gmail.com
+ */
+final class PathListRowExplainer extends ChunkedRowExplainer {
+
+  /** The number of rows explained together. */
+  private static final int CHUNK_SIZE = 256;
+
+  private final PathList paths;
+
+  /** The explainers keep their paths in fields, so every thread gets its own. */
+  private final ThreadLocal<PathListTreeSHAP> explainers =
+      new ThreadLocal<PathListTreeSHAP>() {
+        @Override
+        protected PathListTreeSHAP initialValue() {
+          return new PathListTreeSHAP(paths);
+        }
+      };
+
+  /**
+   * @param paths The paths of the trees of the ensemble.
+   * @param featureColumns The column of every feature of the model in the input table.
+   */
+  PathListRowExplainer(final PathList paths, final int[] featureColumns) {
+    super(featureColumns, CHUNK_SIZE);
+    this.paths = paths;
+  }
+
+  @Override
+  double[][] explain(final double[][] rows, final ThreadPool workers) throws Exception {
+    final int nrPlayers = paths.getNrPlayers();
+    final int nrBlocks = paths.getNrBlocks();
+    final double[][][] blockPhi = new double[rows.length][nrBlocks][];
+    runTasks(
+        workers,
+        rows.length * nrBlocks,
+        new IntConsumer() {
+          @Override
+          public void accept(final int task) {
+            final int row = task / nrBlocks;
+            final int block = task % nrBlocks;
+            blockPhi[row][block] = new double[nrPlayers + 1];
+            explainers.get().addBlock(rows[row], block, blockPhi[row][block]);
+          }
+        });
+    final double[][] phi = new double[rows.length][nrPlayers + 1];
+    for (int row = 0; row < rows.length; row++) {
+      for (final double[] partial : blockPhi[row]) {
+        for (int i = 0; i < nrPlayers; i++) {
+          phi[row][i] += partial[i];
+        }
+      }
+      phi[row][nrPlayers] = paths.getBias();
+    }
+    return phi;
+  }
+}
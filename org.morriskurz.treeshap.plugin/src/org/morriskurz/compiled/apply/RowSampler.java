@@ -0,0 +1,122 @@
+package org.morriskurz.compiled.apply;
+
+import java.util.Random;
+
+import org.morriskurz.compiled.CompiledEnsemble;
+import org.morriskurz.summary.SampledImportance;
+
+/**
+ * Samples the rows of an input in streaming order and decides when the importance estimated from
+ * the sample is good enough to stop reading.
+ *
+ * <p>Without strata every row is explained with the sampling rate. With strata, the output range
+ * of the ensemble is split into {@value #NR_STRATA} strata of equal width and every stratum gets an
+ * equal share of the sample, such that rare predictions are sampled more often. The share of a
+ * stratum is spread over its rows by explaining a row with the ratio of the share to the rows of
+ * the stratum read so far.
+ *
+ * @author Morris Kurz, morriskurz@gmail.com
+ */
+final class RowSampler {
+
+  /** The number of strata of the prediction if the sample is stratified. */
+  static final int NR_STRATA = 10;
+
+  private final SampledImportance importance;
+
+  /** The ensemble predicting the strata, null if the sample is not stratified. */
+  private final CompiledEnsemble ensemble;
+
+  private final double lowerBound;
+
+  private final double stratumWidth;
+
+  private final double rate;
+
+  private final double tolerance;
+
+  private final long minRows;
+
+  private final Random random;
+
+  private final long[] read;
+
+  private long readTotal;
+
+  private long explained;
+
+  /**
+   * @param importance The importance the explained rows are added to, with one stratum or {@link
+   *     #NR_STRATA} strata.
+   * @param ensemble The compiled ensemble, used to predict the strata.
+   * @param rate The fraction of the rows explained.
+   * @param tolerance The tolerance of the ranking, see {@link
+   *     SampledImportance#isRankingStable(double)}.
+   * @param minRows The number of rows explained before the ranking is checked.
+   * @param seed The seed of the random sample.
+   */
+  RowSampler(
+      final SampledImportance importance,
+      final CompiledEnsemble ensemble,
+      final double rate,
+      final double tolerance,
+      final long minRows,
+      final long seed) {
+    this.importance = importance;
+    this.rate = rate;
+    this.tolerance = tolerance;
+    this.minRows = minRows;
+    random = new Random(seed);
+    read = new long[importance.getNrStrata()];
+    if (read.length > 1) {
+      this.ensemble = ensemble;
+      final double[] bounds = ensemble.getOutputBounds();
+      lowerBound = bounds[0];
+      stratumWidth = (bounds[1] - bounds[0]) / read.length;
+    } else {
+      this.ensemble = null;
+      lowerBound = 0;
+      stratumWidth = 0;
+    }
+  }
+
+  /**
+   * Counts the row as read and decides whether it is explained.
+   *
+   * @param features The value of every feature of the row.
+   * @return the stratum of the row if it is explained, -1 if it is skipped
+   */
+  int sample(final double[] features) {
+    final int stratum = getStratum(features);
+    importance.addRead(stratum);
+    read[stratum]++;
+    readTotal++;
+    final double probability =
+        ensemble == null ? rate : rate * readTotal / (read.length * (double) read[stratum]);
+    return random.nextDouble() < probability ? stratum : -1;
+  }
+
+  /**
+   * Adds the SHAP values of an explained row.
+   *
+   * @param stratum The stratum returned by {@link #sample(double[])}.
+   * @param phi The SHAP values of the row.
+   */
+  void add(final int stratum, final double[] phi) {
+    importance.add(stratum, phi);
+    explained++;
+  }
+
+  /** @return whether enough rows are explained and the ranking of the players is stable */
+  boolean isDone() {
+    return explained >= minRows && importance.isRankingStable(tolerance);
+  }
+
+  private int getStratum(final double[] features) {
+    if (ensemble == null || stratumWidth <= 0) {
+      return 0;
+    }
+    final int stratum = (int) ((ensemble.predict(features) - lowerBound) / stratumWidth);
+    return Math.max(0, Math.min(read.length - 1, stratum));
+  }
+}
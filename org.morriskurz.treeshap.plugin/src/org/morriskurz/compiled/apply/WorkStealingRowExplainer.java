@@ -0,0 +1,36 @@
+package org.morriskurz.compiled.apply;
+
+import java.util.concurrent.ForkJoinPool;
+
+import org.knime.core.util.ThreadPool;
+import org.morriskurz.compiled.CompiledEnsemble;
+import org.morriskurz.compiled.WorkStealingTreeSHAP;
+
+/**
+ * Explains the rows with the recursive engine, the work of a chunk being split into tasks of rows
+ * and tree blocks by a {@link WorkStealingTreeSHAP}.
+ *
+ * @author Morris Kurz, morriskurz@gmail.com
+ */
+final class WorkStealingRowExplainer extends ChunkedRowExplainer {
+
+  /** The number of rows explained together. */
+  private static final int CHUNK_SIZE = 1024;
+
+  private final WorkStealingTreeSHAP explainer;
+
+  /**
+   * @param ensemble The compiled ensemble.
+   * @param featureColumns The column of every feature of the model in the input table.
+   */
+  WorkStealingRowExplainer(final CompiledEnsemble ensemble, final int[] featureColumns) {
+    super(featureColumns, CHUNK_SIZE);
+    explainer = new WorkStealingTreeSHAP(ensemble, ForkJoinPool.commonPool());
+  }
+
+  @Override
+  double[][] explain(final double[][] rows, final ThreadPool workers) {
+    // The engine forks its tasks on a work stealing pool rather than on the workers.
+    return explainer.explain(rows);
+  }
+}
@@ -0,0 +1,97 @@
+package org.morriskurz.compiled.builder;
+
+import java.awt.GridBagConstraints;
+import java.awt.GridBagLayout;
+import java.awt.Insets;
+
+import javax.swing.DefaultComboBoxModel;
+import javax.swing.JCheckBox;
+import javax.swing.JComboBox;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.JTextField;
+
+import org.knime.base.node.mine.treeensemble2.model.TreeEnsembleModelPortObjectSpec;
+import org.knime.core.data.DataCell;
+import org.knime.core.data.DataColumnSpec;
+import org.knime.core.data.DoubleValue;
+import org.knime.core.node.InvalidSettingsException;
+import org.knime.core.node.NodeDialogPane;
+import org.knime.core.node.NodeSettingsRO;
+import org.knime.core.node.NodeSettingsWO;
+import org.knime.core.node.NotConfigurableException;
+import org.knime.core.node.port.PortObjectSpec;
+
+/**
+ * The node dialog of the "TreeSHAP Explainer Builder" node.
+ *
+ * @author Morris Kurz, morriskurz@gmail.com
+ */
+public final class ExplainerBuilderNodeDialog extends NodeDialogPane {
+
+  private final JComboBox<String> m_positiveClass =
+      new JComboBox<>(new DefaultComboBoxModel<String>());
+
+  private final JTextField m_featureGroupPatternField = new JTextField(20);
+
+  private final JCheckBox m_compactNodesChecker =
+      new JCheckBox("Compact node encoding (16 bytes per node)");
+
+  /** */
+  public ExplainerBuilderNodeDialog() {
+    final JPanel panel = new JPanel(new GridBagLayout());
+    final GridBagConstraints gbc = new GridBagConstraints();
+    gbc.insets = new Insets(5, 5, 5, 5);
+    gbc.anchor = GridBagConstraints.WEST;
+    gbc.gridx = 0;
+    gbc.gridy = 0;
+    panel.add(new JLabel("Positive class"), gbc);
+    gbc.gridx += 1;
+    panel.add(m_positiveClass, gbc);
+    gbc.gridx = 0;
+    gbc.gridy += 1;
+    panel.add(new JLabel("Feature group pattern"), gbc);
+    gbc.gridx += 1;
+    panel.add(m_featureGroupPatternField, gbc);
+    gbc.gridx = 0;
+    gbc.gridy += 1;
+    gbc.gridwidth = 2;
+    panel.add(m_compactNodesChecker, gbc);
+    addTab("Explainer Settings", panel);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  protected void loadSettingsFrom(final NodeSettingsRO settings, final PortObjectSpec[] specs)
+      throws NotConfigurableException {
+    if (specs[0] == null) {
+      throw new NotConfigurableException("No tree ensemble model available.");
+    }
+    final DataColumnSpec targetColumn =
+        ((TreeEnsembleModelPortObjectSpec) specs[0]).getTargetColumn();
+    final ExplainerBuilderSettings config = new ExplainerBuilderSettings();
+    config.loadInDialog(settings);
+    m_positiveClass.removeAllItems();
+    final boolean isRegression = targetColumn.getType().isCompatible(DoubleValue.class);
+    if (!isRegression) {
+      for (final DataCell cell : targetColumn.getDomain().getValues()) {
+        m_positiveClass.addItem(cell.toString());
+      }
+      m_positiveClass.setSelectedItem(config.getPositiveClass());
+    }
+    m_positiveClass.setEnabled(!isRegression);
+    m_featureGroupPatternField.setText(config.getFeatureGroupPattern());
+    m_compactNodesChecker.setSelected(config.isCompactNodes());
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  protected void saveSettingsTo(final NodeSettingsWO settings) throws InvalidSettingsException {
+    final ExplainerBuilderSettings config = new ExplainerBuilderSettings();
+    final Object positiveClass = m_positiveClass.getSelectedItem();
+    config.setPositiveClass(positiveClass == null ? "" : positiveClass.toString());
+    config.setFeatureGroupPattern(m_featureGroupPatternField.getText());
+    config.setCompactNodes(m_compactNodesChecker.isSelected());
+    config.save(settings);
+  }
+}
@@ -0,0 +1,44 @@
+package org.morriskurz.compiled.builder;
+
+import org.knime.core.node.NodeDialogPane;
+import org.knime.core.node.NodeFactory;
+import org.knime.core.node.NodeView;
+
+/**
+ * Node factory of the "TreeSHAP Explainer Builder" node.
+ *
+ * @author Morris Kurz, morriskurz@gmail.com
+ */
+public class ExplainerBuilderNodeFactory extends NodeFactory<ExplainerBuilderNodeModel> {
+
+  /** {@inheritDoc} */
+  @Override
+  public NodeDialogPane createNodeDialogPane() {
+    return new ExplainerBuilderNodeDialog();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public ExplainerBuilderNodeModel createNodeModel() {
+    return new ExplainerBuilderNodeModel();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public NodeView<ExplainerBuilderNodeModel> createNodeView(
+      final int viewIndex, final ExplainerBuilderNodeModel nodeModel) {
+    throw new IndexOutOfBoundsException();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public int getNrNodeViews() {
+    return 0;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean hasDialog() {
+    return true;
+  }
+}
@@ -0,0 +1,162 @@
+package org.morriskurz.compiled.builder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Set;
+
+import org.knime.base.node.mine.treeensemble2.model.AbstractTreeEnsembleModelPortObject;
+import org.knime.base.node.mine.treeensemble2.model.GradientBoostingModelPortObject;
+import org.knime.base.node.mine.treeensemble2.model.TreeEnsembleModel;
+import org.knime.base.node.mine.treeensemble2.model.TreeEnsembleModelPortObject;
+import org.knime.base.node.mine.treeensemble2.model.TreeEnsembleModelPortObjectSpec;
+import org.knime.core.data.DoubleValue;
+import org.knime.core.data.filestore.FileStore;
+import org.knime.core.node.CanceledExecutionException;
+import org.knime.core.node.ExecutionContext;
+import org.knime.core.node.ExecutionMonitor;
+import org.knime.core.node.InvalidSettingsException;
+import org.knime.core.node.NodeModel;
+import org.knime.core.node.NodeSettingsRO;
+import org.knime.core.node.NodeSettingsWO;
+import org.knime.core.node.port.PortObject;
+import org.knime.core.node.port.PortObjectSpec;
+import org.knime.core.node.port.PortType;
+import org.knime.core.node.port.PortTypeRegistry;
+import org.morriskurz.TreeSHAPUtil;
+import org.morriskurz.compiled.CompiledEnsemble;
+import org.morriskurz.compiled.CompiledEnsembleFiles;
+import org.morriskurz.compiled.CompiledExplainerPortObject;
+import org.morriskurz.compiled.CompiledExplainerPortObjectSpec;
+import org.morriskurz.compiled.QuantizedNodeStorage;
+import org.morriskurz.parser.FeatureGroups;
+
+/**
+ * Node model of the "TreeSHAP Explainer Builder" node. Compiles a random forest or gradient
+ * boosted trees model into a {@link CompiledExplainerPortObject}.
+ *
+ * @author Morris Kurz, morriskurz@gmail.com
+ */
+public class ExplainerBuilderNodeModel extends NodeModel {
+
+  private final ExplainerBuilderSettings settings = new ExplainerBuilderSettings();
+
+  /** Constructor for the node model. */
+  protected ExplainerBuilderNodeModel() {
+    super(
+        new PortType[] {
+          PortTypeRegistry.getInstance().getPortType(AbstractTreeEnsembleModelPortObject.class)
+        },
+        new PortType[] {CompiledExplainerPortObject.TYPE});
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  protected PortObjectSpec[] configure(final PortObjectSpec[] inSpecs)
+      throws InvalidSettingsException {
+    return new PortObjectSpec[] {createSpec((TreeEnsembleModelPortObjectSpec) inSpecs[0])};
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  protected PortObject[] execute(final PortObject[] inObjects, final ExecutionContext exec)
+      throws Exception {
+    final AbstractTreeEnsembleModelPortObject modelPortObject =
+        (AbstractTreeEnsembleModelPortObject) inObjects[0];
+    final TreeEnsembleModelPortObjectSpec modelSpec = modelPortObject.getSpec();
+    final TreeEnsembleModel model;
+    if (modelPortObject instanceof GradientBoostingModelPortObject) {
+      model = ((GradientBoostingModelPortObject) modelPortObject).getEnsembleModel();
+    } else {
+      model = ((TreeEnsembleModelPortObject) modelPortObject).getEnsembleModel();
+    }
+    final CompiledExplainerPortObjectSpec spec = createSpec(modelSpec);
+    CompiledEnsemble ensemble =
+        TreeSHAPUtil.compileEnsemble(
+            modelSpec, model, spec.getPositiveClass(), createFeatureGroups(modelSpec));
+    if (settings.isCompactNodes()) {
+      try {
+        ensemble = QuantizedNodeStorage.encode(ensemble);
+      } catch (final InvalidSettingsException e) {
+        setWarningMessage(e.getMessage() + " The full node encoding is used.");
+      }
+    }
+    // Only the file is kept, the nodes are mapped off the heap when the explainer is applied.
+    final FileStore fileStore = exec.createFileStore("ensemble.bin");
+    final String contentHash =
+        CompiledEnsembleFiles.write(ensemble, fileStore.getFile().toPath());
+    return new PortObject[] {new CompiledExplainerPortObject(spec, fileStore, contentHash)};
+  }
+
+  private CompiledExplainerPortObjectSpec createSpec(
+      final TreeEnsembleModelPortObjectSpec modelSpec) throws InvalidSettingsException {
+    final FeatureGroups featureGroups = createFeatureGroups(modelSpec);
+    final String[] featureNames = modelSpec.getLearnTableSpec().getColumnNames();
+    final String[] playerNames =
+        featureGroups == null ? featureNames : featureGroups.getGroupNames();
+    return new CompiledExplainerPortObjectSpec(
+        featureNames,
+        playerNames,
+        modelSpec.getTargetColumn().getName(),
+        getPositiveClass(modelSpec));
+  }
+
+  private FeatureGroups createFeatureGroups(final TreeEnsembleModelPortObjectSpec modelSpec)
+      throws InvalidSettingsException {
+    return FeatureGroups.create(
+        modelSpec.getTableSpec(), new HashMap<String, String>(), settings.getFeatureGroupPattern());
+  }
+
+  /** @return the explained class, null for regression models. */
+  private String getPositiveClass(final TreeEnsembleModelPortObjectSpec modelSpec)
+      throws InvalidSettingsException {
+    if (modelSpec.getTargetColumn().getType().isCompatible(DoubleValue.class)) {
+      return null;
+    }
+    final Set<String> classes = modelSpec.getTargetColumnPossibleValueMap().keySet();
+    if (classes.isEmpty()) {
+      throw new InvalidSettingsException("The target column of the model has no classes.");
+    }
+    final String positiveClass = settings.getPositiveClass();
+    if (positiveClass.isEmpty()) {
+      final String firstClass = classes.iterator().next();
+      setWarningMessage("No positive class selected, explaining the class \"" + firstClass + "\".");
+      return firstClass;
+    }
+    if (!classes.contains(positiveClass)) {
+      throw new InvalidSettingsException(
+          "The positive class \"" + positiveClass + "\" is not a class of the model.");
+    }
+    return positiveClass;
+  }
+
+  @Override
+  protected void loadInternals(final File nodeInternDir, final ExecutionMonitor exec)
+      throws IOException, CanceledExecutionException {}
+
+  /** {@inheritDoc} */
+  @Override
+  protected void loadValidatedSettingsFrom(final NodeSettingsRO settings)
+      throws InvalidSettingsException {
+    this.settings.loadInModel(settings);
+  }
+
+  @Override
+  protected void reset() {}
+
+  @Override
+  protected void saveInternals(final File nodeInternDir, final ExecutionMonitor exec)
+      throws IOException, CanceledExecutionException {}
+
+  /** {@inheritDoc} */
+  @Override
+  protected void saveSettingsTo(final NodeSettingsWO settings) {
+    this.settings.save(settings);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  protected void validateSettings(final NodeSettingsRO settings) throws InvalidSettingsException {
+    new ExplainerBuilderSettings().loadInModel(settings);
+  }
+}
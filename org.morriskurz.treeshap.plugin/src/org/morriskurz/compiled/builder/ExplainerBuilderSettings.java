@@ -0,0 +1,68 @@
+package org.morriskurz.compiled.builder;
+
+import org.knime.core.node.InvalidSettingsException;
+import org.knime.core.node.NodeSettingsRO;
+import org.knime.core.node.NodeSettingsWO;
+
+/**
+ * Settings of the "TreeSHAP Explainer Builder" node.
+ *
+ * @author Morris Kurz, morriskurz@gmail.com
+ */
+public final class ExplainerBuilderSettings {
+
+  private static final String CFG_POSITIVE_CLASS = "positiveClass";
+  private static final String CFG_FEATURE_GROUP_PATTERN = "featureGroupPattern";
+  private static final String CFG_COMPACT_NODES = "compactNodes";
+
+  private String positiveClass = "";
+
+  private String featureGroupPattern = "";
+
+  private boolean compactNodes;
+
+  public String getFeatureGroupPattern() {
+    return featureGroupPattern;
+  }
+
+  /** @return the explained class, empty for the first class of the target. */
+  public String getPositiveClass() {
+    return positiveClass;
+  }
+
+  /** @return whether the nodes are encoded in 16 bytes, see QuantizedNodeStorage. */
+  public boolean isCompactNodes() {
+    return compactNodes;
+  }
+
+  public void loadInDialog(final NodeSettingsRO settings) {
+    positiveClass = settings.getString(CFG_POSITIVE_CLASS, "");
+    featureGroupPattern = settings.getString(CFG_FEATURE_GROUP_PATTERN, "");
+    compactNodes = settings.getBoolean(CFG_COMPACT_NODES, false);
+  }
+
+  public void loadInModel(final NodeSettingsRO settings) throws InvalidSettingsException {
+    positiveClass = settings.getString(CFG_POSITIVE_CLASS);
+    featureGroupPattern = settings.getString(CFG_FEATURE_GROUP_PATTERN);
+    // Added later, older settings use the full encoding.
+    compactNodes = settings.getBoolean(CFG_COMPACT_NODES, false);
+  }
+
+  public void save(final NodeSettingsWO settings) {
+    settings.addString(CFG_POSITIVE_CLASS, positiveClass);
+    settings.addString(CFG_FEATURE_GROUP_PATTERN, featureGroupPattern);
+    settings.addBoolean(CFG_COMPACT_NODES, compactNodes);
+  }
+
+  public void setCompactNodes(final boolean compactNodes) {
+    this.compactNodes = compactNodes;
+  }
+
+  public void setFeatureGroupPattern(final String featureGroupPattern) {
+    this.featureGroupPattern = featureGroupPattern;
+  }
+
+  public void setPositiveClass(final String positiveClass) {
+    this.positiveClass = positiveClass;
+  }
+}
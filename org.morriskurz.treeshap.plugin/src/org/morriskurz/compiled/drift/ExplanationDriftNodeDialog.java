@@ -0,0 +1,61 @@
+package org.morriskurz.compiled.drift;
+
+import java.awt.GridBagConstraints;
+import java.awt.GridBagLayout;
+import java.awt.Insets;
+
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.JSpinner;
+import javax.swing.SpinnerNumberModel;
+
+import org.knime.core.node.InvalidSettingsException;
+import org.knime.core.node.NodeDialogPane;
+import org.knime.core.node.NodeSettingsRO;
+import org.knime.core.node.NodeSettingsWO;
+import org.knime.core.node.NotConfigurableException;
+import org.knime.core.node.port.PortObjectSpec;
+
+/**
+ * The node dialog of the "TreeSHAP Explanation Drift" node.
+ *
+ * @author Morris Kurz, morriskurz@gmail.com
+ */
+public final class ExplanationDriftNodeDialog extends NodeDialogPane {
+
+  private final JSpinner m_psiBinsSpinner =
+      new JSpinner(
+          new SpinnerNumberModel(
+              ExplanationDriftSettings.DEFAULT_PSI_BINS, 2, Integer.MAX_VALUE, 1));
+
+  /** */
+  public ExplanationDriftNodeDialog() {
+    final JPanel panel = new JPanel(new GridBagLayout());
+    final GridBagConstraints gbc = new GridBagConstraints();
+    gbc.insets = new Insets(5, 5, 5, 5);
+    gbc.anchor = GridBagConstraints.WEST;
+    gbc.gridx = 0;
+    gbc.gridy = 0;
+    panel.add(new JLabel("PSI bins"), gbc);
+    gbc.gridx += 1;
+    panel.add(m_psiBinsSpinner, gbc);
+    addTab("Drift Settings", panel);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  protected void loadSettingsFrom(final NodeSettingsRO settings, final PortObjectSpec[] specs)
+      throws NotConfigurableException {
+    final ExplanationDriftSettings config = new ExplanationDriftSettings();
+    config.loadInDialog(settings);
+    m_psiBinsSpinner.setValue(config.getPsiBins());
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  protected void saveSettingsTo(final NodeSettingsWO settings) throws InvalidSettingsException {
+    final ExplanationDriftSettings config = new ExplanationDriftSettings();
+    config.setPsiBins((Integer) m_psiBinsSpinner.getValue());
+    config.save(settings);
+  }
+}
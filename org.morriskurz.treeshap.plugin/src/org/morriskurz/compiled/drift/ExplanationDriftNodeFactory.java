@@ -0,0 +1,44 @@
+package org.morriskurz.compiled.drift;
+
+import org.knime.core.node.NodeDialogPane;
+import org.knime.core.node.NodeFactory;
+import org.knime.core.node.NodeView;
+
+/**
+ * Node factory of the "TreeSHAP Explanation Drift" node.
+ *
+ * @author Morris Kurz, morriskurz@gmail.com
+ */
+public class ExplanationDriftNodeFactory extends NodeFactory<ExplanationDriftNodeModel> {
+
+  /** {@inheritDoc} */
+  @Override
+  public NodeDialogPane createNodeDialogPane() {
+    return new ExplanationDriftNodeDialog();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public ExplanationDriftNodeModel createNodeModel() {
+    return new ExplanationDriftNodeModel();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public NodeView<ExplanationDriftNodeModel> createNodeView(
+      final int viewIndex, final ExplanationDriftNodeModel nodeModel) {
+    throw new IndexOutOfBoundsException();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public int getNrNodeViews() {
+    return 0;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean hasDialog() {
+    return true;
+  }
+}
@@ -0,0 +1,351 @@
+package org.morriskurz.compiled.drift;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.knime.core.data.DataRow;
+import org.knime.core.data.DataTableSpec;
+import org.knime.core.node.BufferedDataTable;
+import org.knime.core.node.CanceledExecutionException;
+import org.knime.core.node.ExecutionContext;
+import org.knime.core.node.ExecutionMonitor;
+import org.knime.core.node.InvalidSettingsException;
+import org.knime.core.node.KNIMEConstants;
+import org.knime.core.node.NodeModel;
+import org.knime.core.node.NodeSettingsRO;
+import org.knime.core.node.NodeSettingsWO;
+import org.knime.core.node.port.PortObject;
+import org.knime.core.node.port.PortObjectSpec;
+import org.knime.core.node.port.PortType;
+import org.knime.core.node.streamable.BufferedDataTableRowOutput;
+import org.knime.core.node.streamable.DataTableRowInput;
+import org.knime.core.node.streamable.InputPortRole;
+import org.knime.core.node.streamable.MergeOperator;
+import org.knime.core.node.streamable.OutputPortRole;
+import org.knime.core.node.streamable.PartitionInfo;
+import org.knime.core.node.streamable.PortInput;
+import org.knime.core.node.streamable.PortObjectInput;
+import org.knime.core.node.streamable.PortOutput;
+import org.knime.core.node.streamable.RowInput;
+import org.knime.core.node.streamable.RowOutput;
+import org.knime.core.node.streamable.StreamableOperator;
+import org.knime.core.node.streamable.StreamableOperatorInternals;
+import org.knime.core.util.ThreadPool;
+import org.morriskurz.compiled.CompiledExplainerPortObject;
+import org.morriskurz.compiled.CompiledExplainerPortObjectSpec;
+import org.morriskurz.compiled.OffHeapEnsembleCache.Lease;
+import org.morriskurz.compiled.WorkStealingTreeSHAP;
+import org.morriskurz.summary.ShapDrift;
+
+/**
+ * Node model of the "TreeSHAP Explanation Drift" node. Compares the distribution of the SHAP values
+ * of current data with the one of reference data, keeping only a sketch of either distribution.
+ *
+ * @author Morris Kurz, morriskurz@gmail.com
+ */
+public class ExplanationDriftNodeModel extends NodeModel {
+
+  /** The number of rows of an input explained together. */
+  private static final int CHUNK_SIZE = 1024;
+
+  private static final int CURRENT_PORT_INDEX = 1;
+
+  private static final int REFERENCE_PORT_INDEX = 2;
+
+  private final ExplanationDriftSettings settings = new ExplanationDriftSettings();
+
+  /** Constructor for the node model. */
+  protected ExplanationDriftNodeModel() {
+    super(
+        new PortType[] {
+          CompiledExplainerPortObject.TYPE, BufferedDataTable.TYPE, BufferedDataTable.TYPE
+        },
+        new PortType[] {BufferedDataTable.TYPE});
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  protected PortObjectSpec[] configure(final PortObjectSpec[] inSpecs)
+      throws InvalidSettingsException {
+    final CompiledExplainerPortObjectSpec explainerSpec =
+        (CompiledExplainerPortObjectSpec) inSpecs[0];
+    explainerSpec.findFeatureColumns((DataTableSpec) inSpecs[CURRENT_PORT_INDEX]);
+    explainerSpec.findFeatureColumns((DataTableSpec) inSpecs[REFERENCE_PORT_INDEX]);
+    return new PortObjectSpec[] {ShapDrift.createSpec()};
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public StreamableOperator createStreamableOperator(
+      final PartitionInfo partitionInfo, final PortObjectSpec[] inSpecs)
+      throws InvalidSettingsException {
+    // Created up front, so the internals hold empty sketches if the run fails before any row.
+    final ShapDrift drift =
+        new ShapDrift(((CompiledExplainerPortObjectSpec) inSpecs[0]).getPlayerNames());
+    return new StreamableOperator() {
+
+      @Override
+      public void runFinal(
+          final PortInput[] inputs, final PortOutput[] outputs, final ExecutionContext exec)
+          throws Exception {
+        explain(
+            (CompiledExplainerPortObject) ((PortObjectInput) inputs[0]).getPortObject(),
+            (RowInput) inputs[CURRENT_PORT_INDEX],
+            (RowInput) inputs[REFERENCE_PORT_INDEX],
+            drift,
+            exec,
+            -1);
+      }
+
+      @Override
+      public StreamableOperatorInternals saveInternals() {
+        return drift.saveInternals();
+      }
+    };
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  protected PortObject[] execute(final PortObject[] inObjects, final ExecutionContext exec)
+      throws Exception {
+    final CompiledExplainerPortObject explainer = (CompiledExplainerPortObject) inObjects[0];
+    final BufferedDataTable current = (BufferedDataTable) inObjects[CURRENT_PORT_INDEX];
+    final BufferedDataTable reference = (BufferedDataTable) inObjects[REFERENCE_PORT_INDEX];
+    final ShapDrift drift = new ShapDrift(explainer.getSpec().getPlayerNames());
+    explain(
+        explainer,
+        new DataTableRowInput(current),
+        new DataTableRowInput(reference),
+        drift,
+        exec,
+        current.size() + reference.size());
+    final BufferedDataTableRowOutput out =
+        new BufferedDataTableRowOutput(exec.createDataContainer(ShapDrift.createSpec()));
+    drift.write(out, settings.getPsiBins());
+    return new BufferedDataTable[] {out.getDataTable()};
+  }
+
+  /**
+   * Explains the rows of both inputs in a single pass and closes them. The reference rows are read
+   * by a worker of the KNIME thread pool while the current rows are read by the calling thread.
+   * Both inputs may be streamed from the same node, e.g. a Row Splitter, which blocks on one
+   * output until the other is read, so neither input may wait for the other.
+   *
+   * @param nrRows The number of rows of both inputs for the progress, negative if unknown.
+   */
+  private static void explain(
+      final CompiledExplainerPortObject explainer,
+      final RowInput current,
+      final RowInput reference,
+      final ShapDrift drift,
+      final ExecutionMonitor exec,
+      final long nrRows)
+      throws Exception {
+    final CompiledExplainerPortObjectSpec explainerSpec = explainer.getSpec();
+    final int[] currentColumns = explainerSpec.findFeatureColumns(current.getDataTableSpec());
+    final int[] referenceColumns = explainerSpec.findFeatureColumns(reference.getDataTableSpec());
+    final AtomicLong nrExplained = new AtomicLong();
+    final AtomicBoolean isFailed = new AtomicBoolean();
+    final ThreadPool readers = KNIMEConstants.GLOBAL_THREAD_POOL.createSubPool(1);
+    // The ensemble stays pinned off the heap until all rows of both inputs are explained.
+    try (final Lease lease = explainer.acquireEnsemble()) {
+      final WorkStealingTreeSHAP treeSHAP =
+          new WorkStealingTreeSHAP(lease.getEnsemble(), ForkJoinPool.commonPool());
+      final Future<Void> referenceReader =
+          readers.enqueue(
+              new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                  explain(
+                      treeSHAP,
+                      reference,
+                      referenceColumns,
+                      false,
+                      drift,
+                      exec,
+                      nrExplained,
+                      nrRows,
+                      isFailed);
+                  return null;
+                }
+              });
+      try {
+        // Reads without counting as a thread of the pool, so the reader can take its place.
+        runInvisible(
+            readers,
+            new Callable<Void>() {
+              @Override
+              public Void call() throws Exception {
+                explain(
+                    treeSHAP,
+                    current,
+                    currentColumns,
+                    true,
+                    drift,
+                    exec,
+                    nrExplained,
+                    nrRows,
+                    isFailed);
+                return null;
+              }
+            });
+      } finally {
+        // The reader stops at its next chunk if the current rows failed, and must not outlive the
+        // lease of the ensemble, so it is awaited rather than cancelled.
+        runInvisible(
+            readers,
+            new Callable<Void>() {
+              @Override
+              public Void call() throws Exception {
+                return referenceReader.get();
+              }
+            });
+      }
+    }
+    current.close();
+    reference.close();
+  }
+
+  /**
+   * Explains the rows of an input chunk by chunk until it is exhausted or the other input failed.
+   * A failure is flagged, so the other input stops at its next chunk.
+   *
+   * @param isCurrent Whether the rows are current rows, or else reference rows.
+   */
+  private static void explain(
+      final WorkStealingTreeSHAP treeSHAP,
+      final RowInput in,
+      final int[] featureColumns,
+      final boolean isCurrent,
+      final ShapDrift drift,
+      final ExecutionMonitor exec,
+      final AtomicLong nrExplained,
+      final long nrRows,
+      final AtomicBoolean isFailed)
+      throws InterruptedException, CanceledExecutionException {
+    boolean isDone = false;
+    try {
+      while (!isDone && !isFailed.get()) {
+        final double[][] rows = readChunk(in, featureColumns);
+        isDone = rows.length < CHUNK_SIZE;
+        for (final double[] phi : treeSHAP.explain(rows)) {
+          if (isCurrent) {
+            drift.addCurrent(phi);
+          } else {
+            drift.addReference(phi);
+          }
+        }
+        final long explained = nrExplained.addAndGet(rows.length);
+        exec.checkCanceled();
+        if (nrRows > 0) {
+          exec.setProgress(explained / (double) nrRows);
+        }
+      }
+    } finally {
+      if (!isDone) {
+        isFailed.set(true);
+      }
+    }
+  }
+
+  /** Runs the task in the calling thread, rethrowing its failure unwrapped. */
+  private static void runInvisible(final ThreadPool readers, final Callable<Void> task)
+      throws Exception {
+    try {
+      readers.runInvisible(task);
+    } catch (final ExecutionException e) {
+      Throwable cause = e.getCause();
+      while (cause instanceof ExecutionException && cause.getCause() != null) {
+        cause = cause.getCause();
+      }
+      if (cause instanceof Exception) {
+        throw (Exception) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw e;
+    }
+  }
+
+  /** @return the features of the next chunk of rows, fewer rows only at the end. */
+  private static double[][] readChunk(final RowInput in, final int[] featureColumns)
+      throws InterruptedException {
+    final List<double[]> rows = new ArrayList<>(CHUNK_SIZE);
+    DataRow row;
+    while (rows.size() < CHUNK_SIZE && (row = in.poll()) != null) {
+      rows.add(CompiledExplainerPortObjectSpec.getFeatures(row, featureColumns));
+    }
+    return rows.toArray(new double[rows.size()][]);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public InputPortRole[] getInputPortRoles() {
+    return new InputPortRole[] {
+      InputPortRole.NONDISTRIBUTED_NONSTREAMABLE,
+      InputPortRole.DISTRIBUTED_STREAMABLE,
+      InputPortRole.DISTRIBUTED_STREAMABLE
+    };
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public OutputPortRole[] getOutputPortRoles() {
+    return new OutputPortRole[] {OutputPortRole.NONDISTRIBUTED};
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public MergeOperator createMergeOperator() {
+    return ShapDrift.createMergeOperator();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void finishStreamableExecution(
+      final StreamableOperatorInternals internals,
+      final ExecutionContext exec,
+      final PortOutput[] output)
+      throws Exception {
+    ShapDrift.write(internals, (RowOutput) output[0], settings.getPsiBins());
+  }
+
+  @Override
+  protected void loadInternals(final File nodeInternDir, final ExecutionMonitor exec)
+      throws IOException, CanceledExecutionException {}
+
+  /** {@inheritDoc} */
+  @Override
+  protected void loadValidatedSettingsFrom(final NodeSettingsRO settings)
+      throws InvalidSettingsException {
+    this.settings.loadInModel(settings);
+  }
+
+  @Override
+  protected void reset() {}
+
+  @Override
+  protected void saveInternals(final File nodeInternDir, final ExecutionMonitor exec)
+      throws IOException, CanceledExecutionException {}
+
+  /** {@inheritDoc} */
+  @Override
+  protected void saveSettingsTo(final NodeSettingsWO settings) {
+    this.settings.save(settings);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  protected void validateSettings(final NodeSettingsRO settings) throws InvalidSettingsException {
+    new ExplanationDriftSettings().loadInModel(settings);
+  }
+}
@@ -0,0 +1,44 @@
+package org.morriskurz.compiled.drift;
+
+import org.knime.core.node.InvalidSettingsException;
+import org.knime.core.node.NodeSettingsRO;
+import org.knime.core.node.NodeSettingsWO;
+
+/**
+ * Settings of the "TreeSHAP Explanation Drift" node.
+ *
+ * @author Morris Kurz, morriskurz@gmail.com
+ */
+public final class ExplanationDriftSettings {
+
+  private static final String CFG_PSI_BINS = "psiBins";
+
+  /** The default number of quantile bins of the reference in the PSI. */
+  public static final int DEFAULT_PSI_BINS = 10;
+
+  private int psiBins = DEFAULT_PSI_BINS;
+
+  /** @return the number of quantile bins of the reference in the PSI. */
+  public int getPsiBins() {
+    return psiBins;
+  }
+
+  public void loadInDialog(final NodeSettingsRO settings) {
+    psiBins = settings.getInt(CFG_PSI_BINS, DEFAULT_PSI_BINS);
+  }
+
+  public void loadInModel(final NodeSettingsRO settings) throws InvalidSettingsException {
+    psiBins = settings.getInt(CFG_PSI_BINS);
+    if (psiBins < 2) {
+      throw new InvalidSettingsException("The PSI needs at least two bins: " + psiBins);
+    }
+  }
+
+  public void save(final NodeSettingsWO settings) {
+    settings.addInt(CFG_PSI_BINS, psiBins);
+  }
+
+  public void setPsiBins(final int psiBins) {
+    this.psiBins = psiBins;
+  }
+}
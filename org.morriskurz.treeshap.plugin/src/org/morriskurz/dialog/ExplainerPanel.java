@@ -5,13 +5,21 @@
 import java.awt.Insets;
 import java.awt.event.FocusAdapter;
 import java.awt.event.FocusEvent;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
 
 import javax.swing.DefaultComboBoxModel;
 import javax.swing.JCheckBox;
 import javax.swing.JComboBox;
 import javax.swing.JLabel;
+import javax.swing.JList;
 import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JSpinner;
 import javax.swing.JTextField;
+import javax.swing.ListSelectionModel;
+import javax.swing.SpinnerNumberModel;
 import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
 
@@ -57,8 +65,41 @@ public final class ExplainerPanel extends JPanel {
 
   private final JCheckBox m_computeInteractionsChecker;
 
+  private final JCheckBox m_sparseInteractionsChecker;
+
+  private final JCheckBox m_aggregateInteractionsChecker;
+
   private final boolean m_isRandomForest;
 
+  private final JSpinner m_backgroundPrototypesSpinner =
+      new JSpinner(new SpinnerNumberModel(0, 0, Integer.MAX_VALUE, 1));
+
+  private final JSpinner m_interactionTopKSpinner =
+      new JSpinner(new SpinnerNumberModel(0, 0, Integer.MAX_VALUE, 1));
+
+  private final JSpinner m_interactionScreeningPairsSpinner =
+      new JSpinner(new SpinnerNumberModel(0, 0, Integer.MAX_VALUE, 1));
+
+  private final JSpinner m_streamingThreadsSpinner =
+      new JSpinner(new SpinnerNumberModel(0, 0, Integer.MAX_VALUE, 1));
+
+  private final JSpinner m_streamingWindowSpinner =
+      new JSpinner(
+          new SpinnerNumberModel(
+              TreeSHAPConfiguration.DEFAULT_STREAMING_WINDOW, 1, Integer.MAX_VALUE, 1));
+
+  private final JSpinner m_distributionBinsSpinner =
+      new JSpinner(new SpinnerNumberModel(0, 0, Integer.MAX_VALUE, 1));
+
+  private final JCheckBox m_explainAllFeaturesChecker;
+
+  private final JCheckBox m_usedFeaturesOnlyChecker =
+      new JCheckBox("Only explain features used by the model");
+
+  private final JTextField m_featureGroupPatternField = new JTextField(20);
+
+  private final JList<String> m_explainedFeaturesList = new JList<>();
+
 
   private final JComboBox<DataCell> m_positiveClass =
       new JComboBox<>(new DefaultComboBoxModel<DataCell>());
@@ -121,9 +162,38 @@ public void stateChanged(final ChangeEvent e) {
             final JCheckBox source = (JCheckBox) e.getSource();
             m_computeInteractionsChecker.setEnabled(source.isSelected());
             m_positiveClass.setEnabled(source.isSelected());
+            m_backgroundPrototypesSpinner.setEnabled(source.isSelected());
           }
         });
     m_computeInteractionsChecker = new JCheckBox("Compute interactions");
+    m_sparseInteractionsChecker = new JCheckBox("Output interactions as sparse lists");
+    m_aggregateInteractionsChecker =
+        new JCheckBox("Only output interactions aggregated over all rows");
+    m_computeInteractionsChecker.addChangeListener(
+        new ChangeListener() {
+
+          @Override
+          public void stateChanged(final ChangeEvent e) {
+            final JCheckBox source = (JCheckBox) e.getSource();
+            m_sparseInteractionsChecker.setEnabled(source.isEnabled() && source.isSelected());
+            m_aggregateInteractionsChecker.setEnabled(source.isEnabled() && source.isSelected());
+            m_interactionTopKSpinner.setEnabled(source.isEnabled() && source.isSelected());
+            m_interactionScreeningPairsSpinner.setEnabled(
+                source.isEnabled() && source.isSelected());
+          }
+        });
+    m_explainAllFeaturesChecker = new JCheckBox("Explain all features");
+    m_explainAllFeaturesChecker.addChangeListener(
+        new ChangeListener() {
+
+          @Override
+          public void stateChanged(final ChangeEvent e) {
+            final JCheckBox source = (JCheckBox) e.getSource();
+            m_explainedFeaturesList.setEnabled(!source.isSelected());
+          }
+        });
+    m_explainedFeaturesList.setSelectionMode(ListSelectionModel.MULTIPLE_INTERVAL_SELECTION);
+    m_explainedFeaturesList.setVisibleRowCount(8);
     initLayout();
   }
 
@@ -181,6 +251,55 @@ private void initLayout() {
       gbc.gridy += 1;
       add(m_computeInteractionsChecker, gbc);
     }
+    gbc.gridy += 1;
+    gbc.gridx = 0;
+    gbc.gridwidth = 2;
+    add(m_sparseInteractionsChecker, gbc);
+    gbc.gridy += 1;
+    add(m_aggregateInteractionsChecker, gbc);
+    gbc.gridy += 1;
+    gbc.gridwidth = 1;
+    add(new JLabel("Interactions among top k features per row (0 = all)"), gbc);
+    gbc.gridx += 1;
+    add(m_interactionTopKSpinner, gbc);
+    gbc.gridy += 1;
+    gbc.gridx = 0;
+    add(new JLabel("Screened interaction pairs (0 = all)"), gbc);
+    gbc.gridx += 1;
+    add(m_interactionScreeningPairsSpinner, gbc);
+    gbc.gridy += 1;
+    gbc.gridx = 0;
+    add(new JLabel("Background prototypes per tree (0 = lossless)"), gbc);
+    gbc.gridx += 1;
+    add(m_backgroundPrototypesSpinner, gbc);
+    gbc.gridy += 1;
+    gbc.gridx = 0;
+    add(new JLabel("SHAP distribution bins (0 = none)"), gbc);
+    gbc.gridx += 1;
+    add(m_distributionBinsSpinner, gbc);
+    gbc.gridy += 1;
+    gbc.gridx = 0;
+    add(new JLabel("Streaming threads (0 = all processors)"), gbc);
+    gbc.gridx += 1;
+    add(m_streamingThreadsSpinner, gbc);
+    gbc.gridy += 1;
+    gbc.gridx = 0;
+    add(new JLabel("Streaming window (rows)"), gbc);
+    gbc.gridx += 1;
+    add(m_streamingWindowSpinner, gbc);
+    gbc.gridy += 1;
+    gbc.gridx = 0;
+    add(new JLabel("Feature group pattern"), gbc);
+    gbc.gridx += 1;
+    add(m_featureGroupPatternField, gbc);
+    gbc.gridy += 1;
+    gbc.gridx = 0;
+    gbc.gridwidth = 2;
+    add(m_usedFeaturesOnlyChecker, gbc);
+    gbc.gridy += 1;
+    add(m_explainAllFeaturesChecker, gbc);
+    gbc.gridy += 1;
+    add(new JScrollPane(m_explainedFeaturesList), gbc);
   }
 
   /**
@@ -228,6 +347,27 @@ public void loadSettingsFrom(final NodeSettingsRO settings, final PortObjectSpec
     }
     m_showExplanationChecker.setSelected(config.isShowExplanation());
     m_computeInteractionsChecker.setSelected(config.isComputeInteractions());
+    m_backgroundPrototypesSpinner.setValue(config.getBackgroundPrototypes());
+    m_featureGroupPatternField.setText(config.getFeatureGroupPattern());
+    m_sparseInteractionsChecker.setSelected(config.isSparseInteractions());
+    m_aggregateInteractionsChecker.setSelected(config.isAggregateInteractions());
+    m_interactionTopKSpinner.setValue(config.getInteractionTopK());
+    m_interactionScreeningPairsSpinner.setValue(config.getInteractionScreeningPairs());
+    m_streamingThreadsSpinner.setValue(config.getStreamingThreads());
+    m_streamingWindowSpinner.setValue(config.getStreamingWindow());
+    m_distributionBinsSpinner.setValue(config.getDistributionBins());
+    m_usedFeaturesOnlyChecker.setSelected(config.isUsedFeaturesOnly());
+    final String[] features = treeSpec.getLearnTableSpec().getColumnNames();
+    m_explainedFeaturesList.setListData(features);
+    final List<String> explainedFeatures = Arrays.asList(config.getExplainedFeatures());
+    final int[] selectedIndices =
+        IntStream.range(0, features.length)
+            .filter(i -> explainedFeatures.contains(features[i]))
+            .toArray();
+    m_explainedFeaturesList.setSelectedIndices(selectedIndices);
+    if (explainedFeatures.isEmpty() != m_explainAllFeaturesChecker.isSelected()) {
+      m_explainAllFeaturesChecker.doClick();
+    }
     removeAll();
     initLayout();
   }
@@ -249,6 +389,22 @@ public void saveSettingsTo(final NodeSettingsWO settings) {
     config.setPositiveClass((DataCell) m_positiveClass.getSelectedItem());
     config.setShowExplanation(m_showExplanationChecker.isSelected());
     config.setComputeInteractions(m_computeInteractionsChecker.isSelected());
+    config.setBackgroundPrototypes((Integer) m_backgroundPrototypesSpinner.getValue());
+    config.setFeatureGroupPattern(m_featureGroupPatternField.getText());
+    config.setSparseInteractions(m_sparseInteractionsChecker.isSelected());
+    config.setAggregateInteractions(m_aggregateInteractionsChecker.isSelected());
+    config.setInteractionTopK((Integer) m_interactionTopKSpinner.getValue());
+    config.setInteractionScreeningPairs((Integer) m_interactionScreeningPairsSpinner.getValue());
+    config.setStreamingThreads((Integer) m_streamingThreadsSpinner.getValue());
+    config.setStreamingWindow((Integer) m_streamingWindowSpinner.getValue());
+    config.setDistributionBins((Integer) m_distributionBinsSpinner.getValue());
+    config.setUsedFeaturesOnly(m_usedFeaturesOnlyChecker.isSelected());
+    if (m_explainAllFeaturesChecker.isSelected()) {
+      config.setExplainedFeatures(new String[0]);
+    } else {
+      final List<String> selected = m_explainedFeaturesList.getSelectedValuesList();
+      config.setExplainedFeatures(selected.toArray(new String[selected.size()]));
+    }
     config.save(settings);
   }
 }
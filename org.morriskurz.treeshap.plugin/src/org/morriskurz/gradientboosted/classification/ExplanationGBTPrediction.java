@@ -3,6 +3,7 @@
 import org.knime.base.node.mine.treeensemble2.data.PredictorRecord;
 import org.knime.base.node.mine.treeensemble2.model.TreeNodeRegression;
 import org.knime.base.node.mine.treeensemble2.node.predictor.ClassificationPrediction;
+import org.morriskurz.parser.FeatureGroups;
 import org.morriskurz.parser.TreeSHAPPrediction;
 
 /** @author Morris Kurz, morriskurz@gmail.com */
@@ -10,7 +11,7 @@ public abstract class ExplanationGBTPrediction extends TreeSHAPPrediction<TreeNo
 		implements ClassificationPrediction {
 
 	protected ExplanationGBTPrediction(final PredictorRecord record, final TreeNodeRegression[] roots,
-			final int nrColumns, final int maxDepth) {
-		super(record);
+			final int nrColumns, final int maxDepth, final FeatureGroups featureGroups) {
+		super(record, featureGroups);
 	}
 }
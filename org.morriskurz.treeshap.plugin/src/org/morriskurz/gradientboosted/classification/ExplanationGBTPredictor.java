@@ -13,6 +13,10 @@
 import org.knime.core.data.DataRow;
 import org.knime.core.data.DataTableSpec;
 import org.knime.core.data.def.DoubleCell;
+import org.morriskurz.background.BackgroundSummary;
+import org.morriskurz.parser.FeatureGroups;
+import org.morriskurz.parser.FeatureMask;
+import org.morriskurz.statistics.InteractionScreening;
 
 public class ExplanationGBTPredictor extends AbstractPredictor<ExplanationGBTPrediction> {
 
@@ -35,13 +39,17 @@ public GBTPrediction(
         final double[] probabilities,
         final List<Map<AbstractTreeNode, Double>> treeMaps,
         final int positiveClassIndex) {
-      super(record, roots, nrColumns, maxDepth);
+      super(record, roots, nrColumns, maxDepth, featureGroups);
       this.winningClassIdx = winningClassIdx;
       this.probabilities = probabilities;
       this.treeMaps = treeMaps;
       this.positiveClassIndex = positiveClassIndex;
       if (maxDepth != -1) {
-        computeShap(roots, nrColumns, 1, maxDepth, 0, 0);
+        if (background == null) {
+          computeShap(roots, nrColumns, 1, maxDepth, featureMask);
+        } else {
+          computeInterventionalShap(roots, nrColumns, 1, maxDepth, background, featureMask);
+        }
       }
     }
 
@@ -56,14 +64,36 @@ public GBTPrediction(
         final int positiveClassIndex,
         final int maxNodes,
         final int[] uniqueFeaturesPerTree) {
-      super(record, roots, nrColumns, maxDepth);
+      super(record, roots, nrColumns, maxDepth, featureGroups);
       this.winningClassIdx = winningClassIdx;
       this.probabilities = probabilities;
       this.treeMaps = treeMaps;
       this.positiveClassIndex = positiveClassIndex;
       if (maxDepth != -1 && uniqueFeaturesPerTree != null) {
-        dense_tree_interactions_path_dependent(
-            roots, nrColumns, 1, maxDepth, maxNodes, uniqueFeaturesPerTree);
+        if (interactionTopK > 0) {
+          top_k_interactions_path_dependent(
+              roots,
+              nrColumns,
+              1,
+              maxDepth,
+              maxNodes,
+              uniqueFeaturesPerTree,
+              featureMask,
+              interactionTopK);
+        } else if (interactionScreening != null) {
+          screened_interactions_path_dependent(
+              roots, nrColumns, 1, maxDepth, maxNodes, uniqueFeaturesPerTree, interactionScreening);
+        } else {
+          dense_tree_interactions_path_dependent(
+              roots,
+              nrColumns,
+              1,
+              maxDepth,
+              maxNodes,
+              uniqueFeaturesPerTree,
+              featureMask,
+              sparseInteractions);
+        }
       }
     }
 
@@ -110,7 +140,6 @@ public double getProbability(final int classIdx) {
     public DoubleCell[] getSHAPValues() {
       // Transform from logit to probability by scaling. This is not exact,
       // but the best one can do.
-      final double[] phi = getPhi();
       // TODO: For now, only the raw logits are output because the probability scaling
       // is not sufficient.
       /*double absoluteSum = 0;
@@ -134,11 +163,7 @@ public DoubleCell[] getSHAPValues() {
       for (int i = 0; i < phi.length - 1; i++) {
         phi[i] = phi[i] / absoluteSum * difference;
       }*/
-      final DoubleCell[] newCells = new DoubleCell[phi.length];
-      for (int i = 0; i < phi.length; i++) {
-        newCells[i] = new DoubleCell(phi[i]);
-      }
-      return newCells;
+      return super.getSHAPValues();
     }
 
     /*
@@ -191,6 +216,18 @@ private static double max(final double[] logits) {
 
   private final int[] uniqueFeaturesPerTree;
 
+  private final boolean sparseInteractions;
+
+  private final int interactionTopK;
+
+  private final InteractionScreening interactionScreening;
+
+  private final BackgroundSummary background;
+
+  private final FeatureMask featureMask;
+
+  private final FeatureGroups featureGroups;
+
   /**
    * Constructor for classification gbt predictors.
    *
@@ -199,6 +236,13 @@ private static double max(final double[] logits) {
    * @param learnSpec data table spec of the learning table without unnecessary columns
    * @param calculateProbabilities indicates whether probabilities should be calculated
    * @param positiveClassIndex Index of the positive class. Has to be between 0 and nrClasses-1.
+   * @param sparseInteractions whether only the touched interaction pairs are stored
+   * @param interactionTopK the number of features per row whose interactions are computed, 0 for
+   *     all features
+   * @param interactionScreening the candidate pairs of the interactions, null for all pairs
+   * @param background the summarized background data, null for the path dependent algorithm
+   * @param featureMask the features whose SHAP values are output, null for all features
+   * @param featureGroups the groups forming the players, null if every feature is a player
    */
   public ExplanationGBTPredictor(
       final MultiClassGradientBoostedTreesModel model,
@@ -209,16 +253,29 @@ public ExplanationGBTPredictor(
       final int maxDepth,
       final List<Map<AbstractTreeNode, Double>> trees,
       final int maxNodes,
-      final int[] uniqueFeaturesPerTree) {
+      final int[] uniqueFeaturesPerTree,
+      final boolean sparseInteractions,
+      final int interactionTopK,
+      final InteractionScreening interactionScreening,
+      final BackgroundSummary background,
+      final FeatureMask featureMask,
+      final FeatureGroups featureGroups) {
     super(rowConverter);
     this.model = model;
-    nrColumns = learnSpec.getNumColumns() - 1;
+    nrColumns =
+        featureGroups == null ? learnSpec.getNumColumns() - 1 : featureGroups.getNrGroups();
     this.maxDepth = maxDepth;
     treeMaps = trees;
     this.positiveClassIndex = positiveClassIndex;
     calculateInteractions = uniqueFeaturesPerTree != null;
     this.maxNodes = maxNodes;
     this.uniqueFeaturesPerTree = uniqueFeaturesPerTree;
+    this.sparseInteractions = sparseInteractions;
+    this.interactionTopK = interactionTopK;
+    this.interactionScreening = interactionScreening;
+    this.background = background;
+    this.featureMask = featureMask;
+    this.featureGroups = featureGroups;
   }
 
   private double[] calculateLogits(final PredictorRecord record) {
@@ -13,6 +13,10 @@
 import org.knime.core.data.DataRow;
 import org.knime.core.data.DataTableSpec;
 import org.knime.core.data.def.DoubleCell;
+import org.morriskurz.background.BackgroundSummary;
+import org.morriskurz.parser.FeatureGroups;
+import org.morriskurz.parser.FeatureMask;
+import org.morriskurz.statistics.InteractionScreening;
 
 public class ExplanationGBTRegressionPredictor
     extends AbstractPredictor<ExplanationGBTRegressionPrediction> {
@@ -29,11 +33,15 @@ public GBTPrediction(
         final int nrColumns,
         final int maxDepth,
         final List<Map<AbstractTreeNode, Double>> treeMaps) {
-      super(record);
+      super(record, featureGroups);
       prediction = model.predict(record);
       this.treeMaps = treeMaps;
       if (maxDepth != -1) {
-        computeShap(roots, nrColumns, 1, maxDepth, 0, 0);
+        if (background == null) {
+          computeShap(roots, nrColumns, 1, maxDepth, featureMask);
+        } else {
+          computeInterventionalShap(roots, nrColumns, 1, maxDepth, background, featureMask);
+        }
       }
     }
 
@@ -45,12 +53,34 @@ public GBTPrediction(
         final List<Map<AbstractTreeNode, Double>> treeMaps,
         final int maxNodes,
         final int[] uniqueFeaturesPerTree) {
-      super(record);
+      super(record, featureGroups);
       prediction = model.predict(record);
       this.treeMaps = treeMaps;
       if (maxDepth != -1 && uniqueFeaturesPerTree != null) {
-        dense_tree_interactions_path_dependent(
-            roots, nrColumns, 1, maxDepth, maxNodes, uniqueFeaturesPerTree);
+        if (interactionTopK > 0) {
+          top_k_interactions_path_dependent(
+              roots,
+              nrColumns,
+              1,
+              maxDepth,
+              maxNodes,
+              uniqueFeaturesPerTree,
+              featureMask,
+              interactionTopK);
+        } else if (interactionScreening != null) {
+          screened_interactions_path_dependent(
+              roots, nrColumns, 1, maxDepth, maxNodes, uniqueFeaturesPerTree, interactionScreening);
+        } else {
+          dense_tree_interactions_path_dependent(
+              roots,
+              nrColumns,
+              1,
+              maxDepth,
+              maxNodes,
+              uniqueFeaturesPerTree,
+              featureMask,
+              sparseInteractions);
+        }
       }
     }
 
@@ -92,8 +122,20 @@ public DoubleCell[] getSHAPValues() {
 
   private final int[] uniqueFeaturesPerTree;
 
+  private final boolean sparseInteractions;
+
+  private final int interactionTopK;
+
+  private final InteractionScreening interactionScreening;
+
   private final List<Map<AbstractTreeNode, Double>> treeMaps;
 
+  private final BackgroundSummary background;
+
+  private final FeatureMask featureMask;
+
+  private final FeatureGroups featureGroups;
+
   public ExplanationGBTRegressionPredictor(
       final GradientBoostedTreesModel model,
       final Function<DataRow, PredictorRecord> rowConverter,
@@ -101,15 +143,28 @@ public ExplanationGBTRegressionPredictor(
       final List<Map<AbstractTreeNode, Double>> treeMaps,
       final int maxDepth,
       final int maxNodes,
-      final int[] uniqueFeaturesPerTree) {
+      final int[] uniqueFeaturesPerTree,
+      final boolean sparseInteractions,
+      final int interactionTopK,
+      final InteractionScreening interactionScreening,
+      final BackgroundSummary background,
+      final FeatureMask featureMask,
+      final FeatureGroups featureGroups) {
     super(rowConverter);
     this.model = model;
-    nrColumns = learnSpec.getNumColumns() - 1;
+    nrColumns =
+        featureGroups == null ? learnSpec.getNumColumns() - 1 : featureGroups.getNrGroups();
     this.maxDepth = maxDepth;
     this.treeMaps = treeMaps;
     calculateInteractions = uniqueFeaturesPerTree != null;
     this.maxNodes = maxNodes;
     this.uniqueFeaturesPerTree = uniqueFeaturesPerTree;
+    this.sparseInteractions = sparseInteractions;
+    this.interactionTopK = interactionTopK;
+    this.interactionScreening = interactionScreening;
+    this.background = background;
+    this.featureMask = featureMask;
+    this.featureGroups = featureGroups;
   }
 
   private TreeNodeRegression[] initRoots(final TreeEnsembleModel model) {
@@ -3,6 +3,7 @@
 import java.io.File;
 import java.io.IOException;
 import java.util.Optional;
+import java.util.concurrent.Callable;
 
 import org.knime.base.node.mine.treeensemble2.model.GradientBoostedTreesModel;
 import org.knime.base.node.mine.treeensemble2.model.GradientBoostingModelPortObject;
@@ -23,6 +24,7 @@
 import org.knime.core.node.port.PortObjectSpec;
 import org.knime.core.node.port.PortType;
 import org.knime.core.node.streamable.InputPortRole;
+import org.knime.core.node.streamable.MergeOperator;
 import org.knime.core.node.streamable.OutputPortRole;
 import org.knime.core.node.streamable.PartitionInfo;
 import org.knime.core.node.streamable.PortInput;
@@ -30,11 +32,16 @@
 import org.knime.core.node.streamable.PortOutput;
 import org.knime.core.node.streamable.StreamableFunction;
 import org.knime.core.node.streamable.StreamableOperator;
+import org.knime.core.node.streamable.StreamableOperatorInternals;
+import org.morriskurz.OrderedParallelStreamableOperator;
 import org.morriskurz.TreeSHAPConfiguration;
 import org.morriskurz.TreeSHAPUtil;
+import org.morriskurz.background.BackgroundSummary;
+import org.morriskurz.parser.FeatureGroups;
 import org.morriskurz.ports.PortObjectWrapper;
 import org.morriskurz.ports.PortSpecWrapper;
 import org.morriskurz.ports.Ports;
+import org.morriskurz.summary.ExplanationSummary;
 
 /**
  * This is the implementation of the node model of the "TreeSHAP" node.
@@ -56,7 +63,12 @@ public class TreeSHAPRegressionNodeModel extends NodeModel {
   protected TreeSHAPRegressionNodeModel() {
     /** Here we specify how many data input and output tables the node should have. */
     super(
-        new PortType[] {GradientBoostingModelPortObject.TYPE, BufferedDataTable.TYPE},
+        new PortType[] {
+          GradientBoostingModelPortObject.TYPE,
+          BufferedDataTable.TYPE,
+          BufferedDataTable.TYPE_OPTIONAL,
+          BufferedDataTable.TYPE_OPTIONAL
+        },
         Ports.OUTPUT_PORTS);
   }
 
@@ -85,21 +97,32 @@ protected PortObjectSpec[] configure(final PortObjectSpec[] inSpecs)
      * (as specified in the constructor). The resulting table created in the execute
      * methods must match the spec created in this method.
      */
-    final Optional<DataTableSpec> outSpecOptional = createOutputSpec(specs);
-    if (outSpecOptional.isPresent()) {
-      return new PortObjectSpec[] {outSpecOptional.get()};
+    configuration.checkBackgroundSetting(specs.getBackgroundSpec());
+    if (specs.getFeatureGroupsSpec() != null) {
+      TreeSHAPUtil.findFeatureGroupColumns(specs.getFeatureGroupsSpec());
+      if (configuration.isShowExplanation()) {
+        // The groups, i.e. the explanation columns, are only known once the table is read.
+        return TreeSHAPUtil.createOutputSpecs(null);
+      }
+    }
+    if (configuration.isShowExplanation() && configuration.isUsedFeaturesOnly()) {
+      // The features used by the model are only known once the model is read.
+      return TreeSHAPUtil.createOutputSpecs(null);
     }
-    return new PortObjectSpec[] {};
+    return TreeSHAPUtil.createOutputSpecs(createOutputSpec(specs).orElse(null));
   }
 
   private ColumnRearranger createExecutionRearranger(
       final DataTableSpec predictSpec,
       final TreeEnsembleModelPortObjectSpec modelSpec,
-      final GradientBoostedTreesModel model)
+      final GradientBoostedTreesModel model,
+      final BackgroundSummary background,
+      final FeatureGroups featureGroups,
+      final ExplanationSummary summary)
       throws InvalidSettingsException {
     final PredictionRearrangerCreator prc =
         TreeSHAPUtil.setupRearrangerCreatorRegressionGBT(
-            predictSpec, modelSpec, model, configuration);
+            predictSpec, modelSpec, model, configuration, background, featureGroups, summary);
     return prc.createExecutionRearranger();
   }
 
@@ -117,7 +140,14 @@ private Optional<DataTableSpec> createOutputSpec(
     final DataTableSpec dataSpec = specs.getDataSpec();
     Optional<DataTableSpec> outSpec;
     outSpec =
-        TreeSHAPUtil.setupRearrangerCreatorRegressionGBT(dataSpec, modelSpec, null, configuration)
+        TreeSHAPUtil.setupRearrangerCreatorRegressionGBT(
+                dataSpec,
+                modelSpec,
+                null,
+                configuration,
+                null,
+                TreeSHAPUtil.createFeatureGroups(modelSpec, null, configuration),
+                null)
             .createSpec();
     return outSpec;
   }
@@ -127,25 +157,53 @@ private Optional<DataTableSpec> createOutputSpec(
   public StreamableOperator createStreamableOperator(
       final PartitionInfo partitionInfo, final PortObjectSpec[] inSpecs)
       throws InvalidSettingsException {
-    return new StreamableOperator() {
+    return new OrderedParallelStreamableOperator(
+        1, 0, configuration.getStreamingWindow(), configuration.getStreamingThreads()) {
+
+      private final ExplanationSummary summary =
+          new ExplanationSummary(configuration.getDistributionBins());
 
       @Override
-      public void runFinal(
-          final PortInput[] inputs, final PortOutput[] outputs, final ExecutionContext exec)
-          throws Exception {
+      protected Callable<StreamableFunction> prepare(
+          final PortInput[] inputs, final ExecutionContext exec) throws Exception {
         final GradientBoostingModelPortObject model =
             (GradientBoostingModelPortObject) ((PortObjectInput) inputs[0]).getPortObject();
         final TreeEnsembleModelPortObjectSpec modelSpec = model.getSpec();
         final DataTableSpec dataSpec = (DataTableSpec) inSpecs[1];
-        final ColumnRearranger rearranger =
-            TreeSHAPUtil.setupRearrangerCreatorRegressionGBT(
+        final BackgroundSummary background =
+            TreeSHAPUtil.summarizeBackground(
+                modelSpec,
+                model.getEnsembleModel(),
+                Ports.getOptionalTable(inputs, Ports.IN_BACKGROUND_PORT_INDEX),
+                configuration,
+                exec);
+        if (background != null && background.isLossy()) {
+          setWarningMessage(background.getReductionReport());
+        }
+        final FeatureGroups featureGroups =
+            TreeSHAPUtil.createFeatureGroups(
+                modelSpec,
+                Ports.getOptionalTable(inputs, Ports.IN_FEATURE_GROUPS_PORT_INDEX),
+                configuration);
+        return new Callable<StreamableFunction>() {
+          @Override
+          public StreamableFunction call() throws InvalidSettingsException {
+            final ColumnRearranger rearranger =
+                createExecutionRearranger(
                     dataSpec,
                     modelSpec,
                     (GradientBoostedTreesModel) model.getEnsembleModel(),
-                    configuration)
-                .createExecutionRearranger();
-        final StreamableFunction func = rearranger.createStreamableFunction(1, 0);
-        func.runFinal(inputs, outputs, exec);
+                    background,
+                    featureGroups,
+                    summary);
+            return rearranger.createStreamableFunction(1, 0);
+          }
+        };
+      }
+
+      @Override
+      public StreamableOperatorInternals saveInternals() {
+        return summary.saveInternals();
       }
     };
   }
@@ -160,27 +218,70 @@ protected PortObject[] execute(final PortObject[] inObjects, final ExecutionCont
     final TreeEnsembleModelPortObjectSpec modelSpec = model.getSpec();
     final BufferedDataTable inData = portObjects.getData();
     final DataTableSpec dataSpec = inData.getDataTableSpec();
+    final BackgroundSummary background =
+        TreeSHAPUtil.summarizeBackground(
+            modelSpec,
+            model.getEnsembleModel(),
+            portObjects.getBackground(),
+            configuration,
+            exec.createSubProgress(0.1));
+    if (background != null && background.isLossy()) {
+      setWarningMessage(background.getReductionReport());
+    }
+    final FeatureGroups featureGroups =
+        TreeSHAPUtil.createFeatureGroups(modelSpec, portObjects.getFeatureGroups(), configuration);
+    final ExplanationSummary summary =
+        new ExplanationSummary(configuration.getDistributionBins());
     ColumnRearranger rearranger;
     rearranger =
         createExecutionRearranger(
-            dataSpec, modelSpec, (GradientBoostedTreesModel) model.getEnsembleModel());
+            dataSpec,
+            modelSpec,
+            (GradientBoostedTreesModel) model.getEnsembleModel(),
+            background,
+            featureGroups,
+            summary);
     LOGGER.debug("Rearranger was succesfully built.");
     final BufferedDataTable outTable = exec.createColumnRearrangeTable(inData, rearranger, exec);
-    return new BufferedDataTable[] {outTable};
+    return TreeSHAPUtil.createOutputTables(outTable, summary, exec);
   }
 
   /** {@inheritDoc} */
   @Override
   public InputPortRole[] getInputPortRoles() {
     return new InputPortRole[] {
-      InputPortRole.NONDISTRIBUTED_NONSTREAMABLE, InputPortRole.DISTRIBUTED_STREAMABLE
+      InputPortRole.NONDISTRIBUTED_NONSTREAMABLE,
+      InputPortRole.DISTRIBUTED_STREAMABLE,
+      InputPortRole.NONDISTRIBUTED_NONSTREAMABLE,
+      InputPortRole.NONDISTRIBUTED_NONSTREAMABLE
     };
   }
 
   /** {@inheritDoc} */
   @Override
   public OutputPortRole[] getOutputPortRoles() {
-    return new OutputPortRole[] {OutputPortRole.DISTRIBUTED};
+    return new OutputPortRole[] {
+      OutputPortRole.DISTRIBUTED,
+      OutputPortRole.NONDISTRIBUTED,
+      OutputPortRole.NONDISTRIBUTED,
+      OutputPortRole.NONDISTRIBUTED
+    };
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public MergeOperator createMergeOperator() {
+    return ExplanationSummary.createMergeOperator();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void finishStreamableExecution(
+      final StreamableOperatorInternals internals,
+      final ExecutionContext exec,
+      final PortOutput[] output)
+      throws Exception {
+    TreeSHAPUtil.writeSummaryTables(internals, output);
   }
 
   @Override
@@ -0,0 +1,62 @@
+package org.morriskurz.parser;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.knime.base.node.mine.treeensemble2.node.predictor.parser.PredictionItemParser;
+import org.knime.core.data.DataCell;
+import org.knime.core.data.DataColumnSpec;
+import org.knime.core.data.DataTableSpec;
+import org.knime.core.util.UniqueNameGenerator;
+import org.morriskurz.summary.ExplanationSummary;
+
+/**
+ * Item Parser for aggregated SHAP value interactions.
+ *
+ * <p>The parser adds no columns. The touched pairs of the upper triangle of every row are added to
+ * the interaction strength of the summary instead, so the per-row interactions are never
+ * materialised. Requires the sparse interactions of the prediction.
+ *
+ * @author Morris Kurz, morriskurz@gmail.com
+ */
+public class AggregatedInteractionItemParser
+    implements PredictionItemParser<ITreeSHAPPrediction> {
+
+  private final ExplanationSummary summary;
+
+  /**
+   * Create an aggregated interaction item parser.
+   *
+   * @param trainingDataSpec Data table spec of the training data, the target column being last.
+   * @param featureGroups The feature groups, null if the interactions are aggregated per feature.
+   * @param summary The summary the interactions of every row are added to.
+   */
+  public AggregatedInteractionItemParser(
+      final DataTableSpec trainingDataSpec,
+      final FeatureGroups featureGroups,
+      final ExplanationSummary summary) {
+    this.summary = summary;
+    if (summary != null) {
+      summary.setInteractionPlayerNames(
+          featureGroups != null
+              ? featureGroups.getGroupNames()
+              : Arrays.copyOf(
+                  trainingDataSpec.getColumnNames(),
+                  trainingDataSpec.getColumnNames().length - 1));
+    }
+  }
+
+  @Override
+  public void appendCells(final List<DataCell> cells, final ITreeSHAPPrediction prediction) {
+    final SparseInteractionMatrix interactions = prediction.getSparseInteractionValues();
+    if (summary != null && interactions != null) {
+      summary.addInteractions(interactions);
+    }
+  }
+
+  @Override
+  public void appendSpecs(
+      final UniqueNameGenerator nameGenerator, final List<DataColumnSpec> specs) {
+    // The interactions are only output aggregated over all rows.
+  }
+}
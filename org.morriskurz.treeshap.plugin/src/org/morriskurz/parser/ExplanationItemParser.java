@@ -9,6 +9,7 @@
 import org.knime.core.data.DataTableSpec;
 import org.knime.core.data.def.DoubleCell;
 import org.knime.core.util.UniqueNameGenerator;
+import org.morriskurz.summary.ExplanationSummary;
 
 /**
  * Item Parser for SHAP value explanations.
@@ -23,6 +24,16 @@ public class ExplanationItemParser implements PredictionItemParser<ITreeSHAPPred
 
 	private final String[] columnNames;
 
+	private final boolean appendOtherFeatures;
+
+	private final ExplanationSummary summary;
+
+	/**
+	 * The training column of every player, null if the player is no training
+	 * column. Null unless the distribution of the SHAP values is summarized.
+	 */
+	private final String[] featureColumns;
+
 	/**
 	 * Create an explanation item parser.
 	 *
@@ -31,13 +42,78 @@ public class ExplanationItemParser implements PredictionItemParser<ITreeSHAPPred
 	 *                         column.
 	 */
 	public ExplanationItemParser(final DataTableSpec trainingDataSpec) {
-		// Don't copy the target column.
-		columnNames = Arrays.copyOf(trainingDataSpec.getColumnNames(), trainingDataSpec.getColumnNames().length - 1);
+		this(trainingDataSpec, null, null, null);
+	}
+
+	/**
+	 * Create an explanation item parser for the selected features. The summed
+	 * contribution of the remaining features is appended as one column.
+	 *
+	 * @param trainingDataSpec Data table spec of the training data.
+	 * @param featureGroups    The feature groups, null if the SHAP values are
+	 *                         output per feature.
+	 * @param featureMask      The features whose SHAP values are output, null for
+	 *                         all features.
+	 * @param summary          The summary the SHAP values of every row are added
+	 *                         to, null if they are not summarized.
+	 */
+	public ExplanationItemParser(final DataTableSpec trainingDataSpec, final FeatureGroups featureGroups,
+			final FeatureMask featureMask, final ExplanationSummary summary) {
+		if (featureMask != null) {
+			columnNames = featureMask.getSelectedNames();
+		} else if (featureGroups != null) {
+			columnNames = featureGroups.getGroupNames();
+		} else {
+			// Don't copy the target column.
+			columnNames = Arrays.copyOf(trainingDataSpec.getColumnNames(),
+					trainingDataSpec.getColumnNames().length - 1);
+		}
+		appendOtherFeatures = featureMask != null;
+		this.summary = summary;
+		if (summary != null) {
+			summary.setPlayerNames(appendOtherFeatures
+					? appendOtherFeaturesName(columnNames)
+					: columnNames);
+		}
+		if (summary != null && summary.isDistributionSummarized()) {
+			// Groups and the other features have no single value.
+			featureColumns = new String[columnNames.length + (appendOtherFeatures ? 1 : 0)];
+			if (featureGroups == null) {
+				System.arraycopy(columnNames, 0, featureColumns, 0, columnNames.length);
+			}
+		} else {
+			featureColumns = null;
+		}
+	}
+
+	/** @return the numeric value of every player in the record, NaN if unknown */
+	private double[] getFeatureValues(final ITreeSHAPPrediction prediction) {
+		final double[] values = new double[featureColumns.length];
+		for (int i = 0; i < values.length; i++) {
+			final Object value = featureColumns[i] == null ? null
+					: prediction.getRecord().getValue(featureColumns[i]);
+			values[i] = value instanceof Double ? (Double) value : Double.NaN;
+		}
+		return values;
+	}
+
+	private static String[] appendOtherFeaturesName(final String[] names) {
+		final String[] playerNames = Arrays.copyOf(names, names.length + 1);
+		playerNames[names.length] = FeatureMask.OTHER_FEATURES_NAME;
+		return playerNames;
 	}
 
 	@Override
 	public void appendCells(final List<DataCell> cells, final ITreeSHAPPrediction prediction) {
-		java.util.Collections.addAll(cells, prediction.getSHAPValues());
+		final DoubleCell[] shapValues = prediction.getSHAPValues();
+		java.util.Collections.addAll(cells, shapValues);
+		if (summary != null) {
+			final double[] values = new double[shapValues.length];
+			for (int i = 0; i < values.length; i++) {
+				values[i] = shapValues[i].getDoubleValue();
+			}
+			summary.addShapValues(values, featureColumns == null ? null : getFeatureValues(prediction));
+		}
 	}
 
 	@Override
@@ -46,6 +122,9 @@ public void appendSpecs(final UniqueNameGenerator nameGenerator, final List<Data
 			final String colName = "SHAP " + columnName;
 			specs.add(nameGenerator.newColumn(colName, DoubleCell.TYPE));
 		}
+		if (appendOtherFeatures) {
+			specs.add(nameGenerator.newColumn("SHAP " + FeatureMask.OTHER_FEATURES_NAME, DoubleCell.TYPE));
+		}
 		specs.add(nameGenerator.newColumn("Bias", DoubleCell.TYPE));
 	}
 
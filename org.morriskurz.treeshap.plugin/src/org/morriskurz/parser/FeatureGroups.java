@@ -0,0 +1,181 @@
+package org.morriskurz.parser;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.knime.core.data.DataTableSpec;
+import org.knime.core.node.InvalidSettingsException;
+
+/**
+ * Assignment of the features to groups, e.g. all one-hot columns of a nominal field. Each group is
+ * a single player of the Shapley game, i.e. the SHAP values are computed for the groups instead of
+ * the features. Features without a group form a group of their own.
+ *
+ * @author Morris Kurz, morriskurz@gmail.com
+ */
+public final class FeatureGroups {
+
+  /**
+   * Creates the feature groups.
+   *
+   * @param trainingDataSpec Data table spec of the training data, the target column being last.
+   * @param groupOfFeature Explicit group names by feature name, takes precedence over the pattern.
+   * @param pattern Regular expression matched against the feature names. Matching features are
+   *     grouped by the first capturing group, or all into one group if the pattern has none. Null or
+   *     empty to not group by pattern.
+   * @return the groups, or null if no feature is grouped
+   * @throws InvalidSettingsException if the pattern is invalid
+   */
+  public static FeatureGroups create(
+      final DataTableSpec trainingDataSpec,
+      final Map<String, String> groupOfFeature,
+      final String pattern)
+      throws InvalidSettingsException {
+    final boolean hasPattern = pattern != null && !pattern.isEmpty();
+    if (groupOfFeature.isEmpty() && !hasPattern) {
+      return null;
+    }
+    Pattern compiledPattern = null;
+    if (hasPattern) {
+      try {
+        compiledPattern = Pattern.compile(pattern);
+      } catch (final PatternSyntaxException e) {
+        throw new InvalidSettingsException(
+            "The feature group pattern is invalid: " + e.getMessage(), e);
+      }
+    }
+    final int nrColumns = trainingDataSpec.getNumColumns() - 1;
+    final Map<String, Integer> groupIds = new LinkedHashMap<>();
+    final int[] groups = new int[nrColumns];
+    for (int i = 0; i < nrColumns; i++) {
+      final String feature = trainingDataSpec.getColumnSpec(i).getName();
+      String group = groupOfFeature.get(feature);
+      if (group == null && compiledPattern != null) {
+        final Matcher matcher = compiledPattern.matcher(feature);
+        if (matcher.matches()) {
+          group = matcher.groupCount() > 0 && matcher.group(1) != null ? matcher.group(1) : pattern;
+        }
+      }
+      if (group == null) {
+        group = feature;
+      }
+      Integer id = groupIds.get(group);
+      if (id == null) {
+        id = groupIds.size();
+        groupIds.put(group, id);
+      }
+      groups[i] = id;
+    }
+    return new FeatureGroups(
+        groups, groupIds.keySet().toArray(new String[groupIds.size()]));
+  }
+
+  /**
+   * Creates players for the features used by the ensemble only. Features never split on have a SHAP
+   * value of zero, so they are left out of the computation and the output.
+   *
+   * @param trainingDataSpec Data table spec of the training data, the target column being last.
+   * @param featureGroups The feature groups, null if every feature is a player.
+   * @param usedFeatures The features split on anywhere in the ensemble.
+   * @return the groups of the used features, unused features belonging to no group (-1)
+   */
+  public static FeatureGroups createForUsedFeatures(
+      final DataTableSpec trainingDataSpec,
+      final FeatureGroups featureGroups,
+      final int[] usedFeatures) {
+    final int nrColumns = trainingDataSpec.getNumColumns() - 1;
+    final int nrPlayers = featureGroups == null ? nrColumns : featureGroups.getNrGroups();
+    final boolean[] used = new boolean[nrPlayers];
+    for (final int feature : usedFeatures) {
+      used[featureGroups == null ? feature : featureGroups.getGroup(feature)] = true;
+    }
+    // Compact ids of the used players, in the order of the original players.
+    final int[] compactIds = new int[nrPlayers];
+    final List<String> groupNames = new ArrayList<>();
+    for (int player = 0; player < nrPlayers; player++) {
+      if (used[player]) {
+        compactIds[player] = groupNames.size();
+        groupNames.add(
+            featureGroups == null
+                ? trainingDataSpec.getColumnSpec(player).getName()
+                : featureGroups.getGroupNames()[player]);
+      } else {
+        compactIds[player] = -1;
+      }
+    }
+    final int[] groups = new int[nrColumns];
+    for (int i = 0; i < nrColumns; i++) {
+      groups[i] = compactIds[featureGroups == null ? i : featureGroups.getGroup(i)];
+    }
+    return new FeatureGroups(groups, groupNames.toArray(new String[groupNames.size()]));
+  }
+
+  private final int[] groups;
+
+  private final String[] groupNames;
+
+  private FeatureGroups(final int[] groups, final String[] groupNames) {
+    this.groups = groups;
+    this.groupNames = groupNames;
+  }
+
+  /**
+   * @param feature Index of the feature in the training data.
+   * @return the index of the group the feature belongs to, -1 if the feature is not used
+   */
+  public int getGroup(final int feature) {
+    return groups[feature];
+  }
+
+  /** @return the names of the groups, in the order of their indices. */
+  public String[] getGroupNames() {
+    return groupNames;
+  }
+
+  public int getNrGroups() {
+    return groupNames.length;
+  }
+
+  /**
+   * Translates the unique features of every tree to the unique groups of every tree, see {@link
+   * TreeSHAPPrediction#dense_tree_interactions_path_dependent}.
+   *
+   * @param uniqueFeaturesPerTree The unique features of every tree, padded with -1.
+   * @param nrTrees The number of trees.
+   * @param maxNodes The maximum amount of nodes in a single tree.
+   * @return The unique groups of every tree. Each tree has min(maxNodes, nrGroups) entries, padded
+   *     with -1.
+   */
+  public int[] toUniqueGroupsPerTree(
+      final int[] uniqueFeaturesPerTree, final int nrTrees, final int maxNodes) {
+    final int featuresWidth = uniqueFeaturesPerTree.length / nrTrees;
+    final int groupsWidth = Math.min(maxNodes, getNrGroups());
+    final int[] uniqueGroupsPerTree = new int[nrTrees * groupsWidth];
+    Arrays.fill(uniqueGroupsPerTree, -1);
+    final boolean[] seen = new boolean[getNrGroups()];
+    for (int tree = 0; tree < nrTrees; tree++) {
+      int next = tree * groupsWidth;
+      for (int k = 0; k < featuresWidth; k++) {
+        final int feature = uniqueFeaturesPerTree[tree * featuresWidth + k];
+        if (feature < 0) {
+          break;
+        }
+        final int group = groups[feature];
+        if (!seen[group]) {
+          seen[group] = true;
+          uniqueGroupsPerTree[next++] = group;
+        }
+      }
+      for (int k = tree * groupsWidth; k < next; k++) {
+        seen[uniqueGroupsPerTree[k]] = false;
+      }
+    }
+    return uniqueGroupsPerTree;
+  }
+}
@@ -0,0 +1,106 @@
+package org.morriskurz.parser;
+
+import org.knime.core.data.DataTableSpec;
+import org.knime.core.node.InvalidSettingsException;
+
+/**
+ * The features whose SHAP values are output. The contributions of all other features are only
+ * reported as their sum, which is derived from the prediction and does not require the per feature
+ * computation.
+ *
+ * @author Morris Kurz, morriskurz@gmail.com
+ */
+public final class FeatureMask {
+
+  /** Name of the column holding the summed contribution of the unselected features. */
+  public static final String OTHER_FEATURES_NAME = "other features";
+
+  /**
+   * Creates the mask for the given feature names.
+   *
+   * @param trainingDataSpec Data table spec of the training data, the target column being last.
+   * @param explainedFeatures Names of the selected features. Null or empty selects all features.
+   * @param featureGroups The feature groups, null if every feature is a player. If given, the mask
+   *     selects the groups of the selected features.
+   * @return the mask, or null if all features are explained
+   * @throws InvalidSettingsException if a selected feature is not used by the model
+   */
+  public static FeatureMask create(
+      final DataTableSpec trainingDataSpec,
+      final String[] explainedFeatures,
+      final FeatureGroups featureGroups)
+      throws InvalidSettingsException {
+    if (explainedFeatures == null || explainedFeatures.length == 0) {
+      return null;
+    }
+    final int nrColumns = trainingDataSpec.getNumColumns() - 1;
+    final String[] playerNames;
+    if (featureGroups == null) {
+      playerNames = new String[nrColumns];
+      for (int i = 0; i < nrColumns; i++) {
+        playerNames[i] = trainingDataSpec.getColumnSpec(i).getName();
+      }
+    } else {
+      playerNames = featureGroups.getGroupNames();
+    }
+    final boolean[] selected = new boolean[playerNames.length];
+    for (final String name : explainedFeatures) {
+      final int index = trainingDataSpec.findColumnIndex(name);
+      if (index < 0 || index >= nrColumns) {
+        throw new InvalidSettingsException(
+            "The explained feature \"" + name + "\" is not used by the model.");
+      }
+      final int player = featureGroups == null ? index : featureGroups.getGroup(index);
+      // Features not used by the ensemble have no SHAP value.
+      if (player >= 0) {
+        selected[player] = true;
+      }
+    }
+    return new FeatureMask(playerNames, selected);
+  }
+
+  private final boolean[] selected;
+
+  private final int[] selectedFeatures;
+
+  private final String[] selectedNames;
+
+  private FeatureMask(final String[] playerNames, final boolean[] selected) {
+    this.selected = selected;
+    int nrSelected = 0;
+    for (final boolean s : selected) {
+      if (s) {
+        nrSelected++;
+      }
+    }
+    selectedFeatures = new int[nrSelected];
+    selectedNames = new String[nrSelected];
+    int next = 0;
+    for (int i = 0; i < selected.length; i++) {
+      if (selected[i]) {
+        selectedFeatures[next] = i;
+        selectedNames[next] = playerNames[i];
+        next++;
+      }
+    }
+  }
+
+  /** @return the indices of the selected features in ascending order. */
+  public int[] getSelectedFeatures() {
+    return selectedFeatures;
+  }
+
+  /** @return the names of the selected features, in the order of {@link #getSelectedFeatures()}. */
+  public String[] getSelectedNames() {
+    return selectedNames;
+  }
+
+  /**
+   * @param feature Index of the feature in the training data, or of the group if features are
+   *     grouped.
+   * @return true if the SHAP value of the feature is output
+   */
+  public boolean isSelected(final int feature) {
+    return selected[feature];
+  }
+}
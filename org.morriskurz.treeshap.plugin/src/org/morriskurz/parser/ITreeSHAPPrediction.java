@@ -1,5 +1,6 @@
 package org.morriskurz.parser;
 
+import org.knime.base.node.mine.treeensemble2.data.PredictorRecord;
 import org.knime.base.node.mine.treeensemble2.node.predictor.Prediction;
 import org.knime.core.data.def.DoubleCell;
 
@@ -11,5 +12,11 @@
 public interface ITreeSHAPPrediction extends Prediction {
   DoubleCell[] getInteractionValues();
 
+  /** @return the touched pairs of the upper triangle, null unless sparse interactions are used. */
+  SparseInteractionMatrix getSparseInteractionValues();
+
   DoubleCell[] getSHAPValues();
+
+  /** @return the explained record */
+  PredictorRecord getRecord();
 }
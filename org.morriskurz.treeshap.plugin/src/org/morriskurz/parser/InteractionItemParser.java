@@ -29,10 +29,41 @@ public class InteractionItemParser implements PredictionItemParser<ITreeSHAPPred
    *     used in training and the target column.
    */
   public InteractionItemParser(final DataTableSpec trainingDataSpec) {
-    // Don't copy the target column.
-    columnNames =
-        Arrays.copyOf(
-            trainingDataSpec.getColumnNames(), trainingDataSpec.getColumnNames().length - 1);
+    this(trainingDataSpec, null);
+  }
+
+  /**
+   * Create an interaction item parser.
+   *
+   * @param trainingDataSpec Data table spec of the training data.
+   * @param featureGroups The feature groups, null if the interactions are output per feature.
+   */
+  public InteractionItemParser(
+      final DataTableSpec trainingDataSpec, final FeatureGroups featureGroups) {
+    this(trainingDataSpec, featureGroups, null);
+  }
+
+  /**
+   * Create an interaction item parser for the interactions between the selected features.
+   *
+   * @param trainingDataSpec Data table spec of the training data.
+   * @param featureGroups The feature groups, null if the interactions are output per feature.
+   * @param interactionMask The features whose interactions are output, null for all features.
+   */
+  public InteractionItemParser(
+      final DataTableSpec trainingDataSpec,
+      final FeatureGroups featureGroups,
+      final FeatureMask interactionMask) {
+    if (interactionMask != null) {
+      columnNames = interactionMask.getSelectedNames();
+    } else if (featureGroups != null) {
+      columnNames = featureGroups.getGroupNames();
+    } else {
+      // Don't copy the target column.
+      columnNames =
+          Arrays.copyOf(
+              trainingDataSpec.getColumnNames(), trainingDataSpec.getColumnNames().length - 1);
+    }
   }
 
   @Override
@@ -0,0 +1,85 @@
+package org.morriskurz.parser;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.knime.base.node.mine.treeensemble2.node.predictor.parser.PredictionItemParser;
+import org.knime.core.data.DataCell;
+import org.knime.core.data.DataColumnSpec;
+import org.knime.core.data.DataTableSpec;
+import org.knime.core.data.collection.CollectionCellFactory;
+import org.knime.core.data.collection.ListCell;
+import org.knime.core.data.def.DoubleCell;
+import org.knime.core.data.def.StringCell;
+import org.knime.core.util.UniqueNameGenerator;
+
+/**
+ * Item Parser for sparse SHAP value interactions.
+ *
+ * <p>Instead of one column per pair of features, the parser adds three list columns holding the
+ * touched pairs of the upper triangle of the interaction matrix: the first feature, the second
+ * feature and the interaction value. The main effects are the pairs of a feature with itself. The
+ * lists can be expanded into one row per pair with the Ungroup node.
+ *
+ * @author Morris Kurz, morriskurz@gmail.com
+ */
+public class SparseInteractionItemParser implements PredictionItemParser<ITreeSHAPPrediction> {
+
+  private final StringCell[] playerNames;
+
+  /**
+   * Create a sparse interaction item parser.
+   *
+   * @param trainingDataSpec Data table spec of the training data, the target column being last.
+   * @param featureGroups The feature groups, null if the interactions are output per feature.
+   */
+  public SparseInteractionItemParser(
+      final DataTableSpec trainingDataSpec, final FeatureGroups featureGroups) {
+    final String[] names;
+    if (featureGroups != null) {
+      names = featureGroups.getGroupNames();
+    } else {
+      names =
+          Arrays.copyOf(
+              trainingDataSpec.getColumnNames(), trainingDataSpec.getColumnNames().length - 1);
+    }
+    playerNames = new StringCell[names.length];
+    for (int i = 0; i < names.length; i++) {
+      playerNames[i] = new StringCell(names[i]);
+    }
+  }
+
+  @Override
+  public void appendCells(final List<DataCell> cells, final ITreeSHAPPrediction prediction) {
+    final SparseInteractionMatrix interactions = prediction.getSparseInteractionValues();
+    final int[] rows = interactions.getRows();
+    final int[] columns = interactions.getColumns();
+    final double[] values = interactions.getValues();
+    final List<DataCell> firstFeatures = new ArrayList<>(rows.length);
+    final List<DataCell> secondFeatures = new ArrayList<>(rows.length);
+    final List<DataCell> interactionValues = new ArrayList<>(rows.length);
+    for (int i = 0; i < rows.length; i++) {
+      firstFeatures.add(playerNames[rows[i]]);
+      secondFeatures.add(playerNames[columns[i]]);
+      interactionValues.add(new DoubleCell(values[i]));
+    }
+    cells.add(CollectionCellFactory.createListCell(firstFeatures));
+    cells.add(CollectionCellFactory.createListCell(secondFeatures));
+    cells.add(CollectionCellFactory.createListCell(interactionValues));
+  }
+
+  @Override
+  public void appendSpecs(
+      final UniqueNameGenerator nameGenerator, final List<DataColumnSpec> specs) {
+    specs.add(
+        nameGenerator.newColumn(
+            "SHAP interaction feature", ListCell.getCollectionType(StringCell.TYPE)));
+    specs.add(
+        nameGenerator.newColumn(
+            "SHAP interaction partner", ListCell.getCollectionType(StringCell.TYPE)));
+    specs.add(
+        nameGenerator.newColumn(
+            "SHAP interaction value", ListCell.getCollectionType(DoubleCell.TYPE)));
+  }
+}
@@ -0,0 +1,147 @@
+package org.morriskurz.parser;
+
+import java.util.Arrays;
+
+/**
+ * Upper triangle of a symmetric interaction matrix, holding only the touched pairs. The pairs are
+ * kept in an open addressing hash map with primitive keys, so the memory is proportional to the
+ * number of features co-occurring in the trees instead of the squared number of features.
+ *
+ * @author Morris Kurz, morriskurz@gmail.com
+ */
+public final class SparseInteractionMatrix {
+
+  private static final long EMPTY = -1;
+
+  private static final int INITIAL_CAPACITY = 64;
+
+  private long[] keys;
+
+  private double[] values;
+
+  private int size;
+
+  private int[] sortedRows;
+
+  private int[] sortedColumns;
+
+  private double[] sortedValues;
+
+  public SparseInteractionMatrix() {
+    keys = new long[INITIAL_CAPACITY];
+    values = new double[INITIAL_CAPACITY];
+    Arrays.fill(keys, EMPTY);
+  }
+
+  /**
+   * Adds the value to the entry of the pair. The pair is unordered, i.e. (i, j) and (j, i) refer
+   * to the same entry.
+   *
+   * @param i Index of the first feature.
+   * @param j Index of the second feature.
+   * @param value The value to add.
+   */
+  public void add(final int i, final int j, final double value) {
+    final long key = toKey(i, j);
+    int slot = find(keys, key);
+    if (keys[slot] == EMPTY) {
+      if (2 * (size + 1) > keys.length) {
+        grow();
+        slot = find(keys, key);
+      }
+      keys[slot] = key;
+      size++;
+    }
+    values[slot] += value;
+    sortedRows = null;
+  }
+
+  /**
+   * @param i Index of the first feature.
+   * @param j Index of the second feature.
+   * @return the value of the unordered pair, 0 if the pair was not touched
+   */
+  public double get(final int i, final int j) {
+    final int slot = find(keys, toKey(i, j));
+    return keys[slot] == EMPTY ? 0 : values[slot];
+  }
+
+  /** @return whether a value was added for the unordered pair. */
+  public boolean contains(final int i, final int j) {
+    return keys[find(keys, toKey(i, j))] != EMPTY;
+  }
+
+  /** @return the number of touched pairs. */
+  public int size() {
+    return size;
+  }
+
+  /** @return the first feature of every pair, sorted by (row, column). */
+  public int[] getRows() {
+    sort();
+    return sortedRows;
+  }
+
+  /** @return the second feature of every pair, in the order of {@link #getRows()}. */
+  public int[] getColumns() {
+    sort();
+    return sortedColumns;
+  }
+
+  /** @return the value of every pair, in the order of {@link #getRows()}. */
+  public double[] getValues() {
+    sort();
+    return sortedValues;
+  }
+
+  private void sort() {
+    if (sortedRows != null) {
+      return;
+    }
+    final long[] sortedKeys = new long[size];
+    int next = 0;
+    for (final long key : keys) {
+      if (key != EMPTY) {
+        sortedKeys[next++] = key;
+      }
+    }
+    Arrays.sort(sortedKeys);
+    sortedRows = new int[size];
+    sortedColumns = new int[size];
+    sortedValues = new double[size];
+    for (int i = 0; i < size; i++) {
+      sortedRows[i] = (int) (sortedKeys[i] >>> 32);
+      sortedColumns[i] = (int) sortedKeys[i];
+      sortedValues[i] = values[find(keys, sortedKeys[i])];
+    }
+  }
+
+  private void grow() {
+    final long[] oldKeys = keys;
+    final double[] oldValues = values;
+    keys = new long[oldKeys.length * 2];
+    values = new double[oldKeys.length * 2];
+    Arrays.fill(keys, EMPTY);
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldKeys[i] != EMPTY) {
+        final int slot = find(keys, oldKeys[i]);
+        keys[slot] = oldKeys[i];
+        values[slot] = oldValues[i];
+      }
+    }
+  }
+
+  private static long toKey(final int i, final int j) {
+    return i <= j ? ((long) i << 32) | j : ((long) j << 32) | i;
+  }
+
+  /** Linear probing, returns the slot holding the key or the empty slot it belongs to. */
+  private static int find(final long[] keys, final long key) {
+    final int mask = keys.length - 1;
+    int slot = (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+    while (keys[slot] != EMPTY && keys[slot] != key) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+}
@@ -5,6 +5,8 @@
 import org.knime.base.node.mine.treeensemble2.data.PredictorRecord;
 import org.knime.base.node.mine.treeensemble2.model.AbstractTreeNode;
 import org.knime.core.data.def.DoubleCell;
+import org.morriskurz.background.BackgroundSummary;
+import org.morriskurz.statistics.InteractionScreening;
 
 /**
  * Abstract implementation of the prediction interface calculation SHAP values. For details to the
@@ -35,8 +37,36 @@
 
   private int nrColumns;
 
+  /**
+   * The features whose interactions are computed, null for all features. If set, the interaction
+   * values only hold the rows of the selected features, in the order of the mask.
+   */
+  private FeatureMask interactionMask;
+
+  /** The upper triangle of the interaction values, only set for the sparse interactions. */
+  private SparseInteractionMatrix sparseInteractions;
+
+  /** The features whose SHAP values are output, null for all features. */
+  private FeatureMask featureMask;
+
+  /** The summed SHAP values of the features not selected by the feature mask. */
+  private double otherFeatures;
+
+  /** The groups forming the players of the game, null if every feature is a player. */
+  private final FeatureGroups featureGroups;
+
   protected TreeSHAPPrediction(final PredictorRecord record) {
+    this(record, null);
+  }
+
+  /**
+   * @param record The record to explain.
+   * @param featureGroups The groups forming the players of the game, null if every feature is a
+   *     player. If given, all nrColumns arguments refer to the number of groups.
+   */
+  protected TreeSHAPPrediction(final PredictorRecord record, final FeatureGroups featureGroups) {
     this.record = record;
+    this.featureGroups = featureGroups;
   }
 
   /**
@@ -81,6 +111,105 @@ public void computeShap(
     }
   }
 
+  /**
+   * Calculates the SHAP values of the selected features for the given record and tree roots. Uses
+   * the path_dependent assumption. The SHAP values of the unselected features are not computed,
+   * only their sum, which follows from the prediction by the local accuracy of SHAP values.
+   *
+   * @param roots Roots of the trees making up the ensemble.
+   * @param nrColumns The number of columns in the training data set.
+   * @param scaling The scaling factor which is applied to the SHAP values.
+   * @param maxDepth The maximum depth in a single tree over the whole ensemble.
+   * @param featureMask The features whose SHAP values are output, null for all features.
+   */
+  public void computeShap(
+      final P[] roots,
+      final int nrColumns,
+      final double scaling,
+      final int maxDepth,
+      final FeatureMask featureMask) {
+    this.featureMask = featureMask;
+    computeShap(roots, nrColumns, scaling, maxDepth, 0, 0);
+    if (featureMask != null) {
+      otherFeatures = computeOtherFeatures(roots, nrColumns, scaling);
+    }
+  }
+
+  /**
+   * Calculates the SHAP values for the given record and tree roots. Uses the interventional
+   * assumption, i.e. absent features are replaced by the values of the background rows. Every tree
+   * is explained against the weighted representatives the background summary holds for it.
+   *
+   * @param roots Roots of the trees making up the ensemble, in the order used by the background
+   *     summary.
+   * @param nrColumns The number of columns in the training data set.
+   * @param scaling The scaling factor which is applied to the SHAP values.
+   * @param maxDepth The maximum depth in a single tree over the whole ensemble.
+   * @param background The summarized background data.
+   * @param featureMask The features whose SHAP values are output, null for all features.
+   */
+  public void computeInterventionalShap(
+      final P[] roots,
+      final int nrColumns,
+      final double scaling,
+      final int maxDepth,
+      final BackgroundSummary background,
+      final FeatureMask featureMask) {
+    this.phi = new double[nrColumns + 1];
+    this.featureMask = featureMask;
+    // Features taken from the explained record (x) and from the background record (z).
+    final int[] xFeatures = new int[maxDepth + 1];
+    final int[] zFeatures = new int[maxDepth + 1];
+    final boolean[] isXFeature = new boolean[nrColumns];
+    final boolean[] isZFeature = new boolean[nrColumns];
+    final double[][] weights = shapleyWeights(maxDepth + 1);
+    final double totalWeight = background.getTotalWeight();
+    for (int treeIndex = 0; treeIndex < roots.length; treeIndex++) {
+      final PredictorRecord[] representatives = background.getRepresentatives(treeIndex);
+      final double[] representativeWeights = background.getWeights(treeIndex);
+      for (int i = 0; i < representatives.length; i++) {
+        final double weight = representativeWeights[i] / totalWeight;
+        recurseInterventional(
+            treeIndex,
+            roots[treeIndex],
+            representatives[i],
+            weight,
+            xFeatures,
+            0,
+            zFeatures,
+            0,
+            isXFeature,
+            isZFeature,
+            weights);
+        // The bias is the expected prediction over the background data.
+        final P backgroundLeaf = findLeaf(roots[treeIndex], representatives[i]);
+        phi[nrColumns] += weight * getNodeValue(backgroundLeaf, treeIndex);
+      }
+    }
+    for (int i = 0; i < nrColumns + 1; i++) {
+      phi[i] *= scaling;
+    }
+    if (featureMask != null) {
+      otherFeatures = computeOtherFeatures(roots, nrColumns, scaling);
+    }
+  }
+
+  /**
+   * The SHAP values sum up to the prediction minus the bias. The part not explained by the selected
+   * features belongs to the other features.
+   */
+  private double computeOtherFeatures(final P[] roots, final int nrColumns, final double scaling) {
+    double prediction = 0;
+    for (int treeIndex = 0; treeIndex < roots.length; treeIndex++) {
+      prediction += getNodeValue(findLeaf(roots[treeIndex], record), treeIndex);
+    }
+    double other = prediction * scaling - phi[nrColumns];
+    for (final int feature : featureMask.getSelectedFeatures()) {
+      other -= phi[feature];
+    }
+    return other;
+  }
+
   /**
    * Calculates the SHAP interaction values for the given record and tree roots. Uses the
    * path_dependent assumption.
@@ -103,6 +232,84 @@ public void dense_tree_interactions_path_dependent(
       final int maxDepth,
       final int maxNodes,
       final int[] uniqueFeaturesPerTree) {
+    dense_tree_interactions_path_dependent(
+        roots, nrColumns, scaling, maxDepth, maxNodes, uniqueFeaturesPerTree, null);
+  }
+
+  /**
+   * Calculates the SHAP interaction values between the selected features. Only the selected
+   * features are conditioned on, which yields their full rows of the interaction matrix. By the
+   * symmetry of the interaction values, the main effect of a selected feature is its SHAP value
+   * minus the sum of its row.
+   *
+   * @param roots Roots of the trees making up the ensemble
+   * @param nrColumns The number of columns in the training data set.
+   * @param scaling The scaling factor which is applied to the SHAP values.
+   * @param maxDepth The maximum depth in a single tree over the whole ensemble.
+   * @param maxNodes The maximum amount of nodes in a single tree.
+   * @param uniqueFeaturesPerTree The feature indices used in each tree, see {@link
+   *     #dense_tree_interactions_path_dependent(AbstractTreeNode[], int, double, int, int, int[])}.
+   * @param interactionMask The features whose interactions are output, null for all features.
+   */
+  public void dense_tree_interactions_path_dependent(
+      final P[] roots,
+      final int nrColumns,
+      final double scaling,
+      final int maxDepth,
+      final int maxNodes,
+      final int[] uniqueFeaturesPerTree,
+      final FeatureMask interactionMask) {
+    dense_tree_interactions_path_dependent(
+        roots,
+        nrColumns,
+        scaling,
+        maxDepth,
+        maxNodes,
+        uniqueFeaturesPerTree,
+        interactionMask,
+        false);
+  }
+
+  /**
+   * Calculates the SHAP interaction values, optionally into a sparse upper triangle.
+   *
+   * @param roots Roots of the trees making up the ensemble
+   * @param nrColumns The number of columns in the training data set.
+   * @param scaling The scaling factor which is applied to the SHAP values.
+   * @param maxDepth The maximum depth in a single tree over the whole ensemble.
+   * @param maxNodes The maximum amount of nodes in a single tree.
+   * @param uniqueFeaturesPerTree The feature indices used in each tree.
+   * @param interactionMask The features whose interactions are output, null for all features.
+   * @param sparse Whether only the touched pairs of the upper triangle are stored, see {@link
+   *     #getSparseInteractionValues()}.
+   */
+  public void dense_tree_interactions_path_dependent(
+      final P[] roots,
+      final int nrColumns,
+      final double scaling,
+      final int maxDepth,
+      final int maxNodes,
+      final int[] uniqueFeaturesPerTree,
+      final FeatureMask interactionMask,
+      final boolean sparse) {
+    if (sparse) {
+      computeShap(roots, nrColumns, scaling, maxDepth, 0, 0);
+      sparse_tree_interactions_path_dependent(
+          roots,
+          nrColumns,
+          scaling,
+          maxDepth,
+          maxNodes,
+          uniqueFeaturesPerTree,
+          toSelection(interactionMask, nrColumns),
+          null);
+      return;
+    }
+    if (interactionMask != null) {
+      selected_interactions_path_dependent(
+          roots, nrColumns, scaling, maxDepth, maxNodes, uniqueFeaturesPerTree, interactionMask);
+      return;
+    }
     this.nrColumns = nrColumns;
     // build a list of all the unique features in each tree
     final int amountOfUniqueFeatures = Math.min(nrColumns, maxNodes);
@@ -197,6 +404,216 @@ public void dense_tree_interactions_path_dependent(
 
   }
 
+  private void selected_interactions_path_dependent(
+      final P[] roots,
+      final int nrColumns,
+      final double scaling,
+      final int maxDepth,
+      final int maxNodes,
+      final int[] uniqueFeaturesPerTree,
+      final FeatureMask interactionMask) {
+    this.nrColumns = nrColumns;
+    this.interactionMask = interactionMask;
+    final int amountOfUniqueFeatures = Math.min(nrColumns, maxNodes);
+    final int[] selectedFeatures = interactionMask.getSelectedFeatures();
+    // Row of the interaction matrix for every selected feature, -1 for the others.
+    final int[] rowOfFeature = new int[nrColumns];
+    Arrays.fill(rowOfFeature, -1);
+    for (int i = 0; i < selectedFeatures.length; i++) {
+      rowOfFeature[selectedFeatures[i]] = i;
+    }
+    final int contrib_row_size = nrColumns + 1;
+    interactionValues = new double[selectedFeatures.length * contrib_row_size];
+    final double[] on_contribs = new double[contrib_row_size];
+    computeShap(roots, nrColumns, scaling, maxDepth, 0, 0);
+    final double[] diag_contribs = Arrays.copyOf(phi, contrib_row_size);
+    P[] tree;
+    for (int j = 0; j < roots.length; ++j) {
+      tree = Arrays.copyOfRange(roots, j, j + 1);
+      for (int k = 0; k < amountOfUniqueFeatures; ++k) {
+        final int ind = uniqueFeaturesPerTree[k + j * amountOfUniqueFeatures];
+        if (ind < 0) {
+          break;
+        }
+        final int row = rowOfFeature[ind];
+        if (row < 0) {
+          continue;
+        }
+        computeShap(tree, nrColumns, scaling, maxDepth, 1, ind);
+        System.arraycopy(phi, 0, on_contribs, 0, contrib_row_size);
+        computeShap(tree, nrColumns, scaling, maxDepth, -1, ind);
+        for (int l = 0; l < contrib_row_size; ++l) {
+          interactionValues[row * contrib_row_size + l] += (on_contribs[l] - phi[l]) / 2;
+        }
+      }
+    }
+    for (int row = 0; row < selectedFeatures.length; ++row) {
+      double main = diag_contribs[selectedFeatures[row]];
+      for (int l = 0; l < nrColumns; ++l) {
+        main -= interactionValues[row * contrib_row_size + l];
+      }
+      interactionValues[row * contrib_row_size + selectedFeatures[row]] = main;
+    }
+    phi = diag_contribs;
+  }
+
+  /**
+   * Calculates the SHAP interaction values among the k features of this row with the largest
+   * absolute SHAP values. Only these features are conditioned on, so the cost is about 2k instead
+   * of 2 * #features traversals per tree. The result is stored sparsely, see {@link
+   * #getSparseInteractionValues()}.
+   *
+   * @param roots Roots of the trees making up the ensemble
+   * @param nrColumns The number of columns in the training data set.
+   * @param scaling The scaling factor which is applied to the SHAP values.
+   * @param maxDepth The maximum depth in a single tree over the whole ensemble.
+   * @param maxNodes The maximum amount of nodes in a single tree.
+   * @param uniqueFeaturesPerTree The feature indices used in each tree.
+   * @param interactionMask The candidate features, null for all features.
+   * @param k The number of features whose interactions are computed.
+   */
+  public void top_k_interactions_path_dependent(
+      final P[] roots,
+      final int nrColumns,
+      final double scaling,
+      final int maxDepth,
+      final int maxNodes,
+      final int[] uniqueFeaturesPerTree,
+      final FeatureMask interactionMask,
+      final int k) {
+    computeShap(roots, nrColumns, scaling, maxDepth, 0, 0);
+    // The k candidates with the largest absolute SHAP values, in descending order.
+    final int[] top = new int[Math.min(k, nrColumns)];
+    int nrTop = 0;
+    for (int feature = 0; feature < nrColumns; feature++) {
+      final double abs = Math.abs(phi[feature]);
+      if (abs == 0 || (interactionMask != null && !interactionMask.isSelected(feature))) {
+        continue;
+      }
+      if (nrTop == top.length && (nrTop == 0 || abs <= Math.abs(phi[top[nrTop - 1]]))) {
+        continue;
+      }
+      int position = nrTop == top.length ? nrTop - 1 : nrTop++;
+      while (position > 0 && Math.abs(phi[top[position - 1]]) < abs) {
+        top[position] = top[position - 1];
+        position--;
+      }
+      top[position] = feature;
+    }
+    final boolean[] selected = new boolean[nrColumns];
+    for (int i = 0; i < nrTop; i++) {
+      selected[top[i]] = true;
+    }
+    sparse_tree_interactions_path_dependent(
+        roots, nrColumns, scaling, maxDepth, maxNodes, uniqueFeaturesPerTree, selected, null);
+  }
+
+  /**
+   * Calculates the SHAP interaction values of the pairs selected by the screening. Only the
+   * features of these pairs are conditioned on. The result is stored sparsely, see {@link
+   * #getSparseInteractionValues()}.
+   *
+   * @param roots Roots of the trees making up the ensemble
+   * @param nrColumns The number of columns in the training data set.
+   * @param scaling The scaling factor which is applied to the SHAP values.
+   * @param maxDepth The maximum depth in a single tree over the whole ensemble.
+   * @param maxNodes The maximum amount of nodes in a single tree.
+   * @param uniqueFeaturesPerTree The feature indices used in each tree.
+   * @param screening The candidate pairs.
+   */
+  public void screened_interactions_path_dependent(
+      final P[] roots,
+      final int nrColumns,
+      final double scaling,
+      final int maxDepth,
+      final int maxNodes,
+      final int[] uniqueFeaturesPerTree,
+      final InteractionScreening screening) {
+    computeShap(roots, nrColumns, scaling, maxDepth, 0, 0);
+    sparse_tree_interactions_path_dependent(
+        roots,
+        nrColumns,
+        scaling,
+        maxDepth,
+        maxNodes,
+        uniqueFeaturesPerTree,
+        screening.getFeatures(),
+        screening);
+  }
+
+  /** @return the selection of the mask as an array over all features, null for no mask. */
+  private static boolean[] toSelection(final FeatureMask mask, final int nrColumns) {
+    if (mask == null) {
+      return null;
+    }
+    final boolean[] selected = new boolean[nrColumns];
+    for (final int feature : mask.getSelectedFeatures()) {
+      selected[feature] = true;
+    }
+    return selected;
+  }
+
+  /**
+   * Accumulates the interaction values of the touched pairs into a {@link
+   * SparseInteractionMatrix}. A pair is visited once per conditioned feature of a tree, so both
+   * visits add half of their value, which also symmetrizes the result. The main effects are the
+   * SHAP values minus the row sums, which only requires conditioning on the selected features.
+   * Expects phi to hold the SHAP values of the row.
+   *
+   * @param selected The features whose interactions are stored, null for all features.
+   * @param screening The pairs whose interactions are stored, null for all pairs of the selected
+   *     features.
+   */
+  private void sparse_tree_interactions_path_dependent(
+      final P[] roots,
+      final int nrColumns,
+      final double scaling,
+      final int maxDepth,
+      final int maxNodes,
+      final int[] uniqueFeaturesPerTree,
+      final boolean[] selected,
+      final InteractionScreening screening) {
+    this.nrColumns = nrColumns;
+    final int amountOfUniqueFeatures = Math.min(nrColumns, maxNodes);
+    sparseInteractions = new SparseInteractionMatrix();
+    final double[] on_contribs = new double[nrColumns + 1];
+    final double[] diag_contribs = Arrays.copyOf(phi, nrColumns + 1);
+    P[] tree;
+    for (int j = 0; j < roots.length; ++j) {
+      tree = Arrays.copyOfRange(roots, j, j + 1);
+      for (int k = 0; k < amountOfUniqueFeatures; ++k) {
+        final int ind = uniqueFeaturesPerTree[k + j * amountOfUniqueFeatures];
+        if (ind < 0) {
+          break;
+        }
+        if (selected != null && !selected[ind]) {
+          continue;
+        }
+        computeShap(tree, nrColumns, scaling, maxDepth, 1, ind);
+        System.arraycopy(phi, 0, on_contribs, 0, nrColumns + 1);
+        computeShap(tree, nrColumns, scaling, maxDepth, -1, ind);
+        for (int l = 0; l < nrColumns; ++l) {
+          final double val = (on_contribs[l] - phi[l]) / 2;
+          // Features not used by the tree have no interaction with the conditioned feature.
+          if (val == 0 || l == ind) {
+            continue;
+          }
+          diag_contribs[ind] -= val;
+          if ((selected == null || selected[l])
+              && (screening == null || screening.isSelected(ind, l))) {
+            sparseInteractions.add(ind, l, val / 2);
+          }
+        }
+      }
+    }
+    for (int l = 0; l < nrColumns; ++l) {
+      if (diag_contribs[l] != 0 && (selected == null || selected[l])) {
+        sparseInteractions.add(l, l, diag_contribs[l]);
+      }
+    }
+    phi = diag_contribs;
+  }
+
   public void dense_tree_path_dependent(
       final P[] roots, final int nrColumns, final double scaling, final int maxDepth) {
     // TODO: Multi-output
@@ -234,6 +651,18 @@ private void extendPath(
 
   @Override
   public DoubleCell[] getInteractionValues() {
+    if (interactionMask != null) {
+      final int[] selectedFeatures = interactionMask.getSelectedFeatures();
+      final DoubleCell[] newCells =
+          new DoubleCell[selectedFeatures.length * selectedFeatures.length];
+      for (int row = 0; row < selectedFeatures.length; ++row) {
+        for (int col = 0; col < selectedFeatures.length; ++col) {
+          newCells[row * selectedFeatures.length + col] =
+              new DoubleCell(interactionValues[row * (nrColumns + 1) + selectedFeatures[col]]);
+        }
+      }
+      return newCells;
+    }
     final DoubleCell[] newCells = new DoubleCell[nrColumns * nrColumns];
     /*for (int i = 0; i < interactionValues.length; i++) {
       // Skip every nrColumns+1 entry because that is the bias of the row
@@ -248,6 +677,11 @@ public DoubleCell[] getInteractionValues() {
     return newCells;
   }
 
+  @Override
+  public SparseInteractionMatrix getSparseInteractionValues() {
+    return sparseInteractions;
+  }
+
   /**
    * Mean prediction of this decision or regression tree node. For classification random forests,
    * this simply corresponds to the expected prediction for that decision tree. For regression
@@ -266,8 +700,23 @@ public double[] getPhi() {
     return phi;
   }
 
+  @Override
+  public PredictorRecord getRecord() {
+    return record;
+  }
+
   @Override
   public DoubleCell[] getSHAPValues() {
+    if (featureMask != null) {
+      final int[] selectedFeatures = featureMask.getSelectedFeatures();
+      final DoubleCell[] newCells = new DoubleCell[selectedFeatures.length + 2];
+      for (int i = 0; i < selectedFeatures.length; i++) {
+        newCells[i] = new DoubleCell(phi[selectedFeatures[i]]);
+      }
+      newCells[selectedFeatures.length] = new DoubleCell(otherFeatures);
+      newCells[selectedFeatures.length + 1] = new DoubleCell(phi[phi.length - 1]);
+      return newCells;
+    }
     final DoubleCell[] newCells = new DoubleCell[phi.length];
     for (int i = 0; i < phi.length; i++) {
       newCells[i] = new DoubleCell(phi[i]);
@@ -275,6 +724,38 @@ public DoubleCell[] getSHAPValues() {
     return newCells;
   }
 
+  /** Descends the tree along the branches taken by the given record. */
+  @SuppressWarnings("unchecked")
+  private P findLeaf(final P root, final PredictorRecord row) {
+    P node = root;
+    while (!isLeaf(node)) {
+      node = (P) node.getChild(getHotIndex(node, row));
+    }
+    return node;
+  }
+
+  /**
+   * Finds the branch the given row takes at an inner node. Missing values follow the left child.
+   */
+  private int getHotIndex(final P node, final PredictorRecord row) {
+    final int hotIndex = node.findNextPathTurn(row);
+    if (hotIndex == -1) {
+      return 0;
+    }
+    return hotIndex;
+  }
+
+  /**
+   * Returns the player the split of an inner node belongs to, i.e. the split feature or its group.
+   */
+  private int getPlayer(final P node) {
+    final int feature = node.getSplitAttributeIndex();
+    if (featureGroups == null || feature < 0) {
+      return feature;
+    }
+    return featureGroups.getGroup(feature);
+  }
+
   private boolean isLeaf(final P node) {
     return node.getNrChildren() == 0;
   }
@@ -344,6 +825,11 @@ private void recurse(
     }
     if (isLeaf(currentNode)) {
       for (int i = 1; i <= pathLength; ++i) {
+        final int feature = uniqueParentPath[currentPathIndex + i].getFeatureIndexForSplit();
+        if (featureMask != null && feature >= 0 && !featureMask.isSelected(feature)) {
+          // Only the sum of the unselected features is reported, see computeOtherFeatures.
+          continue;
+        }
         final double w =
             unwoundPathSum(uniqueParentPath, parentProprotions, pathLength, i, currentPathIndex);
         final PathElement el = uniqueParentPath[currentPathIndex + i];
@@ -365,16 +851,12 @@ private void recurse(
         }
       }
     } else {
-      final int splitIndex = currentNode.getSplitAttributeIndex();
+      final int splitIndex = getPlayer(currentNode);
       if (splitIndex == -1) {
         System.out.println("ERROR on splitindex: " + currentNode.toString() + ", ");
       }
       // find which branch is "hot" (meaning the instance would follow it)
-      int hotIndex = currentNode.findNextPathTurn(record);
-      if (hotIndex == -1) {
-        // Missing value. Default child is the left one.
-        hotIndex = 0;
-      }
+      final int hotIndex = getHotIndex(currentNode, record);
       // TODO: What if the tree is not binary?
       if (currentNode.getNrChildren() > 2) {
         throw new IllegalArgumentException(
@@ -454,6 +936,137 @@ private void recurse(
     }
   }
 
+  /**
+   * Recurse on a tree for a single pair of explained and background record. Every leaf reachable
+   * by mixing the two records is a game whose players are the features taken from either record.
+   * The leaf is only reached if all features in xFeatures come from the explained record and all
+   * features in zFeatures from the background record.
+   *
+   * @param treeIndex Index of the tree.
+   * @param currentNode The current node which is operated on.
+   * @param backgroundRecord The background record.
+   * @param weight Weight of the background record.
+   * @param xFeatures Features on the current path which are taken from the explained record.
+   * @param nrXFeatures Number of valid entries in xFeatures.
+   * @param zFeatures Features on the current path which are taken from the background record.
+   * @param nrZFeatures Number of valid entries in zFeatures.
+   * @param isXFeature Indicator array of xFeatures.
+   * @param isZFeature Indicator array of zFeatures.
+   * @param shapleyWeights Table of the Shapley weights |S|!(n-|S|-1)!/n!, see {@link
+   *     #shapleyWeights(int)}.
+   */
+  @SuppressWarnings("unchecked")
+  private void recurseInterventional(
+      final int treeIndex,
+      final P currentNode,
+      final PredictorRecord backgroundRecord,
+      final double weight,
+      final int[] xFeatures,
+      final int nrXFeatures,
+      final int[] zFeatures,
+      final int nrZFeatures,
+      final boolean[] isXFeature,
+      final boolean[] isZFeature,
+      final double[][] shapleyWeights) {
+    if (isLeaf(currentNode)) {
+      final double value = weight * getNodeValue(currentNode, treeIndex);
+      if (nrXFeatures > 0) {
+        final double positive = value * shapleyWeights[nrXFeatures - 1][nrZFeatures];
+        for (int i = 0; i < nrXFeatures; i++) {
+          if (featureMask == null || featureMask.isSelected(xFeatures[i])) {
+            phi[xFeatures[i]] += positive;
+          }
+        }
+      }
+      if (nrZFeatures > 0) {
+        final double negative = value * shapleyWeights[nrXFeatures][nrZFeatures - 1];
+        for (int i = 0; i < nrZFeatures; i++) {
+          if (featureMask == null || featureMask.isSelected(zFeatures[i])) {
+            phi[zFeatures[i]] -= negative;
+          }
+        }
+      }
+      return;
+    }
+    final int xIndex = getHotIndex(currentNode, record);
+    final int zIndex = getHotIndex(currentNode, backgroundRecord);
+    final int splitIndex = getPlayer(currentNode);
+    if (xIndex == zIndex || isXFeature[splitIndex]) {
+      recurseInterventional(
+          treeIndex,
+          (P) currentNode.getChild(xIndex),
+          backgroundRecord,
+          weight,
+          xFeatures,
+          nrXFeatures,
+          zFeatures,
+          nrZFeatures,
+          isXFeature,
+          isZFeature,
+          shapleyWeights);
+    } else if (isZFeature[splitIndex]) {
+      recurseInterventional(
+          treeIndex,
+          (P) currentNode.getChild(zIndex),
+          backgroundRecord,
+          weight,
+          xFeatures,
+          nrXFeatures,
+          zFeatures,
+          nrZFeatures,
+          isXFeature,
+          isZFeature,
+          shapleyWeights);
+    } else {
+      // The records disagree on a new feature, follow both records.
+      xFeatures[nrXFeatures] = splitIndex;
+      isXFeature[splitIndex] = true;
+      recurseInterventional(
+          treeIndex,
+          (P) currentNode.getChild(xIndex),
+          backgroundRecord,
+          weight,
+          xFeatures,
+          nrXFeatures + 1,
+          zFeatures,
+          nrZFeatures,
+          isXFeature,
+          isZFeature,
+          shapleyWeights);
+      isXFeature[splitIndex] = false;
+      zFeatures[nrZFeatures] = splitIndex;
+      isZFeature[splitIndex] = true;
+      recurseInterventional(
+          treeIndex,
+          (P) currentNode.getChild(zIndex),
+          backgroundRecord,
+          weight,
+          xFeatures,
+          nrXFeatures,
+          zFeatures,
+          nrZFeatures + 1,
+          isXFeature,
+          isZFeature,
+          shapleyWeights);
+      isZFeature[splitIndex] = false;
+    }
+  }
+
+  /**
+   * Computes the table w[a][b] = a! * b! / (a + b + 1)!, the Shapley weight of a coalition of size
+   * a among a + b + 1 players.
+   */
+  private static double[][] shapleyWeights(final int size) {
+    final double[][] weights = new double[size][size];
+    for (int a = 0; a < size; a++) {
+      weights[a][0] = 1.0 / (a + 1);
+      for (int b = 1; b < size; b++) {
+        weights[a][b] = weights[a][b - 1] * b / (a + b + 1);
+      }
+    }
+    return weights;
+  }
+
   private void unwindPath(
       final PathElement[] uniquePath,
       final double[] proportions,
@@ -27,6 +27,16 @@ public PortObjectWrapper(final PortObject... portObjects) throws InvalidSettings
 		portSpecs = new PortSpecWrapper<>(specs);
 	}
 
+	/**
+	 * @return the background data, null if the optional port is not connected
+	 */
+	public BufferedDataTable getBackground() {
+		if (portObjects.length <= IN_BACKGROUND_PORT_INDEX) {
+			return null;
+		}
+		return (BufferedDataTable) portObjects[IN_BACKGROUND_PORT_INDEX];
+	}
+
 	public BufferedDataTable getData() {
 		return (BufferedDataTable) portObjects[IN_DATA_PORT_INDEX];
 	}
@@ -35,6 +45,16 @@ public DataTableSpec getDataSpec() {
 		return portSpecs.getDataSpec();
 	}
 
+	/**
+	 * @return the feature group table, null if the optional port is not connected
+	 */
+	public BufferedDataTable getFeatureGroups() {
+		if (portObjects.length <= IN_FEATURE_GROUPS_PORT_INDEX) {
+			return null;
+		}
+		return (BufferedDataTable) portObjects[IN_FEATURE_GROUPS_PORT_INDEX];
+	}
+
 	@SuppressWarnings("unchecked")
 	public T getModel() {
 		return (T) portObjects[IN_MODEL_PORT_INDEX];
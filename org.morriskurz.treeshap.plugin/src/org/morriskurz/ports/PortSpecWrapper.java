@@ -21,6 +21,28 @@ public PortSpecWrapper(final PortObjectSpec... specs) throws InvalidSettingsExce
 		sanityCheckInput(specs);
 	}
 
+	/**
+	 * @return the spec of the background data, null if the optional port is not
+	 *         connected
+	 */
+	public DataTableSpec getBackgroundSpec() {
+		if (specs.length <= IN_BACKGROUND_PORT_INDEX) {
+			return null;
+		}
+		return (DataTableSpec) specs[IN_BACKGROUND_PORT_INDEX];
+	}
+
+	/**
+	 * @return the spec of the feature group table, null if the optional port is
+	 *         not connected
+	 */
+	public DataTableSpec getFeatureGroupsSpec() {
+		if (specs.length <= IN_FEATURE_GROUPS_PORT_INDEX) {
+			return null;
+		}
+		return (DataTableSpec) specs[IN_FEATURE_GROUPS_PORT_INDEX];
+	}
+
 	public DataTableSpec getDataSpec() {
 		return (DataTableSpec) specs[IN_DATA_PORT_INDEX];
 	}
@@ -31,11 +53,17 @@ public T getModelSpec() {
 	}
 
 	private void sanityCheckInput(final PortObjectSpec... specs) throws InvalidSettingsException {
-		if (specs.length != 2 || !(specs[IN_DATA_PORT_INDEX] instanceof DataTableSpec)
+		if (specs.length < 2 || specs.length > 4 || !(specs[IN_DATA_PORT_INDEX] instanceof DataTableSpec)
 				|| !(specs[IN_MODEL_PORT_INDEX] instanceof TreeEnsembleModelPortObjectSpec)) {
 			throw new InvalidSettingsException(
 					"The specs are not correct. Did you assign the " + "correct port roles in the NodeModel?");
 		}
+		for (int i = IN_BACKGROUND_PORT_INDEX; i < specs.length; i++) {
+			if (specs[i] != null && !(specs[i] instanceof DataTableSpec)) {
+				throw new InvalidSettingsException(
+						"The specs are not correct. Did you assign the " + "correct port roles in the NodeModel?");
+			}
+		}
 	}
 
 }
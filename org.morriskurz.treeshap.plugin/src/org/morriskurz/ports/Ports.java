@@ -3,6 +3,8 @@
 import org.knime.base.node.mine.treeensemble2.model.TreeEnsembleModelPortObject;
 import org.knime.core.node.BufferedDataTable;
 import org.knime.core.node.port.PortType;
+import org.knime.core.node.streamable.PortInput;
+import org.knime.core.node.streamable.PortObjectInput;
 
 /**
  * Data class for the port objects. Defines the input and output ports, as well
@@ -13,11 +15,37 @@
  */
 public class Ports {
 
-	public static final PortType[] INPUT_PORTS = { TreeEnsembleModelPortObject.TYPE, BufferedDataTable.TYPE };
-	public static final PortType[] OUTPUT_PORTS = { BufferedDataTable.TYPE };
+	public static final PortType[] INPUT_PORTS = { TreeEnsembleModelPortObject.TYPE, BufferedDataTable.TYPE,
+			BufferedDataTable.TYPE_OPTIONAL, BufferedDataTable.TYPE_OPTIONAL };
+	public static final PortType[] OUTPUT_PORTS = { BufferedDataTable.TYPE, BufferedDataTable.TYPE,
+			BufferedDataTable.TYPE, BufferedDataTable.TYPE };
 
 	protected static final int IN_MODEL_PORT_INDEX = 0;
 	protected static final int IN_DATA_PORT_INDEX = 1;
+	/** Optional background data for interventional SHAP values. */
+	public static final int IN_BACKGROUND_PORT_INDEX = 2;
+	/** Optional table assigning features to groups. */
+	public static final int IN_FEATURE_GROUPS_PORT_INDEX = 3;
+	/** Global feature importance, accumulated while the rows are explained. */
+	public static final int OUT_IMPORTANCE_PORT_INDEX = 1;
+	/** Global interaction strength, accumulated if the interactions are aggregated. */
+	public static final int OUT_INTERACTION_STRENGTH_PORT_INDEX = 2;
+	/** Binned SHAP values against feature values, accumulated if requested. */
+	public static final int OUT_DISTRIBUTION_PORT_INDEX = 3;
+
+	/**
+	 * Returns the table of an optional port when streaming.
+	 *
+	 * @param inputs the inputs of the streamable operator
+	 * @param index  the index of the optional port
+	 * @return the table, null if the port is not connected
+	 */
+	public static BufferedDataTable getOptionalTable(final PortInput[] inputs, final int index) {
+		if (inputs.length <= index || inputs[index] == null) {
+			return null;
+		}
+		return (BufferedDataTable) ((PortObjectInput) inputs[index]).getPortObject();
+	}
 
 	protected Ports() {
 
@@ -12,6 +12,10 @@
 import org.knime.core.data.DataTableSpec;
 import org.knime.core.data.RowKey;
 import org.knime.core.node.InvalidSettingsException;
+import org.morriskurz.background.BackgroundSummary;
+import org.morriskurz.parser.FeatureGroups;
+import org.morriskurz.parser.FeatureMask;
+import org.morriskurz.statistics.InteractionScreening;
 
 /** @author Morris Kurz, morriskurz@gmail.com */
 public class ExplanationRegressionPredictor
@@ -32,7 +36,7 @@ private class RFRegressionPrediction extends ExplanationRegressionPrediction {
         final RowKey key,
         final boolean hasOutOfBagFilter,
         final int maxDepth) {
-      super(record, roots, nrColumns, maxDepth);
+      super(record, roots, nrColumns, maxDepth, background, featureMask, featureGroups);
       final Mean mean = new Mean();
       final Variance variance = new Variance();
       final int nrModels = m_model.getNrModels();
@@ -71,7 +75,18 @@ private class RFRegressionPrediction extends ExplanationRegressionPrediction {
         final int maxDepth,
         final int maxNodes,
         final int[] uniqueFeaturesPerTree) {
-      super(record, roots, nrColumns, maxDepth, maxNodes, uniqueFeaturesPerTree);
+      super(
+          record,
+          roots,
+          nrColumns,
+          maxDepth,
+          maxNodes,
+          uniqueFeaturesPerTree,
+          sparseInteractions,
+          interactionTopK,
+          interactionScreening,
+          featureMask,
+          featureGroups);
       final Mean mean = new Mean();
       final Variance variance = new Variance();
       final int nrModels = m_model.getNrModels();
@@ -157,10 +172,29 @@ public boolean hasPrediction() {
 
   private final int[] uniqueFeaturesPerTree;
 
+  private final boolean sparseInteractions;
+
+  private final int interactionTopK;
+
+  private final InteractionScreening interactionScreening;
+
+  private final BackgroundSummary background;
+
+  private final FeatureMask featureMask;
+
+  private final FeatureGroups featureGroups;
+
   /**
    * @param model
    * @param modelSpec
    * @param predictSpec
+   * @param sparseInteractions whether only the touched interaction pairs are stored
+   * @param interactionTopK the number of features per row whose interactions are computed, 0 for
+   *     all features
+   * @param interactionScreening the candidate pairs of the interactions, null for all pairs
+   * @param background the summarized background data, null for the path dependent algorithm
+   * @param featureMask the features whose SHAP values are output, null for all features
+   * @param featureGroups the groups forming the players, null if every feature is a player
    * @throws InvalidSettingsException
    */
   public ExplanationRegressionPredictor(
@@ -169,7 +203,13 @@ public ExplanationRegressionPredictor(
       final DataTableSpec predictSpec,
       final int maxDepth,
       final int maxNodes,
-      final int[] uniqueFeaturesPerTree)
+      final int[] uniqueFeaturesPerTree,
+      final boolean sparseInteractions,
+      final int interactionTopK,
+      final InteractionScreening interactionScreening,
+      final BackgroundSummary background,
+      final FeatureMask featureMask,
+      final FeatureGroups featureGroups)
       throws InvalidSettingsException {
     super(model, modelSpec, predictSpec);
     if (model != null) {
@@ -177,7 +217,9 @@ public ExplanationRegressionPredictor(
     } else {
       roots = null;
     }
-    if (modelSpec != null) {
+    if (featureGroups != null) {
+      nrColumns = featureGroups.getNrGroups();
+    } else if (modelSpec != null) {
       nrColumns = modelSpec.getTableSpec().getNumColumns() - 1;
     } else {
       nrColumns = 0;
@@ -186,6 +228,12 @@ public ExplanationRegressionPredictor(
     calculateInteractions = uniqueFeaturesPerTree != null;
     this.maxNodes = maxNodes;
     this.uniqueFeaturesPerTree = uniqueFeaturesPerTree;
+    this.sparseInteractions = sparseInteractions;
+    this.interactionTopK = interactionTopK;
+    this.interactionScreening = interactionScreening;
+    this.background = background;
+    this.featureMask = featureMask;
+    this.featureGroups = featureGroups;
   }
 
   private TreeNodeRegression[] initRoots(final TreeEnsembleModel model) {
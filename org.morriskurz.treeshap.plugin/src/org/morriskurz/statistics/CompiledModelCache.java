@@ -0,0 +1,178 @@
+package org.morriskurz.statistics;
+
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Cache of the compiled statistics of tree ensembles, shared by all nodes of the plugin.
+ *
+ * <p>The statistics only depend on the model, so executing a node again with the same model, e.g.
+ * in every iteration of a loop, reuses them. The entries are keyed by the identity of the model
+ * object together with its number of trees and the variant of the compilation, e.g. the explained
+ * class, so hits only happen within one loaded model instance. This is deliberate: the expected
+ * values of the statistics are keyed by the tree nodes of that instance, so they cannot serve an
+ * equal model loaded again, e.g. after the workflow is reopened or the model is read from disk,
+ * which is compiled once more. Only the statistics of the legacy nodes are cached; the compiled
+ * explainer of the builder node is a port object of its own and is not compiled again downstream.
+ *
+ * <p>The cache is bounded by the number of entries and by the estimated memory of the statistics,
+ * evicting the least recently used entries first. The statistics are only softly referenced, so
+ * the garbage collector can reclaim them when memory gets low.
+ *
+ * @author Morris Kurz, morriskurz@gmail.com
+ */
+public final class CompiledModelCache {
+
+  /** Identity of a loaded model, holding the model weakly to not keep it alive. */
+  private static final class Fingerprint {
+    private final WeakReference<Object> model;
+
+    private final int nrTrees;
+
+    private final int variant;
+
+    private final int hash;
+
+    private Fingerprint(final Object model, final int nrTrees, final int variant) {
+      this.model = new WeakReference<>(model);
+      this.nrTrees = nrTrees;
+      this.variant = variant;
+      hash = 31 * (31 * System.identityHashCode(model) + nrTrees) + variant;
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+      if (!(obj instanceof Fingerprint)) {
+        return false;
+      }
+      final Fingerprint other = (Fingerprint) obj;
+      final Object referent = model.get();
+      return referent != null
+          && referent == other.model.get()
+          && nrTrees == other.nrTrees
+          && variant == other.variant;
+    }
+  }
+
+  private static final class Entry {
+    private final SoftReference<TreeEnsembleStatistics> statistics;
+
+    private final long memory;
+
+    private Entry(final TreeEnsembleStatistics statistics) {
+      this.statistics = new SoftReference<>(statistics);
+      memory = statistics.getMemoryEstimate();
+    }
+  }
+
+  private final int maxEntries;
+
+  private final long maxMemory;
+
+  private final LinkedHashMap<Fingerprint, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+  private long memory;
+
+  private long hits;
+
+  private long misses;
+
+  /**
+   * @param maxEntries The maximum number of cached models.
+   * @param maxMemory The maximum estimated memory of all cached statistics in bytes.
+   */
+  public CompiledModelCache(final int maxEntries, final long maxMemory) {
+    this.maxEntries = maxEntries;
+    this.maxMemory = maxMemory;
+  }
+
+  /**
+   * Returns the cached statistics of the model, compiling them on a miss.
+   *
+   * @param model The model, compared by identity. An equal model loaded again misses.
+   * @param nrTrees The number of trees of the model.
+   * @param variant Distinguishes different compilations of the same model.
+   * @param compiler Compiles the statistics on a miss.
+   * @return the statistics
+   */
+  public TreeEnsembleStatistics get(
+      final Object model,
+      final int nrTrees,
+      final int variant,
+      final Supplier<TreeEnsembleStatistics> compiler) {
+    final Fingerprint fingerprint = new Fingerprint(model, nrTrees, variant);
+    synchronized (this) {
+      final Entry entry = entries.get(fingerprint);
+      if (entry != null) {
+        final TreeEnsembleStatistics statistics = entry.statistics.get();
+        if (statistics != null) {
+          hits++;
+          return statistics;
+        }
+        remove(fingerprint);
+      }
+      misses++;
+    }
+    // Compiled outside the lock, concurrent misses of the same model compile twice at worst.
+    final TreeEnsembleStatistics statistics = compiler.get();
+    put(fingerprint, new Entry(statistics));
+    return statistics;
+  }
+
+  /** @return the number of lookups answered from the cache. */
+  public synchronized long getHitCount() {
+    return hits;
+  }
+
+  /** @return the number of lookups which compiled the statistics. */
+  public synchronized long getMissCount() {
+    return misses;
+  }
+
+  /** @return the number of cached models. */
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  /** Removes all entries, the hit and miss counts are kept. */
+  public synchronized void clear() {
+    entries.clear();
+    memory = 0;
+  }
+
+  private synchronized void put(final Fingerprint fingerprint, final Entry entry) {
+    final Entry previous = entries.put(fingerprint, entry);
+    if (previous != null) {
+      memory -= previous.memory;
+    }
+    memory += entry.memory;
+    final Iterator<Map.Entry<Fingerprint, Entry>> iterator = entries.entrySet().iterator();
+    while (iterator.hasNext()) {
+      final Map.Entry<Fingerprint, Entry> next = iterator.next();
+      final boolean collected =
+          next.getKey().model.get() == null || next.getValue().statistics.get() == null;
+      final boolean overBudget = entries.size() > maxEntries || memory > maxMemory;
+      // The newest entry is kept even if it exceeds the budget on its own.
+      if ((collected || overBudget) && next.getValue() != entry) {
+        memory -= next.getValue().memory;
+        iterator.remove();
+      }
+    }
+  }
+
+  private void remove(final Fingerprint fingerprint) {
+    final Entry entry = entries.remove(fingerprint);
+    if (entry != null) {
+      memory -= entry.memory;
+    }
+  }
+}
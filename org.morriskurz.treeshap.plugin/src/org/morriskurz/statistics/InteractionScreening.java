@@ -0,0 +1,104 @@
+package org.morriskurz.statistics;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+import org.morriskurz.parser.FeatureGroups;
+import org.morriskurz.parser.SparseInteractionMatrix;
+
+/**
+ * Candidate pairs for the interaction values, ranked by their co-occurrence on the paths of the
+ * ensemble. Pairs never sharing a path have a path dependent interaction value of exactly zero, so
+ * only pairs found in the {@link TreeEnsembleStatistics} are candidates at all.
+ *
+ * @author Morris Kurz, morriskurz@gmail.com
+ */
+public final class InteractionScreening {
+
+  /**
+   * Selects the strongest candidate pairs.
+   *
+   * @param statistics The statistics of the ensemble.
+   * @param players The groups forming the players, null if every feature is a player.
+   * @param nrPlayers The number of players.
+   * @param nrPairs The number of pairs to select.
+   * @return the screening of the nrPairs pairs with the largest gain weighted co-occurrences
+   */
+  public static InteractionScreening create(
+      final TreeEnsembleStatistics statistics,
+      final FeatureGroups players,
+      final int nrPlayers,
+      final int nrPairs) {
+    final SparseInteractionMatrix gains = toPlayers(statistics.getPairGains(), players);
+    final SparseInteractionMatrix covers = toPlayers(statistics.getPairCovers(), players);
+    final int[] rows = gains.getRows();
+    final int[] columns = gains.getColumns();
+    final double[] values = gains.getValues();
+    final Integer[] order = new Integer[rows.length];
+    for (int i = 0; i < order.length; i++) {
+      order[i] = i;
+    }
+    // Ties, e.g. without the training statistics in the nodes, are broken by the cover.
+    Arrays.sort(
+        order,
+        new Comparator<Integer>() {
+          @Override
+          public int compare(final Integer a, final Integer b) {
+            final int byGain = Double.compare(values[b], values[a]);
+            if (byGain != 0) {
+              return byGain;
+            }
+            return Double.compare(
+                covers.get(rows[b], columns[b]), covers.get(rows[a], columns[a]));
+          }
+        });
+    final SparseInteractionMatrix pairs = new SparseInteractionMatrix();
+    final boolean[] features = new boolean[nrPlayers];
+    for (int i = 0; i < Math.min(nrPairs, order.length); i++) {
+      final int index = order[i];
+      pairs.add(rows[index], columns[index], values[index]);
+      features[rows[index]] = true;
+      features[columns[index]] = true;
+    }
+    return new InteractionScreening(pairs, features);
+  }
+
+  /** Sums the pairs of features into pairs of players, dropping pairs within a player. */
+  private static SparseInteractionMatrix toPlayers(
+      final SparseInteractionMatrix featurePairs, final FeatureGroups players) {
+    if (players == null) {
+      return featurePairs;
+    }
+    final int[] rows = featurePairs.getRows();
+    final int[] columns = featurePairs.getColumns();
+    final double[] values = featurePairs.getValues();
+    final SparseInteractionMatrix playerPairs = new SparseInteractionMatrix();
+    for (int i = 0; i < rows.length; i++) {
+      final int first = players.getGroup(rows[i]);
+      final int second = players.getGroup(columns[i]);
+      if (first != second) {
+        playerPairs.add(first, second, values[i]);
+      }
+    }
+    return playerPairs;
+  }
+
+  private final SparseInteractionMatrix pairs;
+
+  private final boolean[] features;
+
+  private InteractionScreening(final SparseInteractionMatrix pairs, final boolean[] features) {
+    this.pairs = pairs;
+    this.features = features;
+  }
+
+  /** @return the features part of at least one selected pair. */
+  public boolean[] getFeatures() {
+    return features;
+  }
+
+  /** @return whether the interaction of the unordered pair is computed. */
+  public boolean isSelected(final int i, final int j) {
+    return pairs.contains(i, j);
+  }
+}
@@ -1,35 +1,83 @@
 package org.morriskurz.statistics;
 
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
 
 import org.knime.base.node.mine.treeensemble2.model.AbstractTreeNode;
 import org.knime.base.node.mine.treeensemble2.model.MultiClassGradientBoostedTreesModel;
 import org.knime.base.node.mine.treeensemble2.model.TreeEnsembleModel;
+import org.knime.base.node.mine.treeensemble2.model.TreeNodeClassification;
+import org.knime.base.node.mine.treeensemble2.model.TreeNodeRegression;
+import org.knime.base.node.mine.treeensemble2.model.TreeNodeSignature;
+import org.morriskurz.parser.SparseInteractionMatrix;
 
 /**
  * Data object holding information about a tree ensemble.
  *
- * <p>Saves the maximum depth, maximum amount of nodes in a tree and the unique features per tree.
+ * <p>Saves the maximum depth, maximum amount of nodes in a tree, the unique features per tree, the
+ * co-occurrences of the split features on a common path and, for gradient boosted trees, the
+ * expected values of the nodes. All of it is collected in a single depth-first pass per tree, the
+ * trees being scanned in parallel.
  *
  * @author Morris Kurz, morriskurz@gmail.com
  */
 public class TreeEnsembleStatistics {
 
+  /** The statistics of a single tree. */
+  private static final class TreeScan {
+    private int depth;
+
+    private int nrNodes;
+
+    private int[] splitFeatures = new int[16];
+
+    private int nrSplits;
+
+    private Map<AbstractTreeNode, Double> expectations;
+
+    private final SparseInteractionMatrix pairGains = new SparseInteractionMatrix();
+
+    private final SparseInteractionMatrix pairCovers = new SparseInteractionMatrix();
+
+    private void addSplitFeature(final int feature) {
+      if (nrSplits == splitFeatures.length) {
+        splitFeatures = Arrays.copyOf(splitFeatures, 2 * nrSplits);
+      }
+      splitFeatures[nrSplits++] = feature;
+    }
+
+    /** @return the distinct split features in ascending order. */
+    private int[] getUniqueFeatures() {
+      final int[] sorted = Arrays.copyOf(splitFeatures, nrSplits);
+      Arrays.sort(sorted);
+      int nrUnique = 0;
+      for (int i = 0; i < sorted.length; i++) {
+        if (i == 0 || sorted[i] != sorted[i - 1]) {
+          sorted[nrUnique++] = sorted[i];
+        }
+      }
+      return Arrays.copyOf(sorted, nrUnique);
+    }
+  }
+
   private int maxNodes;
 
   private int maxDepth;
 
-  private final ArrayList<Set<Integer>> uniqueFeaturesPerTreeList;
+  private long nrNodes;
+
+  private int[][] uniqueFeaturesPerTreeList = new int[0][];
 
   private List<Map<AbstractTreeNode, Double>> gradientBoostedTreesMaps;
 
-  public TreeEnsembleStatistics() {
-    uniqueFeaturesPerTreeList = new ArrayList<>();
-  }
+  private final SparseInteractionMatrix pairGains = new SparseInteractionMatrix();
+
+  private final SparseInteractionMatrix pairCovers = new SparseInteractionMatrix();
 
   public int getMaximumDepth() {
     return maxDepth;
@@ -39,6 +87,59 @@ public int getMaximumNumberOfNodes() {
     return maxNodes;
   }
 
+  /**
+   * Rough estimate of the memory held by the statistics, dominated by the expected values of the
+   * nodes and the pair co-occurrences.
+   *
+   * @return the estimated memory in bytes
+   */
+  public long getMemoryEstimate() {
+    long memory = 32L * (pairGains.size() + pairCovers.size());
+    for (final int[] treeFeatures : uniqueFeaturesPerTreeList) {
+      memory += 16 + 4L * treeFeatures.length;
+    }
+    if (gradientBoostedTreesMaps != null) {
+      // Entry of the identity map plus the boxed value.
+      memory += 32 * nrNodes;
+    }
+    return memory;
+  }
+
+  /** @return the number of scanned trees. */
+  public int getNrTrees() {
+    return uniqueFeaturesPerTreeList.length;
+  }
+
+  /**
+   * @return the expected value of every node, one map per tree, computed from the leaf
+   *     coefficients. Null if no coefficients were given.
+   */
+  public List<Map<AbstractTreeNode, Double>> getExpectations() {
+    return gradientBoostedTreesMaps;
+  }
+
+  /** @return the features split on anywhere in the ensemble, in ascending order. */
+  public int[] getUsedFeatures() {
+    int nrFeatures = 0;
+    for (final int[] treeFeatures : uniqueFeaturesPerTreeList) {
+      nrFeatures += treeFeatures.length;
+    }
+    final int[] usedFeatures = new int[nrFeatures];
+    int next = 0;
+    for (final int[] treeFeatures : uniqueFeaturesPerTreeList) {
+      System.arraycopy(treeFeatures, 0, usedFeatures, next, treeFeatures.length);
+      next += treeFeatures.length;
+    }
+    Arrays.sort(usedFeatures);
+    int nrUsed = 0;
+    for (int i = 0; i < usedFeatures.length; i++) {
+      if (i == 0 || usedFeatures[i] != usedFeatures[i - 1]) {
+        usedFeatures[nrUsed++] = usedFeatures[i];
+      }
+    }
+    return Arrays.copyOf(usedFeatures, nrUsed);
+  }
+
   /**
    * @param nrModels
    * @param amountOfUniqueFeatures = min(maxNodes, nrFeatures)
@@ -46,81 +147,242 @@ public int getMaximumNumberOfNodes() {
    */
   public int[] getUniqueFeaturesPerTree(final int nrModels, final int amountOfUniqueFeatures) {
     final int[] uniqueFeaturesPerTree = new int[nrModels * amountOfUniqueFeatures];
-    for (int i = 0; i < nrModels * amountOfUniqueFeatures; i++) {
-      // Important to initialize such that the algorithm knows when there
-      // are no unique features left.
-      uniqueFeaturesPerTree[i] = -1;
-    }
+    // Important to initialize such that the algorithm knows when there
+    // are no unique features left.
+    Arrays.fill(uniqueFeaturesPerTree, -1);
     for (int i = 0; i < nrModels; i++) {
-      final Set<Integer> treeFeatures = uniqueFeaturesPerTreeList.get(i);
-      int currentIndex = i * amountOfUniqueFeatures;
-      for (final Integer splitIndex : treeFeatures) {
-        uniqueFeaturesPerTree[currentIndex] = splitIndex;
-        currentIndex++;
-      }
+      final int[] treeFeatures = uniqueFeaturesPerTreeList[i];
+      System.arraycopy(
+          treeFeatures, 0, uniqueFeaturesPerTree, i * amountOfUniqueFeatures, treeFeatures.length);
     }
     return uniqueFeaturesPerTree;
   }
 
   public void initialize(final MultiClassGradientBoostedTreesModel forest) {
-    for (int i = 0; i < forest.getNrModels(); i++) {
-      uniqueFeaturesPerTreeList.add(new HashSet<>());
-      final AbstractTreeNode root = forest.getTreeModel(i).getRootNode();
-      final ArrayList<AbstractTreeNode> currentNodeList = new ArrayList<>();
-      final ArrayList<AbstractTreeNode> nextNodeList = new ArrayList<>();
-      currentNodeList.add(root);
-      int depth = 0;
-      int amountOfNodes = 0;
-      // Breadth-first traversal of the tree
-      while (!currentNodeList.isEmpty()) {
-        depth++;
-        for (final AbstractTreeNode node : currentNodeList) {
-          amountOfNodes++;
-          if (node.getNrChildren() > 0) {
-            nextNodeList.addAll(node.getChildren());
-          }
-          final int featureSplitIndex = node.getSplitAttributeIndex();
-          if (featureSplitIndex != -1) {
-            uniqueFeaturesPerTreeList.get(i).add(featureSplitIndex);
-          }
+    final AbstractTreeNode[] roots = new AbstractTreeNode[forest.getNrModels()];
+    for (int i = 0; i < roots.length; i++) {
+      roots[i] = forest.getTreeModel(i).getRootNode();
+    }
+    initialize(roots, null);
+  }
+
+  public void initialize(final TreeEnsembleModel forest) {
+    final AbstractTreeNode[] roots = new AbstractTreeNode[forest.getNrModels()];
+    for (int i = 0; i < roots.length; i++) {
+      roots[i] = forest.getTreeModel(i).getRootNode();
+    }
+    initialize(roots, null);
+  }
+
+  /**
+   * Scans the given trees in parallel.
+   *
+   * @param roots The roots of the trees.
+   * @param coefficientMaps The leaf values of every tree for gradient boosted trees, whose node
+   *     means are not the predictions. If given, the expected value of every node is computed as
+   *     prescribed by https://github.com/slundberg/shap/blob/master/shap/tree_shap.h#L492. May be
+   *     null.
+   */
+  public void initialize(
+      final AbstractTreeNode[] roots, final List<Map<TreeNodeSignature, Double>> coefficientMaps) {
+    final TreeScan[] scans = new TreeScan[roots.length];
+    IntStream.range(0, roots.length)
+        .parallel()
+        .forEach(
+            new IntConsumer() {
+              @Override
+              public void accept(final int i) {
+                scans[i] = scan(roots[i], coefficientMaps == null ? null : coefficientMaps.get(i));
+              }
+            });
+    uniqueFeaturesPerTreeList = new int[roots.length][];
+    if (coefficientMaps != null) {
+      gradientBoostedTreesMaps = new ArrayList<>(roots.length);
+    }
+    for (int i = 0; i < roots.length; i++) {
+      final TreeScan scan = scans[i];
+      maxDepth = Math.max(maxDepth, scan.depth);
+      maxNodes = Math.max(maxNodes, scan.nrNodes);
+      nrNodes += scan.nrNodes;
+      uniqueFeaturesPerTreeList[i] = scan.getUniqueFeatures();
+      if (coefficientMaps != null) {
+        gradientBoostedTreesMaps.add(scan.expectations);
+      }
+      merge(scan.pairGains, pairGains);
+      merge(scan.pairCovers, pairCovers);
+    }
+  }
+
+  /**
+   * Co-occurrence of split features on a common path, weighted by the gain of the descendant split.
+   * Each pair of an ancestor split and a descendant split on another feature adds the gain of the
+   * descendant split, i.e. how much the second feature matters within the region selected by the
+   * first one. Pairs never sharing a path have no path dependent interaction.
+   *
+   * @return the gain weighted co-occurrences of the feature pairs
+   */
+  public SparseInteractionMatrix getPairGains() {
+    return pairGains;
+  }
+
+  /**
+   * @return the co-occurrences of the feature pairs on a common path, weighted by the fraction of
+   *     the training data reaching the descendant split
+   */
+  public SparseInteractionMatrix getPairCovers() {
+    return pairCovers;
+  }
+
+  private static void merge(
+      final SparseInteractionMatrix source, final SparseInteractionMatrix target) {
+    final int[] rows = source.getRows();
+    final int[] columns = source.getColumns();
+    final double[] values = source.getValues();
+    for (int i = 0; i < rows.length; i++) {
+      target.add(rows[i], columns[i], values[i]);
+    }
+  }
+
+  private static TreeScan scan(
+      final AbstractTreeNode root, final Map<TreeNodeSignature, Double> coefficientMap) {
+    final TreeScan scan = new TreeScan();
+    if (coefficientMap != null) {
+      scan.expectations = new IdentityHashMap<>();
+    }
+    scan.depth = descend(scan, root, getCover(root), new int[8], 0, coefficientMap);
+    return scan;
+  }
+
+  /**
+   * Depth-first traversal collecting the statistics of a tree.
+   *
+   * @param ancestorFeatures The split features of the ancestors of the node.
+   * @param nrAncestors The number of ancestors, i.e. the level of the node.
+   * @param coefficientMap The leaf values, null if no expectations are computed.
+   * @return the number of levels of the subtree rooted at the node
+   */
+  private static int descend(
+      final TreeScan scan,
+      final AbstractTreeNode node,
+      final double rootCover,
+      int[] ancestorFeatures,
+      final int nrAncestors,
+      final Map<TreeNodeSignature, Double> coefficientMap) {
+    scan.nrNodes++;
+    if (node.getNrChildren() == 0) {
+      if (coefficientMap != null) {
+        scan.expectations.put(node, coefficientMap.get(node.getSignature()));
+      }
+      return 1;
+    }
+    final int feature = node.getSplitAttributeIndex();
+    if (feature != -1) {
+      scan.addSplitFeature(feature);
+      final double gain = getGain(node);
+      final double coverFraction = rootCover > 0 ? getCover(node) / rootCover : 1;
+      for (int i = 0; i < nrAncestors; i++) {
+        if (isNewPartner(ancestorFeatures, i, feature)) {
+          scan.pairGains.add(ancestorFeatures[i], feature, gain);
+          scan.pairCovers.add(ancestorFeatures[i], feature, coverFraction);
         }
-        currentNodeList.clear();
-        currentNodeList.addAll(nextNodeList);
-        nextNodeList.clear();
       }
-      maxDepth = Math.max(maxDepth, depth);
-      maxNodes = Math.max(maxNodes, amountOfNodes);
     }
+    if (nrAncestors == ancestorFeatures.length) {
+      ancestorFeatures = Arrays.copyOf(ancestorFeatures, 2 * nrAncestors);
+    }
+    ancestorFeatures[nrAncestors] = feature;
+    int depth = 0;
+    double weightedValue = 0;
+    double totalWeight = 0;
+    for (final AbstractTreeNode child : node.getChildren()) {
+      final int childDepth =
+          descend(scan, child, rootCover, ancestorFeatures, nrAncestors + 1, coefficientMap);
+      depth = Math.max(depth, childDepth);
+      if (coefficientMap != null) {
+        final double weight = getCover(child);
+        weightedValue += weight * scan.expectations.get(child);
+        totalWeight += weight;
+      }
+    }
+    if (coefficientMap != null) {
+      scan.expectations.put(node, totalWeight == 0 ? 0 : weightedValue / totalWeight);
+    }
+    return depth + 1;
   }
 
-  public void initialize(final TreeEnsembleModel forest) {
-    for (int i = 0; i < forest.getNrModels(); i++) {
-      uniqueFeaturesPerTreeList.add(new HashSet<>());
-      final AbstractTreeNode root = forest.getTreeModel(i).getRootNode();
-      final ArrayList<AbstractTreeNode> currentNodeList = new ArrayList<>();
-      final ArrayList<AbstractTreeNode> nextNodeList = new ArrayList<>();
-      currentNodeList.add(root);
-      int depth = 0;
-      int amountOfNodes = 0;
-      // Breadth-first traversal of the tree
-      while (!currentNodeList.isEmpty()) {
-        depth++;
-        for (final AbstractTreeNode node : currentNodeList) {
-          amountOfNodes++;
-          if (node.getNrChildren() > 0) {
-            nextNodeList.addAll(node.getChildren());
-          }
-          final int featureSplitIndex = node.getSplitAttributeIndex();
-          if (featureSplitIndex != -1) {
-            uniqueFeaturesPerTreeList.get(i).add(featureSplitIndex);
-          }
+  /** A feature split on several times above a node forms only one pair with it. */
+  private static boolean isNewPartner(
+      final int[] ancestorFeatures, final int index, final int feature) {
+    if (ancestorFeatures[index] == -1 || ancestorFeatures[index] == feature) {
+      return false;
+    }
+    for (int i = 0; i < index; i++) {
+      if (ancestorFeatures[i] == ancestorFeatures[index]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** The amount of training data reaching a node. */
+  private static double getCover(final AbstractTreeNode node) {
+    if (node instanceof TreeNodeRegression) {
+      return ((TreeNodeRegression) node).getTotalSum();
+    }
+    if (node instanceof TreeNodeClassification) {
+      final float[] distribution = ((TreeNodeClassification) node).getTargetDistribution();
+      double cover = 0;
+      if (distribution != null) {
+        for (final float d : distribution) {
+          cover += d;
         }
-        currentNodeList.clear();
-        currentNodeList.addAll(nextNodeList);
-        nextNodeList.clear();
       }
-      maxDepth = Math.max(maxDepth, depth);
-      maxNodes = Math.max(maxNodes, amountOfNodes);
+      return cover;
+    }
+    return 0;
+  }
+
+  /**
+   * Gain proxy of a split, the reduction of the squared error for regression nodes and of the
+   * weighted gini impurity for classification nodes. Without the training statistics in the nodes,
+   * every split has a gain of one.
+   */
+  private static double getGain(final AbstractTreeNode node) {
+    if (node instanceof TreeNodeRegression) {
+      final TreeNodeRegression regressionNode = (TreeNodeRegression) node;
+      final double cover = regressionNode.getTotalSum();
+      double gain = 0;
+      for (int i = 0; i < node.getNrChildren(); i++) {
+        final TreeNodeRegression child = regressionNode.getChild(i);
+        final double difference = child.getMean() - regressionNode.getMean();
+        gain += child.getTotalSum() * difference * difference;
+      }
+      return cover > 0 ? gain : 1;
+    }
+    if (node instanceof TreeNodeClassification) {
+      final double cover = getCover(node);
+      if (cover == 0) {
+        return 1;
+      }
+      double gain = cover * getGini((TreeNodeClassification) node);
+      for (int i = 0; i < node.getNrChildren(); i++) {
+        final TreeNodeClassification child = ((TreeNodeClassification) node).getChild(i);
+        gain -= getCover(child) * getGini(child);
+      }
+      return gain;
+    }
+    return 1;
+  }
+
+  private static double getGini(final TreeNodeClassification node) {
+    final double cover = getCover(node);
+    if (cover == 0) {
+      return 0;
+    }
+    double gini = 1;
+    for (final float d : node.getTargetDistribution()) {
+      gini -= (d / cover) * (d / cover);
     }
+    return gini;
   }
 }
@@ -0,0 +1,20 @@
+package org.morriskurz.summary;
+
+/**
+ * The SHAP values of a row together with the values of the explained features.
+ *
+ * @author Morris Kurz, morriskurz@gmail.com
+ */
+public final class ExplainedRow {
+
+  /** The SHAP value of every player, further values such as the bias are ignored. */
+  public final double[] shapValues;
+
+  /** The feature value of every player, NaN if missing or if the player is no numeric feature. */
+  public final double[] featureValues;
+
+  public ExplainedRow(final double[] shapValues, final double[] featureValues) {
+    this.shapValues = shapValues;
+    this.featureValues = featureValues;
+  }
+}
@@ -0,0 +1,471 @@
+package org.morriskurz.summary;
+
+import java.util.function.Supplier;
+
+import org.knime.core.data.DataTableSpec;
+import org.knime.core.node.InvalidSettingsException;
+import org.knime.core.node.ModelContent;
+import org.knime.core.node.streamable.MergeOperator;
+import org.knime.core.node.streamable.RowOutput;
+import org.knime.core.node.streamable.StreamableOperatorInternals;
+import org.knime.core.node.streamable.simple.SimpleStreamableOperatorInternals;
+import org.morriskurz.parser.SparseInteractionMatrix;
+
+/**
+ * The global explanation of all rows explained by a node, accumulated while the rows are
+ * explained, such that no pass over the explained table is needed. The rows can be added
+ * concurrently.
+ *
+ * <p>When streaming, every partition saves its summary in the internals of its operator, the
+ * internals of all partitions are merged by the {@link #createMergeOperator() merge operator} and
+ * the merged summary is written to the non-distributed output port at the end.
+ *
+ * @author Morris Kurz, morriskurz@gmail.com
+ */
+public final class ExplanationSummary {
+
+  private static final String CFG_IMPORTANCE = "importance";
+
+  private static final String CFG_INTERACTION_STRENGTH = "interactionStrength";
+
+  private static final String CFG_DISTRIBUTION = "distribution";
+
+  private static final String CFG_SAMPLED_IMPORTANCE = "sampledImportance";
+
+  /** The number of quantile bins of the SHAP distribution, 0 if it is not summarized. */
+  private final int distributionBins;
+
+  /** Null until the players are known. */
+  private volatile StripedAccumulator<FeatureImportance, double[]> importance;
+
+  /** Null unless the interactions are aggregated. */
+  private volatile StripedAccumulator<InteractionStrength, SparseInteractionMatrix> interactions;
+
+  /** Null until the players are known or if the distribution is not summarized. */
+  private volatile StripedAccumulator<ShapDistribution, ExplainedRow> distribution;
+
+  /** Null unless the importance is estimated from a sample of the rows. */
+  private volatile SampledImportance sampledImportance;
+
+  /** Creates a summary of the feature importance only. */
+  public ExplanationSummary() {
+    this(0);
+  }
+
+  /**
+   * @param distributionBins The number of quantile bins of the feature values and of the SHAP
+   *     values in the SHAP distribution, 0 to not summarize the distribution.
+   */
+  public ExplanationSummary(final int distributionBins) {
+    this.distributionBins = distributionBins;
+  }
+
+  /**
+   * Starts accumulating the SHAP values of the players.
+   *
+   * @param playerNames The names of the players, in the order of the SHAP values.
+   */
+  public void setPlayerNames(final String[] playerNames) {
+    importance =
+        new StripedAccumulator<>(
+            new Supplier<FeatureImportance>() {
+              @Override
+              public FeatureImportance get() {
+                return new FeatureImportance(playerNames);
+              }
+            });
+    if (distributionBins > 0) {
+      distribution =
+          new StripedAccumulator<>(
+              new Supplier<ShapDistribution>() {
+                @Override
+                public ShapDistribution get() {
+                  return new ShapDistribution(playerNames, distributionBins);
+                }
+              });
+    }
+  }
+
+  /**
+   * @return whether the distribution of the SHAP values is summarized, i.e. whether the feature
+   *     values should be passed to {@link #addShapValues(double[], double[])}
+   */
+  public boolean isDistributionSummarized() {
+    return distributionBins > 0;
+  }
+
+  /**
+   * Adds the SHAP values of a row. Ignored until the players are set.
+   *
+   * @param values The SHAP value of every player, further values such as the bias are ignored.
+   */
+  public void addShapValues(final double[] values) {
+    addShapValues(values, null);
+  }
+
+  /**
+   * Adds the SHAP values of a row along with the feature values. Ignored until the players are set.
+   *
+   * @param values The SHAP value of every player, further values such as the bias are ignored.
+   * @param featureValues The feature value of every player, NaN if missing or if the player is no
+   *     numeric feature. Null if unknown.
+   */
+  public void addShapValues(final double[] values, final double[] featureValues) {
+    final StripedAccumulator<FeatureImportance, double[]> accumulator = importance;
+    if (accumulator != null) {
+      accumulator.add(values);
+    }
+    final StripedAccumulator<ShapDistribution, ExplainedRow> distributionAccumulator =
+        distribution;
+    if (distributionAccumulator != null) {
+      distributionAccumulator.add(new ExplainedRow(values, featureValues));
+    }
+  }
+
+  /**
+   * Keeps the importance estimated from a sample of the rows, which is filled by the caller from a
+   * single thread.
+   *
+   * @param sampledImportance The sampled importance.
+   */
+  public void setSampledImportance(final SampledImportance sampledImportance) {
+    this.sampledImportance = sampledImportance;
+  }
+
+  /**
+   * Starts accumulating the interactions between the players.
+   *
+   * @param playerNames The names of the players, indexed by the pairs of the interactions.
+   */
+  public void setInteractionPlayerNames(final String[] playerNames) {
+    interactions =
+        new StripedAccumulator<>(
+            new Supplier<InteractionStrength>() {
+              @Override
+              public InteractionStrength get() {
+                return new InteractionStrength(playerNames);
+              }
+            });
+  }
+
+  /**
+   * Adds the interactions of a row. Ignored until the players of the interactions are set.
+   *
+   * @param values The touched pairs of the upper triangle of the row.
+   */
+  public void addInteractions(final SparseInteractionMatrix values) {
+    final StripedAccumulator<InteractionStrength, SparseInteractionMatrix> accumulator =
+        interactions;
+    if (accumulator != null) {
+      accumulator.add(values);
+    }
+  }
+
+  /** @return the importance of all rows added so far, null if the players were never set */
+  public FeatureImportance getImportance() {
+    final StripedAccumulator<FeatureImportance, double[]> accumulator = importance;
+    return accumulator == null ? null : accumulator.getResult();
+  }
+
+  /**
+   * @return the interaction strength of all rows added so far, null if the interactions are not
+   *     aggregated
+   */
+  public InteractionStrength getInteractionStrength() {
+    final StripedAccumulator<InteractionStrength, SparseInteractionMatrix> accumulator =
+        interactions;
+    return accumulator == null ? null : accumulator.getResult();
+  }
+
+  /**
+   * @return the SHAP distribution of all rows added so far, null if the players were never set or
+   *     the distribution is not summarized
+   */
+  public ShapDistribution getDistribution() {
+    final StripedAccumulator<ShapDistribution, ExplainedRow> accumulator = distribution;
+    return accumulator == null ? null : accumulator.getResult();
+  }
+
+  /** @return the importance estimated from a sample, null if all rows are explained */
+  public SampledImportance getSampledImportance() {
+    return sampledImportance;
+  }
+
+  /** @return the spec of the feature importance table */
+  public static DataTableSpec createImportanceSpec() {
+    return FeatureImportance.createSpec();
+  }
+
+  /** @return the spec of the interaction strength table */
+  public static DataTableSpec createInteractionStrengthSpec() {
+    return InteractionStrength.createSpec();
+  }
+
+  /** @return the spec of the feature importance table estimated from a sample */
+  public static DataTableSpec createSampledImportanceSpec() {
+    return SampledImportance.createSpec();
+  }
+
+  /** @return the spec of the SHAP distribution table */
+  public static DataTableSpec createDistributionSpec() {
+    return ShapDistribution.createSpec();
+  }
+
+  /**
+   * Writes the feature importance table and closes the output.
+   *
+   * @param out The output of the feature importance table.
+   * @throws InterruptedException if the output is interrupted
+   */
+  public void writeImportance(final RowOutput out) throws InterruptedException {
+    writeImportance(getImportance(), out);
+  }
+
+  /**
+   * Writes the interaction strength table and closes the output.
+   *
+   * @param out The output of the interaction strength table.
+   * @throws InterruptedException if the output is interrupted
+   */
+  public void writeInteractionStrength(final RowOutput out) throws InterruptedException {
+    writeInteractionStrength(getInteractionStrength(), out);
+  }
+
+  /**
+   * Writes the SHAP distribution table and closes the output.
+   *
+   * @param out The output of the SHAP distribution table.
+   * @throws InterruptedException if the output is interrupted
+   */
+  public void writeDistribution(final RowOutput out) throws InterruptedException {
+    writeDistribution(getDistribution(), out);
+  }
+
+  /**
+   * Writes the feature importance table estimated from a sample and closes the output.
+   *
+   * @param out The output of the sampled feature importance table.
+   * @param tolerance The tolerance of the ranking, see {@link
+   *     SampledImportance#isRankingStable(double)}.
+   * @throws InterruptedException if the output is interrupted
+   */
+  public void writeSampledImportance(final RowOutput out, final double tolerance)
+      throws InterruptedException {
+    writeSampledImportance(sampledImportance, out, tolerance);
+  }
+
+  /** @return the internals of a streaming operator holding the summary */
+  public StreamableOperatorInternals saveInternals() {
+    return saveInternals(
+        getImportance(), getInteractionStrength(), getDistribution(), sampledImportance);
+  }
+
+  /**
+   * Writes the feature importance table of the merged internals of the streaming operators and
+   * closes the output.
+   *
+   * @param internals The internals saved by {@link #saveInternals()}, possibly merged.
+   * @param out The output of the feature importance table.
+   * @throws InvalidSettingsException if the internals cannot be read
+   * @throws InterruptedException if the output is interrupted
+   */
+  public static void writeImportance(
+      final StreamableOperatorInternals internals, final RowOutput out)
+      throws InvalidSettingsException, InterruptedException {
+    writeImportance(loadImportance(internals), out);
+  }
+
+  /**
+   * Writes the interaction strength table of the merged internals of the streaming operators and
+   * closes the output.
+   *
+   * @param internals The internals saved by {@link #saveInternals()}, possibly merged.
+   * @param out The output of the interaction strength table.
+   * @throws InvalidSettingsException if the internals cannot be read
+   * @throws InterruptedException if the output is interrupted
+   */
+  public static void writeInteractionStrength(
+      final StreamableOperatorInternals internals, final RowOutput out)
+      throws InvalidSettingsException, InterruptedException {
+    writeInteractionStrength(loadInteractionStrength(internals), out);
+  }
+
+  /**
+   * Writes the SHAP distribution table of the merged internals of the streaming operators and
+   * closes the output.
+   *
+   * @param internals The internals saved by {@link #saveInternals()}, possibly merged.
+   * @param out The output of the SHAP distribution table.
+   * @throws InvalidSettingsException if the internals cannot be read
+   * @throws InterruptedException if the output is interrupted
+   */
+  public static void writeDistribution(
+      final StreamableOperatorInternals internals, final RowOutput out)
+      throws InvalidSettingsException, InterruptedException {
+    writeDistribution(loadDistribution(internals), out);
+  }
+
+  /**
+   * Writes the feature importance table estimated from the merged samples of the streaming
+   * operators and closes the output.
+   *
+   * @param internals The internals saved by {@link #saveInternals()}, possibly merged.
+   * @param out The output of the sampled feature importance table.
+   * @param tolerance The tolerance of the ranking, see {@link
+   *     SampledImportance#isRankingStable(double)}.
+   * @throws InvalidSettingsException if the internals cannot be read
+   * @throws InterruptedException if the output is interrupted
+   */
+  public static void writeSampledImportance(
+      final StreamableOperatorInternals internals, final RowOutput out, final double tolerance)
+      throws InvalidSettingsException, InterruptedException {
+    writeSampledImportance(loadSampledImportance(internals), out, tolerance);
+  }
+
+  /** @return the operator merging the internals of the partitions of a streamed node */
+  public static MergeOperator createMergeOperator() {
+    return new MergeOperator() {
+      @Override
+      public StreamableOperatorInternals mergeFinal(
+          final StreamableOperatorInternals[] operators) {
+        FeatureImportance merged = null;
+        InteractionStrength mergedInteractions = null;
+        ShapDistribution mergedDistribution = null;
+        SampledImportance mergedSample = null;
+        try {
+          for (final StreamableOperatorInternals internals : operators) {
+            final FeatureImportance partition = loadImportance(internals);
+            if (merged == null) {
+              merged = partition;
+            } else if (partition != null) {
+              merged.merge(partition);
+            }
+            final InteractionStrength partitionInteractions = loadInteractionStrength(internals);
+            if (mergedInteractions == null) {
+              mergedInteractions = partitionInteractions;
+            } else if (partitionInteractions != null) {
+              mergedInteractions.merge(partitionInteractions);
+            }
+            final ShapDistribution partitionDistribution = loadDistribution(internals);
+            if (mergedDistribution == null) {
+              mergedDistribution = partitionDistribution;
+            } else if (partitionDistribution != null) {
+              mergedDistribution.merge(partitionDistribution);
+            }
+            final SampledImportance partitionSample = loadSampledImportance(internals);
+            if (mergedSample == null) {
+              mergedSample = partitionSample;
+            } else if (partitionSample != null) {
+              mergedSample.merge(partitionSample);
+            }
+          }
+        } catch (final InvalidSettingsException e) {
+          throw new IllegalStateException("Could not read the summary of a partition.", e);
+        }
+        return saveInternals(merged, mergedInteractions, mergedDistribution, mergedSample);
+      }
+    };
+  }
+
+  private static StreamableOperatorInternals saveInternals(
+      final FeatureImportance importance,
+      final InteractionStrength interactionStrength,
+      final ShapDistribution distribution,
+      final SampledImportance sampledImportance) {
+    final SimpleStreamableOperatorInternals internals = new SimpleStreamableOperatorInternals();
+    if (importance != null) {
+      importance.save(internals.getConfig().addModelContent(CFG_IMPORTANCE));
+    }
+    if (interactionStrength != null) {
+      interactionStrength.save(internals.getConfig().addModelContent(CFG_INTERACTION_STRENGTH));
+    }
+    if (distribution != null) {
+      distribution.save(internals.getConfig().addModelContent(CFG_DISTRIBUTION));
+    }
+    if (sampledImportance != null) {
+      sampledImportance.save(internals.getConfig().addModelContent(CFG_SAMPLED_IMPORTANCE));
+    }
+    return internals;
+  }
+
+  private static FeatureImportance loadImportance(final StreamableOperatorInternals internals)
+      throws InvalidSettingsException {
+    if (internals == null) {
+      return null;
+    }
+    final ModelContent config = ((SimpleStreamableOperatorInternals) internals).getConfig();
+    return config.containsKey(CFG_IMPORTANCE)
+        ? FeatureImportance.load(config.getModelContent(CFG_IMPORTANCE))
+        : null;
+  }
+
+  private static InteractionStrength loadInteractionStrength(
+      final StreamableOperatorInternals internals) throws InvalidSettingsException {
+    if (internals == null) {
+      return null;
+    }
+    final ModelContent config = ((SimpleStreamableOperatorInternals) internals).getConfig();
+    return config.containsKey(CFG_INTERACTION_STRENGTH)
+        ? InteractionStrength.load(config.getModelContent(CFG_INTERACTION_STRENGTH))
+        : null;
+  }
+
+  private static ShapDistribution loadDistribution(final StreamableOperatorInternals internals)
+      throws InvalidSettingsException {
+    if (internals == null) {
+      return null;
+    }
+    final ModelContent config = ((SimpleStreamableOperatorInternals) internals).getConfig();
+    return config.containsKey(CFG_DISTRIBUTION)
+        ? ShapDistribution.load(config.getModelContent(CFG_DISTRIBUTION))
+        : null;
+  }
+
+  /** Writes one row per player, no rows if the players are unknown. */
+  private static void writeImportance(final FeatureImportance importance, final RowOutput out)
+      throws InterruptedException {
+    if (importance != null) {
+      importance.write(out);
+    }
+    out.close();
+  }
+
+  /** Writes one row per touched pair, no rows unless the interactions are aggregated. */
+  private static void writeInteractionStrength(
+      final InteractionStrength interactionStrength, final RowOutput out)
+      throws InterruptedException {
+    if (interactionStrength != null) {
+      interactionStrength.write(out);
+    }
+    out.close();
+  }
+
+  private static SampledImportance loadSampledImportance(
+      final StreamableOperatorInternals internals) throws InvalidSettingsException {
+    if (internals == null) {
+      return null;
+    }
+    final ModelContent config = ((SimpleStreamableOperatorInternals) internals).getConfig();
+    return config.containsKey(CFG_SAMPLED_IMPORTANCE)
+        ? SampledImportance.load(config.getModelContent(CFG_SAMPLED_IMPORTANCE))
+        : null;
+  }
+
+  private static void writeSampledImportance(
+      final SampledImportance sampledImportance, final RowOutput out, final double tolerance)
+      throws InterruptedException {
+    if (sampledImportance != null) {
+      sampledImportance.write(out, tolerance);
+    }
+    out.close();
+  }
+
+  /** Writes the histogram of every player, no rows unless the distribution is summarized. */
+  private static void writeDistribution(final ShapDistribution distribution, final RowOutput out)
+      throws InterruptedException {
+    if (distribution != null) {
+      distribution.write(out);
+    }
+    out.close();
+  }
+}
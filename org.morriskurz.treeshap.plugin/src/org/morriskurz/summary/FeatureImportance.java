@@ -0,0 +1,155 @@
+package org.morriskurz.summary;
+
+import org.knime.core.data.DataCell;
+import org.knime.core.data.DataTableSpec;
+import org.knime.core.data.DataType;
+import org.knime.core.data.RowKey;
+import org.knime.core.data.def.DefaultRow;
+import org.knime.core.data.def.DoubleCell;
+import org.knime.core.data.def.LongCell;
+import org.knime.core.data.def.StringCell;
+import org.knime.core.node.InvalidSettingsException;
+import org.knime.core.node.ModelContentRO;
+import org.knime.core.node.ModelContentWO;
+import org.knime.core.node.streamable.RowOutput;
+
+/**
+ * The global importance of the players: the mean SHAP value, the mean absolute SHAP value and the
+ * variance of the SHAP values of every player over all rows.
+ *
+ * <p>The means and variances are updated with Welford's algorithm and merged with the pairwise
+ * update of Chan et al., which stay accurate for many rows, unlike sums of squares.
+ *
+ * @author Morris Kurz, morriskurz@gmail.com
+ */
+public final class FeatureImportance implements IAccumulator<FeatureImportance, double[]> {
+
+  private static final String CFG_PLAYER_NAMES = "playerNames";
+
+  private static final String CFG_COUNT = "count";
+
+  private static final String CFG_MEANS = "means";
+
+  private static final String CFG_ABSOLUTE_MEANS = "absoluteMeans";
+
+  private static final String CFG_SQUARED_DEVIATIONS = "squaredDeviations";
+
+  private final String[] playerNames;
+
+  private long count;
+
+  private final double[] means;
+
+  private final double[] absoluteMeans;
+
+  /** The sum of the squared deviations from the mean of every player. */
+  private final double[] squaredDeviations;
+
+  /** @param playerNames The names of the players, in the order of the SHAP values. */
+  public FeatureImportance(final String[] playerNames) {
+    this.playerNames = playerNames;
+    means = new double[playerNames.length];
+    absoluteMeans = new double[playerNames.length];
+    squaredDeviations = new double[playerNames.length];
+  }
+
+  /**
+   * Adds the SHAP values of a row.
+   *
+   * @param values The SHAP value of every player, further values such as the bias are ignored.
+   */
+  @Override
+  public void add(final double[] values) {
+    count++;
+    for (int i = 0; i < means.length; i++) {
+      final double delta = values[i] - means[i];
+      means[i] += delta / count;
+      squaredDeviations[i] += delta * (values[i] - means[i]);
+      absoluteMeans[i] += (Math.abs(values[i]) - absoluteMeans[i]) / count;
+    }
+  }
+
+  @Override
+  public void merge(final FeatureImportance other) {
+    if (other.count == 0) {
+      return;
+    }
+    final long total = count + other.count;
+    final double weight = other.count / (double) total;
+    for (int i = 0; i < means.length; i++) {
+      final double delta = other.means[i] - means[i];
+      means[i] += delta * weight;
+      squaredDeviations[i] += other.squaredDeviations[i] + delta * delta * count * weight;
+      absoluteMeans[i] += (other.absoluteMeans[i] - absoluteMeans[i]) * weight;
+    }
+    count = total;
+  }
+
+  /** @return the number of rows */
+  public long getCount() {
+    return count;
+  }
+
+  public String[] getPlayerNames() {
+    return playerNames;
+  }
+
+  /** @return the spec of the table written by {@link #write(RowOutput)} */
+  public static DataTableSpec createSpec() {
+    return new DataTableSpec(
+        new String[] {"Feature", "Mean SHAP", "Mean |SHAP|", "SHAP variance", "Count"},
+        new DataType[] {
+          StringCell.TYPE, DoubleCell.TYPE, DoubleCell.TYPE, DoubleCell.TYPE, LongCell.TYPE
+        });
+  }
+
+  /**
+   * Pushes one row per player to the output.
+   *
+   * @param out The output of the table of {@link #createSpec()}.
+   * @throws InterruptedException if the output is interrupted
+   */
+  public void write(final RowOutput out) throws InterruptedException {
+    for (int i = 0; i < playerNames.length; i++) {
+      final DataCell[] cells = new DataCell[5];
+      cells[0] = new StringCell(playerNames[i]);
+      if (count == 0) {
+        cells[1] = DataType.getMissingCell();
+        cells[2] = DataType.getMissingCell();
+      } else {
+        cells[1] = new DoubleCell(means[i]);
+        cells[2] = new DoubleCell(absoluteMeans[i]);
+      }
+      // The sample variance, as in the statistics nodes.
+      cells[3] =
+          count < 2
+              ? DataType.getMissingCell()
+              : new DoubleCell(squaredDeviations[i] / (count - 1));
+      cells[4] = new LongCell(count);
+      out.push(new DefaultRow(RowKey.createRowKey((long) i), cells));
+    }
+  }
+
+  public void save(final ModelContentWO model) {
+    model.addStringArray(CFG_PLAYER_NAMES, playerNames);
+    model.addLong(CFG_COUNT, count);
+    model.addDoubleArray(CFG_MEANS, means);
+    model.addDoubleArray(CFG_ABSOLUTE_MEANS, absoluteMeans);
+    model.addDoubleArray(CFG_SQUARED_DEVIATIONS, squaredDeviations);
+  }
+
+  public static FeatureImportance load(final ModelContentRO model)
+      throws InvalidSettingsException {
+    final FeatureImportance importance =
+        new FeatureImportance(model.getStringArray(CFG_PLAYER_NAMES));
+    importance.count = model.getLong(CFG_COUNT);
+    final double[] means = model.getDoubleArray(CFG_MEANS);
+    final double[] absoluteMeans = model.getDoubleArray(CFG_ABSOLUTE_MEANS);
+    final double[] squaredDeviations = model.getDoubleArray(CFG_SQUARED_DEVIATIONS);
+    final int nrPlayers = importance.means.length;
+    System.arraycopy(means, 0, importance.means, 0, nrPlayers);
+    System.arraycopy(absoluteMeans, 0, importance.absoluteMeans, 0, nrPlayers);
+    System.arraycopy(squaredDeviations, 0, importance.squaredDeviations, 0, nrPlayers);
+    return importance;
+  }
+}
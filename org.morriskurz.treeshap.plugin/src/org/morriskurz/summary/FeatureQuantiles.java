@@ -0,0 +1,213 @@
+package org.morriskurz.summary;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * A mergeable quantile sketch of the values of a feature, kept as clusters of adjacent values as in
+ * the merging t-digest of Dunning and Ertl. Every value starts as a cluster of its own. Once there
+ * are more than four times the maximum number of clusters, the clusters are sorted by their mean
+ * and adjacent clusters are merged as long as the merged cluster holds at most the count divided by
+ * the maximum number of clusters. At most twice the maximum number of clusters remain, and the rank
+ * of a value is known up to the count of a cluster.
+ *
+ * <p>Every cluster keeps its smallest and its largest value, so the bounds of a range of clusters
+ * are exact, independent of the offset and the scale of the values. The clusters are identified by
+ * their index. Adding and merging append clusters, and compressing returns the new index of every
+ * cluster, so data kept per cluster can be merged alike.
+ *
+ * @author Morris Kurz, morriskurz@gmail.com
+ */
+final class FeatureQuantiles {
+
+  /** The number of clusters relative to the maximum number of clusters that is compressed. */
+  private static final int FULL_FACTOR = 4;
+
+  private final int maxClusters;
+
+  private int size;
+
+  private long total;
+
+  private double[] mins;
+
+  private double[] maxs;
+
+  private double[] sums;
+
+  private long[] counts;
+
+  /** @param maxClusters The number of clusters, which bounds the rank error of the quantiles. */
+  FeatureQuantiles(final int maxClusters) {
+    this.maxClusters = maxClusters;
+    mins = new double[16];
+    maxs = new double[16];
+    sums = new double[16];
+    counts = new long[16];
+  }
+
+  /**
+   * @param maxClusters The number of clusters, which bounds the rank error of the quantiles.
+   * @param mins The smallest value of every cluster.
+   * @param maxs The largest value of every cluster.
+   * @param sums The sum of the values of every cluster.
+   * @param counts The number of values of every cluster.
+   */
+  FeatureQuantiles(
+      final int maxClusters,
+      final double[] mins,
+      final double[] maxs,
+      final double[] sums,
+      final long[] counts) {
+    this.maxClusters = maxClusters;
+    this.mins = mins;
+    this.maxs = maxs;
+    this.sums = sums;
+    this.counts = counts;
+    size = counts.length;
+    for (final long count : counts) {
+      total += count;
+    }
+  }
+
+  /**
+   * Adds a value as a cluster of its own.
+   *
+   * @param value The value, not NaN.
+   * @return the index of the cluster of the value
+   */
+  int add(final double value) {
+    ensureCapacity(size + 1);
+    mins[size] = value;
+    maxs[size] = value;
+    sums[size] = value;
+    counts[size] = 1;
+    total++;
+    return size++;
+  }
+
+  /**
+   * Appends the clusters of another sketch.
+   *
+   * @param other The sketch of other values, left unchanged.
+   * @return the index of the first appended cluster, the others following in their order
+   */
+  int append(final FeatureQuantiles other) {
+    final int offset = size;
+    ensureCapacity(size + other.size);
+    System.arraycopy(other.mins, 0, mins, size, other.size);
+    System.arraycopy(other.maxs, 0, maxs, size, other.size);
+    System.arraycopy(other.sums, 0, sums, size, other.size);
+    System.arraycopy(other.counts, 0, counts, size, other.size);
+    size += other.size;
+    total += other.total;
+    return offset;
+  }
+
+  /** @return whether the clusters should be compressed */
+  boolean isFull() {
+    return size > FULL_FACTOR * maxClusters;
+  }
+
+  /**
+   * Merges adjacent clusters.
+   *
+   * @return the new index of every cluster
+   */
+  int[] compress() {
+    final int[] order = getOrder();
+    final long limit = Math.max(1, (total + maxClusters - 1) / maxClusters);
+    final int[] newIndex = new int[size];
+    final double[] newMins = new double[mins.length];
+    final double[] newMaxs = new double[maxs.length];
+    final double[] newSums = new double[sums.length];
+    final long[] newCounts = new long[counts.length];
+    int next = -1;
+    for (final int k : order) {
+      if (next < 0 || newCounts[next] + counts[k] > limit) {
+        next++;
+        newMins[next] = mins[k];
+        newMaxs[next] = maxs[k];
+      } else {
+        newMins[next] = Math.min(newMins[next], mins[k]);
+        newMaxs[next] = Math.max(newMaxs[next], maxs[k]);
+      }
+      newSums[next] += sums[k];
+      newCounts[next] += counts[k];
+      newIndex[k] = next;
+    }
+    mins = newMins;
+    maxs = newMaxs;
+    sums = newSums;
+    counts = newCounts;
+    size = next + 1;
+    return newIndex;
+  }
+
+  /** @return the indices of the clusters ordered by their mean, ties by their smallest value */
+  int[] getOrder() {
+    final Integer[] order = new Integer[size];
+    for (int k = 0; k < size; k++) {
+      order[k] = k;
+    }
+    Arrays.sort(
+        order,
+        new Comparator<Integer>() {
+          @Override
+          public int compare(final Integer a, final Integer b) {
+            final int byMean = Double.compare(getMean(a), getMean(b));
+            return byMean != 0 ? byMean : Double.compare(mins[a], mins[b]);
+          }
+        });
+    final int[] result = new int[size];
+    for (int k = 0; k < size; k++) {
+      result[k] = order[k];
+    }
+    return result;
+  }
+
+  /** @return the number of clusters */
+  int size() {
+    return size;
+  }
+
+  /** @return the number of values */
+  long getTotal() {
+    return total;
+  }
+
+  int getMaxClusters() {
+    return maxClusters;
+  }
+
+  double getMin(final int cluster) {
+    return mins[cluster];
+  }
+
+  double getMax(final int cluster) {
+    return maxs[cluster];
+  }
+
+  double getSum(final int cluster) {
+    return sums[cluster];
+  }
+
+  /** @return the mean of the cluster, exact for a cluster of equal values despite rounding */
+  double getMean(final int cluster) {
+    return Math.max(mins[cluster], Math.min(maxs[cluster], sums[cluster] / counts[cluster]));
+  }
+
+  long getCount(final int cluster) {
+    return counts[cluster];
+  }
+
+  private void ensureCapacity(final int capacity) {
+    if (capacity > counts.length) {
+      final int newCapacity = Math.max(capacity, 2 * counts.length);
+      mins = Arrays.copyOf(mins, newCapacity);
+      maxs = Arrays.copyOf(maxs, newCapacity);
+      sums = Arrays.copyOf(sums, newCapacity);
+      counts = Arrays.copyOf(counts, newCapacity);
+    }
+  }
+}
@@ -0,0 +1,27 @@
+package org.morriskurz.summary;
+
+/**
+ * Accumulates a global statistic of explanations row by row. Partial accumulators of disjoint rows,
+ * e.g. of different threads or partitions, are merged into the accumulator of all rows.
+ * Accumulators are not thread safe, see {@link StripedAccumulator}.
+ *
+ * @param <T> The type of the accumulator.
+ * @param <R> The type of the explanation of a row.
+ * @author Morris Kurz, morriskurz@gmail.com
+ */
+public interface IAccumulator<T extends IAccumulator<T, R>, R> {
+
+  /**
+   * Adds the explanation of a row.
+   *
+   * @param values The explanation of the row.
+   */
+  void add(R values);
+
+  /**
+   * Adds the rows of another accumulator.
+   *
+   * @param other The accumulator of other rows, left unchanged.
+   */
+  void merge(T other);
+}
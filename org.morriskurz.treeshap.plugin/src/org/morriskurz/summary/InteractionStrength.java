@@ -0,0 +1,158 @@
+package org.morriskurz.summary;
+
+import org.knime.core.data.DataCell;
+import org.knime.core.data.DataTableSpec;
+import org.knime.core.data.DataType;
+import org.knime.core.data.RowKey;
+import org.knime.core.data.def.DefaultRow;
+import org.knime.core.data.def.DoubleCell;
+import org.knime.core.data.def.LongCell;
+import org.knime.core.data.def.StringCell;
+import org.knime.core.node.InvalidSettingsException;
+import org.knime.core.node.ModelContentRO;
+import org.knime.core.node.ModelContentWO;
+import org.knime.core.node.streamable.RowOutput;
+import org.morriskurz.parser.SparseInteractionMatrix;
+
+/**
+ * The global strength of the interactions between the players: the mean interaction value and the
+ * mean absolute interaction value of every pair over all rows.
+ *
+ * <p>Only the upper triangle of the symmetric interaction matrix is kept, and only the pairs
+ * touched by any row, so the memory is proportional to the number of players co-occurring in the
+ * trees, not to the number of rows or the squared number of players. Pairs missing in a row have
+ * an interaction of zero in that row.
+ *
+ * @author Morris Kurz, morriskurz@gmail.com
+ */
+public final class InteractionStrength
+    implements IAccumulator<InteractionStrength, SparseInteractionMatrix> {
+
+  private static final String CFG_PLAYER_NAMES = "playerNames";
+
+  private static final String CFG_COUNT = "count";
+
+  private static final String CFG_ROWS = "rows";
+
+  private static final String CFG_COLUMNS = "columns";
+
+  private static final String CFG_SUMS = "sums";
+
+  private static final String CFG_ABSOLUTE_SUMS = "absoluteSums";
+
+  private final String[] playerNames;
+
+  private long count;
+
+  private final SparseInteractionMatrix sums = new SparseInteractionMatrix();
+
+  private final SparseInteractionMatrix absoluteSums = new SparseInteractionMatrix();
+
+  /** @param playerNames The names of the players, indexed by the pairs of the interactions. */
+  public InteractionStrength(final String[] playerNames) {
+    this.playerNames = playerNames;
+  }
+
+  /**
+   * Adds the interactions of a row.
+   *
+   * @param values The touched pairs of the upper triangle of the row.
+   */
+  @Override
+  public void add(final SparseInteractionMatrix values) {
+    count++;
+    final int[] rows = values.getRows();
+    final int[] columns = values.getColumns();
+    final double[] interactions = values.getValues();
+    for (int i = 0; i < rows.length; i++) {
+      sums.add(rows[i], columns[i], interactions[i]);
+      absoluteSums.add(rows[i], columns[i], Math.abs(interactions[i]));
+    }
+  }
+
+  @Override
+  public void merge(final InteractionStrength other) {
+    count += other.count;
+    final int[] rows = other.sums.getRows();
+    final int[] columns = other.sums.getColumns();
+    final double[] otherSums = other.sums.getValues();
+    for (int i = 0; i < rows.length; i++) {
+      sums.add(rows[i], columns[i], otherSums[i]);
+      absoluteSums.add(rows[i], columns[i], other.absoluteSums.get(rows[i], columns[i]));
+    }
+  }
+
+  /** @return the number of rows */
+  public long getCount() {
+    return count;
+  }
+
+  /** @return the number of pairs touched by any row */
+  public int getNrPairs() {
+    return sums.size();
+  }
+
+  /** @return the spec of the table written by {@link #write(RowOutput)} */
+  public static DataTableSpec createSpec() {
+    return new DataTableSpec(
+        new String[] {
+          "Feature", "Partner", "Mean SHAP interaction", "Mean |SHAP interaction|", "Count"
+        },
+        new DataType[] {
+          StringCell.TYPE, StringCell.TYPE, DoubleCell.TYPE, DoubleCell.TYPE, LongCell.TYPE
+        });
+  }
+
+  /**
+   * Pushes one row per touched pair of the upper triangle to the output, sorted by the players.
+   * The main effects are the pairs of a player with itself.
+   *
+   * @param out The output of the table of {@link #createSpec()}.
+   * @throws InterruptedException if the output is interrupted
+   */
+  public void write(final RowOutput out) throws InterruptedException {
+    final int[] rows = sums.getRows();
+    final int[] columns = sums.getColumns();
+    final double[] pairSums = sums.getValues();
+    for (int i = 0; i < rows.length; i++) {
+      final DataCell[] cells = new DataCell[5];
+      cells[0] = new StringCell(playerNames[rows[i]]);
+      cells[1] = new StringCell(playerNames[columns[i]]);
+      cells[2] = new DoubleCell(pairSums[i] / count);
+      cells[3] = new DoubleCell(absoluteSums.get(rows[i], columns[i]) / count);
+      cells[4] = new LongCell(count);
+      out.push(new DefaultRow(RowKey.createRowKey((long) i), cells));
+    }
+  }
+
+  public void save(final ModelContentWO model) {
+    model.addStringArray(CFG_PLAYER_NAMES, playerNames);
+    model.addLong(CFG_COUNT, count);
+    final int[] rows = sums.getRows();
+    final int[] columns = sums.getColumns();
+    final double[] absolute = new double[rows.length];
+    for (int i = 0; i < rows.length; i++) {
+      absolute[i] = absoluteSums.get(rows[i], columns[i]);
+    }
+    model.addIntArray(CFG_ROWS, rows);
+    model.addIntArray(CFG_COLUMNS, columns);
+    model.addDoubleArray(CFG_SUMS, sums.getValues());
+    model.addDoubleArray(CFG_ABSOLUTE_SUMS, absolute);
+  }
+
+  public static InteractionStrength load(final ModelContentRO model)
+      throws InvalidSettingsException {
+    final InteractionStrength strength =
+        new InteractionStrength(model.getStringArray(CFG_PLAYER_NAMES));
+    strength.count = model.getLong(CFG_COUNT);
+    final int[] rows = model.getIntArray(CFG_ROWS);
+    final int[] columns = model.getIntArray(CFG_COLUMNS);
+    final double[] sums = model.getDoubleArray(CFG_SUMS);
+    final double[] absoluteSums = model.getDoubleArray(CFG_ABSOLUTE_SUMS);
+    for (int i = 0; i < rows.length; i++) {
+      strength.sums.add(rows[i], columns[i], sums[i]);
+      strength.absoluteSums.add(rows[i], columns[i], absoluteSums[i]);
+    }
+    return strength;
+  }
+}
@@ -0,0 +1,109 @@
+package org.morriskurz.summary;
+
+/**
+ * Logarithmic bins of signed values, such that every value of a bin is within a relative error of
+ * the representative value of the bin, as in the DDSketch of Masson et al. The bins of a level are
+ * merged pairwise into the bins of the next level, which squares the ratio between their bounds.
+ * Sketches at different levels are therefore merged exactly by collapsing the finer one.
+ *
+ * <p>A bin is encoded as an int, the index of the bin in its upper two bits and its sign in the
+ * lower two bits. Values of a smaller magnitude than {@link #MIN_MAGNITUDE} share the zero bin,
+ * missing values have a bin of their own.
+ *
+ * @author Morris Kurz, morriskurz@gmail.com
+ */
+final class LogBins {
+
+  /** The relative accuracy of the bins of level 0. */
+  static final double RELATIVE_ACCURACY = 0.01;
+
+  /** The largest magnitude of the zero bin. */
+  static final double MIN_MAGNITUDE = 1e-12;
+
+  /** The bin of missing values, i.e. NaN. */
+  static final int MISSING = 3;
+
+  /** The bin of values of a magnitude below {@link #MIN_MAGNITUDE}. */
+  static final int ZERO = 0;
+
+  private static final int POSITIVE = 1;
+
+  private static final int NEGATIVE = 2;
+
+  private static final double LOG_GAMMA =
+      Math.log((1 + RELATIVE_ACCURACY) / (1 - RELATIVE_ACCURACY));
+
+  /**
+   * @param value The value, NaN if missing.
+   * @param level The level of the bins.
+   * @return the bin of the value
+   */
+  static int of(final double value, final int level) {
+    if (Double.isNaN(value)) {
+      return MISSING;
+    }
+    final double magnitude = Math.abs(value);
+    if (magnitude < MIN_MAGNITUDE) {
+      return ZERO;
+    }
+    // Bin i holds the magnitudes in (gamma^(i-1), gamma^i].
+    final int index = (int) Math.ceil(Math.log(magnitude) / logGamma(level));
+    return (index << 2) | (value > 0 ? POSITIVE : NEGATIVE);
+  }
+
+  /** @return the bin of the next level holding the given bin */
+  static int collapse(final int bin) {
+    final int sign = bin & 3;
+    if (sign == ZERO || sign == MISSING) {
+      return bin;
+    }
+    return (Math.floorDiv((bin >> 2) + 1, 2) << 2) | sign;
+  }
+
+  /** @return the representative value of the bin, NaN for the missing bin */
+  static double representative(final int bin, final int level) {
+    final int sign = bin & 3;
+    if (sign == ZERO) {
+      return 0;
+    } else if (sign == MISSING) {
+      return Double.NaN;
+    }
+    final double gamma = Math.exp(logGamma(level));
+    final double magnitude = 2 * Math.exp((bin >> 2) * logGamma(level)) / (gamma + 1);
+    return sign == POSITIVE ? magnitude : -magnitude;
+  }
+
+  /** @return the smallest value of the bin, NaN for the missing bin */
+  static double lower(final int bin, final int level) {
+    final int sign = bin & 3;
+    if (sign == ZERO) {
+      return -MIN_MAGNITUDE;
+    } else if (sign == MISSING) {
+      return Double.NaN;
+    }
+    return sign == POSITIVE
+        ? Math.exp(((bin >> 2) - 1) * logGamma(level))
+        : -Math.exp((bin >> 2) * logGamma(level));
+  }
+
+  /** @return the largest value of the bin, NaN for the missing bin */
+  static double upper(final int bin, final int level) {
+    final int sign = bin & 3;
+    if (sign == ZERO) {
+      return MIN_MAGNITUDE;
+    } else if (sign == MISSING) {
+      return Double.NaN;
+    }
+    return sign == POSITIVE
+        ? Math.exp((bin >> 2) * logGamma(level))
+        : -Math.exp(((bin >> 2) - 1) * logGamma(level));
+  }
+
+  private static double logGamma(final int level) {
+    return LOG_GAMMA * (1L << level);
+  }
+
+  private LogBins() {
+    // utility class
+  }
+}
@@ -0,0 +1,100 @@
+package org.morriskurz.summary;
+
+import java.util.Arrays;
+
+/**
+ * Counts per long key, kept in an open addressing hash map with primitive keys and linear probing.
+ *
+ * @author Morris Kurz, morriskurz@gmail.com
+ */
+final class LongCounts {
+
+  private static final long EMPTY = Long.MIN_VALUE;
+
+  private static final int INITIAL_CAPACITY = 16;
+
+  private long[] keys;
+
+  private long[] counts;
+
+  private int size;
+
+  LongCounts() {
+    keys = new long[INITIAL_CAPACITY];
+    counts = new long[INITIAL_CAPACITY];
+    Arrays.fill(keys, EMPTY);
+  }
+
+  /**
+   * Adds to the count of the key.
+   *
+   * @param key The key, any value but {@link Long#MIN_VALUE}.
+   * @param count The count to add.
+   */
+  void add(final long key, final long count) {
+    int slot = find(keys, key);
+    if (keys[slot] == EMPTY) {
+      if (2 * (size + 1) > keys.length) {
+        grow();
+        slot = find(keys, key);
+      }
+      keys[slot] = key;
+      size++;
+    }
+    counts[slot] += count;
+  }
+
+  /** @return the number of keys. */
+  int size() {
+    return size;
+  }
+
+  /** @return the keys, in no particular order. */
+  long[] getKeys() {
+    final long[] result = new long[size];
+    int next = 0;
+    for (final long key : keys) {
+      if (key != EMPTY) {
+        result[next++] = key;
+      }
+    }
+    return result;
+  }
+
+  /** @return the count of every key, in the order of {@link #getKeys()}. */
+  long[] getCounts() {
+    final long[] result = new long[size];
+    int next = 0;
+    for (int i = 0; i < keys.length; i++) {
+      if (keys[i] != EMPTY) {
+        result[next++] = counts[i];
+      }
+    }
+    return result;
+  }
+
+  private void grow() {
+    final long[] oldKeys = keys;
+    final long[] oldCounts = counts;
+    keys = new long[oldKeys.length * 2];
+    counts = new long[oldKeys.length * 2];
+    Arrays.fill(keys, EMPTY);
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldKeys[i] != EMPTY) {
+        final int slot = find(keys, oldKeys[i]);
+        keys[slot] = oldKeys[i];
+        counts[slot] = oldCounts[i];
+      }
+    }
+  }
+
+  /** Linear probing, returns the slot holding the key or the empty slot it belongs to. */
+  private static int find(final long[] keys, final long key) {
+    final int mask = keys.length - 1;
+    int slot = (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+    while (keys[slot] != EMPTY && keys[slot] != key) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+}
@@ -0,0 +1,365 @@
+package org.morriskurz.summary;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+import org.knime.core.data.DataCell;
+import org.knime.core.data.DataTableSpec;
+import org.knime.core.data.DataType;
+import org.knime.core.data.RowKey;
+import org.knime.core.data.def.BooleanCell;
+import org.knime.core.data.def.DefaultRow;
+import org.knime.core.data.def.DoubleCell;
+import org.knime.core.data.def.IntCell;
+import org.knime.core.data.def.LongCell;
+import org.knime.core.data.def.StringCell;
+import org.knime.core.node.InvalidSettingsException;
+import org.knime.core.node.ModelContentRO;
+import org.knime.core.node.ModelContentWO;
+import org.knime.core.node.streamable.RowOutput;
+
+/**
+ * The global importance of the players estimated from a sample of the rows, with confidence
+ * intervals on the mean absolute SHAP value of every player.
+ *
+ * <p>The rows are sampled per stratum, e.g. per range of the prediction. Every stratum keeps the
+ * number of rows read and, with Welford's algorithm, the means and variances of the explained rows.
+ * The mean over all rows is the mean of the strata weighted by the rows read, its variance the
+ * weighted variances of the strata means with the finite population correction, such that a fully
+ * explained stratum adds no uncertainty.
+ *
+ * @author Morris Kurz, morriskurz@gmail.com
+ */
+public final class SampledImportance {
+
+  /** The quantile of the normal distribution of a two-sided 95% confidence interval. */
+  private static final double Z_95 = 1.959964;
+
+  private static final String CFG_PLAYER_NAMES = "playerNames";
+
+  private static final String CFG_READ = "read";
+
+  private static final String CFG_EXPLAINED = "explained";
+
+  private static final String CFG_MEANS = "means";
+
+  private static final String CFG_ABSOLUTE_MEANS = "absoluteMeans";
+
+  private static final String CFG_SQUARED_DEVIATIONS = "squaredDeviations";
+
+  private final String[] playerNames;
+
+  /** The number of rows read per stratum. */
+  private final long[] read;
+
+  /** The number of rows explained per stratum. */
+  private final long[] explained;
+
+  /** The mean SHAP value of the explained rows, per stratum and player. */
+  private final double[][] means;
+
+  /** The mean absolute SHAP value of the explained rows, per stratum and player. */
+  private final double[][] absoluteMeans;
+
+  /** The sum of the squared deviations of the absolute SHAP values, per stratum and player. */
+  private final double[][] squaredDeviations;
+
+  /**
+   * @param playerNames The names of the players, in the order of the SHAP values.
+   * @param nrStrata The number of strata the rows are sampled from.
+   */
+  public SampledImportance(final String[] playerNames, final int nrStrata) {
+    this.playerNames = playerNames;
+    read = new long[nrStrata];
+    explained = new long[nrStrata];
+    means = new double[nrStrata][playerNames.length];
+    absoluteMeans = new double[nrStrata][playerNames.length];
+    squaredDeviations = new double[nrStrata][playerNames.length];
+  }
+
+  /** @return the number of strata */
+  public int getNrStrata() {
+    return read.length;
+  }
+
+  /**
+   * Counts a row read from the input, whether explained or not.
+   *
+   * @param stratum The stratum of the row.
+   */
+  public void addRead(final int stratum) {
+    read[stratum]++;
+  }
+
+  /**
+   * Adds the SHAP values of an explained row, which must have been counted by {@link
+   * #addRead(int)}.
+   *
+   * @param stratum The stratum of the row.
+   * @param values The SHAP value of every player, further values such as the bias are ignored.
+   */
+  public void add(final int stratum, final double[] values) {
+    final long count = ++explained[stratum];
+    final double[] strataMeans = means[stratum];
+    final double[] strataAbsoluteMeans = absoluteMeans[stratum];
+    final double[] strataDeviations = squaredDeviations[stratum];
+    for (int i = 0; i < strataMeans.length; i++) {
+      strataMeans[i] += (values[i] - strataMeans[i]) / count;
+      final double absolute = Math.abs(values[i]);
+      final double delta = absolute - strataAbsoluteMeans[i];
+      strataAbsoluteMeans[i] += delta / count;
+      strataDeviations[i] += delta * (absolute - strataAbsoluteMeans[i]);
+    }
+  }
+
+  /**
+   * Adds the rows of another sample of the same strata.
+   *
+   * @param other The sample of other rows, left unchanged.
+   */
+  public void merge(final SampledImportance other) {
+    for (int s = 0; s < read.length; s++) {
+      read[s] += other.read[s];
+      if (other.explained[s] == 0) {
+        continue;
+      }
+      final long total = explained[s] + other.explained[s];
+      final double weight = other.explained[s] / (double) total;
+      for (int i = 0; i < playerNames.length; i++) {
+        means[s][i] += (other.means[s][i] - means[s][i]) * weight;
+        final double delta = other.absoluteMeans[s][i] - absoluteMeans[s][i];
+        absoluteMeans[s][i] += delta * weight;
+        squaredDeviations[s][i] +=
+            other.squaredDeviations[s][i] + delta * delta * explained[s] * weight;
+      }
+      explained[s] = total;
+    }
+  }
+
+  /** @return the number of rows read */
+  public long getReadCount() {
+    long count = 0;
+    for (final long strataCount : read) {
+      count += strataCount;
+    }
+    return count;
+  }
+
+  /** @return the number of rows explained */
+  public long getExplainedCount() {
+    long count = 0;
+    for (final long strataCount : explained) {
+      count += strataCount;
+    }
+    return count;
+  }
+
+  /**
+   * Checks whether the ranking of the players by their mean absolute SHAP value is stable, i.e.
+   * whether the confidence intervals of all neighbours in the ranking are separated. Players whose
+   * means differ by less than the tolerance are considered tied.
+   *
+   * @param tolerance The tolerance, relative to the largest mean absolute SHAP value.
+   * @return whether the ranking is stable
+   */
+  public boolean isRankingStable(final double tolerance) {
+    final double[] estimates = getAbsoluteMeans();
+    final double[] halfWidths = getHalfWidths();
+    final Integer[] ranking = rank(estimates);
+    if (ranking.length == 0) {
+      return true;
+    }
+    final double slack = tolerance * estimates[ranking[0]];
+    for (int r = 0; r + 1 < ranking.length; r++) {
+      final int higher = ranking[r];
+      final int lower = ranking[r + 1];
+      if (estimates[higher] - estimates[lower] + slack < halfWidths[higher] + halfWidths[lower]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** @return the estimated mean absolute SHAP value of every player over all rows read */
+  public double[] getAbsoluteMeans() {
+    return estimate(absoluteMeans);
+  }
+
+  /**
+   * @return the half width of the 95% confidence interval of the mean absolute SHAP value of every
+   *     player, infinite while a sampled stratum has fewer than two explained rows
+   */
+  public double[] getHalfWidths() {
+    final double totalWeight = getTotalWeight();
+    final double[] variances = new double[playerNames.length];
+    for (int s = 0; s < read.length; s++) {
+      if (explained[s] == 0) {
+        continue;
+      }
+      final double weight = read[s] / totalWeight;
+      // The finite population correction, zero if every row of the stratum was explained.
+      final double correction = Math.max(0, 1 - explained[s] / (double) read[s]);
+      if (correction == 0) {
+        continue;
+      }
+      for (int i = 0; i < variances.length; i++) {
+        if (explained[s] < 2) {
+          variances[i] = Double.POSITIVE_INFINITY;
+          continue;
+        }
+        final double variance = squaredDeviations[s][i] / (explained[s] - 1);
+        variances[i] += weight * weight * variance / explained[s] * correction;
+      }
+    }
+    final double[] halfWidths = new double[variances.length];
+    for (int i = 0; i < halfWidths.length; i++) {
+      halfWidths[i] = Z_95 * Math.sqrt(variances[i]);
+    }
+    return halfWidths;
+  }
+
+  /** @return the spec of the table written by {@link #write(RowOutput, double)} */
+  public static DataTableSpec createSpec() {
+    return new DataTableSpec(
+        new String[] {
+          "Feature",
+          "Rank",
+          "Mean SHAP",
+          "Mean |SHAP|",
+          "Mean |SHAP| lower bound",
+          "Mean |SHAP| upper bound",
+          "Explained rows",
+          "Read rows",
+          "Ranking stable"
+        },
+        new DataType[] {
+          StringCell.TYPE,
+          IntCell.TYPE,
+          DoubleCell.TYPE,
+          DoubleCell.TYPE,
+          DoubleCell.TYPE,
+          DoubleCell.TYPE,
+          LongCell.TYPE,
+          LongCell.TYPE,
+          BooleanCell.TYPE
+        });
+  }
+
+  /**
+   * Pushes one row per player to the output, ordered by the rank of the player.
+   *
+   * @param out The output of the table of {@link #createSpec()}.
+   * @param tolerance The tolerance of the ranking, see {@link #isRankingStable(double)}.
+   * @throws InterruptedException if the output is interrupted
+   */
+  public void write(final RowOutput out, final double tolerance) throws InterruptedException {
+    final boolean isStable = isRankingStable(tolerance);
+    final long explainedCount = getExplainedCount();
+    final double[] signedEstimates = estimate(means);
+    final double[] estimates = getAbsoluteMeans();
+    final double[] halfWidths = getHalfWidths();
+    final Integer[] ranking = rank(estimates);
+    for (int r = 0; r < ranking.length; r++) {
+      final int i = ranking[r];
+      final DataCell[] cells = new DataCell[9];
+      cells[0] = new StringCell(playerNames[i]);
+      cells[1] = new IntCell(r + 1);
+      if (explainedCount == 0) {
+        Arrays.fill(cells, 2, 6, DataType.getMissingCell());
+      } else {
+        cells[2] = new DoubleCell(signedEstimates[i]);
+        cells[3] = new DoubleCell(estimates[i]);
+        cells[4] = new DoubleCell(Math.max(0, estimates[i] - halfWidths[i]));
+        cells[5] = new DoubleCell(estimates[i] + halfWidths[i]);
+      }
+      cells[6] = new LongCell(explainedCount);
+      cells[7] = new LongCell(getReadCount());
+      cells[8] = BooleanCell.get(isStable);
+      out.push(new DefaultRow(RowKey.createRowKey((long) r), cells));
+    }
+  }
+
+  public void save(final ModelContentWO model) {
+    model.addStringArray(CFG_PLAYER_NAMES, playerNames);
+    model.addLongArray(CFG_READ, read);
+    model.addLongArray(CFG_EXPLAINED, explained);
+    for (int s = 0; s < read.length; s++) {
+      model.addDoubleArray(CFG_MEANS + s, means[s]);
+      model.addDoubleArray(CFG_ABSOLUTE_MEANS + s, absoluteMeans[s]);
+      model.addDoubleArray(CFG_SQUARED_DEVIATIONS + s, squaredDeviations[s]);
+    }
+  }
+
+  public static SampledImportance load(final ModelContentRO model)
+      throws InvalidSettingsException {
+    final long[] read = model.getLongArray(CFG_READ);
+    final SampledImportance importance =
+        new SampledImportance(model.getStringArray(CFG_PLAYER_NAMES), read.length);
+    System.arraycopy(read, 0, importance.read, 0, read.length);
+    System.arraycopy(model.getLongArray(CFG_EXPLAINED), 0, importance.explained, 0, read.length);
+    final int nrPlayers = importance.playerNames.length;
+    for (int s = 0; s < read.length; s++) {
+      System.arraycopy(model.getDoubleArray(CFG_MEANS + s), 0, importance.means[s], 0, nrPlayers);
+      System.arraycopy(
+          model.getDoubleArray(CFG_ABSOLUTE_MEANS + s),
+          0,
+          importance.absoluteMeans[s],
+          0,
+          nrPlayers);
+      System.arraycopy(
+          model.getDoubleArray(CFG_SQUARED_DEVIATIONS + s),
+          0,
+          importance.squaredDeviations[s],
+          0,
+          nrPlayers);
+    }
+    return importance;
+  }
+
+  /** @return the means of the strata weighted by their rows read, over the explained strata */
+  private double[] estimate(final double[][] strataMeans) {
+    final double totalWeight = getTotalWeight();
+    final double[] estimates = new double[playerNames.length];
+    for (int s = 0; s < read.length; s++) {
+      if (explained[s] == 0) {
+        continue;
+      }
+      final double weight = read[s] / totalWeight;
+      for (int i = 0; i < estimates.length; i++) {
+        estimates[i] += weight * strataMeans[s][i];
+      }
+    }
+    return estimates;
+  }
+
+  /**
+   * @return the rows read in strata with explained rows. The rows of strata without explained rows
+   *     are left out, which only happens for strata with very few rows.
+   */
+  private double getTotalWeight() {
+    double total = 0;
+    for (int s = 0; s < read.length; s++) {
+      if (explained[s] > 0) {
+        total += read[s];
+      }
+    }
+    return total;
+  }
+
+  /** @return the players by descending estimate */
+  private static Integer[] rank(final double[] estimates) {
+    final Integer[] ranking = new Integer[estimates.length];
+    for (int i = 0; i < ranking.length; i++) {
+      ranking[i] = i;
+    }
+    Arrays.sort(
+        ranking,
+        new Comparator<Integer>() {
+          @Override
+          public int compare(final Integer a, final Integer b) {
+            return Double.compare(estimates[b], estimates[a]);
+          }
+        });
+    return ranking;
+  }
+}
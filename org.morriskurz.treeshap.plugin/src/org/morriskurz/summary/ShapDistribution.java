@@ -0,0 +1,457 @@
+package org.morriskurz.summary;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.knime.core.data.DataCell;
+import org.knime.core.data.DataTableSpec;
+import org.knime.core.data.DataType;
+import org.knime.core.data.RowKey;
+import org.knime.core.data.def.DefaultRow;
+import org.knime.core.data.def.DoubleCell;
+import org.knime.core.data.def.IntCell;
+import org.knime.core.data.def.LongCell;
+import org.knime.core.data.def.StringCell;
+import org.knime.core.node.InvalidSettingsException;
+import org.knime.core.node.ModelContentRO;
+import org.knime.core.node.ModelContentWO;
+import org.knime.core.node.streamable.RowOutput;
+
+/**
+ * The joint distribution of the feature value and the SHAP value of every player over all rows,
+ * i.e. the data of summary (beeswarm) and dependence plots, without keeping the rows.
+ *
+ * <p>Every player keeps the feature values in a quantile sketch, see {@link FeatureQuantiles}, and
+ * a sparse two dimensional histogram over the clusters of the sketch and logarithmic bins of the
+ * SHAP value, see {@link LogBins}. Rows without a feature value count in a cluster of their own.
+ * The sketch keeps about {@link #CLUSTERS_PER_BIN} clusters per output bin, independent of the
+ * offset and the scale of the feature values. The SHAP axis has a level of its own: if a histogram
+ * has more than {@link #MAX_CELLS} cells, its SHAP bins are merged pairwise. So the memory does not
+ * depend on the number of rows. The SHAP bins are merged exactly, the clusters of the feature
+ * values are merged as by the sketch, so the bounds of the feature value bins may differ slightly
+ * with the order the rows are added in. When written, the clusters and the SHAP bins are grouped
+ * into quantile bins of about equal counts, whose bounds are the quantiles of the feature values
+ * and of the SHAP values.
+ *
+ * @author Morris Kurz, morriskurz@gmail.com
+ */
+public final class ShapDistribution implements IAccumulator<ShapDistribution, ExplainedRow> {
+
+  /** The maximum number of cells of the histogram of a player. */
+  static final int MAX_CELLS = 1024;
+
+  /** The number of clusters of the feature values per quantile bin of the output. */
+  static final int CLUSTERS_PER_BIN = 4;
+
+  /** The cluster of the rows without a feature value. */
+  private static final int MISSING_CLUSTER = -1;
+
+  /** The level at which all bins of a sign have collapsed into at most two bins. */
+  private static final int MAX_LEVEL = 40;
+
+  private static final String CFG_PLAYER_NAMES = "playerNames";
+
+  private static final String CFG_NR_BINS = "nrBins";
+
+  private static final String CFG_COUNT = "count";
+
+  private static final String CFG_LEVELS = "levels";
+
+  private static final String CFG_OFFSETS = "offsets";
+
+  private static final String CFG_CLUSTER_OFFSETS = "clusterOffsets";
+
+  private static final String CFG_CLUSTER_MINS = "clusterMins";
+
+  private static final String CFG_CLUSTER_MAXS = "clusterMaxs";
+
+  private static final String CFG_CLUSTER_SUMS = "clusterSums";
+
+  private static final String CFG_CLUSTER_COUNTS = "clusterCounts";
+
+  private static final String CFG_CELLS = "cells";
+
+  private static final String CFG_CELL_COUNTS = "cellCounts";
+
+  private final String[] playerNames;
+
+  private final int nrBins;
+
+  private long count;
+
+  /** The level of the SHAP bins of every player. */
+  private final int[] levels;
+
+  /** The quantile sketch of the feature values of every player. */
+  private final FeatureQuantiles[] quantiles;
+
+  /** The histogram of every player by cluster and SHAP bin, see {@link #toCell(int, int)}. */
+  private final LongCounts[] cells;
+
+  /**
+   * @param playerNames The names of the players, in the order of the SHAP values.
+   * @param nrBins The number of quantile bins of every axis in the output.
+   */
+  public ShapDistribution(final String[] playerNames, final int nrBins) {
+    this.playerNames = playerNames;
+    this.nrBins = nrBins;
+    levels = new int[playerNames.length];
+    quantiles = new FeatureQuantiles[playerNames.length];
+    cells = new LongCounts[playerNames.length];
+    for (int i = 0; i < cells.length; i++) {
+      quantiles[i] = new FeatureQuantiles(getMaxClusters(nrBins));
+      cells[i] = new LongCounts();
+    }
+  }
+
+  @Override
+  public void add(final ExplainedRow row) {
+    count++;
+    for (int i = 0; i < cells.length; i++) {
+      final double shapValue = row.shapValues[i];
+      if (Double.isNaN(shapValue)) {
+        continue;
+      }
+      final double featureValue = row.featureValues == null ? Double.NaN : row.featureValues[i];
+      final int cluster =
+          Double.isNaN(featureValue) ? MISSING_CLUSTER : quantiles[i].add(featureValue);
+      cells[i].add(toCell(cluster, LogBins.of(shapValue, levels[i])), 1);
+      shrink(i);
+    }
+  }
+
+  @Override
+  public void merge(final ShapDistribution other) {
+    count += other.count;
+    for (int i = 0; i < cells.length; i++) {
+      while (levels[i] < other.levels[i]) {
+        collapse(i);
+      }
+      final int offset = quantiles[i].append(other.quantiles[i]);
+      final long[] keys = other.cells[i].getKeys();
+      final long[] counts = other.cells[i].getCounts();
+      for (int k = 0; k < keys.length; k++) {
+        final int cluster = getCluster(keys[k]);
+        int shapBin = getShapBin(keys[k]);
+        for (int level = other.levels[i]; level < levels[i]; level++) {
+          shapBin = LogBins.collapse(shapBin);
+        }
+        cells[i].add(
+            toCell(cluster == MISSING_CLUSTER ? cluster : cluster + offset, shapBin), counts[k]);
+      }
+      shrink(i);
+    }
+  }
+
+  /** @return the number of rows */
+  public long getCount() {
+    return count;
+  }
+
+  /** @return the spec of the table written by {@link #write(RowOutput)} */
+  public static DataTableSpec createSpec() {
+    return new DataTableSpec(
+        new String[] {
+          "Feature",
+          "Feature bin",
+          "Feature value from",
+          "Feature value to",
+          "SHAP bin",
+          "SHAP from",
+          "SHAP to",
+          "Count"
+        },
+        new DataType[] {
+          StringCell.TYPE,
+          IntCell.TYPE,
+          DoubleCell.TYPE,
+          DoubleCell.TYPE,
+          IntCell.TYPE,
+          DoubleCell.TYPE,
+          DoubleCell.TYPE,
+          LongCell.TYPE
+        });
+  }
+
+  /**
+   * Pushes one row per player and nonempty pair of a feature value bin and a SHAP bin to the
+   * output. Rows without a numeric feature value, e.g. of feature groups, fall into a feature value
+   * bin of their own, whose bin and bounds are missing. The bounds of a feature value bin are the
+   * smallest and the largest value in it.
+   *
+   * @param out The output of the table of {@link #createSpec()}.
+   * @throws InterruptedException if the output is interrupted
+   */
+  public void write(final RowOutput out) throws InterruptedException {
+    long rowIndex = 0;
+    for (int i = 0; i < cells.length; i++) {
+      final int level = levels[i];
+      final long[] keys = cells[i].getKeys();
+      final long[] counts = cells[i].getCounts();
+      final LongCounts shapMarginal = new LongCounts();
+      for (int k = 0; k < keys.length; k++) {
+        shapMarginal.add(getShapBin(keys[k]), counts[k]);
+      }
+      final FeatureBins featureBins = new FeatureBins(quantiles[i]);
+      final QuantileBins shapBins = new QuantileBins(shapMarginal, level);
+      // Sorted by the feature value bin, the missing bin first, then by the SHAP bin.
+      final TreeMap<Long, Long> histogram = new TreeMap<>();
+      for (int k = 0; k < keys.length; k++) {
+        final long pair =
+            ((long) (featureBins.get(getCluster(keys[k])) + 1) << 32)
+                | shapBins.get(getShapBin(keys[k]));
+        final Long previous = histogram.get(pair);
+        histogram.put(pair, previous == null ? counts[k] : previous + counts[k]);
+      }
+      for (final Map.Entry<Long, Long> entry : histogram.entrySet()) {
+        final int featureBin = (int) (entry.getKey() >>> 32) - 1;
+        final int shapBin = (int) (long) entry.getKey();
+        final DataCell[] row = new DataCell[8];
+        row[0] = new StringCell(playerNames[i]);
+        if (featureBin < 0) {
+          row[1] = DataType.getMissingCell();
+          row[2] = DataType.getMissingCell();
+          row[3] = DataType.getMissingCell();
+        } else {
+          row[1] = new IntCell(featureBin);
+          row[2] = new DoubleCell(featureBins.lower[featureBin]);
+          row[3] = new DoubleCell(featureBins.upper[featureBin]);
+        }
+        row[4] = new IntCell(shapBin);
+        row[5] = new DoubleCell(shapBins.lower[shapBin]);
+        row[6] = new DoubleCell(shapBins.upper[shapBin]);
+        row[7] = new LongCell(entry.getValue());
+        out.push(new DefaultRow(RowKey.createRowKey(rowIndex++), row));
+      }
+    }
+  }
+
+  public void save(final ModelContentWO model) {
+    model.addStringArray(CFG_PLAYER_NAMES, playerNames);
+    model.addInt(CFG_NR_BINS, nrBins);
+    model.addLong(CFG_COUNT, count);
+    model.addIntArray(CFG_LEVELS, levels);
+    final int[] clusterOffsets = new int[quantiles.length + 1];
+    for (int i = 0; i < quantiles.length; i++) {
+      clusterOffsets[i + 1] = clusterOffsets[i] + quantiles[i].size();
+    }
+    final double[] mins = new double[clusterOffsets[quantiles.length]];
+    final double[] maxs = new double[mins.length];
+    final double[] sums = new double[mins.length];
+    final long[] clusterCounts = new long[mins.length];
+    for (int i = 0; i < quantiles.length; i++) {
+      for (int c = 0; c < quantiles[i].size(); c++) {
+        mins[clusterOffsets[i] + c] = quantiles[i].getMin(c);
+        maxs[clusterOffsets[i] + c] = quantiles[i].getMax(c);
+        sums[clusterOffsets[i] + c] = quantiles[i].getSum(c);
+        clusterCounts[clusterOffsets[i] + c] = quantiles[i].getCount(c);
+      }
+    }
+    model.addIntArray(CFG_CLUSTER_OFFSETS, clusterOffsets);
+    model.addDoubleArray(CFG_CLUSTER_MINS, mins);
+    model.addDoubleArray(CFG_CLUSTER_MAXS, maxs);
+    model.addDoubleArray(CFG_CLUSTER_SUMS, sums);
+    model.addLongArray(CFG_CLUSTER_COUNTS, clusterCounts);
+    final int[] offsets = new int[cells.length + 1];
+    for (int i = 0; i < cells.length; i++) {
+      offsets[i + 1] = offsets[i] + cells[i].size();
+    }
+    final long[] allKeys = new long[offsets[cells.length]];
+    final long[] allCounts = new long[offsets[cells.length]];
+    for (int i = 0; i < cells.length; i++) {
+      System.arraycopy(cells[i].getKeys(), 0, allKeys, offsets[i], cells[i].size());
+      System.arraycopy(cells[i].getCounts(), 0, allCounts, offsets[i], cells[i].size());
+    }
+    model.addIntArray(CFG_OFFSETS, offsets);
+    model.addLongArray(CFG_CELLS, allKeys);
+    model.addLongArray(CFG_CELL_COUNTS, allCounts);
+  }
+
+  public static ShapDistribution load(final ModelContentRO model)
+      throws InvalidSettingsException {
+    final ShapDistribution distribution =
+        new ShapDistribution(model.getStringArray(CFG_PLAYER_NAMES), model.getInt(CFG_NR_BINS));
+    distribution.count = model.getLong(CFG_COUNT);
+    final int[] levels = model.getIntArray(CFG_LEVELS);
+    final int[] clusterOffsets = model.getIntArray(CFG_CLUSTER_OFFSETS);
+    final double[] mins = model.getDoubleArray(CFG_CLUSTER_MINS);
+    final double[] maxs = model.getDoubleArray(CFG_CLUSTER_MAXS);
+    final double[] sums = model.getDoubleArray(CFG_CLUSTER_SUMS);
+    final long[] clusterCounts = model.getLongArray(CFG_CLUSTER_COUNTS);
+    final int[] offsets = model.getIntArray(CFG_OFFSETS);
+    final long[] allKeys = model.getLongArray(CFG_CELLS);
+    final long[] allCounts = model.getLongArray(CFG_CELL_COUNTS);
+    for (int i = 0; i < distribution.cells.length; i++) {
+      distribution.levels[i] = levels[i];
+      final int from = clusterOffsets[i];
+      final int to = clusterOffsets[i + 1];
+      distribution.quantiles[i] =
+          new FeatureQuantiles(
+              getMaxClusters(distribution.nrBins),
+              Arrays.copyOfRange(mins, from, to),
+              Arrays.copyOfRange(maxs, from, to),
+              Arrays.copyOfRange(sums, from, to),
+              Arrays.copyOfRange(clusterCounts, from, to));
+      for (int k = offsets[i]; k < offsets[i + 1]; k++) {
+        distribution.cells[i].add(allKeys[k], allCounts[k]);
+      }
+    }
+    return distribution;
+  }
+
+  private static int getMaxClusters(final int nrBins) {
+    return Math.max(1, CLUSTERS_PER_BIN * nrBins);
+  }
+
+  /**
+   * Compresses the clusters of the player if the sketch is full, then merges the SHAP bins of the
+   * player pairwise until the histogram has at most the maximum cells.
+   */
+  private void shrink(final int player) {
+    if (quantiles[player].isFull()) {
+      final int[] newCluster = quantiles[player].compress();
+      final long[] keys = cells[player].getKeys();
+      final long[] counts = cells[player].getCounts();
+      final LongCounts compressed = new LongCounts();
+      for (int k = 0; k < keys.length; k++) {
+        final int cluster = getCluster(keys[k]);
+        compressed.add(
+            toCell(cluster == MISSING_CLUSTER ? cluster : newCluster[cluster], getShapBin(keys[k])),
+            counts[k]);
+      }
+      cells[player] = compressed;
+    }
+    while (cells[player].size() > MAX_CELLS && levels[player] < MAX_LEVEL) {
+      collapse(player);
+    }
+  }
+
+  /** Merges the SHAP bins of the player pairwise, i.e. moves the histogram to the next level. */
+  private void collapse(final int player) {
+    final long[] keys = cells[player].getKeys();
+    final long[] counts = cells[player].getCounts();
+    final LongCounts collapsed = new LongCounts();
+    for (int k = 0; k < keys.length; k++) {
+      collapsed.add(toCell(getCluster(keys[k]), LogBins.collapse(getShapBin(keys[k]))), counts[k]);
+    }
+    cells[player] = collapsed;
+    levels[player]++;
+  }
+
+  private static long toCell(final int cluster, final int shapBin) {
+    return ((long) cluster << 32) | (shapBin & 0xFFFFFFFFL);
+  }
+
+  private static int getCluster(final long cell) {
+    return (int) (cell >> 32);
+  }
+
+  private static int getShapBin(final long cell) {
+    return (int) cell;
+  }
+
+  /** The clusters of the feature values grouped into quantile bins of about equal counts. */
+  private final class FeatureBins {
+
+    private final int[] quantileBinOf;
+
+    private final double[] lower = new double[nrBins];
+
+    private final double[] upper = new double[nrBins];
+
+    /** @param quantiles The sketch of the feature values. */
+    FeatureBins(final FeatureQuantiles quantiles) {
+      quantileBinOf = new int[quantiles.size()];
+      Arrays.fill(lower, Double.NaN);
+      Arrays.fill(upper, Double.NaN);
+      final long total = quantiles.getTotal();
+      long cumulative = 0;
+      for (final int cluster : quantiles.getOrder()) {
+        final long clusterCount = quantiles.getCount(cluster);
+        // The quantile bin of the center of the cluster.
+        final int quantileBin =
+            (int) Math.min(nrBins - 1, (cumulative + clusterCount / 2.0) * nrBins / total);
+        cumulative += clusterCount;
+        quantileBinOf[cluster] = quantileBin;
+        // Clusters may overlap after merging, so the bounds are taken over all clusters.
+        lower[quantileBin] =
+            Double.isNaN(lower[quantileBin])
+                ? quantiles.getMin(cluster)
+                : Math.min(lower[quantileBin], quantiles.getMin(cluster));
+        upper[quantileBin] =
+            Double.isNaN(upper[quantileBin])
+                ? quantiles.getMax(cluster)
+                : Math.max(upper[quantileBin], quantiles.getMax(cluster));
+      }
+    }
+
+    /** @return the quantile bin of the cluster, -1 for the cluster of missing values */
+    int get(final int cluster) {
+      return cluster == MISSING_CLUSTER ? -1 : quantileBinOf[cluster];
+    }
+  }
+
+  /** The SHAP bins grouped into quantile bins of about equal counts. */
+  private final class QuantileBins {
+
+    private final Map<Integer, Integer> quantileBinOf = new HashMap<>();
+
+    private final double[] lower = new double[nrBins];
+
+    private final double[] upper = new double[nrBins];
+
+    /**
+     * @param marginal The count of every SHAP bin.
+     * @param level The level of the SHAP bins.
+     */
+    QuantileBins(final LongCounts marginal, final int level) {
+      final long[] bins = marginal.getKeys();
+      final long[] counts = marginal.getCounts();
+      final Integer[] order = new Integer[bins.length];
+      long total = 0;
+      for (int k = 0; k < bins.length; k++) {
+        order[k] = k;
+        if (bins[k] != LogBins.MISSING) {
+          total += counts[k];
+        }
+      }
+      Arrays.sort(
+          order,
+          new Comparator<Integer>() {
+            @Override
+            public int compare(final Integer a, final Integer b) {
+              return Double.compare(
+                  LogBins.representative((int) bins[a], level),
+                  LogBins.representative((int) bins[b], level));
+            }
+          });
+      Arrays.fill(lower, Double.NaN);
+      Arrays.fill(upper, Double.NaN);
+      long cumulative = 0;
+      for (final int k : order) {
+        final int bin = (int) bins[k];
+        if (bin == LogBins.MISSING) {
+          quantileBinOf.put(bin, -1);
+          continue;
+        }
+        // The quantile bin of the center of the SHAP bin.
+        final int quantileBin =
+            (int) Math.min(nrBins - 1, (cumulative + counts[k] / 2.0) * nrBins / total);
+        cumulative += counts[k];
+        quantileBinOf.put(bin, quantileBin);
+        if (Double.isNaN(lower[quantileBin])) {
+          lower[quantileBin] = LogBins.lower(bin, level);
+        }
+        upper[quantileBin] = LogBins.upper(bin, level);
+      }
+    }
+
+    /** @return the quantile bin of the SHAP bin, -1 for the missing bin */
+    int get(final int bin) {
+      return quantileBinOf.get(bin);
+    }
+  }
+}
@@ -0,0 +1,286 @@
+package org.morriskurz.summary;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Supplier;
+
+import org.knime.core.data.DataCell;
+import org.knime.core.data.DataTableSpec;
+import org.knime.core.data.DataType;
+import org.knime.core.data.RowKey;
+import org.knime.core.data.def.DefaultRow;
+import org.knime.core.data.def.DoubleCell;
+import org.knime.core.data.def.LongCell;
+import org.knime.core.data.def.StringCell;
+import org.knime.core.node.InvalidSettingsException;
+import org.knime.core.node.ModelContent;
+import org.knime.core.node.streamable.MergeOperator;
+import org.knime.core.node.streamable.RowOutput;
+import org.knime.core.node.streamable.StreamableOperatorInternals;
+import org.knime.core.node.streamable.simple.SimpleStreamableOperatorInternals;
+
+/**
+ * The drift of the SHAP values of every player between reference and current rows, computed from
+ * a {@link ShapSketch} of either side, such that no explanation of a row is kept.
+ *
+ * <p>The sketches of both sides are brought to a common level of their logarithmic bins. The
+ * population stability index (PSI) compares the fractions of the rows in quantile bins of the
+ * reference, the Wasserstein distance integrates the difference of the cumulative distributions
+ * over the representative values of the bins, so it is accurate up to the relative accuracy of the
+ * bins.
+ *
+ * @author Morris Kurz, morriskurz@gmail.com
+ */
+public final class ShapDrift {
+
+  /** The fraction replacing empty bins in the PSI, which is undefined for empty bins. */
+  private static final double MIN_FRACTION = 1e-4;
+
+  private static final String CFG_REFERENCE = "reference";
+
+  private static final String CFG_CURRENT = "current";
+
+  private final StripedAccumulator<ShapSketch, double[]> reference;
+
+  private final StripedAccumulator<ShapSketch, double[]> current;
+
+  /** @param playerNames The names of the players, in the order of the SHAP values. */
+  public ShapDrift(final String[] playerNames) {
+    final Supplier<ShapSketch> supplier =
+        new Supplier<ShapSketch>() {
+          @Override
+          public ShapSketch get() {
+            return new ShapSketch(playerNames);
+          }
+        };
+    reference = new StripedAccumulator<>(supplier);
+    current = new StripedAccumulator<>(supplier);
+  }
+
+  /**
+   * Adds the SHAP values of a reference row. Rows can be added concurrently.
+   *
+   * @param values The SHAP value of every player, further values such as the bias are ignored.
+   */
+  public void addReference(final double[] values) {
+    reference.add(values);
+  }
+
+  /**
+   * Adds the SHAP values of a current row. Rows can be added concurrently.
+   *
+   * @param values The SHAP value of every player, further values such as the bias are ignored.
+   */
+  public void addCurrent(final double[] values) {
+    current.add(values);
+  }
+
+  /** @return the spec of the drift table */
+  public static DataTableSpec createSpec() {
+    return new DataTableSpec(
+        new String[] {
+          "Feature",
+          "Reference mean SHAP",
+          "Current mean SHAP",
+          "Mean SHAP shift",
+          "Reference mean |SHAP|",
+          "Current mean |SHAP|",
+          "Mean |SHAP| shift",
+          "PSI",
+          "Wasserstein distance",
+          "Reference rows",
+          "Current rows"
+        },
+        new DataType[] {
+          StringCell.TYPE,
+          DoubleCell.TYPE,
+          DoubleCell.TYPE,
+          DoubleCell.TYPE,
+          DoubleCell.TYPE,
+          DoubleCell.TYPE,
+          DoubleCell.TYPE,
+          DoubleCell.TYPE,
+          DoubleCell.TYPE,
+          LongCell.TYPE,
+          LongCell.TYPE
+        });
+  }
+
+  /**
+   * Writes the drift table and closes the output.
+   *
+   * @param out The output of the drift table.
+   * @param nrBins The number of quantile bins of the reference in the PSI.
+   * @throws InterruptedException if the output is interrupted
+   */
+  public void write(final RowOutput out, final int nrBins) throws InterruptedException {
+    write(reference.getResult(), current.getResult(), out, nrBins);
+  }
+
+  /** @return the internals of a streaming operator holding the sketches of both sides */
+  public StreamableOperatorInternals saveInternals() {
+    return saveInternals(reference.getResult(), current.getResult());
+  }
+
+  /**
+   * Writes the drift table of the merged internals of the streaming operators and closes the
+   * output.
+   *
+   * @param internals The internals saved by {@link #saveInternals()}, possibly merged.
+   * @param out The output of the drift table.
+   * @param nrBins The number of quantile bins of the reference in the PSI.
+   * @throws InvalidSettingsException if the internals cannot be read
+   * @throws InterruptedException if the output is interrupted
+   */
+  public static void write(
+      final StreamableOperatorInternals internals, final RowOutput out, final int nrBins)
+      throws InvalidSettingsException, InterruptedException {
+    final ModelContent config = ((SimpleStreamableOperatorInternals) internals).getConfig();
+    write(
+        ShapSketch.load(config.getModelContent(CFG_REFERENCE)),
+        ShapSketch.load(config.getModelContent(CFG_CURRENT)),
+        out,
+        nrBins);
+  }
+
+  /** @return the operator merging the sketches of the partitions */
+  public static MergeOperator createMergeOperator() {
+    return new MergeOperator() {
+      @Override
+      public StreamableOperatorInternals mergeFinal(
+          final StreamableOperatorInternals[] operators) {
+        ShapSketch mergedReference = null;
+        ShapSketch mergedCurrent = null;
+        try {
+          for (final StreamableOperatorInternals internals : operators) {
+            final ModelContent config =
+                ((SimpleStreamableOperatorInternals) internals).getConfig();
+            final ShapSketch partitionReference =
+                ShapSketch.load(config.getModelContent(CFG_REFERENCE));
+            final ShapSketch partitionCurrent =
+                ShapSketch.load(config.getModelContent(CFG_CURRENT));
+            if (mergedReference == null) {
+              mergedReference = partitionReference;
+              mergedCurrent = partitionCurrent;
+            } else {
+              mergedReference.merge(partitionReference);
+              mergedCurrent.merge(partitionCurrent);
+            }
+          }
+        } catch (final InvalidSettingsException e) {
+          throw new IllegalStateException("Could not read the sketches of a partition.", e);
+        }
+        return saveInternals(mergedReference, mergedCurrent);
+      }
+    };
+  }
+
+  private static StreamableOperatorInternals saveInternals(
+      final ShapSketch reference, final ShapSketch current) {
+    final SimpleStreamableOperatorInternals internals = new SimpleStreamableOperatorInternals();
+    reference.save(internals.getConfig().addModelContent(CFG_REFERENCE));
+    current.save(internals.getConfig().addModelContent(CFG_CURRENT));
+    return internals;
+  }
+
+  private static void write(
+      final ShapSketch reference, final ShapSketch current, final RowOutput out, final int nrBins)
+      throws InterruptedException {
+    final String[] playerNames = reference.getPlayerNames();
+    for (int i = 0; i < playerNames.length; i++) {
+      final DataCell[] cells = new DataCell[11];
+      cells[0] = new StringCell(playerNames[i]);
+      cells[1] = toCell(reference.getMean(i));
+      cells[2] = toCell(current.getMean(i));
+      cells[3] = toCell(current.getMean(i) - reference.getMean(i));
+      cells[4] = toCell(reference.getAbsoluteMean(i));
+      cells[5] = toCell(current.getAbsoluteMean(i));
+      cells[6] = toCell(current.getAbsoluteMean(i) - reference.getAbsoluteMean(i));
+      if (reference.getCount() == 0 || current.getCount() == 0) {
+        cells[7] = DataType.getMissingCell();
+        cells[8] = DataType.getMissingCell();
+      } else {
+        final double[] distances = computeDistances(reference, current, i, nrBins);
+        cells[7] = new DoubleCell(distances[0]);
+        cells[8] = new DoubleCell(distances[1]);
+      }
+      cells[9] = new LongCell(reference.getCount());
+      cells[10] = new LongCell(current.getCount());
+      out.push(new DefaultRow(RowKey.createRowKey((long) i), cells));
+    }
+    out.close();
+  }
+
+  /** @return the PSI and the Wasserstein distance of the player */
+  static double[] computeDistances(
+      final ShapSketch reference, final ShapSketch current, final int player, final int nrBins) {
+    final int level = Math.max(reference.getLevel(player), current.getLevel(player));
+    // The count of either side by the representative value of the bin, in ascending order.
+    final TreeMap<Double, long[]> histogram = new TreeMap<>();
+    addCounts(histogram, reference.getBins(player, level), level, 0);
+    addCounts(histogram, current.getBins(player, level), level, 1);
+    long referenceTotal = 0;
+    long currentTotal = 0;
+    for (final long[] counts : histogram.values()) {
+      referenceTotal += counts[0];
+      currentTotal += counts[1];
+    }
+    final double[] referenceFractions = new double[nrBins];
+    final double[] currentFractions = new double[nrBins];
+    double wasserstein = 0;
+    double referenceCumulative = 0;
+    double currentCumulative = 0;
+    int quantileBin = 0;
+    Double previous = null;
+    for (final Map.Entry<Double, long[]> entry : histogram.entrySet()) {
+      final double referenceFraction = entry.getValue()[0] / (double) referenceTotal;
+      final double currentFraction = entry.getValue()[1] / (double) currentTotal;
+      if (previous != null) {
+        wasserstein +=
+            Math.abs(referenceCumulative - currentCumulative) * (entry.getKey() - previous);
+      }
+      if (referenceFraction > 0) {
+        // The quantile bin of the center of the bin. Bins without reference rows join the previous.
+        quantileBin =
+            (int) Math.min(nrBins - 1, (referenceCumulative + referenceFraction / 2) * nrBins);
+      }
+      referenceFractions[quantileBin] += referenceFraction;
+      currentFractions[quantileBin] += currentFraction;
+      referenceCumulative += referenceFraction;
+      currentCumulative += currentFraction;
+      previous = entry.getKey();
+    }
+    double psi = 0;
+    for (int q = 0; q < nrBins; q++) {
+      final double referenceFraction = Math.max(MIN_FRACTION, referenceFractions[q]);
+      final double currentFraction = Math.max(MIN_FRACTION, currentFractions[q]);
+      psi += (currentFraction - referenceFraction) * Math.log(currentFraction / referenceFraction);
+    }
+    return new double[] {psi, wasserstein};
+  }
+
+  private static void addCounts(
+      final TreeMap<Double, long[]> histogram,
+      final LongCounts bins,
+      final int level,
+      final int side) {
+    final long[] keys = bins.getKeys();
+    final long[] counts = bins.getCounts();
+    for (int k = 0; k < keys.length; k++) {
+      if (keys[k] == LogBins.MISSING) {
+        continue;
+      }
+      final double representative = LogBins.representative((int) keys[k], level);
+      long[] sideCounts = histogram.get(representative);
+      if (sideCounts == null) {
+        sideCounts = new long[2];
+        histogram.put(representative, sideCounts);
+      }
+      sideCounts[side] += counts[k];
+    }
+  }
+
+  private static DataCell toCell(final double value) {
+    return Double.isNaN(value) ? DataType.getMissingCell() : new DoubleCell(value);
+  }
+}
@@ -0,0 +1,206 @@
+package org.morriskurz.summary;
+
+import org.knime.core.node.InvalidSettingsException;
+import org.knime.core.node.ModelContentRO;
+import org.knime.core.node.ModelContentWO;
+
+/**
+ * The distribution of the SHAP values of every player over all rows, kept as a histogram over
+ * logarithmic bins, see {@link LogBins}, along with the exact sums of the SHAP values.
+ *
+ * <p>If a histogram has more than {@link #MAX_BINS} bins, its bins are merged pairwise, so the
+ * memory does not depend on the number of rows. Sketches are merged exactly by bringing both to
+ * the coarser level.
+ *
+ * @author Morris Kurz, morriskurz@gmail.com
+ */
+public final class ShapSketch implements IAccumulator<ShapSketch, double[]> {
+
+  /** The maximum number of bins of the histogram of a player. */
+  static final int MAX_BINS = 2048;
+
+  /** The level at which all bins of a sign have collapsed into at most two bins. */
+  private static final int MAX_LEVEL = 40;
+
+  private static final String CFG_PLAYER_NAMES = "playerNames";
+
+  private static final String CFG_COUNT = "count";
+
+  private static final String CFG_SUMS = "sums";
+
+  private static final String CFG_ABSOLUTE_SUMS = "absoluteSums";
+
+  private static final String CFG_LEVELS = "levels";
+
+  private static final String CFG_OFFSETS = "offsets";
+
+  private static final String CFG_BINS = "bins";
+
+  private static final String CFG_BIN_COUNTS = "binCounts";
+
+  private final String[] playerNames;
+
+  private long count;
+
+  private final double[] sums;
+
+  private final double[] absoluteSums;
+
+  /** The level of the bins of every player. */
+  private final int[] levels;
+
+  /** The histogram of every player by bin. */
+  private final LongCounts[] bins;
+
+  /** @param playerNames The names of the players, in the order of the SHAP values. */
+  public ShapSketch(final String[] playerNames) {
+    this.playerNames = playerNames;
+    sums = new double[playerNames.length];
+    absoluteSums = new double[playerNames.length];
+    levels = new int[playerNames.length];
+    bins = new LongCounts[playerNames.length];
+    for (int i = 0; i < bins.length; i++) {
+      bins[i] = new LongCounts();
+    }
+  }
+
+  /**
+   * Adds the SHAP values of a row.
+   *
+   * @param values The SHAP value of every player, further values such as the bias are ignored.
+   */
+  @Override
+  public void add(final double[] values) {
+    count++;
+    for (int i = 0; i < bins.length; i++) {
+      sums[i] += values[i];
+      absoluteSums[i] += Math.abs(values[i]);
+      bins[i].add(LogBins.of(values[i], levels[i]), 1);
+      if (bins[i].size() > MAX_BINS) {
+        shrink(i);
+      }
+    }
+  }
+
+  @Override
+  public void merge(final ShapSketch other) {
+    count += other.count;
+    for (int i = 0; i < bins.length; i++) {
+      sums[i] += other.sums[i];
+      absoluteSums[i] += other.absoluteSums[i];
+      while (levels[i] < other.levels[i]) {
+        collapse(i);
+      }
+      final long[] keys = other.bins[i].getKeys();
+      final long[] counts = other.bins[i].getCounts();
+      for (int k = 0; k < keys.length; k++) {
+        bins[i].add(collapse((int) keys[k], other.levels[i], levels[i]), counts[k]);
+      }
+      if (bins[i].size() > MAX_BINS) {
+        shrink(i);
+      }
+    }
+  }
+
+  /** @return the number of rows */
+  public long getCount() {
+    return count;
+  }
+
+  public String[] getPlayerNames() {
+    return playerNames;
+  }
+
+  /** @return the mean SHAP value of the player, NaN without rows */
+  public double getMean(final int player) {
+    return count == 0 ? Double.NaN : sums[player] / count;
+  }
+
+  /** @return the mean absolute SHAP value of the player, NaN without rows */
+  public double getAbsoluteMean(final int player) {
+    return count == 0 ? Double.NaN : absoluteSums[player] / count;
+  }
+
+  /** @return the level of the bins of the player */
+  int getLevel(final int player) {
+    return levels[player];
+  }
+
+  /**
+   * @param player The player.
+   * @param level A level at least the level of the player.
+   * @return the histogram of the player at the given level
+   */
+  LongCounts getBins(final int player, final int level) {
+    final LongCounts result = new LongCounts();
+    final long[] keys = bins[player].getKeys();
+    final long[] counts = bins[player].getCounts();
+    for (int k = 0; k < keys.length; k++) {
+      result.add(collapse((int) keys[k], levels[player], level), counts[k]);
+    }
+    return result;
+  }
+
+  public void save(final ModelContentWO model) {
+    model.addStringArray(CFG_PLAYER_NAMES, playerNames);
+    model.addLong(CFG_COUNT, count);
+    model.addDoubleArray(CFG_SUMS, sums);
+    model.addDoubleArray(CFG_ABSOLUTE_SUMS, absoluteSums);
+    model.addIntArray(CFG_LEVELS, levels);
+    final int[] offsets = new int[bins.length + 1];
+    for (int i = 0; i < bins.length; i++) {
+      offsets[i + 1] = offsets[i] + bins[i].size();
+    }
+    final long[] allKeys = new long[offsets[bins.length]];
+    final long[] allCounts = new long[offsets[bins.length]];
+    for (int i = 0; i < bins.length; i++) {
+      System.arraycopy(bins[i].getKeys(), 0, allKeys, offsets[i], bins[i].size());
+      System.arraycopy(bins[i].getCounts(), 0, allCounts, offsets[i], bins[i].size());
+    }
+    model.addIntArray(CFG_OFFSETS, offsets);
+    model.addLongArray(CFG_BINS, allKeys);
+    model.addLongArray(CFG_BIN_COUNTS, allCounts);
+  }
+
+  public static ShapSketch load(final ModelContentRO model) throws InvalidSettingsException {
+    final ShapSketch sketch = new ShapSketch(model.getStringArray(CFG_PLAYER_NAMES));
+    sketch.count = model.getLong(CFG_COUNT);
+    final int nrPlayers = sketch.playerNames.length;
+    System.arraycopy(model.getDoubleArray(CFG_SUMS), 0, sketch.sums, 0, nrPlayers);
+    System.arraycopy(
+        model.getDoubleArray(CFG_ABSOLUTE_SUMS), 0, sketch.absoluteSums, 0, nrPlayers);
+    final int[] levels = model.getIntArray(CFG_LEVELS);
+    final int[] offsets = model.getIntArray(CFG_OFFSETS);
+    final long[] allKeys = model.getLongArray(CFG_BINS);
+    final long[] allCounts = model.getLongArray(CFG_BIN_COUNTS);
+    for (int i = 0; i < nrPlayers; i++) {
+      sketch.levels[i] = levels[i];
+      for (int k = offsets[i]; k < offsets[i + 1]; k++) {
+        sketch.bins[i].add(allKeys[k], allCounts[k]);
+      }
+    }
+    return sketch;
+  }
+
+  /** Merges the bins of the player pairwise until the histogram has at most the maximum bins. */
+  private void shrink(final int player) {
+    while (bins[player].size() > MAX_BINS && levels[player] < MAX_LEVEL) {
+      collapse(player);
+    }
+  }
+
+  /** Merges the bins of the player pairwise, i.e. moves the histogram to the next level. */
+  private void collapse(final int player) {
+    bins[player] = getBins(player, levels[player] + 1);
+    levels[player]++;
+  }
+
+  /** @return the bin of the target level holding the bin of the source level */
+  private static int collapse(final int bin, final int sourceLevel, final int targetLevel) {
+    int result = bin;
+    for (int level = sourceLevel; level < targetLevel; level++) {
+      result = LogBins.collapse(result);
+    }
+    return result;
+  }
+}
@@ -0,0 +1,59 @@
+package org.morriskurz.summary;
+
+import java.util.function.Supplier;
+
+/**
+ * Accumulates rows explained concurrently. The rows are added to one of several partial
+ * accumulators, chosen by the adding thread, so threads rarely wait for each other. The stripes are
+ * merged when the result is requested.
+ *
+ * @param <T> The type of the accumulator.
+ * @param <R> The type of the explanation of a row.
+ * @author Morris Kurz, morriskurz@gmail.com
+ */
+public final class StripedAccumulator<T extends IAccumulator<T, R>, R> {
+
+  private final Supplier<T> factory;
+
+  private final Object[] stripes;
+
+  /** @param factory Creates an empty accumulator. */
+  public StripedAccumulator(final Supplier<T> factory) {
+    this.factory = factory;
+    // A power of two of at least the number of processors, a stripe is chosen by the thread id.
+    final int nrStripes = Integer.highestOneBit(Runtime.getRuntime().availableProcessors()) << 1;
+    stripes = new Object[nrStripes];
+    for (int i = 0; i < nrStripes; i++) {
+      stripes[i] = factory.get();
+    }
+  }
+
+  /**
+   * Adds the explanation of a row. Can be called concurrently.
+   *
+   * @param values The explanation of the row.
+   */
+  public void add(final R values) {
+    final T stripe = getStripe((int) Thread.currentThread().getId() & (stripes.length - 1));
+    synchronized (stripe) {
+      stripe.add(values);
+    }
+  }
+
+  /** @return a new accumulator of all rows added so far */
+  public T getResult() {
+    final T result = factory.get();
+    for (int i = 0; i < stripes.length; i++) {
+      final T stripe = getStripe(i);
+      synchronized (stripe) {
+        result.merge(stripe);
+      }
+    }
+    return result;
+  }
+
+  @SuppressWarnings("unchecked")
+  private T getStripe(final int index) {
+    return (T) stripes[index];
+  }
+}